@@ -0,0 +1,106 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.common.mongo;
+
+import java.io.Serializable;
+
+/**
+ * Options of an entity cache, declared in the datastore metadata:
+ *
+ * <pre>
+ *   "documentCache": { "maxSize": 1000, "ttl": 60000, "invalidation": "oplog" }
+ * </pre>
+ *
+ * maxSize is the maximum number of entries, and ttl is the number of
+ * milliseconds an entry is kept. If they are not given, the defaults of the
+ * cache are used.
+ *
+ * invalidation is the source of the change notifications written by other
+ * nodes: "oplog" for the replica set oplog, or the name of a capped
+ * collection in the same database. If not given, cached documents are only
+ * invalidated by the writes of this node, and otherwise expire after ttl.
+ * invalidation only applies to the document cache.
+ */
+public class MongoCacheOptions implements Serializable {
+
+    private static final long serialVersionUID = 1l;
+
+    private Integer maxSize;
+    private Long ttl;
+    private String invalidation;
+
+    public MongoCacheOptions() {
+    }
+
+    public MongoCacheOptions(Integer maxSize, Long ttl) {
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Maximum number of entries in the cache. When the cache is full, the
+     * least recently used entry is evicted.
+     */
+    public Integer getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Maximum number of entries in the cache. When the cache is full, the
+     * least recently used entry is evicted.
+     */
+    public void setMaxSize(Integer n) {
+        maxSize = n;
+    }
+
+    /**
+     * Time to live of a cache entry in milliseconds
+     */
+    public Long getTtl() {
+        return ttl;
+    }
+
+    /**
+     * Time to live of a cache entry in milliseconds
+     */
+    public void setTtl(Long ms) {
+        ttl = ms;
+    }
+
+    /**
+     * The source of change notifications, "oplog" or the name of a capped
+     * collection, or null if there is none
+     */
+    public String getInvalidation() {
+        return invalidation;
+    }
+
+    /**
+     * The source of change notifications, "oplog" or the name of a capped
+     * collection, or null if there is none
+     */
+    public void setInvalidation(String s) {
+        invalidation = s;
+    }
+
+    @Override
+    public String toString() {
+        return "maxSize:" + maxSize + " ttl:" + ttl + " invalidation:" + invalidation;
+    }
+}
@@ -19,7 +19,11 @@
 package com.redhat.lightblue.common.mongo;
 
 import java.io.Serializable;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 import com.redhat.lightblue.metadata.DataStore;
 
@@ -29,9 +33,32 @@ public class MongoDataStore implements DataStore, Serializable {
 
     public static final String BACKEND = "mongo";
 
+    /**
+     * What to do with queries that cannot use an index
+     */
+    public enum IndexEnforcement {
+        /**
+         * Run the query
+         */
+        allow,
+        /**
+         * Log a warning, and run the query
+         */
+        warn,
+        /**
+         * Reject the query
+         */
+        reject
+    }
+
     private String datasourceName;
     private String databaseName;
     private String collectionName;
+    private IndexEnforcement indexEnforcement;
+    private final Map<String, MongoIndexOptions> indexOptions = new HashMap<>();
+    private final Set<String> caseInsensitiveFields = new LinkedHashSet<>();
+    private MongoCacheOptions documentCache;
+    private MongoCacheOptions queryCache;
 
     public MongoDataStore() {
     }
@@ -103,6 +130,87 @@ public class MongoDataStore implements DataStore, Serializable {
         this.collectionName = argCollectionName;
     }
 
+    /**
+     * What to do with queries that cannot use an index. If null, queries are
+     * allowed.
+     */
+    public IndexEnforcement getIndexEnforcement() {
+        return indexEnforcement;
+    }
+
+    /**
+     * What to do with queries that cannot use an index. If null, queries are
+     * allowed.
+     */
+    public void setIndexEnforcement(IndexEnforcement e) {
+        indexEnforcement = e;
+    }
+
+    /**
+     * Returns the MongoDB specific options of the index with the given name,
+     * or null if there are none
+     */
+    public MongoIndexOptions getIndexOptions(String indexName) {
+        return indexName == null ? null : indexOptions.get(indexName);
+    }
+
+    /**
+     * Sets the MongoDB specific options of the index with the given name. If
+     * options is null, the options of the index are removed.
+     */
+    public void setIndexOptions(String indexName, MongoIndexOptions options) {
+        if (options == null) {
+            indexOptions.remove(indexName);
+        } else {
+            indexOptions.put(indexName, options);
+        }
+    }
+
+    /**
+     * Returns the index options, keyed by index name
+     */
+    public Map<String, MongoIndexOptions> getIndexOptions() {
+        return indexOptions;
+    }
+
+    /**
+     * The string fields with a lower case shadow copy, used to run case
+     * insensitive prefix searches on an index
+     */
+    public Set<String> getCaseInsensitiveFields() {
+        return caseInsensitiveFields;
+    }
+
+    /**
+     * If set, documents read by _id are cached
+     */
+    public MongoCacheOptions getDocumentCache() {
+        return documentCache;
+    }
+
+    /**
+     * If set, documents read by _id are cached
+     */
+    public void setDocumentCache(MongoCacheOptions options) {
+        documentCache = options;
+    }
+
+    /**
+     * If set, the results of find requests are cached. maxSize is the total
+     * number of cached documents.
+     */
+    public MongoCacheOptions getQueryCache() {
+        return queryCache;
+    }
+
+    /**
+     * If set, the results of find requests are cached. maxSize is the total
+     * number of cached documents.
+     */
+    public void setQueryCache(MongoCacheOptions options) {
+        queryCache = options;
+    }
+
     @Override
     public String toString() {
         StringBuilder bld = new StringBuilder(64);
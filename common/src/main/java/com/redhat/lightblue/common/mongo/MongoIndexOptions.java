@@ -0,0 +1,111 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.common.mongo;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * MongoDB specific options of an entity index, declared in the datastore
+ * metadata under "indexOptions", keyed by the index name:
+ *
+ * <pre>
+ *   "indexOptions": {
+ *      "byEmail": { "sparse": true, "collation": { "locale": "en", "strength": 2 } },
+ *      "byCreated": { "expireAfterSeconds": 86400 },
+ *      "activeByName": { "partialFilterExpression": { "status": "active" } }
+ *   }
+ * </pre>
+ *
+ * The partial filter expression and the collation are passed to MongoDB as
+ * they are. Their values are scalars or nested objects.
+ */
+public class MongoIndexOptions implements Serializable {
+
+    private static final long serialVersionUID = 1l;
+
+    private Boolean sparse;
+    private Integer expireAfterSeconds;
+    private Map<String, Object> partialFilterExpression;
+    private Map<String, Object> collation;
+
+    /**
+     * If true, the index only contains documents that have the indexed fields
+     */
+    public Boolean getSparse() {
+        return sparse;
+    }
+
+    /**
+     * If true, the index only contains documents that have the indexed fields
+     */
+    public void setSparse(Boolean b) {
+        sparse = b;
+    }
+
+    /**
+     * If set, this is a TTL index, and documents are removed this many
+     * seconds after the date in the indexed field
+     */
+    public Integer getExpireAfterSeconds() {
+        return expireAfterSeconds;
+    }
+
+    /**
+     * If set, this is a TTL index, and documents are removed this many
+     * seconds after the date in the indexed field
+     */
+    public void setExpireAfterSeconds(Integer n) {
+        expireAfterSeconds = n;
+    }
+
+    /**
+     * If set, the index only contains documents matching this filter
+     */
+    public Map<String, Object> getPartialFilterExpression() {
+        return partialFilterExpression;
+    }
+
+    /**
+     * If set, the index only contains documents matching this filter
+     */
+    public void setPartialFilterExpression(Map<String, Object> m) {
+        partialFilterExpression = m;
+    }
+
+    /**
+     * The collation of the index
+     */
+    public Map<String, Object> getCollation() {
+        return collation;
+    }
+
+    /**
+     * The collation of the index
+     */
+    public void setCollation(Map<String, Object> m) {
+        collation = m;
+    }
+
+    @Override
+    public String toString() {
+        return "sparse:" + sparse + " expireAfterSeconds:" + expireAfterSeconds
+                + " partialFilterExpression:" + partialFilterExpression + " collation:" + collation;
+    }
+}
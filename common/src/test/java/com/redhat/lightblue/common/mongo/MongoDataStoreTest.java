@@ -80,4 +80,12 @@ public class MongoDataStoreTest {
         Assert.assertEquals(dataStore2, dataStore);
     }
 
+    @Test
+    public void testSetIndexEnforcement() {
+        Assert.assertNull(dataStore.getIndexEnforcement());
+        dataStore.setIndexEnforcement(MongoDataStore.IndexEnforcement.warn);
+
+        Assert.assertEquals(MongoDataStore.IndexEnforcement.warn, dataStore.getIndexEnforcement());
+    }
+
 }
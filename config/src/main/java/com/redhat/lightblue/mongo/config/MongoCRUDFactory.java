@@ -18,7 +18,15 @@
  */
 package com.redhat.lightblue.mongo.config;
 
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.redhat.lightblue.common.mongo.DBResolver;
+import com.redhat.lightblue.common.mongo.MongoDataStore;
+import com.redhat.lightblue.config.DataSourceConfiguration;
 import com.redhat.lightblue.config.DataSourcesConfiguration;
 import com.redhat.lightblue.config.ControllerConfiguration;
 import com.redhat.lightblue.config.ControllerFactory;
@@ -26,12 +34,36 @@ import com.redhat.lightblue.crud.CRUDController;
 import com.redhat.lightblue.crud.mongo.MongoCRUDController;
 
 public class MongoCRUDFactory implements ControllerFactory {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MongoCRUDFactory.class);
+
     @Override
     public CRUDController createController(ControllerConfiguration cfg,
                                            DataSourcesConfiguration ds) {
         try {
             DBResolver resolver = new MongoDBResolver(ds);
-            return new MongoCRUDController(resolver);
+            MongoCRUDController controller = new MongoCRUDController(resolver);
+            // Datasources are applied in name order, so the result does not
+            // depend on the order of the configuration
+            Map<String, DataSourceConfiguration> datasources = new TreeMap<>(ds.getDataSourcesByType(MongoConfiguration.class));
+            for (Map.Entry<String, DataSourceConfiguration> entry : datasources.entrySet()) {
+                MongoControllerSettings settings = ((MongoConfiguration) entry.getValue()).getControllerSettings();
+                if (settings != null) {
+                    LOGGER.debug("Controller settings of {}: {}", entry.getKey(), settings);
+                    settings.apply(controller);
+                }
+            }
+            // Poll the databases of the datasources running index jobs, so
+            // jobs queued before a restart are resumed
+            for (Map.Entry<String, DataSourceConfiguration> entry : datasources.entrySet()) {
+                MongoControllerSettings settings = ((MongoConfiguration) entry.getValue()).getControllerSettings();
+                if (settings != null && settings.isIndexJobs()) {
+                    MongoDataStore store = new MongoDataStore();
+                    store.setDatasourceName(entry.getKey());
+                    controller.getIndexJobManager().addDatabase(resolver.get(store));
+                }
+            }
+            return controller;
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -43,6 +43,7 @@ import com.mongodb.MongoCredential;
 import com.mongodb.ServerAddress;
 import com.redhat.lightblue.config.DataSourceConfiguration;
 import com.redhat.lightblue.metadata.mongo.MongoDataStoreParser;
+import com.redhat.lightblue.mongo.hystrix.MongoHystrixConfiguration;
 import com.redhat.lightblue.metadata.parser.DataStoreParser;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
@@ -74,6 +75,8 @@ public class MongoConfiguration implements DataSourceConfiguration {
     private boolean ssl = Boolean.FALSE;
     private boolean noCertValidation = Boolean.FALSE;
     private Class metadataDataStoreParser = MongoDataStoreParser.class;
+    private MongoHystrixConfiguration hystrix = new MongoHystrixConfiguration();
+    private MongoControllerSettings controllerSettings = new MongoControllerSettings();
 
     public void addServerAddress(String hostname, int port) throws UnknownHostException {
         this.servers.add(new ServerAddress(hostname, port));
@@ -179,6 +182,34 @@ public class MongoConfiguration implements DataSourceConfiguration {
         database = s;
     }
 
+    /**
+     * Hystrix settings for the mongo commands running on this datasource
+     */
+    public MongoHystrixConfiguration getHystrixConfiguration() {
+        return hystrix;
+    }
+
+    /**
+     * Hystrix settings for the mongo commands running on this datasource
+     */
+    public void setHystrixConfiguration(MongoHystrixConfiguration cfg) {
+        hystrix = cfg;
+    }
+
+    /**
+     * Settings of the mongo CRUD controller
+     */
+    public MongoControllerSettings getControllerSettings() {
+        return controllerSettings;
+    }
+
+    /**
+     * Settings of the mongo CRUD controller
+     */
+    public void setControllerSettings(MongoControllerSettings s) {
+        controllerSettings = s;
+    }
+
     private static final TrustManager[] trustAllCerts = new TrustManager[]{
         new X509TrustManager() {
             @Override
@@ -260,7 +291,8 @@ public class MongoConfiguration implements DataSourceConfiguration {
         bld.append("connectionsPerHost:").append(connectionsPerHost).append('\n').
                 append("database:").append(database).append('\n').
                 append("ssl:").append(ssl).append('\n').
-                append("noCertValidation:").append(noCertValidation);
+                append("noCertValidation:").append(noCertValidation).append('\n').
+                append("hystrix:").append(hystrix).append('\n');
         bld.append("credentials:");
         boolean first = true;
         for (MongoCredential c : credentials) {
@@ -383,6 +415,13 @@ public class MongoConfiguration implements DataSourceConfiguration {
             if (x != null) {
                 database = x.asText();
             }
+            x = node.get("hystrix");
+            if (x != null) {
+                hystrix = new MongoHystrixConfiguration();
+                hystrix.initializeFromJson(x);
+            }
+            controllerSettings = new MongoControllerSettings();
+            controllerSettings.initializeFromJson(node);
             JsonNode jsonNodeServers = node.get("servers");
             if (jsonNodeServers != null && jsonNodeServers.isArray()) {
                 Iterator<JsonNode> elements = jsonNodeServers.elements();
@@ -0,0 +1,397 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.config;
+
+import java.io.Serializable;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.redhat.lightblue.crud.mongo.CursorRegistry;
+import com.redhat.lightblue.crud.mongo.IndexAdvisor;
+import com.redhat.lightblue.crud.mongo.IndexJobManager;
+import com.redhat.lightblue.crud.mongo.MongoCRUDController;
+
+/**
+ * Settings of the mongo CRUD controller, read from the datasource
+ * configuration:
+ *
+ * <pre>
+ *   "indexAdvisor": { "sampleRate": 100, "maxShapes": 1000 },
+ *   "indexJobs": { "jobCollection": "indexJobs", "maxConcurrentJobs": 1,
+ *                  "pollMillis": 10000, "staleMillis": 300000, "pauseMillis": 0,
+ *                  "maintenanceWindow": { "startHour": 1, "endHour": 5 } },
+ *   "cursors": { "maxCursors": 100, "idleTimeoutMillis": 300000 },
+ *   "docInterceptors": false
+ * </pre>
+ *
+ * The index advisor is enabled if "indexAdvisor" is present. Index changes
+ * run as background jobs (see {@link IndexJobManager}) if "indexJobs" is
+ * present, otherwise they run during the metadata update. "cursors" sets the
+ * limits of the server side cursors kept between requests (see
+ * {@link CursorRegistry}). "docInterceptors": false allows server side
+ * multi-updates, and should only be set if no per-document update
+ * interceptors are registered. Settings that
+ * are not given keep the controller defaults. There is a single controller
+ * for all mongo datasources, so if more than one datasource sets the same
+ * setting, the datasource that comes last in name order wins.
+ */
+public class MongoControllerSettings implements Serializable {
+
+    private static final long serialVersionUID = 1l;
+
+    private boolean indexAdvisor = false;
+    private Integer advisorSampleRate;
+    private Integer advisorMaxShapes;
+    private boolean indexJobs = false;
+    private String jobCollection;
+    private Integer maxConcurrentJobs;
+    private Long pollMillis;
+    private Long staleMillis;
+    private Long pauseMillis;
+    private Integer windowStartHour;
+    private Integer windowEndHour;
+    private Integer maxCursors;
+    private Long cursorIdleTimeoutMillis;
+    private Boolean docInterceptors;
+
+    /**
+     * If true, the index advisor samples the queries
+     */
+    public boolean isIndexAdvisor() {
+        return indexAdvisor;
+    }
+
+    /**
+     * If true, the index advisor samples the queries
+     */
+    public void setIndexAdvisor(boolean b) {
+        indexAdvisor = b;
+    }
+
+    /**
+     * One in every sampleRate queries of an entity is sampled by the index
+     * advisor
+     */
+    public Integer getAdvisorSampleRate() {
+        return advisorSampleRate;
+    }
+
+    /**
+     * One in every sampleRate queries of an entity is sampled by the index
+     * advisor
+     */
+    public void setAdvisorSampleRate(Integer n) {
+        advisorSampleRate = n;
+    }
+
+    /**
+     * Maximum number of query shapes explained by the index advisor
+     */
+    public Integer getAdvisorMaxShapes() {
+        return advisorMaxShapes;
+    }
+
+    /**
+     * Maximum number of query shapes explained by the index advisor
+     */
+    public void setAdvisorMaxShapes(Integer n) {
+        advisorMaxShapes = n;
+    }
+
+    /**
+     * If true, index changes run as background jobs
+     */
+    public boolean isIndexJobs() {
+        return indexJobs;
+    }
+
+    /**
+     * If true, index changes run as background jobs
+     */
+    public void setIndexJobs(boolean b) {
+        indexJobs = b;
+    }
+
+    /**
+     * The collection the index jobs are queued in
+     */
+    public String getJobCollection() {
+        return jobCollection;
+    }
+
+    /**
+     * The collection the index jobs are queued in
+     */
+    public void setJobCollection(String s) {
+        jobCollection = s;
+    }
+
+    /**
+     * Maximum number of index jobs running at the same time
+     */
+    public Integer getMaxConcurrentJobs() {
+        return maxConcurrentJobs;
+    }
+
+    /**
+     * Maximum number of index jobs running at the same time
+     */
+    public void setMaxConcurrentJobs(Integer n) {
+        maxConcurrentJobs = n;
+    }
+
+    /**
+     * How often the job collections are polled
+     */
+    public Long getPollMillis() {
+        return pollMillis;
+    }
+
+    /**
+     * How often the job collections are polled
+     */
+    public void setPollMillis(Long ms) {
+        pollMillis = ms;
+    }
+
+    /**
+     * A running job without a heartbeat for this long is queued again
+     */
+    public Long getStaleMillis() {
+        return staleMillis;
+    }
+
+    /**
+     * A running job without a heartbeat for this long is queued again
+     */
+    public void setStaleMillis(Long ms) {
+        staleMillis = ms;
+    }
+
+    /**
+     * Pause after each index build
+     */
+    public Long getPauseMillis() {
+        return pauseMillis;
+    }
+
+    /**
+     * Pause after each index build
+     */
+    public void setPauseMillis(Long ms) {
+        pauseMillis = ms;
+    }
+
+    /**
+     * Index jobs start between windowStartHour and windowEndHour, UTC
+     */
+    public Integer getWindowStartHour() {
+        return windowStartHour;
+    }
+
+    /**
+     * Index jobs start between windowStartHour and windowEndHour, UTC
+     */
+    public void setWindowStartHour(Integer h) {
+        windowStartHour = h;
+    }
+
+    /**
+     * Index jobs start between windowStartHour and windowEndHour, UTC
+     */
+    public Integer getWindowEndHour() {
+        return windowEndHour;
+    }
+
+    /**
+     * Index jobs start between windowStartHour and windowEndHour, UTC
+     */
+    public void setWindowEndHour(Integer h) {
+        windowEndHour = h;
+    }
+
+    /**
+     * Maximum number of open server side cursors
+     */
+    public Integer getMaxCursors() {
+        return maxCursors;
+    }
+
+    /**
+     * Maximum number of open server side cursors
+     */
+    public void setMaxCursors(Integer n) {
+        maxCursors = n;
+    }
+
+    /**
+     * Server side cursors not used for this long are closed
+     */
+    public Long getCursorIdleTimeoutMillis() {
+        return cursorIdleTimeoutMillis;
+    }
+
+    /**
+     * Server side cursors not used for this long are closed
+     */
+    public void setCursorIdleTimeoutMillis(Long ms) {
+        cursorIdleTimeoutMillis = ms;
+    }
+
+    /**
+     * If false, there are no per-document update interceptors, see
+     * {@link MongoCRUDController#setDocInterceptors}
+     */
+    public Boolean getDocInterceptors() {
+        return docInterceptors;
+    }
+
+    /**
+     * If false, there are no per-document update interceptors, see
+     * {@link MongoCRUDController#setDocInterceptors}
+     */
+    public void setDocInterceptors(Boolean b) {
+        docInterceptors = b;
+    }
+
+    /**
+     * Applies the settings to the controller
+     */
+    public void apply(MongoCRUDController controller) {
+        if (indexAdvisor) {
+            IndexAdvisor advisor = controller.getIndexAdvisor();
+            if (advisor == null) {
+                advisor = new IndexAdvisor();
+                controller.setIndexAdvisor(advisor);
+            }
+            if (advisorSampleRate != null) {
+                advisor.setSampleRate(advisorSampleRate);
+            }
+            if (advisorMaxShapes != null) {
+                advisor.setMaxShapes(advisorMaxShapes);
+            }
+        }
+        if (indexJobs) {
+            IndexJobManager manager = controller.getIndexJobManager();
+            if (manager == null) {
+                manager = new IndexJobManager();
+                controller.setIndexJobManager(manager);
+            }
+            if (jobCollection != null) {
+                manager.setJobCollection(jobCollection);
+            }
+            if (maxConcurrentJobs != null) {
+                manager.setMaxConcurrentJobs(maxConcurrentJobs);
+            }
+            if (pollMillis != null) {
+                manager.setPollMillis(pollMillis);
+            }
+            if (staleMillis != null) {
+                manager.setStaleMillis(staleMillis);
+            }
+            if (pauseMillis != null) {
+                manager.setPauseMillis(pauseMillis);
+            }
+            if (windowStartHour != null && windowEndHour != null) {
+                manager.setMaintenanceWindow(windowStartHour, windowEndHour);
+            }
+        }
+        CursorRegistry cursors = controller.getCursorRegistry();
+        if (cursors != null) {
+            if (maxCursors != null) {
+                cursors.setMaxCursors(maxCursors);
+            }
+            if (cursorIdleTimeoutMillis != null) {
+                cursors.setIdleTimeoutMillis(cursorIdleTimeoutMillis);
+            }
+        }
+        if (docInterceptors != null) {
+            controller.setDocInterceptors(docInterceptors);
+        }
+    }
+
+    public void initializeFromJson(JsonNode node) {
+        if (node != null) {
+            JsonNode x = node.get("indexAdvisor");
+            if (x != null) {
+                indexAdvisor = true;
+                advisorSampleRate = getInteger(x, "sampleRate");
+                advisorMaxShapes = getInteger(x, "maxShapes");
+            }
+            x = node.get("indexJobs");
+            if (x != null) {
+                indexJobs = true;
+                JsonNode y = x.get("jobCollection");
+                jobCollection = y == null ? null : y.asText();
+                maxConcurrentJobs = getInteger(x, "maxConcurrentJobs");
+                pollMillis = getLong(x, "pollMillis");
+                staleMillis = getLong(x, "staleMillis");
+                pauseMillis = getLong(x, "pauseMillis");
+                y = x.get("maintenanceWindow");
+                if (y != null) {
+                    windowStartHour = getInteger(y, "startHour");
+                    windowEndHour = getInteger(y, "endHour");
+                }
+            }
+            x = node.get("cursors");
+            if (x != null) {
+                maxCursors = getInteger(x, "maxCursors");
+                cursorIdleTimeoutMillis = getLong(x, "idleTimeoutMillis");
+            }
+            x = node.get("docInterceptors");
+            if (x != null) {
+                docInterceptors = x.asBoolean();
+            }
+        }
+    }
+
+    private static Integer getInteger(JsonNode node, String field) {
+        JsonNode x = node.get(field);
+        return x == null ? null : x.asInt();
+    }
+
+    private static Long getLong(JsonNode node, String field) {
+        JsonNode x = node.get(field);
+        return x == null ? null : x.asLong();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder bld = new StringBuilder();
+        bld.append("indexAdvisor:").append(indexAdvisor);
+        if (indexAdvisor) {
+            bld.append(" sampleRate:").append(advisorSampleRate).append(" maxShapes:").append(advisorMaxShapes);
+        }
+        bld.append(" indexJobs:").append(indexJobs);
+        if (indexJobs) {
+            bld.append(" jobCollection:").append(jobCollection).
+                    append(" maxConcurrentJobs:").append(maxConcurrentJobs).
+                    append(" pollMillis:").append(pollMillis).
+                    append(" staleMillis:").append(staleMillis).
+                    append(" pauseMillis:").append(pauseMillis).
+                    append(" maintenanceWindow:").append(windowStartHour).append('-').append(windowEndHour);
+        }
+        if (maxCursors != null || cursorIdleTimeoutMillis != null) {
+            bld.append(" maxCursors:").append(maxCursors).append(" cursorIdleTimeoutMillis:").append(cursorIdleTimeoutMillis);
+        }
+        if (docInterceptors != null) {
+            bld.append(" docInterceptors:").append(docInterceptors);
+        }
+        return bld.toString();
+    }
+}
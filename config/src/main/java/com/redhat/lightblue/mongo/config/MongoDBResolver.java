@@ -20,6 +20,7 @@ package com.redhat.lightblue.mongo.config;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,6 +30,7 @@ import com.redhat.lightblue.common.mongo.DBResolver;
 import com.redhat.lightblue.common.mongo.MongoDataStore;
 import com.redhat.lightblue.config.DataSourceConfiguration;
 import com.redhat.lightblue.config.DataSourcesConfiguration;
+import com.redhat.lightblue.mongo.hystrix.MongoHystrixConfiguration;
 
 public class MongoDBResolver implements DBResolver {
 
@@ -56,15 +58,18 @@ public class MongoDBResolver implements DBResolver {
                         throw new IllegalArgumentException("No datasources for " + store.getDatasourceName());
                     }
                     db = cfg.getDB();
+                    registerHystrixConfiguration(store.getDatasourceName(), cfg, db);
                     dsMap.put(store.getDatasourceName(), db);
                 }
             } else if (store.getDatabaseName() != null) {
                 LOGGER.debug("databaseName:{}", store.getDatabaseName());
                 db = dbMap.get(store.getDatabaseName());
                 if (db == null) {
-                    for (DataSourceConfiguration cfg : datasources.values()) {
-                        if (((MongoConfiguration) cfg).getDatabase().equals(store.getDatabaseName())) {
-                            db = ((MongoConfiguration) cfg).getDB();
+                    for (Map.Entry<String, DataSourceConfiguration> entry : datasources.entrySet()) {
+                        MongoConfiguration cfg = (MongoConfiguration) entry.getValue();
+                        if (cfg.getDatabase().equals(store.getDatabaseName())) {
+                            db = cfg.getDB();
+                            registerHystrixConfiguration(entry.getKey(), cfg, db);
                             dbMap.put(store.getDatabaseName(), db);
                             break;
                         }
@@ -84,4 +89,23 @@ public class MongoDBResolver implements DBResolver {
         LOGGER.debug("Returning {} for {}", db, store);
         return db;
     }
+
+    /**
+     * Registers the hystrix configuration of the datasource for the commands
+     * running on the db
+     */
+    private void registerHystrixConfiguration(String datasourceName, MongoConfiguration cfg, DB db) {
+        MongoHystrixConfiguration hcfg = cfg.getHystrixConfiguration();
+        if (hcfg != null) {
+            if (hcfg.getDatasourceName() == null) {
+                hcfg.setDatasourceName(datasourceName);
+            }
+            LOGGER.debug("Hystrix configuration for {}: {}", datasourceName, hcfg);
+            Set<String> unenforced = hcfg.getUnenforcedTimeouts();
+            if (!unenforced.isEmpty()) {
+                LOGGER.warn("Hystrix timeouts of {} for {} are not enforced with SEMAPHORE isolation", unenforced, datasourceName);
+            }
+            MongoHystrixConfiguration.register(db, hcfg);
+        }
+    }
 }
@@ -20,17 +20,25 @@ package com.redhat.lightblue.mongo.config;
 
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.Iterator;
 import java.util.List;
+import java.util.TimeZone;
 
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoClientOptions;
 import com.mongodb.ServerAddress;
+import com.netflix.hystrix.HystrixCommandProperties;
+import com.redhat.lightblue.crud.mongo.IndexJobManager;
+import com.redhat.lightblue.crud.mongo.MongoCRUDController;
+import com.redhat.lightblue.mongo.hystrix.MongoCommandSettings;
 
 public class MongoConfigurationTest {
 
@@ -125,4 +133,78 @@ public class MongoConfigurationTest {
 
         Assert.assertEquals(config.getDB().toString(), client.getDB("database").toString());
     }
+
+    @Test
+    public void testHystrixConfiguration() throws Exception {
+        JsonNode node = new ObjectMapper().readTree("{\"database\":\"db\",\"hystrix\":{\"isolation\":\"semaphore\",\"timeout\":1000,"
+                + "\"commands\":{\"FindCommand\":{\"timeout\":30000}}}}");
+        MongoConfiguration cfg = new MongoConfiguration();
+        cfg.initializeFromJson(node);
+
+        MongoCommandSettings find = cfg.getHystrixConfiguration().getSettings("FindCommand");
+        Assert.assertEquals(HystrixCommandProperties.ExecutionIsolationStrategy.SEMAPHORE, find.getIsolationStrategy());
+        Assert.assertEquals(new Integer(30000), find.getTimeout());
+        Assert.assertEquals(new Integer(1000), cfg.getHystrixConfiguration().getSettings("InsertCommand").getTimeout());
+    }
+
+    @Test
+    public void controllerSettings() throws Exception {
+        JsonNode node = new ObjectMapper().readTree("{\"database\":\"db\",\"indexAdvisor\":{\"sampleRate\":10}}");
+        MongoConfiguration cfg = new MongoConfiguration();
+        cfg.initializeFromJson(node);
+
+        MongoCRUDController controller = new MongoCRUDController(null);
+        Assert.assertNull(controller.getIndexAdvisor());
+        cfg.getControllerSettings().apply(controller);
+        Assert.assertEquals(10, controller.getIndexAdvisor().getSampleRate());
+    }
+
+    @Test
+    public void indexJobSettings() throws Exception {
+        JsonNode node = new ObjectMapper().readTree("{\"database\":\"db\",\"indexJobs\":{\"maxConcurrentJobs\":2,"
+                + "\"pauseMillis\":500,\"jobCollection\":\"jobs\",\"maintenanceWindow\":{\"startHour\":22,\"endHour\":4}}}");
+        MongoConfiguration cfg = new MongoConfiguration();
+        cfg.initializeFromJson(node);
+
+        MongoCRUDController controller = new MongoCRUDController(null);
+        Assert.assertNull(controller.getIndexJobManager());
+        cfg.getControllerSettings().apply(controller);
+        IndexJobManager manager = controller.getIndexJobManager();
+        Assert.assertEquals(2, manager.getMaxConcurrentJobs());
+        Assert.assertEquals(500, manager.getPauseMillis());
+        Assert.assertEquals("jobs", manager.getJobCollection());
+        Assert.assertEquals(10000, manager.getPollMillis());
+        Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        cal.set(Calendar.HOUR_OF_DAY, 23);
+        Assert.assertTrue(manager.isInMaintenanceWindow(cal.getTime()));
+        cal.set(Calendar.HOUR_OF_DAY, 12);
+        Assert.assertFalse(manager.isInMaintenanceWindow(cal.getTime()));
+    }
+
+    @Test
+    public void cursorSettings() throws Exception {
+        JsonNode node = new ObjectMapper().readTree("{\"database\":\"db\",\"cursors\":{\"maxCursors\":20}}");
+        MongoConfiguration cfg = new MongoConfiguration();
+        cfg.initializeFromJson(node);
+
+        MongoCRUDController controller = new MongoCRUDController(null);
+        long idle = controller.getCursorRegistry().getIdleTimeoutMillis();
+        cfg.getControllerSettings().apply(controller);
+        Assert.assertEquals(20, controller.getCursorRegistry().getMaxCursors());
+        Assert.assertEquals(idle, controller.getCursorRegistry().getIdleTimeoutMillis());
+    }
+
+    @Test
+    public void docInterceptorSettings() throws Exception {
+        MongoCRUDController controller = new MongoCRUDController(null);
+        MongoConfiguration cfg = new MongoConfiguration();
+        cfg.initializeFromJson(new ObjectMapper().readTree("{\"database\":\"db\"}"));
+        cfg.getControllerSettings().apply(controller);
+        Assert.assertTrue(controller.isDocInterceptors());
+
+        cfg = new MongoConfiguration();
+        cfg.initializeFromJson(new ObjectMapper().readTree("{\"database\":\"db\",\"docInterceptors\":false}"));
+        cfg.getControllerSettings().apply(controller);
+        Assert.assertFalse(controller.isDocInterceptors());
+    }
 }
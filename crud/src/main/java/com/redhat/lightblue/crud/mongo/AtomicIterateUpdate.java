@@ -18,6 +18,8 @@
  */
 package com.redhat.lightblue.crud.mongo;
 
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import org.slf4j.Logger;
@@ -29,6 +31,7 @@ import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.MongoException;
+import com.mongodb.WriteResult;
 import com.redhat.lightblue.interceptor.InterceptPoint;
 import com.redhat.lightblue.crud.CRUDOperationContext;
 import com.redhat.lightblue.crud.CRUDUpdateResponse;
@@ -39,7 +42,9 @@ import com.redhat.lightblue.eval.FieldAccessRoleEvaluator;
 import com.redhat.lightblue.eval.Projector;
 import com.redhat.lightblue.metadata.EntityMetadata;
 import com.redhat.lightblue.mongo.hystrix.FindAndModifyCommand;
+import com.redhat.lightblue.mongo.hystrix.BatchedCursor;
 import com.redhat.lightblue.mongo.hystrix.FindCommand;
+import com.redhat.lightblue.mongo.hystrix.UpdateCommand;
 import com.redhat.lightblue.util.Error;
 import com.redhat.lightblue.util.Path;
 
@@ -47,27 +52,58 @@ import com.redhat.lightblue.util.Path;
  * Atomic updater that evaluates the query, and updates the documents one by one
  * using atomic updates
  *
- * This class is probably useless. It makes things complicated for update.
+ * This is used for array updates that can be translated to $push/$pull. $pull
+ * removes an unknown number of elements, so the array size fields of pulled
+ * arrays are corrected after the update, retrying if the array is modified
+ * concurrently.
+ *
+ * Unless the entity has hooks or there are per-document interceptors that
+ * need the original documents, or the query has a residual part evaluated on
+ * the documents, the result set is read with only _id and objectType. The updated documents are read back with only the
+ * fields needed by the projection.
  */
 public class AtomicIterateUpdate implements DocUpdater {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(AtomicIterateUpdate.class);
 
+    private static final int MAX_SIZE_RETRIES = 10;
+
     private final JsonNodeFactory nodeFactory;
-    private final FieldAccessRoleEvaluator roleEval;
+    private final FieldAccessMask access;
     private final Translator translator;
     private final DBObject mongoUpdateExpr;
     private final Projector projector;
     private final Set<Path> updatedFields;
+    private final Set<String> projectedFields;
+    private final boolean docInterceptors;
 
     public AtomicIterateUpdate(JsonNodeFactory nodeFactory,
-                               FieldAccessRoleEvaluator roleEval,
+                               FieldAccessMask access,
                                Translator translator,
                                DBObject mongoUpdateExpr,
                                Projector projector,
                                Set<Path> updatedFields) {
+        this(nodeFactory, access, translator, mongoUpdateExpr, projector, updatedFields, null, true);
+    }
+
+    /**
+     * @param projectedFields The fields needed to evaluate the projection (see
+     * {@link Translator#getProjectedFields}), or null to read all fields
+     * @param docInterceptors If true, there may be per-document update
+     * interceptors, so the documents are read with all fields
+     */
+    public AtomicIterateUpdate(JsonNodeFactory nodeFactory,
+                               FieldAccessMask access,
+                               Translator translator,
+                               DBObject mongoUpdateExpr,
+                               Projector projector,
+                               Set<Path> updatedFields,
+                               Set<String> projectedFields,
+                               boolean docInterceptors) {
+        this.projectedFields = projectedFields;
+        this.docInterceptors = docInterceptors;
         this.nodeFactory = nodeFactory;
-        this.roleEval = roleEval;
+        this.access = access;
         this.translator = translator;
         this.mongoUpdateExpr = mongoUpdateExpr;
         this.projector = projector;
@@ -81,7 +117,7 @@ public class AtomicIterateUpdate implements DocUpdater {
                        CRUDUpdateResponse response,
                        DBObject query) {
         LOGGER.debug("atomicIterateUpdate: start");
-        Set<Path> inaccessibleFields = roleEval.getInaccessibleFields(FieldAccessRoleEvaluator.Operation.update);
+        Set<Path> inaccessibleFields = access.getInaccessibleFields(FieldAccessRoleEvaluator.Operation.update);
         for (Path x : inaccessibleFields) {
             if (updatedFields.contains(x)) {
                 ctx.addError(Error.get("update", CrudConstants.ERR_NO_FIELD_UPDATE_ACCESS, x.toString()));
@@ -93,36 +129,76 @@ public class AtomicIterateUpdate implements DocUpdater {
             LOGGER.debug("Computing the result set for {}", query);
             DBCursor cursor = null;
             int docIndex = 0;
+            PhaseTimer timer = PhaseTimer.get(ctx);
+            BatchedCursor docs = null;
+            ResidualFilter residual = (ResidualFilter) ctx.getProperty(MongoCRUDController.PROP_RESIDUAL_FILTER);
+            Set<String> pulledArrays = Translator.getPulledArrays(mongoUpdateExpr);
+            DocumentCache cache = DocumentCache.get(ctx);
+            DBObject scanFields = null;
+            if (residual == null && !docInterceptors && (md.getHooks() == null || md.getHooks().isEmpty())) {
+                scanFields = new BasicDBObject(MongoCRUDController.ID_STR, 1).append(Translator.OBJECT_TYPE_STR, 1);
+            }
+            DBObject returnFields = getReturnFields(pulledArrays);
+            LOGGER.debug("Scan fields {}, return fields {}", scanFields, returnFields);
             try {
-                ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.PRE_CRUD_UPDATE_RESULTSET, ctx);
+                timer.callInterceptors(InterceptPoint.PRE_CRUD_UPDATE_RESULTSET, ctx);
                 // Find docs
-                cursor = new FindCommand(collection, query, null).execute();
-                LOGGER.debug("Found {} documents", cursor.count());
-                ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.POST_CRUD_UPDATE_RESULTSET, ctx);
+                long t = timer.begin();
+                cursor = new FindCommand(collection, query, scanFields).execute();
+                timer.end(PhaseTimer.Phase.server, t);
+                if (LOGGER.isDebugEnabled()) {
+                    // count() is a server round trip
+                    LOGGER.debug("Found {} documents", cursor.count());
+                }
+                timer.callInterceptors(InterceptPoint.POST_CRUD_UPDATE_RESULTSET, ctx);
                 // read-update
-                while (cursor.hasNext()) {
-                    DBObject document = cursor.next();
+                docs = new BatchedCursor(cursor);
+                while (docs.hasNext()) {
+                    DBObject document = docs.next();
+                    if (residual != null && !residual.matches(document)) {
+                        continue;
+                    }
                     // Add the doc to context
-                    DocCtx doc = ctx.addDocument(translator.toJson(document));
+                    t = timer.begin();
+                    DocCtx doc = ctx.addDocument(residual == null ? translator.toJson(document) : residual.toJson(document));
+                    timer.end(PhaseTimer.Phase.decode, t);
                     try {
                         Object id = document.get("_id");
                         LOGGER.debug("Retrieved doc {} id={}", docIndex, id);
-                        ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.PRE_CRUD_UPDATE_DOC, ctx, doc);
+                        timer.callInterceptors(InterceptPoint.PRE_CRUD_UPDATE_DOC, ctx, doc);
                         // Update doc
+                        t = timer.begin();
                         DBObject modifiedDoc = new FindAndModifyCommand(collection,
                                 new BasicDBObject("_id", id),
-                                null,
+                                returnFields,
                                 null,
                                 false,
                                 mongoUpdateExpr,
                                 true,
                                 false).execute();
+                        if (modifiedDoc == null) {
+                            // Removed since the result set was computed
+                            timer.end(PhaseTimer.Phase.server, t);
+                            LOGGER.debug("Document {} id={} no longer exists", docIndex, id);
+                            docIndex++;
+                            continue;
+                        }
+                        for (String array : pulledArrays) {
+                            updateArraySize(collection, modifiedDoc, array);
+                        }
+                        if (cache != null) {
+                            cache.invalidate(id);
+                        }
+                        timer.end(PhaseTimer.Phase.server, t);
+                        doc.setOutputDocument(translator.toJson(modifiedDoc));
+                        doc.setOperationPerformed(Operation.UPDATE);
                         if (projector != null) {
                             LOGGER.debug("Projecting document {}", docIndex);
-                            doc.setOutputDocument(projector.project(translator.toJson(modifiedDoc), nodeFactory));
-                            doc.setOperationPerformed(Operation.UPDATE);
+                            t = timer.begin();
+                            doc.setOutputDocument(projector.project(doc.getOutputDocument(), nodeFactory));
+                            timer.end(PhaseTimer.Phase.projection, t);
                         }
-                        ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.POST_CRUD_UPDATE_DOC, ctx, doc);
+                        timer.callInterceptors(InterceptPoint.POST_CRUD_UPDATE_DOC, ctx, doc);
                         numUpdated++;
                     } catch (MongoException e) {
                         LOGGER.warn("Update exception for document {}: {}", docIndex, e);
@@ -132,6 +208,9 @@ public class AtomicIterateUpdate implements DocUpdater {
                     docIndex++;
                 }
             } finally {
+                if (docs != null) {
+                    timer.record(PhaseTimer.Phase.server, docs.getFetchTime());
+                }
                 if (cursor != null) {
                     cursor.close();
                 }
@@ -140,4 +219,88 @@ public class AtomicIterateUpdate implements DocUpdater {
         response.setNumUpdated(numUpdated);
         response.setNumFailed(numFailed);
     }
+
+    /**
+     * Returns the fields to read back from the updated documents, or null for
+     * all fields. If there is no projection, only _id and objectType are read.
+     * The pulled arrays and their size fields are always read, so the sizes
+     * can be corrected.
+     */
+    private DBObject getReturnFields(Set<String> pulledArrays) {
+        Set<String> fields;
+        if (projector == null) {
+            fields = new HashSet<>();
+            fields.add(MongoCRUDController.ID_STR);
+            fields.add(Translator.OBJECT_TYPE_STR);
+        } else if (projectedFields != null) {
+            fields = new HashSet<>(projectedFields);
+        } else {
+            return null;
+        }
+        for (String array : pulledArrays) {
+            fields.add(array);
+            fields.add(array + "#");
+        }
+        return Translator.getFieldSelector(fields);
+    }
+
+    /**
+     * Sets the array size field of a pulled array to the size of the array.
+     * The update only applies if the array still has the same size, so a
+     * concurrent update of the array is not overwritten. If the array was
+     * modified concurrently, it is read again, and the update is retried.
+     */
+    private static void updateArraySize(DBCollection collection, DBObject modifiedDoc, String array) {
+        String sizeField = array + "#";
+        // Pulled arrays are never under other arrays, so the parent is an object
+        int dot = array.lastIndexOf('.');
+        Object parent = dot == -1 ? modifiedDoc : getField(modifiedDoc, array.substring(0, dot));
+        if (!(parent instanceof DBObject)) {
+            return;
+        }
+        String name = dot == -1 ? array : array.substring(dot + 1);
+        Object size = ((DBObject) parent).get(name + "#");
+        Object value = ((DBObject) parent).get(name);
+        if (!(size instanceof Number) || !(value instanceof List) || ((Number) size).intValue() == ((List) value).size()) {
+            return;
+        }
+        ((DBObject) parent).put(name + "#", ((List) value).size());
+        Object id = modifiedDoc.get("_id");
+        for (int i = 0; i < MAX_SIZE_RETRIES; i++) {
+            int n = ((List) value).size();
+            LOGGER.debug("Setting {} to {}", sizeField, n);
+            BasicDBObject q = new BasicDBObject("_id", id);
+            q.append(array, new BasicDBObject("$size", n));
+            WriteResult result = new UpdateCommand(collection, q, new BasicDBObject("$set", new BasicDBObject(sizeField, n)), false, false).execute();
+            if (result.getN() > 0) {
+                return;
+            }
+            // The array was modified since it was read
+            DBCursor cursor = new FindCommand(collection, new BasicDBObject("_id", id),
+                    new BasicDBObject(array, 1).append(sizeField, 1)).execute();
+            DBObject doc;
+            try {
+                doc = cursor.hasNext() ? cursor.next() : null;
+            } finally {
+                cursor.close();
+            }
+            size = doc == null ? null : getField(doc, sizeField);
+            value = doc == null ? null : getField(doc, array);
+            if (!(size instanceof Number) || !(value instanceof List) || ((Number) size).intValue() == ((List) value).size()) {
+                return;
+            }
+        }
+        LOGGER.warn("Could not correct {} of document {}, the array is being modified concurrently", sizeField, id);
+    }
+
+    private static Object getField(DBObject doc, String path) {
+        Object trc = doc;
+        for (String segment : path.split("\\.")) {
+            if (!(trc instanceof DBObject)) {
+                return null;
+            }
+            trc = ((DBObject) trc).get(segment);
+        }
+        return trc;
+    }
 }
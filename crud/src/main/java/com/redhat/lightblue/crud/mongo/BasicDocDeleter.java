@@ -42,7 +42,11 @@ public class BasicDocDeleter implements DocDeleter {
                        DBObject mongoQuery,
                        CRUDDeleteResponse response) {
         LOGGER.debug("Removing docs with {}", mongoQuery);
+        PhaseTimer timer = PhaseTimer.get(ctx);
+        long t = timer.begin();
         WriteResult result = new RemoveCommand(collection, mongoQuery).execute();
+        timer.end(PhaseTimer.Phase.server, t);
+        DocumentCache.invalidate(ctx, mongoQuery);
         LOGGER.debug("Removal complete, write result={}", result);
         response.setNumDeleted(result.getN());
     }
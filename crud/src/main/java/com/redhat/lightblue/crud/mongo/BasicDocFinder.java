@@ -18,21 +18,34 @@
  */
 package com.redhat.lightblue.crud.mongo;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
 import com.mongodb.DBCursor;
 
 import com.redhat.lightblue.interceptor.InterceptPoint;
 import com.redhat.lightblue.crud.CRUDOperationContext;
+import com.redhat.lightblue.crud.CrudConstants;
 import com.redhat.lightblue.crud.Operation;
 import com.redhat.lightblue.crud.DocCtx;
+import com.redhat.lightblue.mongo.hystrix.BatchedCursor;
+import com.redhat.lightblue.mongo.hystrix.CountCommand;
 import com.redhat.lightblue.mongo.hystrix.FindCommand;
+import com.redhat.lightblue.mongo.hystrix.FindListCommand;
+import com.redhat.lightblue.metadata.EntityMetadata;
 
+import com.redhat.lightblue.util.Error;
 import com.redhat.lightblue.util.JsonDoc;
 
 /**
@@ -44,8 +57,72 @@ public class BasicDocFinder implements DocFinder {
 
     private final Translator translator;
 
+    private final CursorRegistry cursorRegistry;
+
+    private int maxInListSize = 0;
+    private int maxParallelQueries = 4;
+    private List<JsonDoc> readDocuments;
+
     public BasicDocFinder(Translator translator) {
+        this(translator, null);
+    }
+
+    /**
+     * Constructs a finder that keeps the cursors of the requests with the
+     * {@link MongoCRUDController#PROP_CURSOR} property open in the cursor
+     * registry
+     */
+    public BasicDocFinder(Translator translator, CursorRegistry cursorRegistry) {
         this.translator = translator;
+        this.cursorRegistry = cursorRegistry;
+    }
+
+    /**
+     * If positive, queries with $in or $all lists longer than this are split
+     * into sub-queries with lists of at most this many values
+     */
+    public int getMaxInListSize() {
+        return maxInListSize;
+    }
+
+    /**
+     * If positive, queries with $in or $all lists longer than this are split
+     * into sub-queries with lists of at most this many values
+     */
+    public void setMaxInListSize(int n) {
+        maxInListSize = n;
+    }
+
+    /**
+     * Maximum number of sub-queries of a split query running at the same
+     * time. It should be lower than the hystrix thread pool size.
+     */
+    public int getMaxParallelQueries() {
+        return maxParallelQueries;
+    }
+
+    /**
+     * Maximum number of sub-queries of a split query running at the same
+     * time. It should be lower than the hystrix thread pool size.
+     */
+    public void setMaxParallelQueries(int n) {
+        maxParallelQueries = n;
+    }
+
+    /**
+     * If true, copies of the documents read are kept before the
+     * per-document interceptors are called, see {@link #getReadDocuments()}
+     */
+    public void setKeepReadDocuments(boolean b) {
+        readDocuments = b ? new ArrayList<JsonDoc>() : null;
+    }
+
+    /**
+     * Returns the documents read, as they were before the per-document
+     * interceptors were called, or null if they are not kept
+     */
+    public List<JsonDoc> getReadDocuments() {
+        return readDocuments;
     }
 
     @Override
@@ -56,30 +133,342 @@ public class BasicDocFinder implements DocFinder {
                      Long from,
                      Long to) {
         LOGGER.debug("Submitting query");
-        DBCursor cursor = new FindCommand(coll, mongoQuery, null).execute();
+        PhaseTimer timer = PhaseTimer.get(ctx);
+        ResidualFilter residual = (ResidualFilter) ctx.getProperty(MongoCRUDController.PROP_RESIDUAL_FILTER);
+        String cursorId = (String) ctx.getProperty(MongoCRUDController.PROP_CURSOR);
+        if (cursorId != null && cursorRegistry != null) {
+            return findWithCursor(ctx, timer, residual, cursorId, coll, mongoQuery, mongoSort, from, to);
+        }
+        String token = (String) ctx.getProperty(MongoCRUDController.PROP_CONTINUATION_TOKEN);
+        DocumentCache cache = DocumentCache.get(ctx);
+        if (cache != null && token == null && residual == null) {
+            List<Object> ids = Translator.getIdValues(mongoQuery);
+            if (ids != null && (maxInListSize <= 0 || ids.size() <= maxInListSize)) {
+                return findCached(ctx, timer, cache, ids, coll, mongoSort, from, to);
+            }
+        }
+        if (token == null) {
+            ChunkedQuery chunked = ChunkedQuery.split(mongoQuery, maxInListSize);
+            if (chunked != null) {
+                return findChunked(ctx, timer, residual, chunked, coll, mongoSort, from, to);
+            }
+        }
+        long t = timer.begin();
+        // The count runs in parallel with the retrieval of the results. If
+        // there is a residual query, the matching documents are counted
+        // while reading, except for keyset pages, where the count of the
+        // server query is returned.
+        Future<Long> count = residual == null || token != null ? new CountCommand(coll, mongoQuery).queue() : null;
+        DBObject query = mongoQuery;
+        DBObject sort = mongoSort;
+        if (token != null) {
+            sort = KeysetPagination.getSort(mongoSort);
+            if (token.length() > 0) {
+                DBObject range = KeysetPagination.getRangeQuery(sort, token);
+                if (mongoQuery == null) {
+                    query = range;
+                } else {
+                    BasicDBList and = new BasicDBList();
+                    and.add(mongoQuery);
+                    and.add(range);
+                    query = new BasicDBObject("$and", and);
+                }
+            }
+            LOGGER.debug("Keyset pagination, query {} sort {}", query, sort);
+        }
+        DBCursor cursor = new FindCommand(coll, query, null).execute();
         LOGGER.debug("Query evaluated");
-        if (mongoSort != null) {
-            cursor = cursor.sort(mongoSort);
+        if (sort != null) {
+            cursor = cursor.sort(sort);
             LOGGER.debug("Result set sorted");
         }
-        long ret = cursor.size();
         LOGGER.debug("Applying limits: {} - {}", from, to);
-        if (from != null) {
+        if (from != null && token == null && residual == null) {
             cursor.skip(from.intValue());
         }
+        int limit = 0;
         if (to != null) {
-            cursor.limit(to.intValue() - (from == null ? 0 : from.intValue()) + 1);
+            limit = to.intValue() - (from == null ? 0 : from.intValue()) + 1;
+            if (residual == null) {
+                cursor.limit(limit);
+            }
         }
         LOGGER.debug("Retrieving results");
-        List<DBObject> mongoResults = cursor.toArray();
+        BatchedCursor docs = new BatchedCursor(cursor);
+        List<DBObject> mongoResults;
+        long matches = 0;
+        if (residual == null) {
+            mongoResults = docs.toList();
+        } else if (token != null) {
+            mongoResults = residual.next(docs, limit > 0 ? limit : Integer.MAX_VALUE);
+        } else {
+            // Skip and limit apply to the documents matching the residual query
+            long skip = from == null ? 0 : from;
+            mongoResults = new ArrayList<>();
+            while (docs.hasNext()) {
+                DBObject doc = docs.next();
+                if (residual.matches(doc)) {
+                    if (matches >= skip && (limit == 0 || mongoResults.size() < limit)) {
+                        mongoResults.add(doc);
+                    } else {
+                        residual.discard(doc);
+                    }
+                    matches++;
+                }
+            }
+        }
         LOGGER.debug("Retrieved {} results", mongoResults.size());
-        List<JsonDoc> jsonDocs = translator.toJson(mongoResults);
+        if (token != null && limit > 0 && mongoResults.size() == limit) {
+            ctx.setProperty(MongoCRUDController.PROP_NEXT_CONTINUATION_TOKEN,
+                    KeysetPagination.encode(sort, mongoResults.get(mongoResults.size() - 1)));
+        }
+        long ret;
+        try {
+            ret = count == null ? matches : count.get();
+            timer.end(PhaseTimer.Phase.server, t);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Error.get(CrudConstants.ERR_CRUD, e.getMessage());
+        } catch (ExecutionException e) {
+            throw Error.get(CrudConstants.ERR_CRUD, e.getCause().getMessage());
+        }
+        addDocuments(ctx, timer, residual, mongoResults);
+        return ret;
+    }
+
+    /**
+     * Runs the sub-queries of a chunked query in parallel, and merges their
+     * results. The sub-queries run in waves of at most
+     * {@link #getMaxParallelQueries()} commands, so a large list does not
+     * exhaust the hystrix thread pool. The limits and the residual query are
+     * applied to the merged results, and the count is the number of merged
+     * documents.
+     *
+     * If the sub-queries are disjoint and there is no residual query, each
+     * sub-query reads at most to+1 documents in the requested order, and the
+     * count is the sum of the counts of the sub-queries.
+     */
+    private long findChunked(CRUDOperationContext ctx,
+                             PhaseTimer timer,
+                             ResidualFilter residual,
+                             ChunkedQuery chunked,
+                             DBCollection coll,
+                             DBObject mongoSort,
+                             Long from,
+                             Long to) {
+        long t = timer.begin();
+        List<DBObject> queries = chunked.getQueries();
+        LOGGER.debug("Splitting query into {} sub-queries", queries.size());
+        int limit = to != null && residual == null && chunked.isDisjoint() ? to.intValue() + 1 : 0;
+        // With a limit, each sub-query also runs a count
+        int wave = Math.max(1, limit > 0 ? maxParallelQueries / 2 : maxParallelQueries);
+        List<List<DBObject>> results = new ArrayList<>(queries.size());
+        long count = 0;
+        try {
+            for (int i = 0; i < queries.size(); i += wave) {
+                List<Future<List<DBObject>>> futures = new ArrayList<>(wave);
+                List<Future<Long>> counts = new ArrayList<>(wave);
+                for (DBObject q : queries.subList(i, Math.min(queries.size(), i + wave))) {
+                    if (limit > 0) {
+                        futures.add(new FindListCommand(coll, q, null, mongoSort, limit).queue());
+                        counts.add(new CountCommand(coll, q).queue());
+                    } else {
+                        futures.add(new FindListCommand(coll, q, null).queue());
+                    }
+                }
+                for (Future<List<DBObject>> f : futures) {
+                    results.add(f.get());
+                }
+                for (Future<Long> f : counts) {
+                    count += f.get();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Error.get(CrudConstants.ERR_CRUD, e.getMessage());
+        } catch (ExecutionException e) {
+            throw Error.get(CrudConstants.ERR_CRUD, e.getCause().getMessage());
+        }
+        List<DBObject> merged = chunked.merge(results, mongoSort);
+        timer.end(PhaseTimer.Phase.server, t);
+        List<DBObject> matching;
+        if (residual == null) {
+            matching = merged;
+        } else {
+            matching = new ArrayList<>(merged.size());
+            for (DBObject doc : merged) {
+                if (residual.matches(doc)) {
+                    matching.add(doc);
+                }
+            }
+        }
+        int size = matching.size();
+        int start = from == null ? 0 : (int) Math.min(from, size);
+        int end = to == null ? size : (int) Math.max(start, Math.min(to + 1, size));
+        List<DBObject> mongoResults = matching.subList(start, end);
+        if (residual != null) {
+            for (int i = 0; i < size; i++) {
+                if (i < start || i >= end) {
+                    residual.discard(matching.get(i));
+                }
+            }
+        }
+        LOGGER.debug("Retrieved {} results out of {}", mongoResults.size(), limit > 0 ? count : size);
+        addDocuments(ctx, timer, residual, mongoResults);
+        return limit > 0 ? count : size;
+    }
+
+    /**
+     * Looks up the documents of an _id query in the document cache, and reads
+     * the missing ones from the database, adding them to the cache. The sort
+     * and the limits are applied to the results, and the count is the number
+     * of documents found.
+     */
+    private long findCached(CRUDOperationContext ctx,
+                            PhaseTimer timer,
+                            DocumentCache cache,
+                            List<Object> ids,
+                            DBCollection coll,
+                            DBObject mongoSort,
+                            Long from,
+                            Long to) {
+        long t = timer.begin();
+        long generation = cache.getGeneration();
+        List<DBObject> found = new ArrayList<>(ids.size());
+        BasicDBList missing = new BasicDBList();
+        for (Object id : new LinkedHashSet<>(ids)) {
+            DBObject doc = cache.get(id);
+            if (doc == null) {
+                missing.add(id);
+            } else {
+                found.add(doc);
+            }
+        }
+        LOGGER.debug("Found {} of {} documents in cache", found.size(), found.size() + missing.size());
+        if (!missing.isEmpty()) {
+            DBObject q = new BasicDBObject(MongoCRUDController.ID_STR,
+                    missing.size() == 1 ? missing.get(0) : new BasicDBObject("$in", missing));
+            for (DBObject doc : new FindListCommand(coll, q, null).execute()) {
+                cache.put(doc, generation);
+                found.add(doc);
+            }
+        }
+        timer.end(PhaseTimer.Phase.server, t);
+        if (mongoSort != null) {
+            Collections.sort(found, new ChunkedQuery.SortComparator(mongoSort));
+        }
+        int size = found.size();
+        int start = from == null ? 0 : (int) Math.min(from, size);
+        int end = to == null ? size : (int) Math.max(start, Math.min(to + 1, size));
+        addDocuments(ctx, timer, null, found.subList(start, end));
+        return size;
+    }
+
+    /**
+     * Reads a page from a server side cursor kept in the cursor registry. If
+     * cursorId is empty, the query is run, and a new cursor is opened.
+     * Otherwise, the page is read from the registered cursor, and the query,
+     * sort and limits of the request are ignored except for the page size,
+     * to-from+1. If there are more documents, the cursor is registered again,
+     * and its id is returned in {@link MongoCRUDController#PROP_NEXT_CURSOR}.
+     * If there is a residual query, pages contain the matching documents, and
+     * the count is -1, because the matching documents are only known when the
+     * cursor is read to the end. A cursor can only be read by requests for
+     * the same entity version, collection and caller roles as the request
+     * that opened it.
+     */
+    private long findWithCursor(CRUDOperationContext ctx,
+                                PhaseTimer timer,
+                                ResidualFilter residual,
+                                String cursorId,
+                                DBCollection coll,
+                                DBObject mongoQuery,
+                                DBObject mongoSort,
+                                Long from,
+                                Long to) {
+        long t = timer.begin();
+        CursorRegistry.Entry entry;
+        String id;
+        EntityMetadata md = ctx.getEntityMetadata(ctx.getEntityName());
+        String owner = CursorRegistry.owner(ctx.getEntityName(),
+                md == null || md.getVersion() == null ? null : md.getVersion().getValue(),
+                coll.getFullName(), ctx.getCallerRoles());
+        if (cursorId.length() == 0) {
+            Future<Long> count = residual == null ? new CountCommand(coll, mongoQuery).queue() : null;
+            DBCursor cursor = new FindCommand(coll, mongoQuery, null).execute();
+            if (mongoSort != null) {
+                cursor = cursor.sort(mongoSort);
+            }
+            if (from != null) {
+                cursor.skip(from.intValue());
+            }
+            try {
+                entry = new CursorRegistry.Entry(new BatchedCursor(cursor), count == null ? -1 : count.get(), owner);
+            } catch (RuntimeException e) {
+                cursor.close();
+                throw e;
+            } catch (InterruptedException e) {
+                cursor.close();
+                Thread.currentThread().interrupt();
+                throw Error.get(CrudConstants.ERR_CRUD, e.getMessage());
+            } catch (ExecutionException e) {
+                cursor.close();
+                throw Error.get(CrudConstants.ERR_CRUD, e.getCause().getMessage());
+            }
+            id = null;
+        } else {
+            entry = cursorRegistry.checkout(cursorId, owner);
+            if (entry == null) {
+                throw Error.get(MongoCrudConstants.ERR_CURSOR_NOT_FOUND, cursorId);
+            }
+            id = cursorId;
+        }
+        List<DBObject> mongoResults;
+        boolean more;
+        try {
+            int n = to == null ? Integer.MAX_VALUE : to.intValue() - (from == null ? 0 : from.intValue()) + 1;
+            if (residual != null) {
+                mongoResults = residual.next(entry.getCursor(), n);
+            } else if (to == null) {
+                mongoResults = entry.getCursor().toList();
+            } else {
+                mongoResults = entry.getCursor().next(n);
+            }
+            more = entry.getCursor().hasNext();
+        } catch (RuntimeException e) {
+            entry.getCursor().getCursor().close();
+            throw e;
+        }
+        if (more) {
+            if (id == null) {
+                id = cursorRegistry.register(entry);
+            } else {
+                cursorRegistry.checkin(id, entry);
+            }
+            ctx.setProperty(MongoCRUDController.PROP_NEXT_CURSOR, id);
+        } else {
+            entry.getCursor().getCursor().close();
+        }
+        timer.end(PhaseTimer.Phase.server, t);
+        LOGGER.debug("Retrieved {} results, cursor {}", mongoResults.size(), more ? id : "closed");
+        addDocuments(ctx, timer, residual, mongoResults);
+        return entry.getCount();
+    }
+
+    private void addDocuments(CRUDOperationContext ctx, PhaseTimer timer, ResidualFilter residual, List<DBObject> mongoResults) {
+        long t = timer.begin();
+        List<JsonDoc> jsonDocs = residual == null ? translator.toJson(mongoResults) : residual.toJson(mongoResults);
+        timer.end(PhaseTimer.Phase.decode, t);
+        if (readDocuments != null) {
+            for (JsonDoc doc : jsonDocs) {
+                readDocuments.add(doc.copy());
+            }
+        }
         ctx.addDocuments(jsonDocs);
         for (DocCtx doc : ctx.getDocuments()) {
             doc.setOperationPerformed(Operation.FIND);
-            ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.POST_CRUD_FIND_DOC, ctx, doc);
+            timer.callInterceptors(InterceptPoint.POST_CRUD_FIND_DOC, ctx, doc);
         }
         LOGGER.debug("Translated DBObjects to json");
-        return ret;
     }
 }
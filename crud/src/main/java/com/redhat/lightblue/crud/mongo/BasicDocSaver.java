@@ -37,9 +37,8 @@ import com.redhat.lightblue.crud.DocCtx;
 import com.redhat.lightblue.crud.Operation;
 import com.redhat.lightblue.crud.CrudConstants;
 import com.redhat.lightblue.interceptor.InterceptPoint;
-import com.redhat.lightblue.eval.FieldAccessRoleEvaluator;
 import com.redhat.lightblue.metadata.EntityMetadata;
-import com.redhat.lightblue.mongo.hystrix.FindOneCommand;
+import com.redhat.lightblue.mongo.hystrix.FindByIdCollapser;
 import com.redhat.lightblue.mongo.hystrix.InsertCommand;
 import com.redhat.lightblue.mongo.hystrix.UpdateCommand;
 import com.redhat.lightblue.util.Error;
@@ -53,16 +52,16 @@ public class BasicDocSaver implements DocSaver {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(BasicDocSaver.class);
 
-    private final FieldAccessRoleEvaluator roleEval;
+    private final FieldAccessMask access;
     private final Translator translator;
 
     /**
      * Creates a doc saver with the given translator and role evaluator
      */
     public BasicDocSaver(Translator translator,
-                         FieldAccessRoleEvaluator roleEval) {
+                         FieldAccessMask access) {
         this.translator = translator;
-        this.roleEval = roleEval;
+        this.access = access;
     }
 
     @Override
@@ -76,6 +75,7 @@ public class BasicDocSaver implements DocSaver {
 
         WriteResult result = null;
         String error = null;
+        PhaseTimer timer = PhaseTimer.get(ctx);
 
         Object id = dbObject.get(MongoCRUDController.ID_STR);
         if (op == DocSaver.Op.insert
@@ -86,18 +86,28 @@ public class BasicDocSaver implements DocSaver {
             // Updating
             LOGGER.debug("Updating doc {}" + id);
             BasicDBObject q = new BasicDBObject(MongoCRUDController.ID_STR, new ObjectId(id.toString()));
-            DBObject oldDBObject = new FindOneCommand(collection, q).execute();
+            long t = timer.begin();
+            DBObject oldDBObject = FindByIdCollapser.findById(collection, q.get(MongoCRUDController.ID_STR));
+            timer.end(PhaseTimer.Phase.server, t);
             if (oldDBObject != null) {
                 if (md.getAccess().getUpdate().hasAccess(ctx.getCallerRoles())) {
+                    t = timer.begin();
                     JsonDoc oldDoc = translator.toJson(oldDBObject);
+                    timer.end(PhaseTimer.Phase.decode, t);
                     inputDoc.setOriginalDocument(oldDoc);
-                    List<Path> paths = roleEval.getInaccessibleFields_Update(inputDoc, oldDoc);
+                    List<Path> paths = access.getInaccessibleFields_Update(inputDoc, oldDoc);
                     if (paths == null || paths.isEmpty()) {
-                        ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.PRE_CRUD_UPDATE_DOC, ctx, inputDoc);
+                        timer.callInterceptors(InterceptPoint.PRE_CRUD_UPDATE_DOC, ctx, inputDoc);
                         translator.addInvisibleFields(oldDBObject, dbObject, md);
+                        t = timer.begin();
                         result = new UpdateCommand(collection, q, dbObject, upsert, upsert, WriteConcern.SAFE).execute();
+                        timer.end(PhaseTimer.Phase.server, t);
+                        DocumentCache cache = DocumentCache.get(ctx);
+                        if (cache != null) {
+                            cache.invalidate(q.get(MongoCRUDController.ID_STR));
+                        }
                         inputDoc.setOperationPerformed(Operation.UPDATE);
-                        ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.POST_CRUD_UPDATE_DOC, ctx, inputDoc);
+                        timer.callInterceptors(InterceptPoint.POST_CRUD_UPDATE_DOC, ctx, inputDoc);
                     } else {
                         inputDoc.addError(Error.get("update",
                                 CrudConstants.ERR_NO_FIELD_UPDATE_ACCESS, paths.toString()));
@@ -138,14 +148,17 @@ public class BasicDocSaver implements DocSaver {
                     MongoCrudConstants.ERR_NO_ACCESS,
                     "insert:" + md.getName()));
         } else {
-            List<Path> paths = roleEval.getInaccessibleFields_Insert(inputDoc);
+            List<Path> paths = access.getInaccessibleFields_Insert(inputDoc);
             LOGGER.debug("Inaccessible fields:{}", paths);
             if (paths == null || paths.isEmpty()) {
+                PhaseTimer timer = PhaseTimer.get(ctx);
                 try {
-                    ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.PRE_CRUD_INSERT_DOC, ctx, inputDoc);
+                    timer.callInterceptors(InterceptPoint.PRE_CRUD_INSERT_DOC, ctx, inputDoc);
+                    long t = timer.begin();
                     WriteResult r = new InsertCommand(collection, dbObject, WriteConcern.SAFE).execute();
+                    timer.end(PhaseTimer.Phase.server, t);
                     inputDoc.setOperationPerformed(Operation.INSERT);
-                    ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.POST_CRUD_INSERT_DOC, ctx, inputDoc);
+                    timer.callInterceptors(InterceptPoint.POST_CRUD_INSERT_DOC, ctx, inputDoc);
                     return r;
                 } catch (MongoException.DuplicateKey dke) {
                     LOGGER.error("saveOrInsert failed: {}", dke);
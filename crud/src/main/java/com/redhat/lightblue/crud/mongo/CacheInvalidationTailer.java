@@ -0,0 +1,324 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * Keeps the document caches of the collections of a database coherent with
+ * writes done by other processes. A background thread tails a capped
+ * collection of change notifications, and invalidates the changed documents
+ * in the registered caches.
+ *
+ * The tailed collection is either the replica set oplog (local.oplog.rs), or
+ * a capped collection in the database written by the applications that do not
+ * go through lightblue. Notifications use the oplog entry format, with
+ * increasing ObjectId _ids, so the tailer can start after the last one:
+ *
+ * <pre>
+ *   { ns: "database.collection", op: "i" | "u" | "d" | "c", o: { _id: ... }, o2: { _id: ... } }
+ * </pre>
+ *
+ * For updates, the _id is in o2, for inserts and deletes it is in o.
+ * Commands ("c", e.g. a collection drop) invalidate all the caches of the
+ * database, and no-ops ("n") are ignored.
+ *
+ * A tailable cursor dies at once if its query matches nothing, so the
+ * tailer starts at the last notification, which is processed again. If the
+ * capped collection of notifications is empty, the tailer inserts a no-op
+ * notification to start from. The collection must be created as a capped
+ * collection beforehand; the tailer does not create it.
+ *
+ * The caches are suspended while the tailer is not running, and they are
+ * cleared every time the tailer (re)starts, because notifications may have
+ * been missed. So the staleness of a cached document is bounded by the
+ * replication lag of the notification. The tailer does not use hystrix
+ * commands, because it runs a single, long running cursor.
+ */
+public class CacheInvalidationTailer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CacheInvalidationTailer.class);
+
+    /**
+     * Name of the source that tails the replica set oplog
+     */
+    public static final String OPLOG = "oplog";
+
+    private static final String OPLOG_DB = "local";
+    private static final String OPLOG_COLLECTION = "oplog.rs";
+
+    private final DB db;
+    private final String source;
+    private final ConcurrentMap<String, DocumentCache> caches = new ConcurrentHashMap<>();
+
+    private long retryMillis = 5000;
+    private volatile boolean running = false;
+    private volatile boolean tailing = false;
+    private volatile DBCursor cursor;
+    private Thread thread;
+
+    /**
+     * @param db The database whose collections are cached
+     * @param source "oplog" to tail the replica set oplog, or the name of a
+     * capped collection of change notifications in db
+     */
+    public CacheInvalidationTailer(DB db, String source) {
+        this.db = db;
+        this.source = source;
+    }
+
+    /**
+     * Time to wait before restarting the tailer after an error
+     */
+    public long getRetryMillis() {
+        return retryMillis;
+    }
+
+    /**
+     * Time to wait before restarting the tailer after an error
+     */
+    public void setRetryMillis(long ms) {
+        retryMillis = ms;
+    }
+
+    /**
+     * Registers the cache of a collection, and starts the tailer if it is not
+     * running. The cache is suspended until the tailer starts tailing.
+     */
+    public void register(String collectionName, DocumentCache cache) {
+        if (caches.put(collectionName, cache) != cache) {
+            cache.setSuspended(!tailing);
+        }
+        start();
+    }
+
+    /**
+     * The caches of the collections, keyed by collection name
+     */
+    Map<String, DocumentCache> getCaches() {
+        return caches;
+    }
+
+    /**
+     * Returns true if the tailer is receiving notifications
+     */
+    public boolean isTailing() {
+        return tailing;
+    }
+
+    /**
+     * Starts the tailer thread
+     */
+    public synchronized void start() {
+        if (!running) {
+            running = true;
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    tail();
+                }
+            }, "mongo-cache-invalidation-" + db.getName());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops the tailer thread, and suspends the caches
+     */
+    public synchronized void stop() {
+        running = false;
+        DBCursor c = cursor;
+        if (c != null) {
+            c.close();
+        }
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+        suspendAll();
+    }
+
+    private void tail() {
+        while (running) {
+            try {
+                DBCursor c = open();
+                cursor = c;
+                try {
+                    resumeAll();
+                    LOGGER.debug("Tailing {} for {}", source, db.getName());
+                    while (running && c.hasNext()) {
+                        process(c.next());
+                    }
+                    if (running) {
+                        LOGGER.warn("Cache invalidation cursor on {} for {} ended, restarting in {}ms",
+                                source, db.getName(), retryMillis);
+                    }
+                } finally {
+                    cursor = null;
+                    c.close();
+                }
+            } catch (RuntimeException e) {
+                if (running) {
+                    LOGGER.warn("Cache invalidation tailer for {} failed: {}", db.getName(), e.toString());
+                }
+            }
+            suspendAll();
+            if (running) {
+                try {
+                    Thread.sleep(retryMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens a tailable cursor positioned after the last notification
+     */
+    private DBCursor open() {
+        DBCursor c;
+        if (OPLOG.equals(source)) {
+            DBCollection oplog = db.getMongo().getDB(OPLOG_DB).getCollection(OPLOG_COLLECTION);
+            BasicDBObject q = new BasicDBObject("ns", Pattern.compile("^" + Pattern.quote(db.getName() + ".")));
+            DBObject last = getLast(oplog);
+            if (last != null && last.get("ts") != null) {
+                q.append("ts", new BasicDBObject("$gte", last.get("ts")));
+            }
+            c = oplog.find(q).addOption(Bytes.QUERYOPTION_OPLOGREPLAY);
+        } else {
+            // Notifications have increasing ObjectId _ids
+            DBCollection coll = db.getCollection(source);
+            BasicDBObject q = new BasicDBObject();
+            DBObject last = getLast(coll);
+            if (last == null) {
+                last = seed(coll);
+            }
+            if (last != null && last.get(MongoCRUDController.ID_STR) != null) {
+                q.append(MongoCRUDController.ID_STR, new BasicDBObject("$gte", last.get(MongoCRUDController.ID_STR)));
+            }
+            c = coll.find(q);
+        }
+        return c.addOption(Bytes.QUERYOPTION_TAILABLE).addOption(Bytes.QUERYOPTION_AWAITDATA);
+    }
+
+    /**
+     * Inserts a no-op notification into an empty capped collection, so a
+     * tailable cursor can be opened on it. Returns the notification, or null
+     * if the collection does not exist or is not capped.
+     */
+    private DBObject seed(DBCollection coll) {
+        if (!db.collectionExists(coll.getName()) || !coll.isCapped()) {
+            LOGGER.warn("Cache invalidation source {}.{} is not a capped collection", db.getName(), coll.getName());
+            return null;
+        }
+        LOGGER.info("Cache invalidation source {}.{} is empty, inserting a no-op notification", db.getName(), coll.getName());
+        DBObject entry = new BasicDBObject(MongoCRUDController.ID_STR, new ObjectId()).
+                append("ns", coll.getFullName()).
+                append("op", "n").
+                append("o", new BasicDBObject());
+        coll.insert(entry);
+        return entry;
+    }
+
+    /**
+     * Returns the last entry of a capped collection in insertion order, or
+     * null if it is empty
+     */
+    private static DBObject getLast(DBCollection coll) {
+        DBCursor last = coll.find().sort(new BasicDBObject("$natural", -1)).limit(1);
+        try {
+            return last.hasNext() ? last.next() : null;
+        } finally {
+            last.close();
+        }
+    }
+
+    /**
+     * Invalidates the document of a notification
+     */
+    void process(DBObject entry) {
+        Object ns = entry.get("ns");
+        Object op = entry.get("op");
+        if (ns == null || op == null) {
+            return;
+        }
+        String prefix = db.getName() + ".";
+        String nsStr = ns.toString();
+        if (!nsStr.startsWith(prefix)) {
+            return;
+        }
+        if ("n".equals(op)) {
+            return;
+        } else if ("c".equals(op)) {
+            LOGGER.debug("Command on {}, invalidating all caches", nsStr);
+            for (DocumentCache cache : caches.values()) {
+                cache.invalidateAll();
+            }
+        } else {
+            DocumentCache cache = caches.get(nsStr.substring(prefix.length()));
+            if (cache != null) {
+                Object id = getId(entry, "u".equals(op) ? "o2" : "o");
+                if (id == null) {
+                    cache.invalidateAll();
+                } else {
+                    cache.invalidate(id);
+                }
+            }
+        }
+    }
+
+    private static Object getId(DBObject entry, String field) {
+        Object x = entry.get(field);
+        if (!(x instanceof DBObject)) {
+            x = entry.get("o");
+        }
+        return x instanceof DBObject ? ((DBObject) x).get(MongoCRUDController.ID_STR) : null;
+    }
+
+    private void resumeAll() {
+        tailing = true;
+        for (DocumentCache cache : caches.values()) {
+            cache.setSuspended(false);
+        }
+    }
+
+    private void suspendAll() {
+        tailing = false;
+        for (DocumentCache cache : caches.values()) {
+            cache.setSuspended(true);
+        }
+    }
+}
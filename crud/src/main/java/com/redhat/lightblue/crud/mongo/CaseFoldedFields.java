@@ -0,0 +1,156 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.redhat.lightblue.mongo.hystrix.FindOneCommand;
+import com.redhat.lightblue.util.Path;
+
+/**
+ * Tracks which case insensitive fields have their lower case copies in all
+ * the documents of a collection. Documents written before a field was made
+ * case insensitive have no copy, and a query on the copy would not return
+ * them, so queries only use the copies of the fields that are backfilled
+ * (see {@link #backfill}). The copies are backfilled when the indexes of
+ * the entity are built.
+ *
+ * A field is backfilled if no document has a string value for the field
+ * without its copy. Backfilled fields are remembered; fields that are not
+ * backfilled are checked again after {@link #getRecheckMillis()}. Fields
+ * under arrays are never copied, so they are never backfilled.
+ */
+public class CaseFoldedFields {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CaseFoldedFields.class);
+
+    private static final Long BACKFILLED = -1l;
+
+    private final ConcurrentMap<String, Long> checked = new ConcurrentHashMap<>();
+
+    private volatile long recheckMillis = 60000;
+
+    /**
+     * Fields that are not backfilled are checked again after this long
+     */
+    public long getRecheckMillis() {
+        return recheckMillis;
+    }
+
+    /**
+     * Fields that are not backfilled are checked again after this long
+     */
+    public void setRecheckMillis(long ms) {
+        recheckMillis = ms;
+    }
+
+    /**
+     * Returns the fields whose lower case copies can be used in queries on
+     * the collection
+     */
+    public Set<String> getBackfilledFields(DBCollection coll, Set<String> fields) {
+        Set<String> ret = new HashSet<>();
+        long now = System.currentTimeMillis();
+        for (String field : fields) {
+            if (new Path(field).nAnys() > 0) {
+                continue;
+            }
+            String key = coll.getFullName() + ":" + field;
+            Long last = checked.get(key);
+            if (BACKFILLED.equals(last)) {
+                ret.add(field);
+            } else if (last == null || now - last >= recheckMillis) {
+                if (isBackfilled(coll, field)) {
+                    checked.put(key, BACKFILLED);
+                    ret.add(field);
+                } else {
+                    LOGGER.debug("Lower case copies of {} in {} are not backfilled", field, coll.getFullName());
+                    checked.put(key, now);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns if all the documents with a string value for the field have
+     * its lower case copy
+     */
+    public static boolean isBackfilled(DBCollection coll, String field) {
+        return new FindOneCommand(coll, getMissingCopyQuery(field)).execute() == null;
+    }
+
+    /**
+     * Writes the lower case copy of the field to the documents without one.
+     * A document is only updated if the field did not change since it was
+     * read.
+     *
+     * @return The number of documents updated
+     */
+    public static int backfill(DBCollection coll, String field) {
+        int n = 0;
+        String folded = Translator.getCaseFoldedPath(field);
+        DBCursor cursor = coll.find(getMissingCopyQuery(field), new BasicDBObject(field, 1));
+        try {
+            while (cursor.hasNext()) {
+                DBObject doc = cursor.next();
+                Object value = getValue(doc, field);
+                if (value instanceof String) {
+                    coll.update(new BasicDBObject(MongoCRUDController.ID_STR, doc.get(MongoCRUDController.ID_STR)).append(field, value),
+                            new BasicDBObject("$set", new BasicDBObject(folded, ((String) value).toLowerCase(Locale.ROOT))));
+                    n++;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        LOGGER.debug("Backfilled {} lower case copies of {} in {}", n, field, coll.getFullName());
+        return n;
+    }
+
+    /**
+     * Documents with a string value for the field, but without its copy. The
+     * null match on the copy can use the index on the copy.
+     */
+    static DBObject getMissingCopyQuery(String field) {
+        return new BasicDBObject(Translator.getCaseFoldedPath(field), null).append(field, new BasicDBObject("$type", 2));
+    }
+
+    private static Object getValue(DBObject doc, String field) {
+        Object value = doc;
+        for (String s : field.split("\\.")) {
+            if (!(value instanceof DBObject)) {
+                return null;
+            }
+            value = ((DBObject) value).get(s);
+        }
+        return value;
+    }
+}
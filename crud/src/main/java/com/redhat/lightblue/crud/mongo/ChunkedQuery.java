@@ -0,0 +1,276 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.types.ObjectId;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * A query with an oversized $in or $all list, split into sub-queries each
+ * containing a chunk of the list. The sub-queries can run in parallel, and
+ * their results are merged on the client: for $in, the result is the union
+ * of the sub-results, for $all, it is the intersection. Documents are
+ * de-duplicated by _id.
+ *
+ * Only $in and $all lists of top level fields are split, so the query is
+ * the conjunction of the list predicate and the rest of the query.
+ */
+public final class ChunkedQuery {
+
+    private static final String IN = "$in";
+    private static final String ALL = "$all";
+    private static final String ID = "_id";
+
+    private final List<DBObject> queries;
+    private final boolean intersection;
+    private final boolean disjoint;
+
+    private ChunkedQuery(List<DBObject> queries, boolean intersection, boolean disjoint) {
+        this.queries = queries;
+        this.intersection = intersection;
+        this.disjoint = disjoint;
+    }
+
+    /**
+     * The sub-queries
+     */
+    public List<DBObject> getQueries() {
+        return queries;
+    }
+
+    /**
+     * If true, the results of the sub-queries are intersected, otherwise
+     * they are combined
+     */
+    public boolean isIntersection() {
+        return intersection;
+    }
+
+    /**
+     * If true, no document matches more than one sub-query. This is the
+     * case when an _id $in list without duplicate values is split, because
+     * each _id value is in one chunk only.
+     */
+    public boolean isDisjoint() {
+        return disjoint;
+    }
+
+    /**
+     * Splits the longest top level $in or $all list of the query into chunks
+     * of at most maxValues elements. Returns null if there is no list
+     * longer than maxValues.
+     */
+    public static ChunkedQuery split(DBObject query, int maxValues) {
+        if (query == null || maxValues <= 0) {
+            return null;
+        }
+        String field = null;
+        String op = null;
+        List list = null;
+        for (String key : query.keySet()) {
+            Object value = query.get(key);
+            if (!key.startsWith("$") && value instanceof DBObject && !(value instanceof List)) {
+                DBObject ops = (DBObject) value;
+                for (String x : new String[]{IN, ALL}) {
+                    Object values = ops.get(x);
+                    if (values instanceof List && ((List) values).size() > maxValues
+                            && (list == null || ((List) values).size() > list.size())) {
+                        field = key;
+                        op = x;
+                        list = (List) values;
+                    }
+                }
+            }
+        }
+        if (list == null) {
+            return null;
+        }
+        List<DBObject> queries = new ArrayList<>();
+        for (int i = 0; i < list.size(); i += maxValues) {
+            BasicDBList chunk = new BasicDBList();
+            chunk.addAll(list.subList(i, Math.min(list.size(), i + maxValues)));
+            BasicDBObject q = new BasicDBObject(query.toMap());
+            BasicDBObject ops = new BasicDBObject(((DBObject) query.get(field)).toMap());
+            ops.put(op, chunk);
+            q.put(field, ops);
+            queries.add(q);
+        }
+        return new ChunkedQuery(queries, ALL.equals(op), IN.equals(op) && ID.equals(field) && isDistinct(list));
+    }
+
+    private static boolean isDistinct(List list) {
+        Set<Object> values = new HashSet<>();
+        for (Object x : list) {
+            // Numbers of different types compare equal on the server
+            if (!values.add(x instanceof Number ? (Object) ((Number) x).doubleValue() : x)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Merges the results of the sub-queries, and sorts them
+     *
+     * @param results The results of the sub-queries, in the same order as
+     * the sub-queries
+     * @param sort The sort, can be null
+     */
+    public List<DBObject> merge(List<List<DBObject>> results, DBObject sort) {
+        Map<Object, DBObject> docs = new LinkedHashMap<>();
+        Map<Object, Integer> counts = new LinkedHashMap<>();
+        for (List<DBObject> result : results) {
+            for (DBObject doc : result) {
+                Object id = doc.get(ID);
+                Integer n = counts.get(id);
+                counts.put(id, n == null ? 1 : n + 1);
+                if (n == null) {
+                    docs.put(id, doc);
+                }
+            }
+        }
+        List<DBObject> ret = new ArrayList<>(docs.size());
+        for (Map.Entry<Object, DBObject> entry : docs.entrySet()) {
+            if (!intersection || counts.get(entry.getKey()) == queries.size()) {
+                ret.add(entry.getValue());
+            }
+        }
+        if (sort != null && !sort.keySet().isEmpty()) {
+            Collections.sort(ret, new SortComparator(sort));
+        }
+        return ret;
+    }
+
+    /**
+     * Orders documents by the sort fields the way the server does. Array
+     * values sort by their smallest element for ascending, and by their
+     * largest element for descending sorts.
+     */
+    static class SortComparator implements Comparator<DBObject> {
+        private final String[] fields;
+        private final int[] directions;
+
+        SortComparator(DBObject sort) {
+            fields = sort.keySet().toArray(new String[sort.keySet().size()]);
+            directions = new int[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                Object dir = sort.get(fields[i]);
+                directions[i] = dir instanceof Number && ((Number) dir).intValue() < 0 ? -1 : 1;
+            }
+        }
+
+        @Override
+        public int compare(DBObject d1, DBObject d2) {
+            for (int i = 0; i < fields.length; i++) {
+                int c = compareValues(sortValue(get(d1, fields[i]), directions[i]), sortValue(get(d2, fields[i]), directions[i]));
+                if (c != 0) {
+                    return c * directions[i];
+                }
+            }
+            return 0;
+        }
+
+        private static Object sortValue(Object value, int direction) {
+            if (value instanceof List) {
+                Object ret = null;
+                boolean first = true;
+                for (Object x : (List) value) {
+                    if (first || compareValues(x, ret) * direction < 0) {
+                        ret = x;
+                        first = false;
+                    }
+                }
+                return ret;
+            }
+            return value;
+        }
+
+        private static Object get(DBObject doc, String path) {
+            Object value = doc;
+            for (String name : path.split("\\.")) {
+                if (value instanceof DBObject && !(value instanceof List)) {
+                    value = ((DBObject) value).get(name);
+                } else {
+                    return null;
+                }
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Compares two values using the BSON type order: null, numbers, strings,
+     * documents, arrays, object ids, booleans, dates
+     */
+    @SuppressWarnings("unchecked")
+    static int compareValues(Object v1, Object v2) {
+        int r1 = typeRank(v1);
+        int r2 = typeRank(v2);
+        if (r1 != r2) {
+            return r1 < r2 ? -1 : 1;
+        }
+        if (v1 instanceof Number) {
+            if (isIntegral(v1) && isIntegral(v2)) {
+                return Long.compare(((Number) v1).longValue(), ((Number) v2).longValue());
+            }
+            return Double.compare(((Number) v1).doubleValue(), ((Number) v2).doubleValue());
+        } else if (v1 instanceof Comparable && v1.getClass() == v2.getClass()) {
+            return ((Comparable<Object>) v1).compareTo(v2);
+        }
+        return 0;
+    }
+
+    private static int typeRank(Object v) {
+        if (v == null) {
+            return 0;
+        } else if (v instanceof Number) {
+            return 1;
+        } else if (v instanceof String) {
+            return 2;
+        } else if (v instanceof List) {
+            return 4;
+        } else if (v instanceof DBObject) {
+            return 3;
+        } else if (v instanceof ObjectId) {
+            return 5;
+        } else if (v instanceof Boolean) {
+            return 6;
+        } else if (v instanceof Date) {
+            return 7;
+        }
+        return 8;
+    }
+
+    private static boolean isIntegral(Object v) {
+        return v instanceof Integer || v instanceof Long || v instanceof Short || v instanceof Byte;
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.redhat.lightblue.mongo.hystrix.BatchedCursor;
+import com.redhat.lightblue.util.Error;
+
+/**
+ * Keeps server side cursors open between find requests, so a consumer can
+ * read a large result set page by page without re-running the query. Each
+ * cursor is registered under a random id, which is returned to the caller as
+ * the continuation id.
+ *
+ * A cursor is checked out while a request reads from it, so it is never used
+ * by two requests at the same time. The registry holds at most
+ * {@link #getMaxCursors()} cursors; when it is full, the least recently used
+ * cursor is closed. Cursors that are not used for
+ * {@link #getIdleTimeoutMillis()} are closed by a background reaper. The idle
+ * timeout should be lower than the server cursor timeout (10 minutes by
+ * default).
+ *
+ * A cursor belongs to the entity, version, collection and caller roles of
+ * the request that opened it, and it can only be checked out by a request
+ * with the same owner, see {@link #owner}.
+ */
+public class CursorRegistry {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CursorRegistry.class);
+
+    /**
+     * A registered cursor
+     */
+    public static final class Entry {
+        private final BatchedCursor cursor;
+        private final long count;
+        private final String owner;
+        private volatile long lastAccess;
+
+        public Entry(BatchedCursor cursor, long count, String owner) {
+            this.cursor = cursor;
+            this.count = count;
+            this.owner = owner;
+            this.lastAccess = System.currentTimeMillis();
+        }
+
+        public BatchedCursor getCursor() {
+            return cursor;
+        }
+
+        /**
+         * The number of documents matching the query, computed when the
+         * cursor was opened, or -1 if it is not known
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * The owner of the cursor, see {@link CursorRegistry#owner}
+         */
+        public String getOwner() {
+            return owner;
+        }
+
+        private void close() {
+            try {
+                cursor.getCursor().close();
+            } catch (RuntimeException e) {
+                LOGGER.debug("Error closing cursor: {}", e);
+            }
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> cursors = new LinkedHashMap<>(16, 0.75f, true);
+
+    private int maxCursors = 100;
+    private long idleTimeoutMillis = 300000;
+    private ScheduledExecutorService reaper;
+
+    /**
+     * Maximum number of open cursors
+     */
+    public int getMaxCursors() {
+        return maxCursors;
+    }
+
+    /**
+     * Maximum number of open cursors
+     */
+    public void setMaxCursors(int n) {
+        maxCursors = n;
+    }
+
+    /**
+     * Cursors not used for this long are closed
+     */
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    /**
+     * Cursors not used for this long are closed
+     */
+    public void setIdleTimeoutMillis(long ms) {
+        idleTimeoutMillis = ms;
+    }
+
+    /**
+     * Registers a cursor, and returns its id
+     */
+    public String register(Entry entry) {
+        String id = UUID.randomUUID().toString();
+        checkin(id, entry);
+        return id;
+    }
+
+    /**
+     * Returns a checked out cursor to the registry
+     */
+    public void checkin(String id, Entry entry) {
+        Entry evicted = null;
+        entry.lastAccess = System.currentTimeMillis();
+        synchronized (cursors) {
+            cursors.put(id, entry);
+            if (cursors.size() > maxCursors) {
+                Iterator<Map.Entry<String, Entry>> itr = cursors.entrySet().iterator();
+                Map.Entry<String, Entry> eldest = itr.next();
+                itr.remove();
+                LOGGER.warn("Cursor registry full, closing cursor {}", eldest.getKey());
+                evicted = eldest.getValue();
+            }
+        }
+        if (evicted != null) {
+            evicted.close();
+        }
+        startReaper();
+    }
+
+    /**
+     * Returns the owner of a cursor opened for the given request
+     * attributes. Roles are sorted, so the owner does not depend on their
+     * order.
+     */
+    public static String owner(String entity, String version, String collection, Collection<String> roles) {
+        StringBuilder bld = new StringBuilder();
+        bld.append(entity).append(':').append(version).append(':').append(collection).append(':');
+        if (roles != null) {
+            bld.append(new TreeSet<>(roles));
+        }
+        return bld.toString();
+    }
+
+    /**
+     * Removes the cursor from the registry and returns it, or returns null if
+     * there is no cursor with the given id. The cursor is left in the
+     * registry if it belongs to another owner.
+     *
+     * @throws Error if the cursor belongs to another owner
+     */
+    public Entry checkout(String id, String owner) {
+        synchronized (cursors) {
+            Entry entry = cursors.get(id);
+            if (entry != null && !entry.owner.equals(owner)) {
+                LOGGER.warn("Cursor {} of {} requested by {}", id, entry.owner, owner);
+                throw Error.get(MongoCrudConstants.ERR_CURSOR_OWNER_MISMATCH, id);
+            }
+            return cursors.remove(id);
+        }
+    }
+
+    /**
+     * Removes the cursor from the registry and returns it, or returns null if
+     * there is no cursor with the given id. The cursor has to be checked in
+     * again or closed by the caller.
+     */
+    public Entry checkout(String id) {
+        synchronized (cursors) {
+            return cursors.remove(id);
+        }
+    }
+
+    /**
+     * Closes the cursor with the given id
+     */
+    public void close(String id) {
+        Entry entry = checkout(id);
+        if (entry != null) {
+            entry.close();
+        }
+    }
+
+    /**
+     * Returns the number of registered cursors
+     */
+    public int size() {
+        synchronized (cursors) {
+            return cursors.size();
+        }
+    }
+
+    /**
+     * Closes the cursors that have not been used for the idle timeout
+     */
+    public void closeIdleCursors() {
+        long limit = System.currentTimeMillis() - idleTimeoutMillis;
+        List<Entry> expired = new ArrayList<>();
+        synchronized (cursors) {
+            for (Iterator<Map.Entry<String, Entry>> itr = cursors.entrySet().iterator(); itr.hasNext();) {
+                Map.Entry<String, Entry> entry = itr.next();
+                if (entry.getValue().lastAccess < limit) {
+                    LOGGER.debug("Closing idle cursor {}", entry.getKey());
+                    expired.add(entry.getValue());
+                    itr.remove();
+                }
+            }
+        }
+        for (Entry entry : expired) {
+            entry.close();
+        }
+    }
+
+    /**
+     * Closes all cursors, and stops the reaper
+     */
+    public void closeAll() {
+        List<Entry> all;
+        synchronized (cursors) {
+            all = new ArrayList<>(cursors.values());
+            cursors.clear();
+        }
+        for (Entry entry : all) {
+            entry.close();
+        }
+        synchronized (this) {
+            if (reaper != null) {
+                reaper.shutdownNow();
+                reaper = null;
+            }
+        }
+    }
+
+    private synchronized void startReaper() {
+        if (reaper == null) {
+            reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "mongo-cursor-reaper");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            long interval = Math.max(1000, idleTimeoutMillis / 2);
+            reaper.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    closeIdleCursors();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+}
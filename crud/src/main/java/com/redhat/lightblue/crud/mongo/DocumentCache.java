@@ -0,0 +1,279 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.DBObject;
+import com.redhat.lightblue.crud.CRUDOperationContext;
+
+/**
+ * Read-through cache of the documents of a collection, keyed by _id. The
+ * cache holds at most {@link #getMaxSize()} documents, evicting the least
+ * recently used one when it is full, and a document is kept for at most
+ * {@link #getTtl()} milliseconds.
+ *
+ * Writers invalidate the documents they modify. A document read from the
+ * database is only added to the cache if there were no invalidations since
+ * the read started (see {@link #getGeneration()}), so a slow reader cannot
+ * put back a document that was modified while it was reading. The cache is
+ * local to the process: writes done by other processes are only seen after
+ * the TTL expires, unless the cache is kept coherent by a
+ * {@link CacheInvalidationTailer}. While the tailer is not running, the cache
+ * is suspended: lookups miss, and documents are not added.
+ *
+ * Cached documents are shared by all readers, and must not be modified.
+ *
+ * The cache used by the current operation is kept in the operation context,
+ * so the doc finders, savers, updaters and deleters can get it using
+ * {@link #get(CRUDOperationContext)}.
+ */
+public class DocumentCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DocumentCache.class);
+
+    private static final String PROP_CACHE = "MongoCRUDController:documentCache";
+
+    public static final int DEFAULT_MAX_SIZE = 1000;
+    public static final long DEFAULT_TTL = 60000;
+
+    private static final class Entry {
+        private final DBObject doc;
+        private final long expires;
+
+        Entry(DBObject doc, long expires) {
+            this.doc = doc;
+            this.expires = expires;
+        }
+    }
+
+    private final LinkedHashMap<Object, Entry> docs = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private volatile int maxSize = DEFAULT_MAX_SIZE;
+    private volatile long ttl = DEFAULT_TTL;
+    private volatile boolean suspended = false;
+    private long generation = 0;
+
+    public DocumentCache() {
+    }
+
+    public DocumentCache(int maxSize, long ttl) {
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Attaches the cache to the operation context. If cache is null, the
+     * operation runs without a cache.
+     */
+    public static void attach(CRUDOperationContext ctx, DocumentCache cache) {
+        ctx.setProperty(PROP_CACHE, cache);
+    }
+
+    /**
+     * Returns the cache attached to the context, or null if there isn't one
+     */
+    public static DocumentCache get(CRUDOperationContext ctx) {
+        Object x = ctx.getProperty(PROP_CACHE);
+        return x instanceof DocumentCache ? (DocumentCache) x : null;
+    }
+
+    /**
+     * Maximum number of documents in the cache
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Maximum number of documents in the cache
+     */
+    public void setMaxSize(int n) {
+        maxSize = n;
+    }
+
+    /**
+     * Time to live of a cached document in milliseconds
+     */
+    public long getTtl() {
+        return ttl;
+    }
+
+    /**
+     * Time to live of a cached document in milliseconds
+     */
+    public void setTtl(long ms) {
+        ttl = ms;
+    }
+
+    /**
+     * If true, the cache is bypassed: lookups miss, and documents are not
+     * added
+     */
+    public boolean isSuspended() {
+        return suspended;
+    }
+
+    /**
+     * Suspends the cache, or resumes it. All documents are invalidated when
+     * the cache is resumed, because invalidations may have been missed.
+     */
+    public void setSuspended(boolean b) {
+        synchronized (docs) {
+            if (suspended && !b) {
+                generation++;
+                docs.clear();
+            }
+            suspended = b;
+        }
+    }
+
+    /**
+     * Returns the invalidation generation. This has to be read before reading
+     * documents from the database that will be added to the cache.
+     */
+    public long getGeneration() {
+        synchronized (docs) {
+            return generation;
+        }
+    }
+
+    /**
+     * Returns the cached document with the given _id, or null if it is not
+     * in the cache, or if it expired
+     */
+    public DBObject get(Object id) {
+        synchronized (docs) {
+            if (suspended) {
+                misses.incrementAndGet();
+                return null;
+            }
+            Entry entry = docs.get(id);
+            if (entry != null) {
+                if (entry.expires > System.currentTimeMillis()) {
+                    hits.incrementAndGet();
+                    return entry.doc;
+                }
+                docs.remove(id);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Adds a document read from the database to the cache, unless there were
+     * invalidations since <code>readGeneration</code>
+     *
+     * @param doc The document, with its _id
+     * @param readGeneration The value of {@link #getGeneration()} before the
+     * document was read
+     */
+    public void put(DBObject doc, long readGeneration) {
+        Object id = doc.get(MongoCRUDController.ID_STR);
+        if (id != null && maxSize > 0) {
+            synchronized (docs) {
+                if (readGeneration == generation && !suspended) {
+                    docs.put(id, new Entry(doc, System.currentTimeMillis() + ttl));
+                    if (docs.size() > maxSize) {
+                        Iterator<Map.Entry<Object, Entry>> itr = docs.entrySet().iterator();
+                        while (docs.size() > maxSize && itr.hasNext()) {
+                            itr.next();
+                            itr.remove();
+                        }
+                    }
+                } else {
+                    LOGGER.debug("Not caching {}, cache invalidated during read", id);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the document with the given _id from the cache
+     */
+    public void invalidate(Object id) {
+        synchronized (docs) {
+            generation++;
+            docs.remove(id);
+        }
+    }
+
+    /**
+     * Invalidates the documents matching a query in the cache attached to the
+     * context, if there is one. If the query is an _id query, only those
+     * documents are invalidated, otherwise the whole cache is.
+     */
+    public static void invalidate(CRUDOperationContext ctx, DBObject query) {
+        DocumentCache cache = get(ctx);
+        if (cache != null) {
+            List<Object> ids = Translator.getIdValues(query);
+            if (ids == null) {
+                cache.invalidateAll();
+            } else {
+                for (Object id : ids) {
+                    cache.invalidate(id);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all documents from the cache
+     */
+    public void invalidateAll() {
+        synchronized (docs) {
+            generation++;
+            docs.clear();
+        }
+    }
+
+    /**
+     * Returns the number of cached documents, including the expired ones
+     * that are not removed yet
+     */
+    public int size() {
+        synchronized (docs) {
+            return docs.size();
+        }
+    }
+
+    /**
+     * Number of lookups that found a document
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Number of lookups that did not find a document
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+}
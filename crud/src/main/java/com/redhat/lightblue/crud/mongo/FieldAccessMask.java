@@ -0,0 +1,177 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.redhat.lightblue.eval.FieldAccessRoleEvaluator;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.query.Projection;
+import com.redhat.lightblue.util.JsonDoc;
+import com.redhat.lightblue.util.KeyValueCursor;
+import com.redhat.lightblue.util.Path;
+
+/**
+ * Field access rules of an entity version for a set of caller roles,
+ * evaluated once. {@link FieldAccessRoleEvaluator} walks the field tree and
+ * evaluates the roles of every field each time the inaccessible fields are
+ * requested, which happens once per saved or updated document. This class
+ * keeps the inaccessible fields and the excluded field projections of each
+ * operation, so the per document checks only look at the masked paths of the
+ * document, and do nothing when the roles can access all fields.
+ *
+ * Masks are cached per entity name, entity version and role set (see
+ * {@link #get(EntityMetadata, Set)}), so the metadata of an entity version
+ * is assumed not to change.
+ */
+public final class FieldAccessMask {
+
+    /**
+     * Maximum number of cached masks
+     */
+    public static final int MAX_CACHED = 256;
+
+    private static final Map<String, FieldAccessMask> CACHE = Collections.synchronizedMap(new LinkedHashMap<String, FieldAccessMask>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, FieldAccessMask> eldest) {
+            return size() > MAX_CACHED;
+        }
+    });
+
+    private final Map<FieldAccessRoleEvaluator.Operation, Set<Path>> inaccessibleFields
+            = new EnumMap<>(FieldAccessRoleEvaluator.Operation.class);
+    private final Map<FieldAccessRoleEvaluator.Operation, Projection> excludedFields
+            = new EnumMap<>(FieldAccessRoleEvaluator.Operation.class);
+    private final Path[] insertMask;
+    private final Path[] updateMask;
+
+    /**
+     * Evaluates the field access rules of the entity for the roles
+     */
+    public FieldAccessMask(EntityMetadata md, Set<String> roles) {
+        FieldAccessRoleEvaluator eval = new FieldAccessRoleEvaluator(md, roles);
+        for (FieldAccessRoleEvaluator.Operation op : FieldAccessRoleEvaluator.Operation.values()) {
+            inaccessibleFields.put(op, Collections.unmodifiableSet(eval.getInaccessibleFields(op)));
+            excludedFields.put(op, eval.getExcludedFields(op));
+        }
+        Set<Path> x = inaccessibleFields.get(FieldAccessRoleEvaluator.Operation.insert);
+        insertMask = x.toArray(new Path[x.size()]);
+        x = inaccessibleFields.get(FieldAccessRoleEvaluator.Operation.update);
+        updateMask = x.toArray(new Path[x.size()]);
+    }
+
+    /**
+     * Returns the mask of the entity for the roles, evaluating it if it is not
+     * cached
+     */
+    public static FieldAccessMask get(EntityMetadata md, Set<String> roles) {
+        String key = getKey(md, roles);
+        FieldAccessMask mask = CACHE.get(key);
+        if (mask == null) {
+            mask = new FieldAccessMask(md, roles);
+            CACHE.put(key, mask);
+        }
+        return mask;
+    }
+
+    /**
+     * Removes all cached masks
+     */
+    public static void clearCache() {
+        CACHE.clear();
+    }
+
+    private static String getKey(EntityMetadata md, Set<String> roles) {
+        StringBuilder bld = new StringBuilder();
+        bld.append(md.getName()).append(':').
+                append(md.getVersion() == null ? null : md.getVersion().getValue()).append(':').
+                append(roles == null ? null : new TreeSet<>(roles));
+        return bld.toString();
+    }
+
+    /**
+     * Returns the fields the roles cannot access for the operation
+     */
+    public Set<Path> getInaccessibleFields(FieldAccessRoleEvaluator.Operation op) {
+        return inaccessibleFields.get(op);
+    }
+
+    /**
+     * Returns a projection excluding the fields the roles cannot access for
+     * the operation, or null if all fields are accessible
+     */
+    public Projection getExcludedFields(FieldAccessRoleEvaluator.Operation op) {
+        return excludedFields.get(op);
+    }
+
+    /**
+     * Returns the fields of the document the roles cannot insert
+     */
+    public List<Path> getInaccessibleFields_Insert(JsonDoc doc) {
+        if (insertMask.length == 0) {
+            return Collections.emptyList();
+        }
+        List<Path> ret = new ArrayList<>(insertMask.length);
+        for (Path field : insertMask) {
+            if (doc.getAllNodes(field).hasNext()) {
+                ret.add(field);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the fields the roles cannot update that are different in the
+     * new and the old document
+     */
+    public List<Path> getInaccessibleFields_Update(JsonDoc newDoc, JsonDoc oldDoc) {
+        if (updateMask.length == 0) {
+            return Collections.emptyList();
+        }
+        List<Path> ret = new ArrayList<>(updateMask.length);
+        for (Path field : updateMask) {
+            if (different(newDoc.getAllNodes(field), oldDoc.getAllNodes(field))) {
+                ret.add(field);
+            }
+        }
+        return ret;
+    }
+
+    private static boolean different(KeyValueCursor<Path, JsonNode> c1, KeyValueCursor<Path, JsonNode> c2) {
+        while (c1.hasNext()) {
+            if (!c2.hasNext()) {
+                return true;
+            }
+            c1.next();
+            c2.next();
+            if (!c1.getCurrentValue().equals(c2.getCurrentValue())) {
+                return true;
+            }
+        }
+        return c2.hasNext();
+    }
+}
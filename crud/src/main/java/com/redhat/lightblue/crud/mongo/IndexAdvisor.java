@@ -0,0 +1,312 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.redhat.lightblue.metadata.Index;
+import com.redhat.lightblue.query.SortKey;
+import com.redhat.lightblue.util.Path;
+
+/**
+ * Samples the translated queries and sorts of the entities, explains each new
+ * query shape once, and proposes compound indexes for the shapes that scan
+ * the collection or sort in memory.
+ *
+ * One in every <code>sampleRate</code> queries of an entity is sampled. The
+ * first sample of a shape is explained, later samples of the shape are only
+ * counted. A proposed index follows the equality-sort-range rule: fields
+ * compared for equality (including $in) come first, then the sort keys, and
+ * then the fields compared with ranges. The estimated savings of an index is
+ * the number of documents examined but not returned (or sorted in memory) by
+ * the shapes that would use it, multiplied by their estimated execution
+ * counts.
+ *
+ * Explains run in the background (see {@link QueryExplainer}), so sampled
+ * requests are not delayed. A shape is explained at most once at a time.
+ */
+public class IndexAdvisor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IndexAdvisor.class);
+
+    private static final Set<String> EQ_OPS = new HashSet<>(Arrays.asList("$in", "$all", "$elemMatch", "$size"));
+    private static final Set<String> RANGE_OPS = new HashSet<>(Arrays.asList("$gt", "$gte", "$lt", "$lte", "$ne", "$nin", "$regex", "$exists", "$not", "$type", "$mod"));
+
+    private final ConcurrentMap<String, AtomicLong> entityCounters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ShapeSample> samples = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Boolean> pending = new ConcurrentHashMap<>();
+
+    private volatile int sampleRate = 10;
+    private volatile int maxShapes = 1000;
+
+    private static final class ShapeSample {
+        private final QueryShape shape;
+        private final List<SortKey> index;
+        private final QueryPlan plan;
+        private final AtomicLong count = new AtomicLong();
+
+        public ShapeSample(QueryShape shape, List<SortKey> index, QueryPlan plan) {
+            this.shape = shape;
+            this.index = index;
+            this.plan = plan;
+        }
+
+        /**
+         * Document reads the index would save per execution
+         */
+        public long getSavingsPerExecution() {
+            if (index == null || !(plan.isCollectionScan() || plan.isInMemorySort())) {
+                return 0;
+            }
+            long ret = plan.getDocsExamined() - plan.getNReturned();
+            if (plan.isInMemorySort()) {
+                ret += plan.getNReturned();
+            }
+            return Math.max(ret, 1);
+        }
+    }
+
+    /**
+     * One in every sampleRate queries of an entity is sampled
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * One in every sampleRate queries of an entity is sampled
+     */
+    public void setSampleRate(int n) {
+        sampleRate = Math.max(1, n);
+    }
+
+    /**
+     * Maximum number of query shapes explained
+     */
+    public int getMaxShapes() {
+        return maxShapes;
+    }
+
+    /**
+     * Maximum number of query shapes explained
+     */
+    public void setMaxShapes(int n) {
+        maxShapes = n;
+    }
+
+    /**
+     * Observes a query execution. If the query is sampled and its shape is
+     * new, it is queued to be explained.
+     */
+    public void observe(String entity, DBCollection collection, DBObject query, DBObject sort) {
+        AtomicLong counter = entityCounters.get(entity);
+        if (counter == null) {
+            AtomicLong x = entityCounters.putIfAbsent(entity, counter = new AtomicLong());
+            if (x != null) {
+                counter = x;
+            }
+        }
+        if (counter.getAndIncrement() % sampleRate == 0) {
+            QueryShape shape = new QueryShape(entity, query, sort);
+            ShapeSample sample = samples.get(shape.getKey());
+            if (sample != null) {
+                sample.count.incrementAndGet();
+            } else if (samples.size() + pending.size() < maxShapes
+                    && pending.putIfAbsent(shape.getKey(), Boolean.TRUE) == null) {
+                final QueryShape x = shape;
+                boolean queued = QueryExplainer.explain(collection, query, sort, new QueryExplainer.Callback() {
+                    @Override
+                    public void explained(DBObject plan) {
+                        try {
+                            analyze(x, QueryPlan.parse(plan));
+                        } finally {
+                            pending.remove(x.getKey());
+                        }
+                    }
+
+                    @Override
+                    public void failed(RuntimeException e) {
+                        pending.remove(x.getKey());
+                        LOGGER.warn("Cannot explain {}: {}", x.getFingerprint(), e);
+                    }
+                });
+                if (!queued) {
+                    pending.remove(shape.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * Records a sample of a shape with its query plan
+     */
+    void analyze(QueryShape shape, QueryPlan plan) {
+        List<SortKey> index = null;
+        if (plan.isCollectionScan() || plan.isInMemorySort()) {
+            index = proposeIndex(shape.getQuery(), shape.getSort());
+            LOGGER.info("Query shape {} {}: {}, proposed index {}", shape.getFingerprint(), shape, plan, index);
+        }
+        ShapeSample sample = new ShapeSample(shape, index, plan);
+        ShapeSample x = samples.putIfAbsent(shape.getKey(), sample);
+        (x == null ? sample : x).count.incrementAndGet();
+    }
+
+    /**
+     * Returns the proposed indexes for the entity, or for all entities if
+     * entity is null, in descending order of estimated savings
+     */
+    public List<IndexRecommendation> getRecommendations(String entity) {
+        Map<String, List<SortKey>> indexes = new LinkedHashMap<>();
+        Map<String, String> entities = new HashMap<>();
+        Map<String, Long> savings = new HashMap<>();
+        Map<String, Set<String>> shapes = new HashMap<>();
+        for (ShapeSample sample : samples.values()) {
+            if (sample.index != null && (entity == null || entity.equals(sample.shape.getEntity()))) {
+                String name = getIndexName(sample.index);
+                String key = sample.shape.getEntity() + ":" + name;
+                if (!indexes.containsKey(key)) {
+                    indexes.put(key, sample.index);
+                    entities.put(key, sample.shape.getEntity());
+                    savings.put(key, 0l);
+                    shapes.put(key, new HashSet<String>());
+                }
+                savings.put(key, savings.get(key) + sample.getSavingsPerExecution() * sample.count.get() * sampleRate);
+                shapes.get(key).add(sample.shape.getFingerprint());
+            }
+        }
+        List<IndexRecommendation> ret = new ArrayList<>(indexes.size());
+        for (Map.Entry<String, List<SortKey>> entry : indexes.entrySet()) {
+            Index index = new Index();
+            index.setName(getIndexName(entry.getValue()));
+            index.setFields(entry.getValue());
+            ret.add(new IndexRecommendation(entities.get(entry.getKey()), index, savings.get(entry.getKey()), shapes.get(entry.getKey())));
+        }
+        Collections.sort(ret, new Comparator<IndexRecommendation>() {
+            @Override
+            public int compare(IndexRecommendation r1, IndexRecommendation r2) {
+                return Long.compare(r2.getEstimatedSavings(), r1.getEstimatedSavings());
+            }
+        });
+        return ret;
+    }
+
+    /**
+     * Clears all samples
+     */
+    public void reset() {
+        samples.clear();
+        entityCounters.clear();
+    }
+
+    /**
+     * Proposes an index for the query and sort using the equality-sort-range
+     * rule. Returns null if there is no field to index.
+     */
+    static List<SortKey> proposeIndex(DBObject query, DBObject sort) {
+        List<String> eq = new ArrayList<>();
+        List<String> range = new ArrayList<>();
+        if (query != null) {
+            collectFields(query, eq, range);
+        }
+        Map<String, SortKey> keys = new LinkedHashMap<>();
+        for (String f : eq) {
+            if (!keys.containsKey(f)) {
+                keys.put(f, new SortKey(new Path(f), false));
+            }
+        }
+        if (sort != null) {
+            for (String f : sort.keySet()) {
+                if (!keys.containsKey(f)) {
+                    Object dir = sort.get(f);
+                    keys.put(f, new SortKey(new Path(f), dir instanceof Number && ((Number) dir).intValue() < 0));
+                }
+            }
+        }
+        for (String f : range) {
+            if (!keys.containsKey(f)) {
+                keys.put(f, new SortKey(new Path(f), false));
+            }
+        }
+        keys.remove(MongoCRUDController.ID_STR);
+        return keys.isEmpty() ? null : new ArrayList<>(keys.values());
+    }
+
+    private static void collectFields(DBObject query, List<String> eq, List<String> range) {
+        for (String field : query.keySet()) {
+            Object value = query.get(field);
+            if ("$and".equals(field) && value instanceof List) {
+                for (Object x : (List) value) {
+                    if (x instanceof DBObject) {
+                        collectFields((DBObject) x, eq, range);
+                    }
+                }
+            } else if (!field.startsWith("$")) {
+                if (value instanceof DBObject && !(value instanceof List) && isOperatorDoc((DBObject) value)) {
+                    boolean isRange = false;
+                    for (String op : ((DBObject) value).keySet()) {
+                        if (RANGE_OPS.contains(op) || !EQ_OPS.contains(op)) {
+                            isRange = true;
+                        }
+                    }
+                    (isRange ? range : eq).add(field);
+                } else {
+                    eq.add(field);
+                }
+            }
+            // $or, $nor and $where cannot use a single compound index
+        }
+    }
+
+    private static boolean isOperatorDoc(DBObject value) {
+        for (String k : value.keySet()) {
+            if (!k.startsWith("$")) {
+                return false;
+            }
+        }
+        return !value.keySet().isEmpty();
+    }
+
+    private static String getIndexName(List<SortKey> fields) {
+        StringBuilder bld = new StringBuilder();
+        for (SortKey k : fields) {
+            if (bld.length() > 0) {
+                bld.append('_');
+            }
+            bld.append(k.getField().toString()).append('_').append(k.isDesc() ? "-1" : "1");
+        }
+        return bld.toString();
+    }
+}
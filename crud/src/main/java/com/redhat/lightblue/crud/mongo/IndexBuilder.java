@@ -0,0 +1,338 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.redhat.lightblue.common.mongo.MongoDataStore;
+import com.redhat.lightblue.common.mongo.MongoIndexOptions;
+import com.redhat.lightblue.metadata.Index;
+import com.redhat.lightblue.metadata.Indexes;
+import com.redhat.lightblue.query.SortKey;
+
+/**
+ * Creates or updates the indexes of a collection to match the index
+ * specifications built from the entity metadata. The case insensitive
+ * fields of the entity get an index on their lower case copies, and the
+ * copies missing from documents written before the field was case
+ * insensitive are backfilled after the indexes are built (see
+ * {@link CaseFoldedFields}). An index specification is a
+ * document of the form <code>{key: {...}, options: {...}}</code>, where key
+ * and options are passed to createIndex.
+ *
+ * If an index on the same fields exists with different options, it is
+ * replaced. If only the TTL of the index changes, the index is modified in
+ * place. Otherwise, a temporary index on the same fields followed by _id is
+ * built first, so queries can use it while the old index is dropped and the
+ * new one is built. The temporary index is dropped after the new index is
+ * built.
+ */
+public class IndexBuilder {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IndexBuilder.class);
+
+    public static final String KEY = "key";
+    public static final String OPTIONS = "options";
+
+    private static final String EXPIRE_AFTER_SECONDS = "expireAfterSeconds";
+    private static final String PARTIAL_FILTER_EXPRESSION = "partialFilterExpression";
+    private static final String COLLATION = "collation";
+    private static final String ID_INDEX = "_id_";
+
+    private final DB db;
+    private final DBCollection collection;
+    private long pauseMillis = 0;
+
+    public IndexBuilder(DB db, DBCollection collection) {
+        this.db = db;
+        this.collection = collection;
+    }
+
+    /**
+     * Milliseconds to wait after each index build, to spread the load of
+     * multiple index builds
+     */
+    public void setPauseMillis(long ms) {
+        pauseMillis = ms;
+    }
+
+    /**
+     * Builds the index specifications for the indexes of an entity
+     */
+    public static List<DBObject> getIndexSpecs(Indexes indexes, MongoDataStore ds) {
+        List<DBObject> specs = new ArrayList<>();
+        if (indexes != null && indexes.getIndexes() != null) {
+            for (Index index : indexes.getIndexes()) {
+                MongoIndexOptions mongoOptions = ds.getIndexOptions(index.getName() == null ? null : index.getName().trim());
+                specs.add(new BasicDBObject(KEY, getIndexKeys(index)).append(OPTIONS, getIndexOptions(index, mongoOptions)));
+            }
+        }
+        // Indexes on the lower case copies of the case insensitive fields
+        for (String field : ds.getCaseInsensitiveFields()) {
+            specs.add(new BasicDBObject(KEY, new BasicDBObject(Translator.getCaseFoldedPath(field), 1)).
+                    append(OPTIONS, new BasicDBObject("unique", false).append("name", field + "_ci").append("background", true)));
+        }
+        return specs;
+    }
+
+    static DBObject getIndexKeys(Index index) {
+        DBObject newIndex = new BasicDBObject();
+        for (SortKey p : index.getFields()) {
+            newIndex.put(p.getField().toString(), p.isDesc() ? -1 : 1);
+        }
+        return newIndex;
+    }
+
+    /**
+     * Builds the index creation options from the index metadata and the
+     * MongoDB specific index options
+     */
+    static DBObject getIndexOptions(Index index, MongoIndexOptions mongoOptions) {
+        BasicDBObject options = new BasicDBObject("unique", index.isUnique());
+        if (index.getName() != null && index.getName().trim().length() > 0) {
+            options.append("name", index.getName().trim());
+        }
+        options.append("background", true);
+        if (mongoOptions != null) {
+            if (mongoOptions.getSparse() != null) {
+                options.append("sparse", mongoOptions.getSparse());
+            }
+            if (mongoOptions.getExpireAfterSeconds() != null) {
+                options.append(EXPIRE_AFTER_SECONDS, mongoOptions.getExpireAfterSeconds());
+            }
+            if (mongoOptions.getPartialFilterExpression() != null) {
+                options.append(PARTIAL_FILTER_EXPRESSION, new BasicDBObject(mongoOptions.getPartialFilterExpression()));
+            }
+            if (mongoOptions.getCollation() != null) {
+                options.append(COLLATION, new BasicDBObject(mongoOptions.getCollation()));
+            }
+        }
+        return options;
+    }
+
+    /**
+     * Creates the missing indexes, and replaces the indexes whose options
+     * changed
+     */
+    public void build(List<DBObject> specs) {
+        List<DBObject> existingIndexes = collection.getIndexInfo();
+        LOGGER.debug("Existing indexes: {}", existingIndexes);
+        for (DBObject spec : specs) {
+            DBObject newIndex = (DBObject) spec.get(KEY);
+            DBObject options = (DBObject) spec.get(OPTIONS);
+            boolean createIx = true;
+            LOGGER.debug("Processing index {}", spec);
+
+            for (DBObject existingIndex : existingIndexes) {
+                if (keysMatch(newIndex, existingIndex)
+                        && indexOptionsMatch(options, existingIndex)) {
+                    LOGGER.debug("Same index exists, not creating");
+                    createIx = false;
+                    break;
+                }
+            }
+
+            if (createIx) {
+                DBObject replacedIndex = null;
+                for (DBObject existingIndex : existingIndexes) {
+                    if (keysMatch(newIndex, existingIndex)) {
+                        replacedIndex = existingIndex;
+                        break;
+                    }
+                }
+                if (replacedIndex != null && ID_INDEX.equals(replacedIndex.get("name"))) {
+                    LOGGER.warn("Options of the {} index cannot be changed, ignoring {}", ID_INDEX, options);
+                } else if (replacedIndex == null) {
+                    LOGGER.debug("Creating index {} with options {}", newIndex, options);
+                    collection.createIndex(newIndex, options);
+                } else {
+                    LOGGER.debug("Same index exists with different options, replacing index:{}", replacedIndex);
+                    replaceIndex(replacedIndex, newIndex, options);
+                }
+                pause();
+            }
+        }
+        for (DBObject spec : specs) {
+            DBObject key = (DBObject) spec.get(KEY);
+            String prefix = Translator.CASE_FOLDED_FIELDS + ".";
+            if (key.keySet().size() == 1 && key.keySet().iterator().next().startsWith(prefix)) {
+                CaseFoldedFields.backfill(collection, key.keySet().iterator().next().substring(prefix.length()));
+            }
+        }
+    }
+
+    private void pause() {
+        if (pauseMillis > 0) {
+            try {
+                Thread.sleep(pauseMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Replaces an index whose options changed. While the index is dropped
+     * and recreated, a temporary index on the same fields plus _id keeps
+     * queries indexed. The temporary index is not unique, so uniqueness is
+     * not enforced between the drop and the create. If the new index cannot
+     * be created, the temporary index is kept so that queries stay indexed,
+     * and it has to be dropped by hand.
+     */
+    private void replaceIndex(DBObject existingIndex, DBObject newIndex, DBObject options) {
+        String existingName = existingIndex.get("name").toString();
+        if (isTTLChangeOnly(existingIndex, options)) {
+            LOGGER.debug("Changing TTL of index {} to {}", existingName, options.get(EXPIRE_AFTER_SECONDS));
+            CommandResult result = db.command(new BasicDBObject("collMod", collection.getName()).
+                    append("index", new BasicDBObject("keyPattern", newIndex).
+                            append(EXPIRE_AFTER_SECONDS, options.get(EXPIRE_AFTER_SECONDS))));
+            result.throwOnError();
+            return;
+        }
+        String tempName = null;
+        if (!newIndex.containsField(MongoCRUDController.ID_STR)) {
+            DBObject tempIndex = new BasicDBObject(newIndex.toMap());
+            tempIndex.put(MongoCRUDController.ID_STR, 1);
+            tempName = existingName + "_rolling";
+            LOGGER.debug("Creating temporary index {}:{}", tempName, tempIndex);
+            collection.createIndex(tempIndex, new BasicDBObject("name", tempName).append("background", true));
+        }
+        try {
+            // Changing index options, drop the index using its name, recreate with new options
+            LOGGER.debug("Dropping index {}", existingName);
+            collection.dropIndex(existingName);
+            LOGGER.debug("Creating index {} with options {}", newIndex, options);
+            collection.createIndex(newIndex, options);
+        } catch (RuntimeException e) {
+            if (tempName != null) {
+                LOGGER.error("Cannot replace index {} of {}, keeping temporary index {}: {}", existingName, collection.getName(), tempName, e);
+            }
+            throw e;
+        }
+        if (tempName != null) {
+            LOGGER.debug("Dropping temporary index {}", tempName);
+            try {
+                collection.dropIndex(tempName);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Cannot drop temporary index {}: {}", tempName, e);
+            }
+        }
+    }
+
+    private static boolean isTTLChangeOnly(DBObject existingIndex, DBObject options) {
+        Object name = options.get("name");
+        return existingIndex.get(EXPIRE_AFTER_SECONDS) != null
+                && options.get(EXPIRE_AFTER_SECONDS) != null
+                && (name == null || name.equals(existingIndex.get("name")))
+                && isTrue(existingIndex.get("unique")) == isTrue(options.get("unique"))
+                && isTrue(existingIndex.get("sparse")) == isTrue(options.get("sparse"))
+                && valuesMatch(options.get(PARTIAL_FILTER_EXPRESSION), existingIndex.get(PARTIAL_FILTER_EXPRESSION))
+                && (options.get(COLLATION) == null || valuesMatch(options.get(COLLATION), existingIndex.get(COLLATION)));
+    }
+
+    static boolean keysMatch(DBObject newIndex, DBObject existingIndex) {
+        DBObject keys = (DBObject) existingIndex.get(KEY);
+        if (keys != null) {
+            if (keys.keySet().size() == newIndex.keySet().size()) {
+                Iterator<String> newKeys = newIndex.keySet().iterator();
+                for (String field : keys.keySet()) {
+                    String newField = newKeys.next();
+                    if (!field.equals(newField)
+                            || (((Number) keys.get(field)).intValue() < 0) != (((Number) newIndex.get(newField)).intValue() < 0)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns if the existing index has the given options. If the options do
+     * not include a collation, the collation of the existing index is not
+     * checked, because it may be the collection default. Otherwise, only the
+     * given collation fields are compared, because MongoDB fills in the rest.
+     */
+    static boolean indexOptionsMatch(DBObject options, DBObject existingIndex) {
+        if (isTrue(existingIndex.get("unique")) != isTrue(options.get("unique"))
+                || isTrue(existingIndex.get("sparse")) != isTrue(options.get("sparse"))
+                || !valuesMatch(options.get(EXPIRE_AFTER_SECONDS), existingIndex.get(EXPIRE_AFTER_SECONDS))
+                || !valuesMatch(options.get(PARTIAL_FILTER_EXPRESSION), existingIndex.get(PARTIAL_FILTER_EXPRESSION))) {
+            return false;
+        }
+        DBObject collation = (DBObject) options.get(COLLATION);
+        if (collation != null) {
+            Object existingCollation = existingIndex.get(COLLATION);
+            if (!(existingCollation instanceof DBObject)) {
+                return false;
+            }
+            for (String field : collation.keySet()) {
+                if (!valuesMatch(collation.get(field), ((DBObject) existingCollation).get(field))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean isTrue(Object value) {
+        return value instanceof Boolean && (Boolean) value;
+    }
+
+    /**
+     * Compares option values. Numbers are compared by value, maps are
+     * compared field by field.
+     */
+    private static boolean valuesMatch(Object value, Object existing) {
+        if (value == null || existing == null) {
+            return value == existing;
+        } else if (value instanceof Number && existing instanceof Number) {
+            return ((Number) value).doubleValue() == ((Number) existing).doubleValue();
+        } else if (value instanceof Map || value instanceof DBObject) {
+            Map<?, ?> m1 = value instanceof DBObject ? ((DBObject) value).toMap() : (Map<?, ?>) value;
+            if (!(existing instanceof Map || existing instanceof DBObject)) {
+                return false;
+            }
+            Map<?, ?> m2 = existing instanceof DBObject ? ((DBObject) existing).toMap() : (Map<?, ?>) existing;
+            if (m1.size() != m2.size()) {
+                return false;
+            }
+            for (Map.Entry<?, ?> entry : m1.entrySet()) {
+                if (!valuesMatch(entry.getValue(), m2.get(entry.getKey()))) {
+                    return false;
+                }
+            }
+            return true;
+        } else {
+            return value.equals(existing);
+        }
+    }
+}
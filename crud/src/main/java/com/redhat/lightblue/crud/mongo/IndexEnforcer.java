@@ -0,0 +1,277 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.redhat.lightblue.common.mongo.MongoDataStore;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.metadata.Index;
+import com.redhat.lightblue.metadata.Indexes;
+import com.redhat.lightblue.query.SortKey;
+import com.redhat.lightblue.util.Error;
+
+/**
+ * Applies the index enforcement policy of the entity datastore to queries.
+ * A query can use an index if its predicate constrains the first field of a
+ * declared index (or _id), or if its sort is a prefix of a declared index.
+ * For $or queries, all the clauses must be able to use an index. Negated
+ * predicates ($ne, $nin, $not, $exists) on a leading field do not count,
+ * because they scan the whole index range. The lower case copies of the
+ * case insensitive fields of the datastore are indexed (see
+ * {@link IndexBuilder}).
+ *
+ * With the reject policy, the decision is made from the declared indexes
+ * only, so indexes that exist in the database but are not declared in the
+ * metadata are not considered. The server plan is never requested, because
+ * with the 2.x driver explain runs the query to completion, which is the
+ * collection scan the policy is meant to prevent.
+ *
+ * With the warn policy, a query that cannot use a declared index is
+ * explained in the background (see {@link QueryExplainer}), and it is logged
+ * if the server plans a collection scan. The plans are cached per query
+ * shape, and queries of a shape that is not explained yet are not logged.
+ *
+ * Rejected queries fail with {@link MongoCrudConstants#ERR_INDEX_REQUIRED}.
+ */
+public class IndexEnforcer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IndexEnforcer.class);
+
+    private final ConcurrentMap<String, Boolean> planCache = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Boolean> pending = new ConcurrentHashMap<>();
+
+    private volatile int maxCachedShapes = 1000;
+
+    /**
+     * Maximum number of query shapes with cached plans
+     */
+    public int getMaxCachedShapes() {
+        return maxCachedShapes;
+    }
+
+    /**
+     * Maximum number of query shapes with cached plans
+     */
+    public void setMaxCachedShapes(int n) {
+        maxCachedShapes = n;
+    }
+
+    /**
+     * Checks if the query can use an index, and applies the enforcement
+     * policy of the entity
+     *
+     * @throws Error if the query cannot use a declared index, and the policy
+     * is reject
+     */
+    public void check(EntityMetadata md, DBCollection collection, DBObject query, DBObject sort) {
+        MongoDataStore store = (MongoDataStore) md.getDataStore();
+        MongoDataStore.IndexEnforcement policy = store.getIndexEnforcement();
+        if (policy != null && policy != MongoDataStore.IndexEnforcement.allow) {
+            Indexes indexes = md.getEntityInfo().getIndexes();
+            List<Index> list = indexes == null ? null : indexes.getIndexes();
+            if (!canUseIndex(list, store.getCaseInsensitiveFields(), query, sort)) {
+                QueryShape shape = new QueryShape(md.getName(), query, sort);
+                if (policy == MongoDataStore.IndexEnforcement.reject) {
+                    LOGGER.warn("Rejecting unindexed query on {}: shape {} {}", md.getName(), shape.getFingerprint(), shape.getQuery());
+                    throw Error.get(MongoCrudConstants.ERR_INDEX_REQUIRED, md.getName() + ":" + shape.getQuery()
+                            + (sort == null ? "" : " sort:" + sort));
+                } else if (collection != null) {
+                    warnIfCollectionScan(md.getName(), collection, query, sort, shape);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns if the query or the sort can use one of the indexes
+     */
+    static boolean canUseIndex(List<Index> indexes, DBObject query, DBObject sort) {
+        return canUseIndex(indexes, Collections.<String>emptySet(), query, sort);
+    }
+
+    /**
+     * Returns if the query or the sort can use one of the indexes, or the
+     * index on the lower case copy of one of the case insensitive fields
+     */
+    static boolean canUseIndex(List<Index> indexes, Set<String> caseInsensitiveFields, DBObject query, DBObject sort) {
+        return (query != null && canUseIndex(indexes, caseInsensitiveFields, query))
+                || (sort != null && sortUsesIndex(indexes, sort));
+    }
+
+    private static boolean canUseIndex(List<Index> indexes, Set<String> caseInsensitiveFields, DBObject query) {
+        for (String field : query.keySet()) {
+            Object value = query.get(field);
+            if ("$and".equals(field) && value instanceof List) {
+                for (Object x : (List) value) {
+                    if (x instanceof DBObject && canUseIndex(indexes, caseInsensitiveFields, (DBObject) x)) {
+                        return true;
+                    }
+                }
+            } else if ("$or".equals(field) && value instanceof List && !((List) value).isEmpty()) {
+                boolean all = true;
+                for (Object x : (List) value) {
+                    if (!(x instanceof DBObject) || !canUseIndex(indexes, caseInsensitiveFields, (DBObject) x)) {
+                        all = false;
+                        break;
+                    }
+                }
+                if (all) {
+                    return true;
+                }
+            } else if (!field.startsWith("$") && isSelective(value)
+                    && (isLeadingField(indexes, field) || isCaseFoldedField(caseInsensitiveFields, field))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns false if the field value only has negation operators. Those
+     * match almost all the index keys, so they are not better than a
+     * collection scan.
+     */
+    private static boolean isSelective(Object value) {
+        if (value instanceof DBObject && !(value instanceof List)) {
+            DBObject ops = (DBObject) value;
+            boolean operators = false;
+            for (String op : ops.keySet()) {
+                if (!op.startsWith("$")) {
+                    // Embedded document equality
+                    return true;
+                }
+                operators = true;
+                if (!"$ne".equals(op) && !"$nin".equals(op) && !"$not".equals(op) && !"$exists".equals(op)) {
+                    return true;
+                }
+            }
+            return !operators;
+        }
+        return true;
+    }
+
+    private static boolean isCaseFoldedField(Set<String> caseInsensitiveFields, String field) {
+        String prefix = Translator.CASE_FOLDED_FIELDS + ".";
+        return field.startsWith(prefix) && caseInsensitiveFields.contains(field.substring(prefix.length()));
+    }
+
+    private static boolean isLeadingField(List<Index> indexes, String field) {
+        if (MongoCRUDController.ID_STR.equals(field)) {
+            return true;
+        }
+        if (indexes != null) {
+            for (Index index : indexes) {
+                List<SortKey> fields = index.getFields();
+                if (fields != null && !fields.isEmpty()
+                        && Translator.translatePath(fields.get(0).getField()).equals(field)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean sortUsesIndex(List<Index> indexes, DBObject sort) {
+        if (indexes != null) {
+            for (Index index : indexes) {
+                List<SortKey> fields = index.getFields();
+                if (fields != null && fields.size() >= sort.keySet().size()) {
+                    // The sort must be a prefix of the index, with all directions same or all reversed
+                    int i = 0;
+                    Boolean reversed = null;
+                    boolean match = true;
+                    for (String f : sort.keySet()) {
+                        SortKey key = fields.get(i++);
+                        boolean desc = sort.get(f) instanceof Number && ((Number) sort.get(f)).intValue() < 0;
+                        boolean rev = desc != key.isDesc();
+                        if (!Translator.translatePath(key.getField()).equals(f)
+                                || (reversed != null && reversed != rev)) {
+                            match = false;
+                            break;
+                        }
+                        reversed = rev;
+                    }
+                    if (match && !sort.keySet().isEmpty()) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Logs the query if the server plan of its shape is a collection scan. If
+     * the shape has no cached plan, it is explained in the background.
+     */
+    private void warnIfCollectionScan(final String entity, DBCollection collection, DBObject query, DBObject sort, final QueryShape shape) {
+        final String key = shape.getKey();
+        Boolean indexed = planCache.get(key);
+        if (indexed != null) {
+            if (!indexed) {
+                LOGGER.warn("Unindexed query on {}: shape {} {}", entity, shape.getFingerprint(), shape.getQuery());
+            }
+        } else if (pending.putIfAbsent(key, Boolean.TRUE) == null) {
+            boolean queued = QueryExplainer.explain(collection, query, sort, new QueryExplainer.Callback() {
+                @Override
+                public void explained(DBObject explain) {
+                    try {
+                        QueryPlan plan = QueryPlan.parse(explain);
+                        LOGGER.debug("Plan for {}: {}", key, plan);
+                        if (planCache.size() >= maxCachedShapes) {
+                            planCache.clear();
+                        }
+                        planCache.put(key, !plan.isCollectionScan());
+                        if (plan.isCollectionScan()) {
+                            LOGGER.warn("Unindexed query on {}: shape {} {}", entity, shape.getFingerprint(), shape.getQuery());
+                        }
+                    } finally {
+                        pending.remove(key);
+                    }
+                }
+
+                @Override
+                public void failed(RuntimeException e) {
+                    pending.remove(key);
+                    LOGGER.warn("Cannot explain {}: {}", shape.getFingerprint(), e);
+                }
+            });
+            if (!queued) {
+                pending.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Clears the cached plans
+     */
+    public void reset() {
+        planCache.clear();
+    }
+}
@@ -0,0 +1,428 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+/**
+ * Runs index changes asynchronously. Index changes of an entity are queued as
+ * a job document in the {@link #getJobCollection() job collection} of the
+ * entity database, and executed by a background executor using
+ * {@link IndexBuilder}. Jobs survive restarts: a job that is running without
+ * a heartbeat for {@link #getStaleMillis()} is queued again.
+ *
+ * Index builds are throttled:
+ * <ul>
+ * <li>At most {@link #getMaxConcurrentJobs()} jobs run at the same time, and
+ * only one job per collection</li>
+ * <li>If a maintenance window is set, jobs only start within the window</li>
+ * <li>The builder pauses {@link #getPauseMillis()} after each index build</li>
+ * </ul>
+ * Queuing a new job for a collection cancels the queued jobs of that
+ * collection, because the new job contains the complete index set.
+ *
+ * While a job is running, its progress is read from currentOp, and written to
+ * the job document. Job documents look like:
+ *
+ * <pre>
+ *  { _id, entity, collection, indexes: [ "{key:{...}, options:{...}}", ...],
+ *    status: queued | running | done | failed | cancelled,
+ *    created, started, finished, heartbeat, owner, progress, error }
+ * </pre>
+ */
+public class IndexJobManager {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IndexJobManager.class);
+
+    public static final String DEFAULT_JOB_COLLECTION = "indexJobs";
+
+    public static final String STATUS_QUEUED = "queued";
+    public static final String STATUS_RUNNING = "running";
+    public static final String STATUS_DONE = "done";
+    public static final String STATUS_FAILED = "failed";
+    public static final String STATUS_CANCELLED = "cancelled";
+
+    private static final String ENTITY = "entity";
+    private static final String COLLECTION = "collection";
+    private static final String INDEXES = "indexes";
+    private static final String STATUS = "status";
+    private static final String CREATED = "created";
+    private static final String STARTED = "started";
+    private static final String FINISHED = "finished";
+    private static final String HEARTBEAT = "heartbeat";
+    private static final String OWNER = "owner";
+    private static final String PROGRESS = "progress";
+    private static final String ERROR = "error";
+
+    private final String owner = ManagementFactory.getRuntimeMXBean().getName() + ":" + UUID.randomUUID();
+
+    private final Set<DB> databases = Collections.newSetFromMap(new ConcurrentHashMap<DB, Boolean>());
+    private final Set<String> runningCollections = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private String jobCollection = DEFAULT_JOB_COLLECTION;
+    private int maxConcurrentJobs = 1;
+    private long pollMillis = 10000;
+    private long staleMillis = 300000;
+    private long pauseMillis = 0;
+    private int windowStartHour = -1;
+    private int windowEndHour = -1;
+
+    private ScheduledExecutorService scheduler;
+    private ExecutorService workers;
+
+    /**
+     * Name of the collection containing the jobs, in each entity database
+     */
+    public String getJobCollection() {
+        return jobCollection;
+    }
+
+    /**
+     * Name of the collection containing the jobs, in each entity database
+     */
+    public void setJobCollection(String s) {
+        jobCollection = s;
+    }
+
+    /**
+     * Maximum number of jobs running at the same time
+     */
+    public int getMaxConcurrentJobs() {
+        return maxConcurrentJobs;
+    }
+
+    /**
+     * Maximum number of jobs running at the same time
+     */
+    public void setMaxConcurrentJobs(int n) {
+        maxConcurrentJobs = n;
+    }
+
+    /**
+     * Interval between polls for queued jobs, and progress updates
+     */
+    public long getPollMillis() {
+        return pollMillis;
+    }
+
+    /**
+     * Interval between polls for queued jobs, and progress updates
+     */
+    public void setPollMillis(long ms) {
+        pollMillis = ms;
+    }
+
+    /**
+     * A running job without a heartbeat for this long is queued again
+     */
+    public long getStaleMillis() {
+        return staleMillis;
+    }
+
+    /**
+     * A running job without a heartbeat for this long is queued again
+     */
+    public void setStaleMillis(long ms) {
+        staleMillis = ms;
+    }
+
+    /**
+     * Milliseconds to wait after each index build
+     */
+    public long getPauseMillis() {
+        return pauseMillis;
+    }
+
+    /**
+     * Milliseconds to wait after each index build
+     */
+    public void setPauseMillis(long ms) {
+        pauseMillis = ms;
+    }
+
+    /**
+     * Sets the maintenance window. Jobs only start between startHour
+     * (inclusive) and endHour (exclusive), UTC. The window may wrap around
+     * midnight. If either is negative, jobs start at any time.
+     */
+    public void setMaintenanceWindow(int startHour, int endHour) {
+        windowStartHour = startHour;
+        windowEndHour = endHour;
+    }
+
+    /**
+     * Returns if jobs can start at the given time
+     */
+    public boolean isInMaintenanceWindow(Date time) {
+        Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        cal.setTime(time);
+        return isInWindow(cal.get(Calendar.HOUR_OF_DAY), windowStartHour, windowEndHour);
+    }
+
+    static boolean isInWindow(int hour, int start, int end) {
+        if (start < 0 || end < 0 || start == end) {
+            return true;
+        } else if (start < end) {
+            return hour >= start && hour < end;
+        } else {
+            return hour >= start || hour < end;
+        }
+    }
+
+    /**
+     * Adds a database to the set of databases polled for jobs. Databases are
+     * added when a job is submitted, but after a restart, the databases with
+     * pending jobs have to be added to resume them.
+     */
+    public void addDatabase(DB db) {
+        databases.add(db);
+        start();
+    }
+
+    /**
+     * Starts the background executor, if it is not already started
+     */
+    public synchronized void start() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor();
+            workers = Executors.newFixedThreadPool(maxConcurrentJobs);
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    poll();
+                }
+            }, 0, pollMillis, TimeUnit.MILLISECONDS);
+            LOGGER.info("Index job manager started, owner:{}", owner);
+        }
+    }
+
+    /**
+     * Stops the background executor. Running jobs are interrupted, and queued
+     * again when they become stale.
+     */
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            workers.shutdownNow();
+            scheduler = null;
+            workers = null;
+        }
+    }
+
+    /**
+     * Queues a job to bring the indexes of the collection to the given
+     * specifications (see {@link IndexBuilder#getIndexSpecs})
+     *
+     * @return The job id
+     */
+    public Object submit(DB db, String entity, String collection, List<DBObject> specs) {
+        DBCollection jobs = db.getCollection(jobCollection);
+        jobs.update(new BasicDBObject(COLLECTION, collection).append(STATUS, STATUS_QUEUED),
+                new BasicDBObject("$set", new BasicDBObject(STATUS, STATUS_CANCELLED).append(FINISHED, new Date())),
+                false, true);
+        BasicDBList indexes = new BasicDBList();
+        for (DBObject spec : specs) {
+            indexes.add(JSON.serialize(spec));
+        }
+        DBObject job = new BasicDBObject(ENTITY, entity).
+                append(COLLECTION, collection).
+                append(INDEXES, indexes).
+                append(STATUS, STATUS_QUEUED).
+                append(CREATED, new Date());
+        jobs.insert(job);
+        LOGGER.debug("Queued index job {}", job);
+        addDatabase(db);
+        return job.get(MongoCRUDController.ID_STR);
+    }
+
+    /**
+     * Returns the job with the given id, or null
+     */
+    public DBObject getJob(DB db, Object id) {
+        return db.getCollection(jobCollection).findOne(new BasicDBObject(MongoCRUDController.ID_STR, id));
+    }
+
+    /**
+     * Returns the jobs of an entity, most recent first. If entity is null,
+     * returns the jobs of all entities.
+     */
+    public List<DBObject> getJobs(DB db, String entity) {
+        List<DBObject> ret = new ArrayList<>();
+        DBCursor cursor = db.getCollection(jobCollection).
+                find(entity == null ? new BasicDBObject() : new BasicDBObject(ENTITY, entity)).
+                sort(new BasicDBObject(CREATED, -1));
+        try {
+            while (cursor.hasNext()) {
+                ret.add(cursor.next());
+            }
+        } finally {
+            cursor.close();
+        }
+        return ret;
+    }
+
+    private void poll() {
+        for (DB db : databases) {
+            try {
+                DBCollection jobs = db.getCollection(jobCollection);
+                updateProgress(db, jobs);
+                requeueStaleJobs(jobs);
+                if (isInMaintenanceWindow(new Date())) {
+                    DBObject job;
+                    while (runningCollections.size() < maxConcurrentJobs && (job = claim(jobs)) != null) {
+                        runningCollections.add((String) job.get(COLLECTION));
+                        workers.submit(new JobRunner(db, jobs, job));
+                    }
+                }
+            } catch (RuntimeException e) {
+                LOGGER.error("Error polling index jobs in {}: {}", db.getName(), e);
+            }
+        }
+    }
+
+    private void requeueStaleJobs(DBCollection jobs) {
+        jobs.update(new BasicDBObject(STATUS, STATUS_RUNNING).
+                append(HEARTBEAT, new BasicDBObject("$lt", new Date(System.currentTimeMillis() - staleMillis))),
+                new BasicDBObject("$set", new BasicDBObject(STATUS, STATUS_QUEUED)),
+                false, true);
+    }
+
+    /**
+     * Marks the oldest queued job of a collection without a running job as
+     * running, and returns it
+     */
+    private DBObject claim(DBCollection jobs) {
+        BasicDBList busy = new BasicDBList();
+        busy.addAll(runningCollections);
+        DBCursor cursor = jobs.find(new BasicDBObject(STATUS, STATUS_RUNNING), new BasicDBObject(COLLECTION, 1));
+        try {
+            while (cursor.hasNext()) {
+                busy.add(cursor.next().get(COLLECTION));
+            }
+        } finally {
+            cursor.close();
+        }
+        Date now = new Date();
+        return jobs.findAndModify(new BasicDBObject(STATUS, STATUS_QUEUED).
+                append(COLLECTION, new BasicDBObject("$nin", busy)),
+                null,
+                new BasicDBObject(CREATED, 1),
+                false,
+                new BasicDBObject("$set", new BasicDBObject(STATUS, STATUS_RUNNING).
+                        append(STARTED, now).
+                        append(HEARTBEAT, now).
+                        append(OWNER, owner)),
+                true,
+                false);
+    }
+
+    /**
+     * Copies the progress messages of the index builds of the running jobs
+     * from currentOp to the job documents, and updates their heartbeats
+     */
+    private void updateProgress(DB db, DBCollection jobs) {
+        DBCursor cursor = jobs.find(new BasicDBObject(STATUS, STATUS_RUNNING).append(OWNER, owner));
+        try {
+            while (cursor.hasNext()) {
+                DBObject job = cursor.next();
+                String progress = null;
+                try {
+                    DBObject ops = db.getCollection("$cmd.sys.inprog").
+                            findOne(new BasicDBObject("ns", db.getName() + "." + job.get(COLLECTION)));
+                    if (ops != null && ops.get("inprog") instanceof List) {
+                        for (Object op : (List) ops.get("inprog")) {
+                            Object msg = ((DBObject) op).get("msg");
+                            if (msg != null) {
+                                progress = msg.toString();
+                            }
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    LOGGER.debug("Cannot read currentOp: {}", e);
+                }
+                jobs.update(new BasicDBObject(MongoCRUDController.ID_STR, job.get(MongoCRUDController.ID_STR)),
+                        new BasicDBObject("$set", new BasicDBObject(HEARTBEAT, new Date()).append(PROGRESS, progress)));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private class JobRunner implements Runnable {
+        private final DB db;
+        private final DBCollection jobs;
+        private final DBObject job;
+
+        public JobRunner(DB db, DBCollection jobs, DBObject job) {
+            this.db = db;
+            this.jobs = jobs;
+            this.job = job;
+        }
+
+        @Override
+        public void run() {
+            String collection = (String) job.get(COLLECTION);
+            DBObject update = new BasicDBObject(FINISHED, new Date());
+            try {
+                LOGGER.info("Starting index job {} on {}", job.get(MongoCRUDController.ID_STR), collection);
+                List<DBObject> specs = new ArrayList<>();
+                for (Object x : (List) job.get(INDEXES)) {
+                    specs.add((DBObject) JSON.parse(x.toString()));
+                }
+                IndexBuilder builder = new IndexBuilder(db, db.getCollection(collection));
+                builder.setPauseMillis(pauseMillis);
+                builder.build(specs);
+                update.put(STATUS, STATUS_DONE);
+                LOGGER.info("Index job {} on {} done", job.get(MongoCRUDController.ID_STR), collection);
+            } catch (RuntimeException e) {
+                LOGGER.error("Index job {} on {} failed: {}", job.get(MongoCRUDController.ID_STR), collection, e);
+                update.put(STATUS, STATUS_FAILED);
+                update.put(ERROR, e.toString());
+            } finally {
+                runningCollections.remove(collection);
+            }
+            jobs.update(new BasicDBObject(MongoCRUDController.ID_STR, job.get(MongoCRUDController.ID_STR)),
+                    new BasicDBObject("$set", update));
+        }
+    }
+}
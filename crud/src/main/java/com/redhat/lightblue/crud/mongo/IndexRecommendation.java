@@ -0,0 +1,73 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.Set;
+
+import com.redhat.lightblue.metadata.Index;
+
+/**
+ * An index proposed by the {@link IndexAdvisor} for an entity, with the
+ * estimated number of document reads it would save, and the fingerprints of
+ * the query shapes that would use it.
+ */
+public class IndexRecommendation {
+
+    private final String entity;
+    private final Index index;
+    private final long estimatedSavings;
+    private final Set<String> shapes;
+
+    public IndexRecommendation(String entity, Index index, long estimatedSavings, Set<String> shapes) {
+        this.entity = entity;
+        this.index = index;
+        this.estimatedSavings = estimatedSavings;
+        this.shapes = shapes;
+    }
+
+    public String getEntity() {
+        return entity;
+    }
+
+    /**
+     * The proposed index, in lightblue metadata format
+     */
+    public Index getIndex() {
+        return index;
+    }
+
+    /**
+     * Estimated number of document reads saved by the index
+     */
+    public long getEstimatedSavings() {
+        return estimatedSavings;
+    }
+
+    /**
+     * Fingerprints of the query shapes that would use the index
+     */
+    public Set<String> getShapes() {
+        return shapes;
+    }
+
+    @Override
+    public String toString() {
+        return entity + ":" + index.getName() + " " + index.getFields() + " savings:" + estimatedSavings + " shapes:" + shapes;
+    }
+}
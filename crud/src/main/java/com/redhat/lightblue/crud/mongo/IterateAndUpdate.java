@@ -35,11 +35,11 @@ import com.redhat.lightblue.crud.ConstraintValidator;
 import com.redhat.lightblue.crud.CrudConstants;
 import com.redhat.lightblue.crud.DocCtx;
 import com.redhat.lightblue.crud.Operation;
-import com.redhat.lightblue.eval.FieldAccessRoleEvaluator;
 import com.redhat.lightblue.eval.Projector;
 import com.redhat.lightblue.eval.Updater;
 import com.redhat.lightblue.metadata.EntityMetadata;
 import com.redhat.lightblue.metadata.PredefinedFields;
+import com.redhat.lightblue.mongo.hystrix.BatchedCursor;
 import com.redhat.lightblue.mongo.hystrix.FindCommand;
 import com.redhat.lightblue.mongo.hystrix.SaveCommand;
 import com.redhat.lightblue.util.Error;
@@ -55,7 +55,7 @@ public class IterateAndUpdate implements DocUpdater {
 
     private final JsonNodeFactory nodeFactory;
     private final ConstraintValidator validator;
-    private final FieldAccessRoleEvaluator roleEval;
+    private final FieldAccessMask access;
     private final Translator translator;
     private final Updater updater;
     private final Projector projector;
@@ -63,14 +63,14 @@ public class IterateAndUpdate implements DocUpdater {
 
     public IterateAndUpdate(JsonNodeFactory nodeFactory,
                             ConstraintValidator validator,
-                            FieldAccessRoleEvaluator roleEval,
+                            FieldAccessMask access,
                             Translator translator,
                             Updater updater,
                             Projector projector,
                             Projector errorProjector) {
         this.nodeFactory = nodeFactory;
         this.validator = validator;
-        this.roleEval = roleEval;
+        this.access = access;
         this.translator = translator;
         this.updater = updater;
         this.projector = projector;
@@ -88,25 +88,42 @@ public class IterateAndUpdate implements DocUpdater {
         DBCursor cursor = null;
         int docIndex = 0;
         int numFailed = 0;
+        PhaseTimer timer = PhaseTimer.get(ctx);
+        BatchedCursor docs = null;
         try {
-            ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.PRE_CRUD_UPDATE_RESULTSET, ctx);
+            timer.callInterceptors(InterceptPoint.PRE_CRUD_UPDATE_RESULTSET, ctx);
+            long t = timer.begin();
             cursor = new FindCommand(collection, query, null).execute();
-            LOGGER.debug("Found {} documents", cursor.count());
-            ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.POST_CRUD_UPDATE_RESULTSET, ctx);
+            timer.end(PhaseTimer.Phase.server, t);
+            if (LOGGER.isDebugEnabled()) {
+                // count() is a server round trip
+                LOGGER.debug("Found {} documents", cursor.count());
+            }
+            timer.callInterceptors(InterceptPoint.POST_CRUD_UPDATE_RESULTSET, ctx);
             // read-update-write
-            while (cursor.hasNext()) {
-                DBObject document = cursor.next();
+            docs = new BatchedCursor(cursor);
+            ResidualFilter residual = (ResidualFilter) ctx.getProperty(MongoCRUDController.PROP_RESIDUAL_FILTER);
+            DocumentCache cache = DocumentCache.get(ctx);
+            while (docs.hasNext()) {
+                DBObject document = docs.next();
+                if (residual != null && !residual.matches(document)) {
+                    continue;
+                }
                 boolean hasErrors = false;
                 LOGGER.debug("Retrieved doc {}", docIndex);
-                DocCtx doc = ctx.addDocument(translator.toJson(document));
+                t = timer.begin();
+                DocCtx doc = ctx.addDocument(residual == null ? translator.toJson(document) : residual.toJson(document));
+                timer.end(PhaseTimer.Phase.decode, t);
                 doc.setOutputDocument(doc.copy());
                 // From now on: doc contains the old copy, and doc.getOutputDocument contains the new copy
                 if (updater.update(doc.getOutputDocument(), md.getFieldTreeRoot(), Path.EMPTY)) {
                     LOGGER.debug("Document {} modified, updating", docIndex);
                     PredefinedFields.updateArraySizes(nodeFactory, doc.getOutputDocument());
                     LOGGER.debug("Running constraint validations");
+                    t = timer.begin();
                     validator.clearErrors();
                     validator.validateDoc(doc.getOutputDocument());
+                    timer.end(PhaseTimer.Phase.validation, t);
                     List<Error> errors = validator.getErrors();
                     if (errors != null && !errors.isEmpty()) {
                         ctx.addErrors(errors);
@@ -120,7 +137,7 @@ public class IterateAndUpdate implements DocUpdater {
                         LOGGER.debug("Doc has data errors");
                     }
                     if (!hasErrors) {
-                        List<Path> paths = roleEval.getInaccessibleFields_Update(doc.getOutputDocument(), doc);
+                        List<Path> paths = access.getInaccessibleFields_Update(doc.getOutputDocument(), doc);
                         LOGGER.debug("Inaccesible fields during update={}" + paths);
                         if (paths != null && !paths.isEmpty()) {
                             doc.addError(Error.get("update", CrudConstants.ERR_NO_FIELD_UPDATE_ACCESS, paths.toString()));
@@ -129,13 +146,20 @@ public class IterateAndUpdate implements DocUpdater {
                     }
                     if (!hasErrors) {
                         try {
-                            ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.PRE_CRUD_UPDATE_DOC, ctx, doc);
+                            timer.callInterceptors(InterceptPoint.PRE_CRUD_UPDATE_DOC, ctx, doc);
+                            t = timer.begin();
                             DBObject updatedObject = translator.toBson(doc.getOutputDocument());
                             translator.addInvisibleFields(document, updatedObject, md);
+                            timer.end(PhaseTimer.Phase.translate, t);
+                            t = timer.begin();
                             WriteResult result = new SaveCommand(collection, updatedObject).execute();
+                            timer.end(PhaseTimer.Phase.server, t);
+                            if (cache != null) {
+                                cache.invalidate(updatedObject.get(MongoCRUDController.ID_STR));
+                            }
                             doc.setOperationPerformed(Operation.UPDATE);
                             LOGGER.debug("Number of rows affected : ", result.getN());
-                            ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.POST_CRUD_UPDATE_DOC, ctx, doc);
+                            timer.callInterceptors(InterceptPoint.POST_CRUD_UPDATE_DOC, ctx, doc);
                         } catch (Exception e) {
                             LOGGER.warn("Update exception for document {}: {}", docIndex, e);
                             doc.addError(Error.get(MongoCrudConstants.ERR_UPDATE_ERROR, e.toString()));
@@ -145,6 +169,7 @@ public class IterateAndUpdate implements DocUpdater {
                 } else {
                     LOGGER.debug("Document {} was not modified", docIndex);
                 }
+                t = timer.begin();
                 if (hasErrors) {
                     LOGGER.debug("Document {} has errors", docIndex);
                     numFailed++;
@@ -155,9 +180,13 @@ public class IterateAndUpdate implements DocUpdater {
                         doc.setOutputDocument(projector.project(doc.getOutputDocument(), nodeFactory));
                     }
                 }
+                timer.end(PhaseTimer.Phase.projection, t);
                 docIndex++;
             }
         } finally {
+            if (docs != null) {
+                timer.record(PhaseTimer.Phase.server, docs.getFetchTime());
+            }
             if (cursor != null) {
                 cursor.close();
             }
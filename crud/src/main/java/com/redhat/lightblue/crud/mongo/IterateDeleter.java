@@ -33,6 +33,7 @@ import com.redhat.lightblue.crud.CRUDDeleteResponse;
 import com.redhat.lightblue.crud.CRUDOperationContext;
 import com.redhat.lightblue.crud.DocCtx;
 import com.redhat.lightblue.crud.Operation;
+import com.redhat.lightblue.mongo.hystrix.BatchedCursor;
 import com.redhat.lightblue.mongo.hystrix.FindCommand;
 import com.redhat.lightblue.mongo.hystrix.RemoveCommand;
 
@@ -58,27 +59,50 @@ public class IterateDeleter implements DocDeleter {
         DBCursor cursor = null;
         int docIndex = 0;
         int numDeleted = 0;
+        PhaseTimer timer = PhaseTimer.get(ctx);
+        BatchedCursor docs = null;
         try {
             // Find docs
+            long t = timer.begin();
             cursor = new FindCommand(collection, mongoQuery, null).execute();
-            LOGGER.debug("Found {} documents", cursor.count());
+            timer.end(PhaseTimer.Phase.server, t);
+            if (LOGGER.isDebugEnabled()) {
+                // count() is a server round trip
+                LOGGER.debug("Found {} documents", cursor.count());
+            }
             // read-delet
-            while (cursor.hasNext()) {
-                DBObject document = cursor.next();
+            docs = new BatchedCursor(cursor);
+            ResidualFilter residual = (ResidualFilter) ctx.getProperty(MongoCRUDController.PROP_RESIDUAL_FILTER);
+            DocumentCache cache = DocumentCache.get(ctx);
+            while (docs.hasNext()) {
+                DBObject document = docs.next();
+                if (residual != null && !residual.matches(document)) {
+                    continue;
+                }
                 LOGGER.debug("Retrieved doc {}", docIndex);
                 Object id = document.get(MongoCRUDController.ID_STR);
-                DocCtx doc = ctx.addDocument(translator.toJson(document));
+                t = timer.begin();
+                DocCtx doc = ctx.addDocument(residual == null ? translator.toJson(document) : residual.toJson(document));
+                timer.end(PhaseTimer.Phase.decode, t);
                 doc.setOriginalDocument(doc);
-                ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.PRE_CRUD_DELETE_DOC, ctx, doc);
+                timer.callInterceptors(InterceptPoint.PRE_CRUD_DELETE_DOC, ctx, doc);
+                t = timer.begin();
                 WriteResult result = new RemoveCommand(collection, new BasicDBObject("_id", id), WriteConcern.SAFE).execute();
+                timer.end(PhaseTimer.Phase.server, t);
+                if (cache != null) {
+                    cache.invalidate(id);
+                }
                 if (result.getN() == 1) {
                     numDeleted++;
                     doc.setOperationPerformed(Operation.DELETE);
                 }
-                ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.POST_CRUD_DELETE_DOC, ctx, doc);
+                timer.callInterceptors(InterceptPoint.POST_CRUD_DELETE_DOC, ctx, doc);
                 docIndex++;
             }
         } finally {
+            if (docs != null) {
+                timer.record(PhaseTimer.Phase.server, docs.getFetchTime());
+            }
             if (cursor != null) {
                 cursor.close();
             }
@@ -0,0 +1,175 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.util.Base64Codec;
+import com.mongodb.util.JSON;
+import com.redhat.lightblue.util.Error;
+
+/**
+ * Keyset (seek) pagination. Instead of skipping the documents of the previous
+ * pages, the next page is read with a range predicate on the sort keys,
+ * starting after the last document of the previous page. The sort is extended
+ * with _id, so the order is total. The position is passed between requests as
+ * an opaque continuation token containing the sort and the sort key values
+ * and _id of the last document.
+ *
+ * For a sort {a:1, b:-1}, the predicate after the document with a=x, b=y,
+ * _id=z is:
+ *
+ * <pre>
+ *  { $or: [ {a: {$gt: x}},
+ *           {a: x, $or: [ {b: {$lt: y}}, {b: null} ]},
+ *           {a: x, b: y, _id: {$gt: z}} ] }
+ * </pre>
+ *
+ * MongoDB sorts missing and null values before all other values, and
+ * comparison operators do not match them, so the bounds are null-aware: in
+ * descending order, null values come after any non-null value, and in
+ * ascending order, all non-null values come after null. A descending key that
+ * is null in the last document has nothing after it, so its clause is
+ * omitted.
+ */
+public final class KeysetPagination {
+
+    private static final String SORT = "s";
+    private static final String VALUES = "v";
+
+    private static final Base64Codec BASE64 = new Base64Codec();
+
+    private KeysetPagination() {
+    }
+
+    /**
+     * Returns the sort extended with _id, or a sort on _id if sort is null
+     */
+    public static DBObject getSort(DBObject sort) {
+        BasicDBObject ret = new BasicDBObject();
+        if (sort != null) {
+            ret.putAll(sort);
+        }
+        if (!ret.containsField(MongoCRUDController.ID_STR)) {
+            ret.put(MongoCRUDController.ID_STR, 1);
+        }
+        return ret;
+    }
+
+    /**
+     * Builds the continuation token pointing after the given document
+     *
+     * @param sort The extended sort, see {@link #getSort(DBObject)}
+     * @param lastDoc The last document of the page
+     */
+    public static String encode(DBObject sort, DBObject lastDoc) {
+        BasicDBList values = new BasicDBList();
+        for (String field : sort.keySet()) {
+            values.add(getValue(lastDoc, field));
+        }
+        String json = JSON.serialize(new BasicDBObject(SORT, sort).append(VALUES, values));
+        return BASE64.encode(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the range predicate selecting the documents after the position
+     * of the token
+     *
+     * @param sort The extended sort, see {@link #getSort(DBObject)}
+     * @param token The continuation token
+     *
+     * @throws Error if the token is invalid, or was built for a different
+     * sort
+     */
+    public static DBObject getRangeQuery(DBObject sort, String token) {
+        DBObject decoded;
+        try {
+            decoded = (DBObject) JSON.parse(new String(BASE64.decode(token), StandardCharsets.UTF_8));
+        } catch (RuntimeException e) {
+            throw Error.get(MongoCrudConstants.ERR_INVALID_CONTINUATION_TOKEN, token);
+        }
+        if (decoded == null
+                || !(decoded.get(SORT) instanceof DBObject)
+                || !sortsMatch(sort, (DBObject) decoded.get(SORT))
+                || !(decoded.get(VALUES) instanceof List)
+                || ((List) decoded.get(VALUES)).size() != sort.keySet().size()) {
+            throw Error.get(MongoCrudConstants.ERR_INVALID_CONTINUATION_TOKEN, token);
+        }
+        List values = (List) decoded.get(VALUES);
+        BasicDBList or = new BasicDBList();
+        int i = 0;
+        BasicDBObject prefix = new BasicDBObject();
+        for (String field : sort.keySet()) {
+            boolean desc = ((Number) sort.get(field)).intValue() < 0;
+            Object value = values.get(i);
+            BasicDBObject clause = new BasicDBObject(prefix);
+            if (value == null) {
+                if (!desc) {
+                    clause.put(field, new BasicDBObject("$ne", null));
+                    or.add(clause);
+                }
+            } else if (desc) {
+                BasicDBList after = new BasicDBList();
+                after.add(new BasicDBObject(field, new BasicDBObject("$lt", value)));
+                after.add(new BasicDBObject(field, null));
+                clause.put("$or", after);
+                or.add(clause);
+            } else {
+                clause.put(field, new BasicDBObject("$gt", value));
+                or.add(clause);
+            }
+            prefix.put(field, value);
+            i++;
+        }
+        return or.size() == 1 ? (DBObject) or.get(0) : new BasicDBObject("$or", or);
+    }
+
+    private static boolean sortsMatch(DBObject sort1, DBObject sort2) {
+        if (!new ArrayList<>(sort1.keySet()).equals(new ArrayList<>(sort2.keySet()))) {
+            return false;
+        }
+        for (String field : sort1.keySet()) {
+            if (!(sort2.get(field) instanceof Number)
+                    || (((Number) sort1.get(field)).intValue() < 0) != (((Number) sort2.get(field)).intValue() < 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the value of a dotted field in a document
+     */
+    private static Object getValue(DBObject doc, String field) {
+        Object value = doc;
+        for (String segment : field.split("\\.")) {
+            if (value instanceof DBObject) {
+                value = ((DBObject) value).get(segment);
+            } else {
+                return null;
+            }
+        }
+        return value;
+    }
+}
@@ -19,8 +19,8 @@
 package com.redhat.lightblue.crud.mongo;
 
 import java.util.List;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -29,11 +29,11 @@ import org.slf4j.LoggerFactory;
 
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
-import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
 import com.mongodb.MongoException;
 import com.redhat.lightblue.interceptor.InterceptPoint;
 import com.redhat.lightblue.common.mongo.DBResolver;
+import com.redhat.lightblue.common.mongo.MongoCacheOptions;
 import com.redhat.lightblue.common.mongo.MongoDataStore;
 import com.redhat.lightblue.crud.CRUDController;
 import com.redhat.lightblue.crud.CRUDDeleteResponse;
@@ -45,11 +45,11 @@ import com.redhat.lightblue.crud.CRUDUpdateResponse;
 import com.redhat.lightblue.crud.ConstraintValidator;
 import com.redhat.lightblue.crud.CrudConstants;
 import com.redhat.lightblue.crud.DocCtx;
+import com.redhat.lightblue.crud.Operation;
 import com.redhat.lightblue.eval.FieldAccessRoleEvaluator;
 import com.redhat.lightblue.eval.Projector;
 import com.redhat.lightblue.eval.Updater;
 import com.redhat.lightblue.metadata.Metadata;
-import com.redhat.lightblue.metadata.Index;
 import com.redhat.lightblue.metadata.Indexes;
 import com.redhat.lightblue.metadata.EntityInfo;
 import com.redhat.lightblue.metadata.EntityMetadata;
@@ -58,7 +58,6 @@ import com.redhat.lightblue.query.FieldProjection;
 import com.redhat.lightblue.query.Projection;
 import com.redhat.lightblue.query.QueryExpression;
 import com.redhat.lightblue.query.Sort;
-import com.redhat.lightblue.query.SortKey;
 import com.redhat.lightblue.query.UpdateExpression;
 import com.redhat.lightblue.util.Error;
 import com.redhat.lightblue.util.JsonDoc;
@@ -80,6 +79,12 @@ public class MongoCRUDController implements CRUDController {
      */
     public static final String PROP_UPDATER = "MongoCRUDController:updater";
 
+    /**
+     * Name of the property for the operation context that keeps the update
+     * plan chosen by the update planner
+     */
+    public static final String PROP_UPDATE_PLAN = "MongoCRUDController:updatePlan";
+
     /**
      * Name of the property for the operation context that keeps the last
      * deleter class instance used
@@ -92,6 +97,52 @@ public class MongoCRUDController implements CRUDController {
      */
     public static final String PROP_FINDER = "MongoCRUDController:finder";
 
+    /**
+     * Name of the property for the operation context that keeps the time
+     * spent in each phase of the operation in milliseconds, as a
+     * Map&lt;String,Long&gt;. Only set if timing summaries are enabled.
+     */
+    public static final String PROP_TIMINGS = "MongoCRUDController:timings";
+
+    /**
+     * Name of the property for the operation context that contains the
+     * continuation token of a find request. If set, the results are paged
+     * using keyset pagination (see {@link KeysetPagination}): the page starts
+     * after the position of the token, and the size of the page is to-from+1.
+     * An empty token requests the first page.
+     */
+    public static final String PROP_CONTINUATION_TOKEN = "MongoCRUDController:continuationToken";
+
+    /**
+     * Name of the property for the operation context that contains the
+     * continuation token for the next page of a keyset paginated find
+     * request. Not set if there are no more pages.
+     */
+    public static final String PROP_NEXT_CONTINUATION_TOKEN = "MongoCRUDController:nextContinuationToken";
+
+    /**
+     * Name of the property for the operation context that contains the
+     * server side cursor id of a find request. If set, the cursor is kept
+     * open in the cursor registry between requests, and pages are read from
+     * it without re-running the query (see {@link CursorRegistry}). An empty
+     * id runs the query and opens a new cursor.
+     */
+    public static final String PROP_CURSOR = "MongoCRUDController:cursor";
+
+    /**
+     * Name of the property for the operation context that contains the
+     * server side cursor id to read the next page of a find request. Not set
+     * if the cursor is exhausted.
+     */
+    public static final String PROP_NEXT_CURSOR = "MongoCRUDController:nextCursor";
+
+    /**
+     * Name of the property for the operation context that contains the
+     * {@link ResidualFilter} evaluating the part of the query that is not
+     * sent to MongoDB. Only set if the query has such a part.
+     */
+    public static final String PROP_RESIDUAL_FILTER = "MongoCRUDController:residualFilter";
+
     public static final String OP_INSERT = "insert";
     public static final String OP_SAVE = "save";
     public static final String OP_FIND = "find";
@@ -104,10 +155,184 @@ public class MongoCRUDController implements CRUDController {
 
     private final DBResolver dbResolver;
 
+    private boolean timingSummary = false;
+
+    private SlowQueryRecorder slowQueryRecorder = SlowQueryRecorder.getInstance();
+
+    private IndexAdvisor indexAdvisor;
+
+    private IndexEnforcer indexEnforcer = new IndexEnforcer();
+
+    private IndexJobManager indexJobManager;
+
+    private QueryRewriter queryRewriter = new QueryRewriter();
+
+    private CursorRegistry cursorRegistry = new CursorRegistry();
+
+    private final CaseFoldedFields caseFoldedFields = new CaseFoldedFields();
+
+    private int maxInListSize = 10000;
+
+    private boolean docInterceptors = true;
+
+    private final ConcurrentMap<String, DocumentCache> documentCaches = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CacheInvalidationTailer> invalidationTailers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, QueryCache> queryCaches = new ConcurrentHashMap<>();
+
     public MongoCRUDController(DBResolver dbResolver) {
         this.dbResolver = dbResolver;
     }
 
+    /**
+     * The recorder collecting query shape statistics, null if disabled
+     */
+    public SlowQueryRecorder getSlowQueryRecorder() {
+        return slowQueryRecorder;
+    }
+
+    /**
+     * The recorder collecting query shape statistics, null if disabled
+     */
+    public void setSlowQueryRecorder(SlowQueryRecorder r) {
+        slowQueryRecorder = r;
+    }
+
+    /**
+     * The index advisor sampling the queries, null if disabled
+     */
+    public IndexAdvisor getIndexAdvisor() {
+        return indexAdvisor;
+    }
+
+    /**
+     * The index advisor sampling the queries, null if disabled
+     */
+    public void setIndexAdvisor(IndexAdvisor advisor) {
+        indexAdvisor = advisor;
+    }
+
+    /**
+     * Applies the index enforcement policy of the entities to queries
+     */
+    public IndexEnforcer getIndexEnforcer() {
+        return indexEnforcer;
+    }
+
+    /**
+     * Applies the index enforcement policy of the entities to queries
+     */
+    public void setIndexEnforcer(IndexEnforcer e) {
+        indexEnforcer = e;
+    }
+
+    /**
+     * Normalizes the translated queries, null if disabled
+     */
+    public QueryRewriter getQueryRewriter() {
+        return queryRewriter;
+    }
+
+    /**
+     * Normalizes the translated queries, null if disabled
+     */
+    public void setQueryRewriter(QueryRewriter r) {
+        queryRewriter = r;
+    }
+
+    /**
+     * If set, index changes are queued as jobs, and run asynchronously by the
+     * job manager. Otherwise, indexes are built synchronously.
+     */
+    public IndexJobManager getIndexJobManager() {
+        return indexJobManager;
+    }
+
+    /**
+     * If set, index changes are queued as jobs, and run asynchronously by the
+     * job manager. Otherwise, indexes are built synchronously.
+     */
+    public void setIndexJobManager(IndexJobManager m) {
+        indexJobManager = m;
+    }
+
+    /**
+     * The registry keeping server side cursors open between find requests,
+     * null if disabled
+     */
+    public CursorRegistry getCursorRegistry() {
+        return cursorRegistry;
+    }
+
+    /**
+     * The registry keeping server side cursors open between find requests,
+     * null if disabled
+     */
+    public void setCursorRegistry(CursorRegistry r) {
+        cursorRegistry = r;
+    }
+
+    /**
+     * Tracks the case insensitive fields whose lower case copies are
+     * backfilled, and can be used in queries
+     */
+    public CaseFoldedFields getCaseFoldedFields() {
+        return caseFoldedFields;
+    }
+
+    /**
+     * Finds with $in or $all lists longer than this are split into parallel
+     * sub-queries, and their results are merged. Zero or negative disables
+     * splitting.
+     */
+    public int getMaxInListSize() {
+        return maxInListSize;
+    }
+
+    /**
+     * Finds with $in or $all lists longer than this are split into parallel
+     * sub-queries, and their results are merged. Zero or negative disables
+     * splitting.
+     */
+    public void setMaxInListSize(int n) {
+        maxInListSize = n;
+    }
+
+    /**
+     * If true, there may be per-document update interceptors, so updates are
+     * never done using server side multi-updates that do not read the
+     * documents. Set this to false if there are no interceptors registered
+     * for PRE_CRUD_UPDATE_DOC and POST_CRUD_UPDATE_DOC.
+     */
+    public boolean isDocInterceptors() {
+        return docInterceptors;
+    }
+
+    /**
+     * If true, there may be per-document update interceptors, so updates are
+     * never done using server side multi-updates that do not read the
+     * documents. Set this to false if there are no interceptors registered
+     * for PRE_CRUD_UPDATE_DOC and POST_CRUD_UPDATE_DOC.
+     */
+    public void setDocInterceptors(boolean b) {
+        docInterceptors = b;
+    }
+
+    /**
+     * If true, the phase timings of every operation are attached to the
+     * operation context under {@link #PROP_TIMINGS}
+     */
+    public boolean isTimingSummary() {
+        return timingSummary;
+    }
+
+    /**
+     * If true, the phase timings of every operation are attached to the
+     * operation context under {@link #PROP_TIMINGS}
+     */
+    public void setTimingSummary(boolean b) {
+        timingSummary = b;
+    }
+
     /**
      * Insertion operation for mongo
      */
@@ -116,10 +341,12 @@ public class MongoCRUDController implements CRUDController {
                                         Projection projection) {
         LOGGER.debug("insert() start");
         CRUDInsertionResponse response = new CRUDInsertionResponse();
-        ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.PRE_CRUD_INSERT, ctx);
+        PhaseTimer timer = PhaseTimer.start(ctx, OP_INSERT);
+        timer.callInterceptors(InterceptPoint.PRE_CRUD_INSERT, ctx);
         int n = saveOrInsert(ctx, false, projection, OP_INSERT);
         response.setNumInserted(n);
-        ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.POST_CRUD_INSERT, ctx);
+        timer.callInterceptors(InterceptPoint.POST_CRUD_INSERT, ctx);
+        attachTimings(ctx, timer);
         return response;
     }
 
@@ -129,10 +356,12 @@ public class MongoCRUDController implements CRUDController {
                                  Projection projection) {
         LOGGER.debug("save() start");
         CRUDSaveResponse response = new CRUDSaveResponse();
-        ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.PRE_CRUD_SAVE, ctx);
+        PhaseTimer timer = PhaseTimer.start(ctx, OP_SAVE);
+        timer.callInterceptors(InterceptPoint.PRE_CRUD_SAVE, ctx);
         int n = saveOrInsert(ctx, upsert, projection, OP_SAVE);
         response.setNumSaved(n);
-        ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.POST_CRUD_SAVE, ctx);
+        timer.callInterceptors(InterceptPoint.POST_CRUD_SAVE, ctx);
+        attachTimings(ctx, timer);
         return response;
     }
 
@@ -150,13 +379,16 @@ public class MongoCRUDController implements CRUDController {
         }
         LOGGER.debug("saveOrInsert() start");
         Error.push(operation);
+        PhaseTimer timer = PhaseTimer.get(ctx);
         Translator translator = new Translator(ctx, ctx.getFactory().getNodeFactory());
+        QueryCache queryCache = null;
         try {
-            FieldAccessRoleEvaluator roleEval = new FieldAccessRoleEvaluator(ctx.getEntityMetadata(ctx.getEntityName()),
-                    ctx.getCallerRoles());
-            LOGGER.debug("saveOrInsert: Translating docs");
             EntityMetadata md = ctx.getEntityMetadata(ctx.getEntityName());
+            FieldAccessMask roleEval = FieldAccessMask.get(md, ctx.getCallerRoles());
+            LOGGER.debug("saveOrInsert: Translating docs");
+            long t = timer.begin();
             DBObject[] dbObjects = translator.toBson(documents);
+            timer.end(PhaseTimer.Phase.translate, t);
             // dbObjects[i] is the translation of documents.get(i)
             if (dbObjects != null) {
                 LOGGER.debug("saveOrInsert: {} docs translated to bson", dbObjects.length);
@@ -164,6 +396,8 @@ public class MongoCRUDController implements CRUDController {
                 MongoDataStore store = (MongoDataStore) md.getDataStore();
                 DB db = dbResolver.get(store);
                 DBCollection collection = db.getCollection(store.getCollectionName());
+                DocumentCache.attach(ctx, getCollectionDocumentCache(store));
+                queryCache = getCollectionQueryCache(store);
 
                 Projection combinedProjection = Projection.add(projection, roleEval.getExcludedFields(FieldAccessRoleEvaluator.Operation.find));
 
@@ -181,15 +415,19 @@ public class MongoCRUDController implements CRUDController {
                     try {
                         saver.saveDoc(ctx, operation.equals(OP_INSERT) ? DocSaver.Op.insert : DocSaver.Op.save,
                                 upsert, collection, md, dbObject, inputDoc);
-                        ctx.getHookManager().queueHooks(ctx);
+                        timer.queueHooks(ctx);
                     } catch (Exception e) {
                         LOGGER.error("saveOrInsert failed: {}", e);
                         inputDoc.addError(Error.get(operation, MongoCrudConstants.ERR_SAVE_ERROR, e));
                     }
                     if (projector != null) {
+                        t = timer.begin();
                         JsonDoc jsonDoc = translator.toJson(dbObject);
+                        timer.end(PhaseTimer.Phase.decode, t);
                         LOGGER.debug("Translated doc: {}", jsonDoc);
+                        t = timer.begin();
                         inputDoc.setOutputDocument(projector.project(jsonDoc, ctx.getFactory().getNodeFactory()));
+                        timer.end(PhaseTimer.Phase.projection, t);
                     } else {
                         inputDoc.setOutputDocument(new JsonDoc(new ObjectNode(ctx.getFactory().getNodeFactory())));
                     }
@@ -208,6 +446,9 @@ public class MongoCRUDController implements CRUDController {
             LOGGER.error(e.getMessage(), e);
             throw Error.get(CrudConstants.ERR_CRUD, e.getMessage());
         } finally {
+            if (queryCache != null) {
+                queryCache.invalidateAll();
+            }
             Error.pop();
         }
         LOGGER.debug("saveOrInsert() end: {} docs requested, {} saved", documents.size(), ret);
@@ -225,16 +466,20 @@ public class MongoCRUDController implements CRUDController {
         LOGGER.debug("update start: q:{} u:{} p:{}", query, update, projection);
         Error.push(OP_UPDATE);
         CRUDUpdateResponse response = new CRUDUpdateResponse();
+        PhaseTimer timer = PhaseTimer.start(ctx, OP_UPDATE);
         Translator translator = new Translator(ctx, ctx.getFactory().getNodeFactory());
-        ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.PRE_CRUD_UPDATE, ctx);
+        timer.callInterceptors(InterceptPoint.PRE_CRUD_UPDATE, ctx);
+        QueryCache queryCache = null;
         try {
             EntityMetadata md = ctx.getEntityMetadata(ctx.getEntityName());
             if (md.getAccess().getUpdate().hasAccess(ctx.getCallerRoles())) {
                 ConstraintValidator validator = ctx.getFactory().getConstraintValidator(md);
                 LOGGER.debug("Translating query {}", query);
-                DBObject mongoQuery = translator.translate(md, query);
+                long t = timer.begin();
+                DBObject mongoQuery = translateQuery(ctx, md, translator, query);
+                timer.end(PhaseTimer.Phase.translate, t);
                 LOGGER.debug("Translated query {}", mongoQuery);
-                FieldAccessRoleEvaluator roleEval = new FieldAccessRoleEvaluator(md, ctx.getCallerRoles());
+                FieldAccessMask roleEval = FieldAccessMask.get(md, ctx.getCallerRoles());
 
                 Projector projector;
                 if (projection != null) {
@@ -246,6 +491,8 @@ public class MongoCRUDController implements CRUDController {
                 }
                 DB db = dbResolver.get((MongoDataStore) md.getDataStore());
                 DBCollection coll = db.getCollection(((MongoDataStore) md.getDataStore()).getCollectionName());
+                DocumentCache.attach(ctx, getCollectionDocumentCache((MongoDataStore) md.getDataStore()));
+                queryCache = getCollectionQueryCache((MongoDataStore) md.getDataStore());
                 Projector errorProjector;
                 if (projector == null) {
                     errorProjector = Projector.getInstance(ID_PROJECTION, md);
@@ -253,14 +500,34 @@ public class MongoCRUDController implements CRUDController {
                     errorProjector = projector;
                 }
 
-                // If there are any constraints for updated fields, or if we're updating arrays, we have to use iterate-update
-                Updater updater = Updater.getInstance(ctx.getFactory().getNodeFactory(), md, update);
-
-                DocUpdater docUpdater = new IterateAndUpdate(ctx.getFactory().getNodeFactory(), validator, roleEval, translator, updater,
-                        projector, errorProjector);
+                UpdatePlanner planner = new UpdatePlanner(md, translator, roleEval);
+                planner.plan(update,
+                        projector != null,
+                        docInterceptors,
+                        ctx.getProperty(PROP_RESIDUAL_FILTER) != null);
+                DocUpdater docUpdater;
+                switch (planner.getPlan()) {
+                    case multiUpdate:
+                        docUpdater = new MultiUpdate(planner.getMongoUpdate());
+                        break;
+                    case findAndModify:
+                        docUpdater = new AtomicIterateUpdate(ctx.getFactory().getNodeFactory(), roleEval, translator,
+                                planner.getMongoUpdate(), projector, planner.getUpdatedFields(),
+                                Translator.getProjectedFields(projection), docInterceptors);
+                        break;
+                    default:
+                        Updater updater = Updater.getInstance(ctx.getFactory().getNodeFactory(), md, update);
+                        docUpdater = new IterateAndUpdate(ctx.getFactory().getNodeFactory(), validator, roleEval, translator, updater,
+                                projector, errorProjector);
+                        break;
+                }
+                ctx.setProperty(PROP_UPDATE_PLAN, planner.getPlan());
                 ctx.setProperty(PROP_UPDATER, docUpdater);
+                checkIndexes(md, coll, mongoQuery, null);
+                t = System.currentTimeMillis();
                 docUpdater.update(ctx, coll, md, response, mongoQuery);
-                ctx.getHookManager().queueHooks(ctx);
+                recordQuery(OP_UPDATE, md, coll, mongoQuery, null, t);
+                timer.queueHooks(ctx);
             } else {
                 ctx.addError(Error.get(MongoCrudConstants.ERR_NO_ACCESS, "update:" + ctx.getEntityName()));
             }
@@ -272,9 +539,13 @@ public class MongoCRUDController implements CRUDController {
             LOGGER.error(e.getMessage(), e);
             throw Error.get(CrudConstants.ERR_CRUD, e.getMessage());
         } finally {
+            if (queryCache != null) {
+                queryCache.invalidateAll();
+            }
             Error.pop();
         }
-        ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.POST_CRUD_UPDATE, ctx);
+        timer.callInterceptors(InterceptPoint.POST_CRUD_UPDATE, ctx);
+        attachTimings(ctx, timer);
         LOGGER.debug("update end: updated: {}, failed: {}", response.getNumUpdated(), response.getNumFailed());
         return response;
     }
@@ -288,20 +559,29 @@ public class MongoCRUDController implements CRUDController {
         LOGGER.debug("delete start: q:{}", query);
         Error.push(OP_DELETE);
         CRUDDeleteResponse response = new CRUDDeleteResponse();
+        PhaseTimer timer = PhaseTimer.start(ctx, OP_DELETE);
         Translator translator = new Translator(ctx, ctx.getFactory().getNodeFactory());
-        ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.PRE_CRUD_DELETE, ctx);
+        timer.callInterceptors(InterceptPoint.PRE_CRUD_DELETE, ctx);
+        QueryCache queryCache = null;
         try {
             EntityMetadata md = ctx.getEntityMetadata(ctx.getEntityName());
             if (md.getAccess().getDelete().hasAccess(ctx.getCallerRoles())) {
                 LOGGER.debug("Translating query {}", query);
-                DBObject mongoQuery = translator.translate(md, query);
+                long t = timer.begin();
+                DBObject mongoQuery = translateQuery(ctx, md, translator, query);
+                timer.end(PhaseTimer.Phase.translate, t);
                 LOGGER.debug("Translated query {}", mongoQuery);
                 DB db = dbResolver.get((MongoDataStore) md.getDataStore());
                 DBCollection coll = db.getCollection(((MongoDataStore) md.getDataStore()).getCollectionName());
+                DocumentCache.attach(ctx, getCollectionDocumentCache((MongoDataStore) md.getDataStore()));
+                queryCache = getCollectionQueryCache((MongoDataStore) md.getDataStore());
                 DocDeleter deleter = new IterateDeleter(translator);
                 ctx.setProperty(PROP_DELETER, deleter);
+                checkIndexes(md, coll, mongoQuery, null);
+                t = System.currentTimeMillis();
                 deleter.delete(ctx, coll, mongoQuery, response);
-                ctx.getHookManager().queueHooks(ctx);
+                recordQuery(OP_DELETE, md, coll, mongoQuery, null, t);
+                timer.queueHooks(ctx);
             } else {
                 ctx.addError(Error.get(MongoCrudConstants.ERR_NO_ACCESS, "delete:" + ctx.getEntityName()));
             }
@@ -311,9 +591,13 @@ public class MongoCRUDController implements CRUDController {
             LOGGER.error(e.getMessage(), e);
             ctx.addError(Error.get(e.toString()));
         } finally {
+            if (queryCache != null) {
+                queryCache.invalidateAll();
+            }
             Error.pop();
         }
-        ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.POST_CRUD_DELETE, ctx);
+        timer.callInterceptors(InterceptPoint.POST_CRUD_DELETE, ctx);
+        attachTimings(ctx, timer);
         LOGGER.debug("delete end: deleted: {}}", response.getNumDeleted());
         return response;
     }
@@ -337,14 +621,16 @@ public class MongoCRUDController implements CRUDController {
         LOGGER.debug("find start: q:{} p:{} sort:{} from:{} to:{}", query, projection, sort, from, to);
         Error.push(OP_FIND);
         CRUDFindResponse response = new CRUDFindResponse();
+        PhaseTimer timer = PhaseTimer.start(ctx, OP_FIND);
         Translator translator = new Translator(ctx, ctx.getFactory().getNodeFactory());
-        ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.PRE_CRUD_FIND, ctx);
+        timer.callInterceptors(InterceptPoint.PRE_CRUD_FIND, ctx);
         try {
             EntityMetadata md = ctx.getEntityMetadata(ctx.getEntityName());
             if (md.getAccess().getFind().hasAccess(ctx.getCallerRoles())) {
-                FieldAccessRoleEvaluator roleEval = new FieldAccessRoleEvaluator(md, ctx.getCallerRoles());
+                FieldAccessMask roleEval = FieldAccessMask.get(md, ctx.getCallerRoles());
                 LOGGER.debug("Translating query {}", query);
-                DBObject mongoQuery = translator.translate(md, query);
+                long t = timer.begin();
+                DBObject mongoQuery = translateQuery(ctx, md, translator, query);
                 LOGGER.debug("Translated query {}", mongoQuery);
                 DBObject mongoSort;
                 if (sort != null) {
@@ -354,18 +640,54 @@ public class MongoCRUDController implements CRUDController {
                 } else {
                     mongoSort = null;
                 }
+                timer.end(PhaseTimer.Phase.translate, t);
                 DB db = dbResolver.get((MongoDataStore) md.getDataStore());
                 DBCollection coll = db.getCollection(((MongoDataStore) md.getDataStore()).getCollectionName());
+                DocumentCache.attach(ctx, getDocumentCache((MongoDataStore) md.getDataStore()));
                 LOGGER.debug("Retrieve db collection:" + coll);
-                DocFinder finder = new BasicDocFinder(translator);
-                ctx.setProperty(PROP_FINDER, finder);
-                response.setSize(finder.find(ctx, coll, mongoQuery, mongoSort, from, to));
+                // Paged requests keep state between calls, so they are not cached
+                QueryCache queryCache = ctx.getProperty(PROP_CURSOR) == null && ctx.getProperty(PROP_CONTINUATION_TOKEN) == null
+                        ? getQueryCache((MongoDataStore) md.getDataStore()) : null;
+                String cacheKey = null;
+                QueryCache.Result cached = null;
+                if (queryCache != null) {
+                    cacheKey = QueryCache.getKey(md, ctx.getCallerRoles(), mongoQuery,
+                            (ResidualFilter) ctx.getProperty(PROP_RESIDUAL_FILTER), mongoSort, projection, from, to);
+                    cached = queryCache.get(cacheKey);
+                }
+                // The cache keeps the documents as they were read, so the
+                // interceptors, the projection and the hooks see the same
+                // documents on a hit as on a miss
+                if (cached != null) {
+                    LOGGER.debug("Query cache hit");
+                    ctx.addDocuments(cached.getDocuments());
+                    for (DocCtx document : ctx.getDocuments()) {
+                        document.setOperationPerformed(Operation.FIND);
+                        timer.callInterceptors(InterceptPoint.POST_CRUD_FIND_DOC, ctx, document);
+                    }
+                    response.setSize(cached.getSize());
+                } else {
+                    long generation = queryCache == null ? 0 : queryCache.getGeneration();
+                    BasicDocFinder finder = new BasicDocFinder(translator, cursorRegistry);
+                    finder.setMaxInListSize(maxInListSize);
+                    finder.setKeepReadDocuments(queryCache != null);
+                    ctx.setProperty(PROP_FINDER, finder);
+                    checkIndexes(md, coll, mongoQuery, mongoSort);
+                    t = System.currentTimeMillis();
+                    response.setSize(finder.find(ctx, coll, mongoQuery, mongoSort, from, to));
+                    recordQuery(OP_FIND, md, coll, mongoQuery, mongoSort, t);
+                    if (queryCache != null && !ctx.hasErrors() && !ctx.hasDocumentErrors()) {
+                        queryCache.put(cacheKey, finder.getReadDocuments(), response.getSize(), generation);
+                    }
+                }
                 // Project results
+                t = timer.begin();
                 Projector projector = Projector.getInstance(Projection.add(projection, roleEval.getExcludedFields(FieldAccessRoleEvaluator.Operation.find)), md);
                 for (DocCtx document : ctx.getDocuments()) {
                     document.setOutputDocument(projector.project(document, ctx.getFactory().getNodeFactory()));
                 }
-                ctx.getHookManager().queueHooks(ctx);
+                timer.end(PhaseTimer.Phase.projection, t);
+                timer.queueHooks(ctx);
             } else {
                 ctx.addError(Error.get(MongoCrudConstants.ERR_NO_ACCESS, "find:" + ctx.getEntityName()));
             }
@@ -379,11 +701,164 @@ public class MongoCRUDController implements CRUDController {
         } finally {
             Error.pop();
         }
-        ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.POST_CRUD_FIND, ctx);
+        timer.callInterceptors(InterceptPoint.POST_CRUD_FIND, ctx);
+        attachTimings(ctx, timer);
         LOGGER.debug("find end: query: {} results: {}", response.getSize());
         return response;
     }
 
+    /**
+     * Returns the document cache of the collection of the datastore, or null
+     * if the entity does not use a document cache. The cache settings are
+     * updated from the datastore, so metadata changes are applied to the
+     * existing cache. If the cache has an invalidation source, the cache is
+     * registered with the tailer of that source.
+     */
+    public DocumentCache getDocumentCache(MongoDataStore store) {
+        MongoCacheOptions options = store.getDocumentCache();
+        if (options == null) {
+            return null;
+        }
+        DocumentCache cache = getCollectionDocumentCache(store);
+        cache.setMaxSize(options.getMaxSize() == null ? DocumentCache.DEFAULT_MAX_SIZE : options.getMaxSize());
+        cache.setTtl(options.getTtl() == null ? DocumentCache.DEFAULT_TTL : options.getTtl());
+        if (options.getInvalidation() != null) {
+            getInvalidationTailer(store, options.getInvalidation()).register(store.getCollectionName(), cache);
+        }
+        return cache;
+    }
+
+    /**
+     * Returns the query result cache of the collection of the datastore, or
+     * null if the entity does not cache query results. The cache settings
+     * are updated from the datastore.
+     */
+    public QueryCache getQueryCache(MongoDataStore store) {
+        MongoCacheOptions options = store.getQueryCache();
+        if (options == null) {
+            return null;
+        }
+        QueryCache cache = getCollectionQueryCache(store);
+        cache.setMaxSize(options.getMaxSize() == null ? QueryCache.DEFAULT_MAX_SIZE : options.getMaxSize());
+        cache.setTtl(options.getTtl() == null ? QueryCache.DEFAULT_TTL : options.getTtl());
+        return cache;
+    }
+
+    /**
+     * Returns the document cache of the collection of the datastore,
+     * creating it if necessary. Writes invalidate this cache even if the
+     * version of the entity they use does not cache documents, because the
+     * cache is shared by all versions of the entity.
+     */
+    private DocumentCache getCollectionDocumentCache(MongoDataStore store) {
+        String key = store.toString();
+        DocumentCache cache = documentCaches.get(key);
+        if (cache == null) {
+            DocumentCache c = new DocumentCache();
+            cache = documentCaches.putIfAbsent(key, c);
+            if (cache == null) {
+                cache = c;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Returns the query cache of the collection of the datastore, creating it
+     * if necessary. Like the document cache, it is invalidated by all writes
+     * to the collection.
+     */
+    private QueryCache getCollectionQueryCache(MongoDataStore store) {
+        String key = store.toString();
+        QueryCache cache = queryCaches.get(key);
+        if (cache == null) {
+            QueryCache c = new QueryCache(key);
+            cache = queryCaches.putIfAbsent(key, c);
+            if (cache == null) {
+                cache = c;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Returns the tailer for the invalidation source of the database of the
+     * datastore, creating it if necessary
+     */
+    private CacheInvalidationTailer getInvalidationTailer(MongoDataStore store, String source) {
+        String key = store.getDatasourceName() + ":" + store.getDatabaseName() + ":" + source;
+        CacheInvalidationTailer tailer = invalidationTailers.get(key);
+        if (tailer == null) {
+            CacheInvalidationTailer t = new CacheInvalidationTailer(dbResolver.get(store), source);
+            tailer = invalidationTailers.putIfAbsent(key, t);
+            if (tailer == null) {
+                tailer = t;
+            }
+        }
+        return tailer;
+    }
+
+    /**
+     * Stops all cache invalidation tailers. The document caches using them
+     * are suspended.
+     */
+    public void stopCacheInvalidation() {
+        for (CacheInvalidationTailer tailer : invalidationTailers.values()) {
+            tailer.stop();
+        }
+        invalidationTailers.clear();
+    }
+
+    /**
+     * Translates the query, and sets the residual filter for the part of the
+     * query that cannot be sent to MongoDB without $where. The translated
+     * query is then normalized by the query rewriter. Only the lower case
+     * copies of the backfilled case insensitive fields are used.
+     */
+    private DBObject translateQuery(CRUDOperationContext ctx, EntityMetadata md, Translator translator, QueryExpression query) {
+        MongoDataStore store = (MongoDataStore) md.getDataStore();
+        if (!store.getCaseInsensitiveFields().isEmpty()) {
+            DBCollection coll = dbResolver.get(store).getCollection(store.getCollectionName());
+            translator.setCaseFoldedFields(caseFoldedFields.getBackfilledFields(coll, store.getCaseInsensitiveFields()));
+        }
+        Translator.TranslatedQuery translated = translator.translateWithResidual(md, query);
+        if (translated.getResidual() != null) {
+            LOGGER.debug("Residual query {}", translated.getResidual());
+            ctx.setProperty(PROP_RESIDUAL_FILTER, new ResidualFilter(translated.getResidual(), md, translator));
+        }
+        DBObject mongoQuery = translated.getQuery();
+        if (queryRewriter != null) {
+            mongoQuery = queryRewriter.rewrite(md.getName(), mongoQuery);
+        }
+        return mongoQuery;
+    }
+
+    private void checkIndexes(EntityMetadata md, DBCollection coll, DBObject mongoQuery, DBObject mongoSort) {
+        if (indexEnforcer != null) {
+            indexEnforcer.check(md, coll, mongoQuery, mongoSort);
+        }
+    }
+
+    private void recordQuery(String operation,
+                             EntityMetadata md,
+                             DBCollection coll,
+                             DBObject mongoQuery,
+                             DBObject mongoSort,
+                             long startTime) {
+        if (slowQueryRecorder != null) {
+            slowQueryRecorder.record(operation, md.getName(), coll, mongoQuery, mongoSort, System.currentTimeMillis() - startTime);
+        }
+        if (indexAdvisor != null) {
+            indexAdvisor.observe(md.getName(), coll, mongoQuery, mongoSort);
+        }
+    }
+
+    private void attachTimings(CRUDOperationContext ctx, PhaseTimer timer) {
+        if (timingSummary) {
+            ctx.setProperty(PROP_TIMINGS, timer.getSummary());
+        }
+    }
+
     @Override
     public void updateEntityInfo(Metadata md, EntityInfo ei) {
         createUpdateEntityInfoIndexes(ei);
@@ -404,45 +879,12 @@ public class MongoCRUDController implements CRUDController {
         DBCollection entityCollection = entityDB.getCollection(ds.getCollectionName());
         Error.push("createUpdateIndex");
         try {
-            List<DBObject> existingIndexes = entityCollection.getIndexInfo();
-            LOGGER.debug("Existing indexes: {}", existingIndexes);
-            for (Index index : indexes.getIndexes()) {
-                boolean createIx = true;
-                LOGGER.debug("Processing index {}", index);
-
-                for (DBObject existingIndex : existingIndexes) {
-                    if (indexFieldsMatch(index, existingIndex)
-                            && indexOptionsMatch(index, existingIndex)) {
-                        LOGGER.debug("Same index exists, not creating");
-                        createIx = false;
-                        break;
-                    }
-                }
-
-                if (createIx) {
-                    for (DBObject existingIndex : existingIndexes) {
-                        if (indexFieldsMatch(index, existingIndex)
-                                && !indexOptionsMatch(index, existingIndex)) {
-                            LOGGER.debug("Same index exists with different options, dropping index:{}", existingIndex);
-                            // Changing index options, drop the index using its name, recreate with new options
-                            entityCollection.dropIndex(existingIndex.get("name").toString());
-                        }
-                    }
-                }
-
-                if (createIx) {
-                    DBObject newIndex = new BasicDBObject();
-                    for (SortKey p : index.getFields()) {
-                        newIndex.put(p.getField().toString(), p.isDesc() ? -1 : 1);
-                    }
-                    BasicDBObject options = new BasicDBObject("unique", index.isUnique());
-                    if (index.getName() != null && index.getName().trim().length() > 0) {
-                        options.append("name", index.getName().trim());
-                    }
-                    options.append("background", true);
-                    LOGGER.debug("Creating index {} with options {}", newIndex, options);
-                    entityCollection.createIndex(newIndex, options);
-                }
+            List<DBObject> specs = IndexBuilder.getIndexSpecs(indexes, ds);
+            if (indexJobManager != null) {
+                Object id = indexJobManager.submit(entityDB, ei.getName(), ds.getCollectionName(), specs);
+                LOGGER.debug("Queued index job {}", id);
+            } else {
+                new IndexBuilder(entityDB, entityCollection).build(specs);
             }
         } catch (MongoException me) {
             LOGGER.error("createUpdateEntityInfoIndexes: {}", ei);
@@ -460,45 +902,4 @@ public class MongoCRUDController implements CRUDController {
 
         LOGGER.debug("createUpdateEntityInfoIndexes: end");
     }
-
-    private boolean compareSortKeys(SortKey sortKey, String fieldName, Object dir) {
-        if (sortKey.getField().toString().equals(fieldName)) {
-            int direction = ((Number) dir).intValue();
-            return sortKey.isDesc() == (direction < 0);
-        }
-        return false;
-    }
-
-    private boolean indexFieldsMatch(Index index, DBObject existingIndex) {
-        BasicDBObject keys = (BasicDBObject) existingIndex.get("key");
-        if (keys != null) {
-            List<SortKey> fields = index.getFields();
-            if (keys.size() == fields.size()) {
-                Iterator<SortKey> sortKeyItr = fields.iterator();
-                for (Map.Entry<String, Object> entry : keys.entrySet()) {
-                    SortKey sortKey = sortKeyItr.next();
-                    if (!compareSortKeys(sortKey, entry.getKey(), entry.getValue())) {
-                        return false;
-                    }
-                }
-                return true;
-            }
-        }
-        return true;
-    }
-
-    private boolean indexOptionsMatch(Index index, DBObject existingIndex) {
-        Boolean unique = (Boolean) existingIndex.get("unique");
-        if (unique != null) {
-            if ((unique && index.isUnique())
-                    || (!unique && !index.isUnique())) {
-                return true;
-            }
-        } else {
-            if (!index.isUnique()) {
-                return true;
-            }
-        }
-        return false;
-    }
 }
@@ -39,6 +39,12 @@ public final class MongoCrudConstants {
 
     public static final String ERR_ENTITY_INDEX_NOT_CREATED = "mongo-crud:EntityIndexNotCreated";
 
+    public static final String ERR_INDEX_REQUIRED = "mongo-crud:IndexRequired";
+
+    public static final String ERR_INVALID_CONTINUATION_TOKEN = "mongo-crud:InvalidContinuationToken";
+    public static final String ERR_CURSOR_NOT_FOUND = "mongo-crud:CursorNotFound";
+    public static final String ERR_CURSOR_OWNER_MISMATCH = "mongo-crud:CursorOwnerMismatch";
+
     private MongoCrudConstants() {
 
     }
@@ -0,0 +1,67 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.WriteResult;
+import com.redhat.lightblue.crud.CRUDOperationContext;
+import com.redhat.lightblue.crud.CRUDUpdateResponse;
+import com.redhat.lightblue.interceptor.InterceptPoint;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.mongo.hystrix.UpdateCommand;
+
+/**
+ * Updates all the documents matching the query with a single server side
+ * multi-update. The documents are not read, so this can only be used if the
+ * caller does not need the updated documents, and there are no per-document
+ * checks, interceptors or hooks to run.
+ */
+public class MultiUpdate implements DocUpdater {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MultiUpdate.class);
+
+    private final DBObject mongoUpdateExpr;
+
+    public MultiUpdate(DBObject mongoUpdateExpr) {
+        this.mongoUpdateExpr = mongoUpdateExpr;
+    }
+
+    @Override
+    public void update(CRUDOperationContext ctx,
+                       DBCollection collection,
+                       EntityMetadata md,
+                       CRUDUpdateResponse response,
+                       DBObject query) {
+        LOGGER.debug("Updating docs with {}: {}", query, mongoUpdateExpr);
+        PhaseTimer timer = PhaseTimer.get(ctx);
+        timer.callInterceptors(InterceptPoint.PRE_CRUD_UPDATE_RESULTSET, ctx);
+        long t = timer.begin();
+        WriteResult result = new UpdateCommand(collection, query, mongoUpdateExpr, false, true).execute();
+        timer.end(PhaseTimer.Phase.server, t);
+        DocumentCache.invalidate(ctx, query);
+        timer.callInterceptors(InterceptPoint.POST_CRUD_UPDATE_RESULTSET, ctx);
+        LOGGER.debug("Update complete, write result={}", result);
+        response.setNumUpdated(result.getN());
+        response.setNumFailed(0);
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.netflix.servo.DefaultMonitorRegistry;
+import com.netflix.servo.monitor.BasicTimer;
+import com.netflix.servo.monitor.MonitorConfig;
+import com.netflix.servo.monitor.Timer;
+import com.redhat.lightblue.crud.CRUDOperationContext;
+import com.redhat.lightblue.crud.DocCtx;
+import com.redhat.lightblue.interceptor.InterceptPoint;
+
+/**
+ * Records the time spent in the phases of a CRUD operation. Every phase
+ * duration is recorded into a servo timer named "mongo-crud.phase", tagged
+ * with the entity, the operation and the phase, so the timers are published
+ * together with the hystrix metrics. The timer also keeps the totals for the
+ * operation, which can be attached to the operation context as a summary.
+ *
+ * The timer of the current operation is kept in the operation context, so the
+ * doc finders, savers, updaters and deleters can get it using
+ * {@link #get(CRUDOperationContext)}.
+ */
+public class PhaseTimer {
+
+    public enum Phase {
+        translate, server, decode, interceptors, validation, projection, hooks
+    }
+
+    public static final String METRIC_NAME = "mongo-crud.phase";
+
+    private static final String PROP_TIMER = "MongoCRUDController:phaseTimer";
+
+    private static final ConcurrentMap<String, Timer> TIMERS = new ConcurrentHashMap<>();
+
+    private final String entity;
+    private final String operation;
+    private final long[] totals = new long[Phase.values().length];
+
+    private PhaseTimer(String entity, String operation) {
+        this.entity = entity;
+        this.operation = operation;
+    }
+
+    /**
+     * Creates a new timer for the operation, and attaches it to the context
+     */
+    public static PhaseTimer start(CRUDOperationContext ctx, String operation) {
+        PhaseTimer timer = new PhaseTimer(ctx.getEntityName(), operation);
+        ctx.setProperty(PROP_TIMER, timer);
+        return timer;
+    }
+
+    /**
+     * Returns the timer attached to the context. If there isn't one, a new
+     * timer is attached for an unknown operation.
+     */
+    public static PhaseTimer get(CRUDOperationContext ctx) {
+        Object x = ctx.getProperty(PROP_TIMER);
+        if (x instanceof PhaseTimer) {
+            return (PhaseTimer) x;
+        } else {
+            return start(ctx, "unknown");
+        }
+    }
+
+    /**
+     * Returns the start time for a phase
+     */
+    public long begin() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the time passed since <code>begin</code> for the phase
+     */
+    public void end(Phase phase, long begin) {
+        record(phase, System.nanoTime() - begin);
+    }
+
+    /**
+     * Records the given duration in nanoseconds for the phase
+     */
+    public void record(Phase phase, long nanos) {
+        synchronized (totals) {
+            totals[phase.ordinal()] += nanos;
+        }
+        getTimer(entity, operation, phase).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Calls the interceptors for the intercept point, and records the time
+     * spent in them
+     */
+    public void callInterceptors(InterceptPoint.CRUDControllerInterceptPoint point, CRUDOperationContext ctx) {
+        long t = begin();
+        try {
+            ctx.getFactory().getInterceptors().callInterceptors(point, ctx);
+        } finally {
+            end(Phase.interceptors, t);
+        }
+    }
+
+    /**
+     * Calls the interceptors for the intercept point and the document, and
+     * records the time spent in them
+     */
+    public void callInterceptors(InterceptPoint.CRUDDocInterceptPoint point, CRUDOperationContext ctx, DocCtx doc) {
+        long t = begin();
+        try {
+            ctx.getFactory().getInterceptors().callInterceptors(point, ctx, doc);
+        } finally {
+            end(Phase.interceptors, t);
+        }
+    }
+
+    /**
+     * Queues the hooks for the documents of the context, and records the time
+     * spent
+     */
+    public void queueHooks(CRUDOperationContext ctx) {
+        long t = begin();
+        try {
+            ctx.getHookManager().queueHooks(ctx);
+        } finally {
+            end(Phase.hooks, t);
+        }
+    }
+
+    /**
+     * Returns the total time in milliseconds spent in each phase of the
+     * operation so far. Phases that are not recorded are omitted.
+     */
+    public Map<String, Long> getSummary() {
+        Map<String, Long> ret = new LinkedHashMap<>();
+        synchronized (totals) {
+            for (Phase p : Phase.values()) {
+                if (totals[p.ordinal()] > 0) {
+                    ret.put(p.name(), TimeUnit.NANOSECONDS.toMillis(totals[p.ordinal()]));
+                }
+            }
+        }
+        return ret;
+    }
+
+    private static Timer getTimer(String entity, String operation, Phase phase) {
+        String key = entity + ":" + operation + ":" + phase;
+        Timer timer = TIMERS.get(key);
+        if (timer == null) {
+            Timer t = new BasicTimer(MonitorConfig.builder(METRIC_NAME).
+                    withTag("entity", String.valueOf(entity)).
+                    withTag("operation", operation).
+                    withTag("phase", phase.name()).build(), TimeUnit.MILLISECONDS);
+            timer = TIMERS.putIfAbsent(key, t);
+            if (timer == null) {
+                timer = t;
+                DefaultMonitorRegistry.getInstance().register(timer);
+            }
+        }
+        return timer;
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.DBObject;
+import com.netflix.servo.DefaultMonitorRegistry;
+import com.netflix.servo.monitor.BasicCounter;
+import com.netflix.servo.monitor.Counter;
+import com.netflix.servo.monitor.MonitorConfig;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.query.Projection;
+import com.redhat.lightblue.util.JsonDoc;
+
+/**
+ * Cache of the results of find requests on a collection. The key of a result
+ * is built from the normalized translated query, the residual query, the
+ * sort, the projection, the range, the entity version and the caller roles
+ * (see {@link #getKey}), and the cached value is the list of documents as
+ * they were read from the database, together with the match count. The
+ * per-document interceptors and the projection are applied to the cached
+ * documents on every hit, as they are on a miss.
+ *
+ * Any write to the collection through the controller invalidates all the
+ * cached results. A result is only added if there were no invalidations since
+ * the query started (see {@link #getGeneration()}).
+ *
+ * The memory used by the cache is bounded by {@link #getMaxSize()}, the total
+ * number of cached documents. Results are evicted in least recently used
+ * order, and results larger than the cache are not cached. A result is kept
+ * for at most {@link #getTtl()} milliseconds.
+ *
+ * Lookups are counted in a servo counter named "mongo-crud.queryCache",
+ * tagged with the cache name and the result, "hit" or "miss".
+ */
+public class QueryCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(QueryCache.class);
+
+    public static final String METRIC_NAME = "mongo-crud.queryCache";
+
+    public static final int DEFAULT_MAX_SIZE = 1000;
+    public static final long DEFAULT_TTL = 60000;
+
+    private static final ConcurrentMap<String, Counter> COUNTERS = new ConcurrentHashMap<>();
+
+    /**
+     * A cached result
+     */
+    public static final class Result {
+        private final List<JsonDoc> docs;
+        private final long size;
+        private final long expires;
+
+        private Result(List<JsonDoc> docs, long size, long expires) {
+            this.docs = docs;
+            this.size = size;
+            this.expires = expires;
+        }
+
+        /**
+         * Returns copies of the cached documents
+         */
+        public List<JsonDoc> getDocuments() {
+            List<JsonDoc> ret = new ArrayList<>(docs.size());
+            for (JsonDoc doc : docs) {
+                ret.add(doc.copy());
+            }
+            return ret;
+        }
+
+        /**
+         * Number of documents matching the query
+         */
+        public long getSize() {
+            return size;
+        }
+    }
+
+    private final String name;
+    private final LinkedHashMap<String, Result> results = new LinkedHashMap<>(16, 0.75f, true);
+    private final Counter hits;
+    private final Counter misses;
+
+    private volatile int maxSize = DEFAULT_MAX_SIZE;
+    private volatile long ttl = DEFAULT_TTL;
+    private long generation = 0;
+    private int numDocs = 0;
+
+    /**
+     * @param name The name of the cache, used to tag the metrics
+     */
+    public QueryCache(String name) {
+        this.name = name;
+        this.hits = getCounter(name, "hit");
+        this.misses = getCounter(name, "miss");
+    }
+
+    public QueryCache(String name, int maxSize, long ttl) {
+        this(name);
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Builds the key of a find request. The caller roles are part of the key,
+     * because the fields returned depend on them.
+     */
+    public static String getKey(EntityMetadata md,
+                                Set<String> callerRoles,
+                                DBObject mongoQuery,
+                                ResidualFilter residual,
+                                DBObject mongoSort,
+                                Projection projection,
+                                Long from,
+                                Long to) {
+        StringBuilder bld = new StringBuilder();
+        bld.append(md.getName()).append(':').append(md.getVersion() == null ? null : md.getVersion().getValue()).
+                append(" roles:").append(callerRoles == null ? null : new TreeSet<>(callerRoles)).
+                append(" q:").append(mongoQuery).
+                append(" r:").append(residual == null ? null : residual.getQuery()).
+                append(" s:").append(mongoSort).
+                append(" p:").append(projection).
+                append(" range:").append(from).append('-').append(to);
+        return bld.toString();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Maximum number of documents in all the cached results
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Maximum number of documents in all the cached results
+     */
+    public void setMaxSize(int n) {
+        maxSize = n;
+    }
+
+    /**
+     * Time to live of a cached result in milliseconds
+     */
+    public long getTtl() {
+        return ttl;
+    }
+
+    /**
+     * Time to live of a cached result in milliseconds
+     */
+    public void setTtl(long ms) {
+        ttl = ms;
+    }
+
+    /**
+     * Returns the invalidation generation. This has to be read before running
+     * the query whose result will be added to the cache.
+     */
+    public long getGeneration() {
+        synchronized (results) {
+            return generation;
+        }
+    }
+
+    /**
+     * Returns the cached result for the key, or null if it is not in the
+     * cache, or if it expired
+     */
+    public Result get(String key) {
+        synchronized (results) {
+            Result result = results.get(key);
+            if (result != null) {
+                if (result.expires > System.currentTimeMillis()) {
+                    hits.increment();
+                    return result;
+                }
+                remove(key);
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Adds the result of a query to the cache, unless there were
+     * invalidations since <code>readGeneration</code>
+     *
+     * @param key The key of the query
+     * @param docs The documents read, before the interceptors and the
+     * projection. The cache keeps copies.
+     * @param size The number of documents matching the query
+     * @param readGeneration The value of {@link #getGeneration()} before the
+     * query was run
+     */
+    public void put(String key, List<JsonDoc> docs, long size, long readGeneration) {
+        if (docs.size() > maxSize) {
+            LOGGER.debug("Not caching {}, {} documents", key, docs.size());
+            return;
+        }
+        List<JsonDoc> copies = new ArrayList<>(docs.size());
+        for (JsonDoc doc : docs) {
+            copies.add(doc.copy());
+        }
+        synchronized (results) {
+            if (readGeneration == generation) {
+                remove(key);
+                results.put(key, new Result(copies, size, System.currentTimeMillis() + ttl));
+                numDocs += copies.size();
+                Iterator<Map.Entry<String, Result>> itr = results.entrySet().iterator();
+                while (numDocs > maxSize && itr.hasNext()) {
+                    numDocs -= itr.next().getValue().docs.size();
+                    itr.remove();
+                }
+            } else {
+                LOGGER.debug("Not caching {}, cache invalidated during query", key);
+            }
+        }
+    }
+
+    /**
+     * Removes all results from the cache
+     */
+    public void invalidateAll() {
+        synchronized (results) {
+            generation++;
+            results.clear();
+            numDocs = 0;
+        }
+    }
+
+    /**
+     * Returns the number of cached results, including the expired ones that
+     * are not removed yet
+     */
+    public int size() {
+        synchronized (results) {
+            return results.size();
+        }
+    }
+
+    /**
+     * Returns the number of documents in the cached results
+     */
+    public int getNumDocuments() {
+        synchronized (results) {
+            return numDocs;
+        }
+    }
+
+    /**
+     * Number of lookups that found a result
+     */
+    public long getHits() {
+        return hits.getValue().longValue();
+    }
+
+    /**
+     * Number of lookups that did not find a result
+     */
+    public long getMisses() {
+        return misses.getValue().longValue();
+    }
+
+    private void remove(String key) {
+        Result result = results.remove(key);
+        if (result != null) {
+            numDocs -= result.docs.size();
+        }
+    }
+
+    private static Counter getCounter(String cache, String result) {
+        String key = cache + ":" + result;
+        Counter counter = COUNTERS.get(key);
+        if (counter == null) {
+            Counter c = new BasicCounter(MonitorConfig.builder(METRIC_NAME).
+                    withTag("cache", String.valueOf(cache)).
+                    withTag("result", result).build());
+            counter = COUNTERS.putIfAbsent(key, c);
+            if (counter == null) {
+                counter = c;
+                DefaultMonitorRegistry.getInstance().register(counter);
+            }
+        }
+        return counter;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.redhat.lightblue.mongo.hystrix.ExplainCommand;
+
+/**
+ * Explains queries in the background, off the request threads. With the
+ * mongo java driver 2.x, explain is a legacy $explain query: the server runs
+ * the query to completion to build the plan, so an explain costs as much as
+ * the query itself. Explains run one at a time on a daemon thread, and when
+ * more than {@link #MAX_QUEUED} explains are waiting, new ones are dropped.
+ */
+public final class QueryExplainer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(QueryExplainer.class);
+
+    /**
+     * Maximum number of explains waiting to run
+     */
+    public static final int MAX_QUEUED = 100;
+
+    /**
+     * Receives the plan of an explained query
+     */
+    public interface Callback {
+        /**
+         * Called with the query plan returned by the server
+         */
+        void explained(DBObject plan);
+
+        /**
+         * Called if the query cannot be explained
+         */
+        void failed(RuntimeException e);
+    }
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(MAX_QUEUED), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "mongo-query-explainer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private QueryExplainer() {
+    }
+
+    /**
+     * Queues the query to be explained
+     *
+     * @return false if the queue is full, and the query will not be explained
+     */
+    public static boolean explain(final DBCollection collection,
+                                  final DBObject query,
+                                  final DBObject sort,
+                                  final Callback callback) {
+        try {
+            EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    DBObject plan;
+                    try {
+                        plan = new ExplainCommand(collection, query, sort).execute();
+                    } catch (RuntimeException e) {
+                        callback.failed(e);
+                        return;
+                    }
+                    callback.explained(plan);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("Explain queue full, not explaining {}", query);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.List;
+
+import com.mongodb.DBObject;
+
+/**
+ * The interesting parts of the explain() output of a query. Both the legacy
+ * explain format (cursor, nscannedObjects, scanAndOrder), and the
+ * queryPlanner/executionStats format of newer servers are recognized.
+ */
+public class QueryPlan {
+
+    private final boolean collectionScan;
+    private final boolean inMemorySort;
+    private final String indexName;
+    private final long docsExamined;
+    private final long nReturned;
+
+    public QueryPlan(boolean collectionScan,
+                     boolean inMemorySort,
+                     String indexName,
+                     long docsExamined,
+                     long nReturned) {
+        this.collectionScan = collectionScan;
+        this.inMemorySort = inMemorySort;
+        this.indexName = indexName;
+        this.docsExamined = docsExamined;
+        this.nReturned = nReturned;
+    }
+
+    /**
+     * Parses the explain() output
+     */
+    public static QueryPlan parse(DBObject explain) {
+        if (explain.containsField("queryPlanner")) {
+            DBObject winning = (DBObject) ((DBObject) explain.get("queryPlanner")).get("winningPlan");
+            DBObject stats = (DBObject) explain.get("executionStats");
+            String[] idx = new String[1];
+            boolean[] flags = new boolean[2];
+            scanStages(winning, idx, flags);
+            return new QueryPlan(flags[0], flags[1], idx[0],
+                    stats == null ? 0 : getLong(stats, "totalDocsExamined"),
+                    stats == null ? 0 : getLong(stats, "nReturned"));
+        } else {
+            String cursor = String.valueOf(explain.get("cursor"));
+            String indexName = null;
+            if (cursor.startsWith("BtreeCursor ")) {
+                indexName = cursor.substring("BtreeCursor ".length()).trim();
+                int sp = indexName.indexOf(' ');
+                if (sp > 0) {
+                    indexName = indexName.substring(0, sp);
+                }
+            }
+            return new QueryPlan(cursor.startsWith("BasicCursor"),
+                    Boolean.TRUE.equals(explain.get("scanAndOrder")),
+                    indexName,
+                    getLong(explain, "nscannedObjects"),
+                    getLong(explain, "n"));
+        }
+    }
+
+    private static void scanStages(DBObject stage, String[] idx, boolean[] flags) {
+        if (stage != null) {
+            String name = String.valueOf(stage.get("stage"));
+            if ("COLLSCAN".equals(name)) {
+                flags[0] = true;
+            } else if ("SORT".equals(name)) {
+                flags[1] = true;
+            } else if ("IXSCAN".equals(name) && idx[0] == null) {
+                idx[0] = (String) stage.get("indexName");
+            }
+            scanStages((DBObject) stage.get("inputStage"), idx, flags);
+            Object inputs = stage.get("inputStages");
+            if (inputs instanceof List) {
+                for (Object x : (List) inputs) {
+                    scanStages((DBObject) x, idx, flags);
+                }
+            }
+        }
+    }
+
+    private static long getLong(DBObject obj, String field) {
+        Object x = obj.get(field);
+        return x instanceof Number ? ((Number) x).longValue() : 0;
+    }
+
+    /**
+     * Whether the query scans the whole collection
+     */
+    public boolean isCollectionScan() {
+        return collectionScan;
+    }
+
+    /**
+     * Whether the results are sorted in memory
+     */
+    public boolean isInMemorySort() {
+        return inMemorySort;
+    }
+
+    /**
+     * The index used by the query, null if none
+     */
+    public String getIndexName() {
+        return indexName;
+    }
+
+    /**
+     * Number of documents read by the query
+     */
+    public long getDocsExamined() {
+        return docsExamined;
+    }
+
+    /**
+     * Number of documents returned by the query
+     */
+    public long getNReturned() {
+        return nReturned;
+    }
+
+    @Override
+    public String toString() {
+        return "collectionScan:" + collectionScan + " inMemorySort:" + inMemorySort + " index:" + indexName
+                + " docsExamined:" + docsExamined + " nReturned:" + nReturned;
+    }
+}
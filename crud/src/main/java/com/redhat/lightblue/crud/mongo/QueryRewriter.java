@@ -0,0 +1,408 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Normalizes translated mongo queries before they are sent to the server.
+ * The rewrite is semantics preserving:
+ * <ul>
+ * <li>Nested $and and $or are flattened, and $and clauses on distinct fields
+ * are merged into a single document</li>
+ * <li>Range predicates on the same field are merged, keeping the tightest
+ * bounds ({a:{$gt:1}} and {a:{$gt:5}} becomes {a:{$gt:5}})</li>
+ * <li>Equalities on the same field in an $or are folded into $in
+ * ({$or:[{a:1},{a:2}]} becomes {a:{$in:[1,2]}}), and single element $in
+ * becomes an equality</li>
+ * <li>Tautologies are removed: empty clauses in an $and, and $or expressions
+ * containing an empty clause</li>
+ * </ul>
+ *
+ * Whether a query can be rewritten depends only on its structure, so the
+ * shapes of the queries that turned out to be already normalized are
+ * cached, and those queries are passed through without rewriting.
+ */
+public class QueryRewriter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(QueryRewriter.class);
+
+    private static final String AND = "$and";
+    private static final String OR = "$or";
+    private static final String IN = "$in";
+    private static final String GT = "$gt";
+    private static final String GTE = "$gte";
+    private static final String LT = "$lt";
+    private static final String LTE = "$lte";
+
+    private static final Set<String> RANGE_OPS = new HashSet<>(Arrays.asList(GT, GTE, LT, LTE));
+
+    private final ConcurrentMap<String, Boolean> normalizedShapes = new ConcurrentHashMap<>();
+
+    private volatile int maxCachedShapes = 1000;
+
+    /**
+     * Maximum number of cached query shapes
+     */
+    public int getMaxCachedShapes() {
+        return maxCachedShapes;
+    }
+
+    /**
+     * Maximum number of cached query shapes
+     */
+    public void setMaxCachedShapes(int n) {
+        maxCachedShapes = n;
+    }
+
+    /**
+     * Rewrites the query of the entity. Returns the query itself if there is
+     * nothing to rewrite.
+     */
+    public DBObject rewrite(String entity, DBObject query) {
+        if (query == null || query.keySet().isEmpty()) {
+            return query;
+        }
+        String key = new QueryShape(entity, query, null).getKey();
+        if (normalizedShapes.containsKey(key)) {
+            return query;
+        }
+        DBObject ret = rewrite(query);
+        if (ret.equals(query)) {
+            if (normalizedShapes.size() >= maxCachedShapes) {
+                normalizedShapes.clear();
+            }
+            normalizedShapes.put(key, Boolean.TRUE);
+            return query;
+        }
+        LOGGER.debug("Rewrote {} as {}", query, ret);
+        return ret;
+    }
+
+    /**
+     * Clears the cached shapes
+     */
+    public void reset() {
+        normalizedShapes.clear();
+    }
+
+    /**
+     * Returns the rewritten query. The given query is not modified.
+     */
+    public static DBObject rewrite(DBObject query) {
+        List<Map.Entry<String, Object>> conjuncts = new ArrayList<>();
+        addConjuncts(conjuncts, query);
+        return toDocument(conjuncts);
+    }
+
+    /**
+     * Adds the rewritten field predicates of the document to the list of
+     * conjuncts
+     */
+    private static void addConjuncts(List<Map.Entry<String, Object>> conjuncts, DBObject doc) {
+        for (String field : doc.keySet()) {
+            Object value = doc.get(field);
+            if (AND.equals(field) && value instanceof List) {
+                for (Object x : (List) value) {
+                    addConjuncts(conjuncts, (DBObject) x);
+                }
+            } else if (OR.equals(field) && value instanceof List) {
+                List<DBObject> clauses = rewriteOr((List) value);
+                if (clauses == null) {
+                    // Tautology, drop it
+                    continue;
+                }
+                if (clauses.size() == 1) {
+                    addConjuncts(conjuncts, clauses.get(0));
+                } else {
+                    BasicDBList list = new BasicDBList();
+                    list.addAll(clauses);
+                    conjuncts.add(entry(OR, list));
+                }
+            } else {
+                conjuncts.add(entry(field, rewriteValue(field, value)));
+            }
+        }
+    }
+
+    /**
+     * Rewrites the clauses of an $or. Returns null if one of the clauses is
+     * always true.
+     */
+    private static List<DBObject> rewriteOr(List list) {
+        List<DBObject> clauses = new ArrayList<>();
+        for (Object x : list) {
+            DBObject clause = rewrite((DBObject) x);
+            if (clause.keySet().isEmpty()) {
+                return null;
+            }
+            Object nested = clause.keySet().size() == 1 ? clause.get(OR) : null;
+            if (nested instanceof List) {
+                for (Object y : (List) nested) {
+                    clauses.add((DBObject) y);
+                }
+            } else {
+                clauses.add(clause);
+            }
+        }
+        return foldEqualities(clauses);
+    }
+
+    /**
+     * Folds the single field equality and $in clauses of an $or on the same
+     * field into a single $in clause
+     */
+    private static List<DBObject> foldEqualities(List<DBObject> clauses) {
+        Map<String, BasicDBList> values = new LinkedHashMap<>();
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        for (DBObject clause : clauses) {
+            String field = getEqualityField(clause);
+            if (field != null) {
+                Integer n = counts.get(field);
+                counts.put(field, n == null ? 1 : n + 1);
+            }
+        }
+        List<DBObject> ret = new ArrayList<>(clauses.size());
+        for (DBObject clause : clauses) {
+            String field = getEqualityField(clause);
+            if (field == null || counts.get(field) < 2) {
+                ret.add(clause);
+            } else {
+                BasicDBList list = values.get(field);
+                if (list == null) {
+                    list = new BasicDBList();
+                    values.put(field, list);
+                    ret.add(new BasicDBObject(field, new BasicDBObject(IN, list)));
+                }
+                Object value = clause.get(field);
+                if (value instanceof DBObject) {
+                    for (Object x : (List) ((DBObject) value).get(IN)) {
+                        addDistinct(list, x);
+                    }
+                } else {
+                    addDistinct(list, value);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * If the clause is a single field equality or $in, returns the field.
+     * Otherwise, returns null.
+     */
+    private static String getEqualityField(DBObject clause) {
+        if (clause.keySet().size() == 1) {
+            String field = clause.keySet().iterator().next();
+            if (!field.startsWith("$")) {
+                Object value = clause.get(field);
+                if (value instanceof DBObject) {
+                    DBObject v = (DBObject) value;
+                    if (!(v instanceof List) && v.keySet().size() == 1 && v.get(IN) instanceof List) {
+                        return field;
+                    }
+                } else {
+                    // Scalars and regular expressions
+                    return field;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static Object rewriteValue(String field, Object value) {
+        if ("$nor".equals(field) && value instanceof List) {
+            BasicDBList list = new BasicDBList();
+            for (Object x : (List) value) {
+                list.add(x instanceof DBObject ? rewrite((DBObject) x) : x);
+            }
+            return list;
+        } else if (value instanceof DBObject && !(value instanceof List)) {
+            DBObject doc = (DBObject) value;
+            if (!isOperatorDoc(doc)) {
+                // Literal document
+                return value;
+            }
+            BasicDBObject ret = new BasicDBObject();
+            for (String op : doc.keySet()) {
+                Object x = doc.get(op);
+                if ("$elemMatch".equals(op) && x instanceof DBObject && !(x instanceof List)) {
+                    ret.put(op, rewrite((DBObject) x));
+                } else {
+                    ret.put(op, x);
+                }
+            }
+            if (ret.keySet().size() == 1 && ret.get(IN) instanceof List && ((List) ret.get(IN)).size() == 1) {
+                Object x = ((List) ret.get(IN)).get(0);
+                if (!(x instanceof DBObject)) {
+                    return x;
+                }
+            }
+            return ret;
+        }
+        return value;
+    }
+
+    /**
+     * Builds a document from the conjuncts. Predicates on the same field are
+     * merged if possible, otherwise they go into an $and.
+     */
+    private static DBObject toDocument(List<Map.Entry<String, Object>> conjuncts) {
+        BasicDBObject ret = new BasicDBObject();
+        BasicDBList and = new BasicDBList();
+        for (Map.Entry<String, Object> conjunct : conjuncts) {
+            String field = conjunct.getKey();
+            Object value = conjunct.getValue();
+            if (!ret.containsField(field)) {
+                ret.put(field, value);
+            } else if (value == null ? ret.get(field) != null : !value.equals(ret.get(field))) {
+                Object merged = mergeRanges(ret.get(field), value);
+                if (merged != null) {
+                    ret.put(field, merged);
+                } else {
+                    and.add(new BasicDBObject(field, value));
+                }
+            }
+        }
+        if (!and.isEmpty()) {
+            if (ret.containsField(AND)) {
+                // Not expected, the $and conjuncts are all flattened
+                and.add(0, new BasicDBObject(AND, ret.removeField(AND)));
+            }
+            ret.put(AND, and);
+        }
+        return ret;
+    }
+
+    /**
+     * Merges two predicates on the same field if both are range predicates
+     * with comparable bounds. Returns null if they cannot be merged.
+     */
+    private static Object mergeRanges(Object v1, Object v2) {
+        if (!isRange(v1) || !isRange(v2)) {
+            return null;
+        }
+        DBObject r1 = (DBObject) v1;
+        DBObject r2 = (DBObject) v2;
+        BasicDBObject ret = new BasicDBObject();
+        Object[] lower = new Object[2];
+        Object[] upper = new Object[2];
+        for (DBObject r : new DBObject[]{r1, r2}) {
+            for (String op : r.keySet()) {
+                Object[] bound = GT.equals(op) || GTE.equals(op) ? lower : upper;
+                Object value = r.get(op);
+                boolean strict = GT.equals(op) || LT.equals(op);
+                if (bound[0] == null) {
+                    bound[0] = op;
+                    bound[1] = value;
+                } else {
+                    Integer c = compare(value, bound[1]);
+                    if (c == null) {
+                        return null;
+                    }
+                    if (bound == upper) {
+                        c = -c;
+                    }
+                    if (c > 0 || (c == 0 && strict)) {
+                        bound[0] = op;
+                        bound[1] = value;
+                    }
+                }
+            }
+        }
+        if (lower[0] != null) {
+            ret.put((String) lower[0], lower[1]);
+        }
+        if (upper[0] != null) {
+            ret.put((String) upper[0], upper[1]);
+        }
+        return ret;
+    }
+
+    private static boolean isRange(Object value) {
+        if (value instanceof DBObject && !(value instanceof List)) {
+            DBObject doc = (DBObject) value;
+            if (doc.keySet().isEmpty()) {
+                return false;
+            }
+            for (String op : doc.keySet()) {
+                if (!RANGE_OPS.contains(op)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Compares numbers and dates. Returns null for values that cannot be
+     * compared the same way the server compares them.
+     */
+    private static Integer compare(Object v1, Object v2) {
+        if (isIntegral(v1) && isIntegral(v2)) {
+            return Long.compare(((Number) v1).longValue(), ((Number) v2).longValue());
+        } else if (v1 instanceof Number && v2 instanceof Number) {
+            return Double.compare(((Number) v1).doubleValue(), ((Number) v2).doubleValue());
+        } else if (v1 instanceof Date && v2 instanceof Date) {
+            return ((Date) v1).compareTo((Date) v2);
+        }
+        return null;
+    }
+
+    private static boolean isIntegral(Object v) {
+        return v instanceof Integer || v instanceof Long || v instanceof Short || v instanceof Byte;
+    }
+
+    private static boolean isOperatorDoc(DBObject doc) {
+        for (String key : doc.keySet()) {
+            if (!key.startsWith("$")) {
+                return false;
+            }
+        }
+        return !doc.keySet().isEmpty();
+    }
+
+    private static void addDistinct(BasicDBList list, Object value) {
+        if (!list.contains(value)) {
+            list.add(value);
+        }
+    }
+
+    private static Map.Entry<String, Object> entry(String key, Object value) {
+        return new AbstractMap.SimpleImmutableEntry<>(key, value);
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * The shape of a mongo query: the query with all literal values replaced by
+ * "?". Queries that differ only in the values they compare against have the
+ * same shape, so they use the same indexes and have similar costs. The
+ * fingerprint of a shape is a short hash identifying it.
+ *
+ * <pre>
+ *   { "a": 1, "b": { "$in": [1, 2, 3] }, "$or": [ { "c": "x" }, { "d": { "$gt": 5 } } ] }
+ * </pre>
+ * has the shape
+ * <pre>
+ *   { "a": "?", "b": { "$in": "?" }, "$or": [ { "c": "?" }, { "d": { "$gt": "?" } } ] }
+ * </pre>
+ */
+public final class QueryShape {
+
+    public static final String PLACEHOLDER = "?";
+
+    /**
+     * Operators whose arguments are subqueries
+     */
+    private static final Set<String> LOGICAL_OPS = new HashSet<>(Arrays.asList("$and", "$or", "$nor"));
+
+    /**
+     * Operators whose arguments are part of the shape
+     */
+    private static final Set<String> STRUCTURAL_OPS = new HashSet<>(Arrays.asList("$exists", "$type", "$options", "$where"));
+
+    private final String entity;
+    private final DBObject query;
+    private final DBObject sort;
+    private final String key;
+
+    /**
+     * Computes the shape of the query and the sort for the entity
+     */
+    public QueryShape(String entity, DBObject query, DBObject sort) {
+        this.entity = entity;
+        this.query = normalize(query);
+        this.sort = sort;
+        this.key = entity + ":" + this.query + (sort == null ? "" : ":" + sort);
+    }
+
+    public String getEntity() {
+        return entity;
+    }
+
+    /**
+     * The normalized query
+     */
+    public DBObject getQuery() {
+        return query;
+    }
+
+    /**
+     * The sort, sort values are directions, not literals, so they are kept
+     */
+    public DBObject getSort() {
+        return sort;
+    }
+
+    /**
+     * A string representation of the entity, the normalized query and the
+     * sort. Two queries have the same shape if and only if their keys are
+     * equal.
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * A short hash of the shape key
+     */
+    public String getFingerprint() {
+        // FNV-1a
+        long h = 0xcbf29ce484222325l;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3l;
+        }
+        return String.format("%016x", h);
+    }
+
+    /**
+     * Returns a copy of the query with all literals replaced by "?"
+     */
+    public static DBObject normalize(DBObject query) {
+        if (query == null) {
+            return null;
+        }
+        BasicDBObject ret = new BasicDBObject();
+        for (String field : query.keySet()) {
+            Object value = query.get(field);
+            if (LOGICAL_OPS.contains(field) && value instanceof List) {
+                BasicDBList list = new BasicDBList();
+                for (Object x : (List) value) {
+                    list.add(x instanceof DBObject ? normalize((DBObject) x) : PLACEHOLDER);
+                }
+                ret.put(field, list);
+            } else if (STRUCTURAL_OPS.contains(field)) {
+                ret.put(field, value);
+            } else if (value instanceof DBObject && !(value instanceof List)
+                    && (isOperatorDoc((DBObject) value) || "$elemMatch".equals(field))) {
+                ret.put(field, normalize((DBObject) value));
+            } else {
+                ret.put(field, PLACEHOLDER);
+            }
+        }
+        return ret;
+    }
+
+    private static boolean isOperatorDoc(DBObject value) {
+        for (String k : value.keySet()) {
+            if (!k.startsWith("$")) {
+                return false;
+            }
+        }
+        return !value.keySet().isEmpty();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof QueryShape && ((QueryShape) o).key.equals(key);
+    }
+
+    @Override
+    public int hashCode() {
+        return key.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return key;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+/**
+ * A snapshot of the statistics collected for a query shape by
+ * {@link SlowQueryRecorder}. Times are in milliseconds. The histogram
+ * contains the number of executions for each latency bucket, bucket i counts
+ * the executions that took less than {@link SlowQueryRecorder#BUCKETS}[i]
+ * milliseconds, and the last bucket counts the rest.
+ */
+public class QueryShapeStatistics {
+
+    private final String fingerprint;
+    private final String entity;
+    private final String operation;
+    private final String shape;
+    private final long count;
+    private final long slowCount;
+    private final long totalTime;
+    private final long maxTime;
+    private final long[] histogram;
+    private final String explain;
+
+    public QueryShapeStatistics(String fingerprint,
+                                String entity,
+                                String operation,
+                                String shape,
+                                long count,
+                                long slowCount,
+                                long totalTime,
+                                long maxTime,
+                                long[] histogram,
+                                String explain) {
+        this.fingerprint = fingerprint;
+        this.entity = entity;
+        this.operation = operation;
+        this.shape = shape;
+        this.count = count;
+        this.slowCount = slowCount;
+        this.totalTime = totalTime;
+        this.maxTime = maxTime;
+        this.histogram = histogram;
+        this.explain = explain;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public String getEntity() {
+        return entity;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    /**
+     * The normalized query and sort
+     */
+    public String getShape() {
+        return shape;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Number of executions that crossed the slow query threshold
+     */
+    public long getSlowCount() {
+        return slowCount;
+    }
+
+    public long getTotalTime() {
+        return totalTime;
+    }
+
+    public long getMaxTime() {
+        return maxTime;
+    }
+
+    public long getMeanTime() {
+        return count == 0 ? 0 : totalTime / count;
+    }
+
+    public long[] getHistogram() {
+        return histogram.clone();
+    }
+
+    /**
+     * The summary of the query plan of the first slow execution (see
+     * {@link QueryPlan}), if explain is enabled. The full plan contains the
+     * query values, so it is not kept.
+     */
+    public String getExplain() {
+        return explain;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+/**
+ * The literal prefix of an anchored regular expression. A regex of the form
+ * <code>^literal...</code> only matches strings starting with the literal,
+ * so it can be bounded by the range [literal, upperBound(literal)), which
+ * can use an index.
+ */
+final class RegexPrefix {
+
+    private static final String SPECIAL = ".[]()*+?{}|^$";
+
+    private final String prefix;
+    private final boolean complete;
+
+    private RegexPrefix(String prefix, boolean complete) {
+        this.prefix = prefix;
+        this.complete = complete;
+    }
+
+    /**
+     * The literal prefix
+     */
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * If true, the regex is the prefix optionally followed by ".*", so it
+     * matches exactly the strings starting with the prefix
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Returns true if the prefix only contains ASCII characters
+     */
+    public boolean isAscii() {
+        for (int i = 0; i < prefix.length(); i++) {
+            if (prefix.charAt(i) > 0x7f) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses the literal prefix of the regex. Returns null if the regex is
+     * not anchored, has no literal prefix, or has alternations.
+     */
+    public static RegexPrefix parse(String regex) {
+        if (regex == null || !regex.startsWith("^") || regex.indexOf('|') >= 0) {
+            return null;
+        }
+        StringBuilder bld = new StringBuilder();
+        int i = 1;
+        int n = regex.length();
+        while (i < n) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                if (i + 1 >= n || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                    // Character classes, backreferences, \Q...\E
+                    break;
+                }
+                bld.append(regex.charAt(i + 1));
+                i += 2;
+            } else if (SPECIAL.indexOf(c) >= 0) {
+                break;
+            } else {
+                bld.append(c);
+                i++;
+            }
+        }
+        boolean complete = i == n || regex.substring(i).equals(".*");
+        if (i < n) {
+            char c = regex.charAt(i);
+            if ((c == '*' || c == '?' || c == '{') && bld.length() > 0) {
+                // The last character is optional
+                bld.setLength(bld.length() - 1);
+            }
+        }
+        return bld.length() == 0 ? null : new RegexPrefix(bld.toString(), complete);
+    }
+
+    /**
+     * Returns the smallest string greater than all strings starting with
+     * the prefix, or null if it cannot be computed safely. Strings are
+     * compared by their UTF-8 bytes on the server, which agrees with the
+     * UTF-16 order below the surrogate range.
+     */
+    public static String upperBound(String prefix) {
+        char last = prefix.charAt(prefix.length() - 1);
+        if (last >= 0xd7ff) {
+            return null;
+        }
+        return prefix.substring(0, prefix.length() - 1) + (char) (last + 1);
+    }
+}
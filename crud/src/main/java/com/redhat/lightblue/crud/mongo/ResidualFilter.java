@@ -0,0 +1,112 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.mongodb.DBObject;
+import com.redhat.lightblue.eval.QueryEvaluator;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.query.QueryExpression;
+import com.redhat.lightblue.util.JsonDoc;
+
+/**
+ * Evaluates the residual part of a query (see
+ * {@link Translator#translateWithResidual}) on the documents returned by
+ * MongoDB. Documents are converted to JSON to be evaluated, and the JSON
+ * documents of the matching documents are kept, so they are not converted
+ * again. A filter is used for a single request.
+ */
+public class ResidualFilter {
+
+    private final QueryExpression residual;
+    private final QueryEvaluator evaluator;
+    private final Translator translator;
+    private final Map<DBObject, JsonDoc> matched = new IdentityHashMap<>();
+
+    public ResidualFilter(QueryExpression residual, EntityMetadata md, Translator translator) {
+        this.residual = residual;
+        this.evaluator = QueryEvaluator.getInstance(residual, md);
+        this.translator = translator;
+    }
+
+    /**
+     * Returns the residual query
+     */
+    public QueryExpression getQuery() {
+        return residual;
+    }
+
+    /**
+     * Returns if the document matches the residual query
+     */
+    public boolean matches(DBObject doc) {
+        JsonDoc jsonDoc = translator.toJson(doc);
+        if (evaluator.evaluate(jsonDoc).getResult()) {
+            matched.put(doc, jsonDoc);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the JSON document of a matching document, and forgets it
+     */
+    public JsonDoc toJson(DBObject doc) {
+        JsonDoc jsonDoc = matched.remove(doc);
+        return jsonDoc == null ? translator.toJson(doc) : jsonDoc;
+    }
+
+    /**
+     * Forgets a matching document that is not going to be returned
+     */
+    public void discard(DBObject doc) {
+        matched.remove(doc);
+    }
+
+    /**
+     * Returns the JSON documents of the matching documents
+     */
+    public List<JsonDoc> toJson(List<DBObject> docs) {
+        List<JsonDoc> list = new ArrayList<>(docs.size());
+        for (DBObject doc : docs) {
+            list.add(toJson(doc));
+        }
+        return list;
+    }
+
+    /**
+     * Reads documents from the iterator until n matching documents are found,
+     * or the iterator is exhausted
+     */
+    public List<DBObject> next(Iterator<DBObject> source, int n) {
+        List<DBObject> ret = new ArrayList<>();
+        while (ret.size() < n && source.hasNext()) {
+            DBObject doc = source.next();
+            if (matches(doc)) {
+                ret.add(doc);
+            }
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+/**
+ * Collects execution statistics per query shape (see {@link QueryShape}), and
+ * logs the executions that take longer than a threshold. For each shape and
+ * operation, it keeps the execution count, total and maximum time, and a
+ * latency histogram. All counters are atomics, so recording does not lock.
+ * Optionally, the first slow execution of every shape is explained in the
+ * background (see {@link QueryExplainer}), and the summary of the query plan
+ * is logged and kept with the statistics. Slow executions are logged by shape, the query
+ * with its values is only logged at debug level.
+ *
+ * The number of shapes tracked is bounded, executions of new shapes are only
+ * counted once the table is full. The statistics are published over JMX
+ * under {@link #OBJECT_NAME}.
+ */
+public class SlowQueryRecorder implements SlowQueryRecorderMXBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SlowQueryRecorder.class);
+
+    public static final String OBJECT_NAME = "com.redhat.lightblue.mongo:type=SlowQueryRecorder";
+
+    /**
+     * Upper bounds of the histogram buckets, in milliseconds
+     */
+    public static final long[] BUCKETS = {1, 5, 10, 50, 100, 500, 1000, 5000, 10000};
+
+    private static SlowQueryRecorder instance;
+
+    private final ConcurrentMap<String, ShapeStats> shapes = new ConcurrentHashMap<>();
+    private final AtomicLong untracked = new AtomicLong();
+
+    private volatile long slowThreshold = 1000;
+    private volatile boolean explain = false;
+    private volatile int maxShapes = 1000;
+
+    private static final class ShapeStats {
+        private final QueryShape shape;
+        private final String operation;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong slowCount = new AtomicLong();
+        private final AtomicLong totalTime = new AtomicLong();
+        private final AtomicLong maxTime = new AtomicLong();
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS.length + 1);
+        private final AtomicBoolean explaining = new AtomicBoolean();
+        private volatile String explain;
+
+        public ShapeStats(QueryShape shape, String operation) {
+            this.shape = shape;
+            this.operation = operation;
+        }
+
+        public void record(long ms) {
+            count.incrementAndGet();
+            totalTime.addAndGet(ms);
+            long max;
+            do {
+                max = maxTime.get();
+            } while (ms > max && !maxTime.compareAndSet(max, ms));
+            int bucket = 0;
+            while (bucket < BUCKETS.length && ms >= BUCKETS[bucket]) {
+                bucket++;
+            }
+            histogram.incrementAndGet(bucket);
+        }
+
+        public QueryShapeStatistics snapshot() {
+            long[] h = new long[histogram.length()];
+            for (int i = 0; i < h.length; i++) {
+                h[i] = histogram.get(i);
+            }
+            return new QueryShapeStatistics(shape.getFingerprint(),
+                    shape.getEntity(),
+                    operation,
+                    String.valueOf(shape.getQuery()) + (shape.getSort() == null ? "" : " sort:" + shape.getSort()),
+                    count.get(),
+                    slowCount.get(),
+                    totalTime.get(),
+                    maxTime.get(),
+                    h,
+                    explain);
+        }
+    }
+
+    /**
+     * Returns the shared recorder instance, registering it with the platform
+     * MBean server when it is first created
+     */
+    public static synchronized SlowQueryRecorder getInstance() {
+        if (instance == null) {
+            instance = new SlowQueryRecorder();
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName(OBJECT_NAME));
+            } catch (JMException e) {
+                LOGGER.warn("Cannot register {}: {}", OBJECT_NAME, e);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Records an execution of a query
+     *
+     * @param operation The operation
+     * @param entity The entity name
+     * @param collection The collection, used to explain slow queries. Can be
+     * null.
+     * @param query The mongo query
+     * @param sort The mongo sort, can be null
+     * @param ms The execution time in milliseconds
+     */
+    public void record(String operation,
+                       String entity,
+                       DBCollection collection,
+                       DBObject query,
+                       DBObject sort,
+                       long ms) {
+        QueryShape shape = new QueryShape(entity, query, sort);
+        String key = operation + ":" + shape.getKey();
+        ShapeStats stats = shapes.get(key);
+        if (stats == null) {
+            if (shapes.size() >= maxShapes) {
+                untracked.incrementAndGet();
+            } else {
+                stats = new ShapeStats(shape, operation);
+                ShapeStats x = shapes.putIfAbsent(key, stats);
+                if (x != null) {
+                    stats = x;
+                }
+            }
+        }
+        if (stats != null) {
+            stats.record(ms);
+        }
+        if (ms >= slowThreshold) {
+            if (stats != null) {
+                stats.slowCount.incrementAndGet();
+            }
+            LOGGER.warn("Slow {} on {}: {} ms, shape {} {}",
+                    operation, entity, ms, shape.getFingerprint(), shape.getQuery());
+            LOGGER.debug("Slow query {} sort {}", query, sort);
+            // Only one explain per shape. If the explainer queue is full, a
+            // later slow execution tries again.
+            if (explain && collection != null && stats != null && stats.explaining.compareAndSet(false, true)) {
+                final ShapeStats s = stats;
+                boolean queued = QueryExplainer.explain(collection, query, sort, new QueryExplainer.Callback() {
+                    @Override
+                    public void explained(DBObject plan) {
+                        // The plan contains the query values, only its summary is kept and logged
+                        s.explain = QueryPlan.parse(plan).toString();
+                        LOGGER.warn("Query plan for shape {}: {}", s.shape.getFingerprint(), s.explain);
+                        LOGGER.debug("Query plan for shape {}: {}", s.shape.getFingerprint(), plan);
+                    }
+
+                    @Override
+                    public void failed(RuntimeException e) {
+                        LOGGER.warn("Cannot explain shape {}: {}", s.shape.getFingerprint(), e);
+                    }
+                });
+                if (!queued) {
+                    stats.explaining.set(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the statistics for the given shape fingerprint and operation,
+     * or null if the shape is not tracked
+     */
+    public QueryShapeStatistics getShape(String operation, String fingerprint) {
+        for (ShapeStats s : shapes.values()) {
+            if (s.operation.equals(operation) && s.shape.getFingerprint().equals(fingerprint)) {
+                return s.snapshot();
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public List<QueryShapeStatistics> getShapes() {
+        List<QueryShapeStatistics> ret = new ArrayList<>(shapes.size());
+        for (ShapeStats s : shapes.values()) {
+            ret.add(s.snapshot());
+        }
+        return ret;
+    }
+
+    @Override
+    public long getSlowThreshold() {
+        return slowThreshold;
+    }
+
+    @Override
+    public void setSlowThreshold(long ms) {
+        slowThreshold = ms;
+    }
+
+    @Override
+    public boolean isExplain() {
+        return explain;
+    }
+
+    @Override
+    public void setExplain(boolean b) {
+        explain = b;
+    }
+
+    @Override
+    public int getMaxShapes() {
+        return maxShapes;
+    }
+
+    @Override
+    public void setMaxShapes(int n) {
+        maxShapes = n;
+    }
+
+    @Override
+    public long getUntrackedCount() {
+        return untracked.get();
+    }
+
+    @Override
+    public void reset() {
+        shapes.clear();
+        untracked.set(0);
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.List;
+
+/**
+ * JMX interface of the slow query recorder
+ */
+public interface SlowQueryRecorderMXBean {
+
+    /**
+     * Executions taking at least this many milliseconds are logged
+     */
+    long getSlowThreshold();
+
+    void setSlowThreshold(long ms);
+
+    /**
+     * If true, the first slow execution of every shape is explained
+     */
+    boolean isExplain();
+
+    void setExplain(boolean b);
+
+    /**
+     * Maximum number of shapes tracked
+     */
+    int getMaxShapes();
+
+    void setMaxShapes(int n);
+
+    /**
+     * Number of executions that were not recorded because the shape table
+     * was full
+     */
+    long getUntrackedCount();
+
+    /**
+     * Statistics for all tracked shapes
+     */
+    List<QueryShapeStatistics> getShapes();
+
+    /**
+     * Clears all statistics
+     */
+    void reset();
+}
@@ -21,10 +21,17 @@ package com.redhat.lightblue.crud.mongo;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
 
+import org.bson.BSONObject;
 import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,8 +41,10 @@ import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.NullNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
+import com.redhat.lightblue.common.mongo.MongoDataStore;
 import com.redhat.lightblue.crud.MetadataResolver;
 import com.redhat.lightblue.metadata.ArrayElement;
 import com.redhat.lightblue.metadata.ArrayField;
@@ -48,22 +57,30 @@ import com.redhat.lightblue.metadata.ReferenceField;
 import com.redhat.lightblue.metadata.SimpleArrayElement;
 import com.redhat.lightblue.metadata.SimpleField;
 import com.redhat.lightblue.metadata.Type;
+import com.redhat.lightblue.query.AllMatchExpression;
+import com.redhat.lightblue.query.ArrayAddExpression;
 import com.redhat.lightblue.query.ArrayContainsExpression;
 import com.redhat.lightblue.query.ArrayMatchExpression;
+import com.redhat.lightblue.query.ArrayProjection;
 import com.redhat.lightblue.query.ArrayUpdateExpression;
 import com.redhat.lightblue.query.BinaryComparisonOperator;
 import com.redhat.lightblue.query.CompositeSortKey;
 import com.redhat.lightblue.query.FieldAndRValue;
 import com.redhat.lightblue.query.FieldComparisonExpression;
+import com.redhat.lightblue.query.FieldProjection;
+import com.redhat.lightblue.query.ForEachExpression;
 import com.redhat.lightblue.query.NaryLogicalExpression;
 import com.redhat.lightblue.query.NaryLogicalOperator;
 import com.redhat.lightblue.query.NaryRelationalExpression;
 import com.redhat.lightblue.query.NaryRelationalOperator;
 import com.redhat.lightblue.query.PartialUpdateExpression;
 import com.redhat.lightblue.query.PrimitiveUpdateExpression;
+import com.redhat.lightblue.query.Projection;
+import com.redhat.lightblue.query.ProjectionList;
 import com.redhat.lightblue.query.QueryExpression;
 import com.redhat.lightblue.query.RValueExpression;
 import com.redhat.lightblue.query.RegexMatchExpression;
+import com.redhat.lightblue.query.RemoveElementExpression;
 import com.redhat.lightblue.query.SetExpression;
 import com.redhat.lightblue.query.Sort;
 import com.redhat.lightblue.query.SortKey;
@@ -72,6 +89,7 @@ import com.redhat.lightblue.query.UnaryLogicalOperator;
 import com.redhat.lightblue.query.UnsetExpression;
 import com.redhat.lightblue.query.UpdateExpression;
 import com.redhat.lightblue.query.UpdateExpressionList;
+import com.redhat.lightblue.query.UpdateOperator;
 import com.redhat.lightblue.query.Value;
 import com.redhat.lightblue.query.ValueComparisonExpression;
 import com.redhat.lightblue.util.Error;
@@ -91,6 +109,12 @@ public class Translator {
 
     public static final Path ID_PATH = new Path("_id");
 
+    /**
+     * The document containing the lower case copies of the case insensitive
+     * fields of the entity
+     */
+    public static final String CASE_FOLDED_FIELDS = "@ci";
+
     public static final String ERR_NO_OBJECT_TYPE = "NO_OBJECT_TYPE";
     public static final String ERR_INVALID_OBJECTTYPE = "INVALID_OBJECTTYPE";
     public static final String ERR_INVALID_FIELD = "INVALID_FIELD";
@@ -100,6 +124,7 @@ public class Translator {
 
     private final MetadataResolver mdResolver;
     private final JsonNodeFactory factory;
+    private Set<String> caseFoldedFields;
 
     private static final Map<BinaryComparisonOperator, String> BINARY_COMPARISON_OPERATOR_JS_MAP;
     private static final Map<BinaryComparisonOperator, String> BINARY_COMPARISON_OPERATOR_MAP;
@@ -147,6 +172,15 @@ public class Translator {
         this.factory = factory;
     }
 
+    /**
+     * Sets the case insensitive fields whose lower case copies can be used
+     * in queries, see {@link CaseFoldedFields}. If not set, the copies of
+     * all the case insensitive fields are used.
+     */
+    public void setCaseFoldedFields(Set<String> fields) {
+        caseFoldedFields = fields;
+    }
+
     /**
      * Translate a path to a mongo path
      *
@@ -191,6 +225,85 @@ public class Translator {
         return str.toString();
     }
 
+    /**
+     * Returns the mongo fields that have to be read to evaluate the
+     * projection, or null if all fields have to be read. The result is a
+     * superset of the projected fields: arrays are read as a whole, and field
+     * exclusions are left to the projector. _id and objectType are always
+     * included.
+     */
+    public static Set<String> getProjectedFields(Projection p) {
+        Set<String> fields = new HashSet<>();
+        if (!addProjectedFields(p, fields) || fields.isEmpty()) {
+            return null;
+        }
+        fields.add(MongoCRUDController.ID_STR);
+        fields.add(OBJECT_TYPE_STR);
+        return fields;
+    }
+
+    private static boolean addProjectedFields(Projection p, Set<String> fields) {
+        if (p instanceof ProjectionList) {
+            for (Projection x : ((ProjectionList) p).getItems()) {
+                if (!addProjectedFields(x, fields)) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (p instanceof FieldProjection) {
+            return !((FieldProjection) p).isInclude() || addProjectedField(((FieldProjection) p).getField(), fields);
+        } else if (p instanceof ArrayProjection) {
+            return !((ArrayProjection) p).isInclude() || addProjectedField(((ArrayProjection) p).getField(), fields);
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Adds the longest prefix of the field that doesn't have array indexes,
+     * * or $ segments. Returns false if there is no such prefix.
+     */
+    private static boolean addProjectedField(Path field, Set<String> fields) {
+        StringBuilder str = new StringBuilder();
+        int n = field.numSegments();
+        for (int i = 0; i < n; i++) {
+            String s = field.head(i);
+            if (s.equals(Path.ANY) || field.isIndex(i) || s.startsWith("$")) {
+                break;
+            }
+            if (i > 0) {
+                str.append('.');
+            }
+            str.append(s);
+        }
+        if (str.length() == 0) {
+            return false;
+        }
+        fields.add(str.toString());
+        return true;
+    }
+
+    /**
+     * Builds a mongo field selector including the given fields. Fields that
+     * are under another included field are dropped, because mongo rejects
+     * overlapping paths.
+     */
+    public static DBObject getFieldSelector(Collection<String> fields) {
+        List<String> sorted = new ArrayList<>(fields);
+        Collections.sort(sorted);
+        BasicDBObject ret = new BasicDBObject();
+        for (String field : sorted) {
+            boolean covered = false;
+            for (int dot = field.indexOf('.'); dot != -1 && !covered; dot = field.indexOf('.', dot + 1)) {
+                covered = fields.contains(field.substring(0, dot));
+            }
+            if (!covered) {
+                ret.append(field, 1);
+            }
+        }
+        return ret;
+    }
+
     /**
      * Translates a list of JSON documents to DBObjects. Translation is metadata
      * driven.
@@ -316,7 +429,16 @@ public class Translator {
         Error.push("translateQuery");
         FieldTreeNode mdRoot = md.getFieldTreeRoot();
         try {
-            return translate(mdRoot, query);
+            DBObject ret = translate(mdRoot, query);
+            Set<String> fields = getCaseInsensitiveFields(md);
+            if (caseFoldedFields != null) {
+                fields = new HashSet<>(fields);
+                fields.retainAll(caseFoldedFields);
+            }
+            if (!fields.isEmpty()) {
+                foldCase(ret, fields);
+            }
+            return ret;
         } catch (Error e) {
             // rethrow lightblue error
             throw e;
@@ -329,6 +451,114 @@ public class Translator {
         }
     }
 
+    /**
+     * A query split into a part evaluated by MongoDB, and a residual part
+     * evaluated on the documents returned by MongoDB
+     */
+    public static final class TranslatedQuery {
+        private final DBObject query;
+        private final QueryExpression residual;
+
+        public TranslatedQuery(DBObject query, QueryExpression residual) {
+            this.query = query;
+            this.residual = residual;
+        }
+
+        /**
+         * The Mongo query. Matches a superset of the documents matched by
+         * the original query. Empty if none of the query can be evaluated by
+         * MongoDB.
+         */
+        public DBObject getQuery() {
+            return query;
+        }
+
+        /**
+         * The part of the query that has to be evaluated on the documents
+         * returned by the Mongo query, or null if the Mongo query is exact
+         */
+        public QueryExpression getResidual() {
+            return residual;
+        }
+    }
+
+    /**
+     * Translates a query to a Mongo query, leaving out the parts that MongoDB
+     * can only evaluate with $where. Field comparisons are not translated to
+     * JavaScript, but returned as the residual query to be evaluated by the
+     * caller. Conjunctions are split, so the other conjuncts still reach
+     * MongoDB and can use indexes.
+     *
+     * @param md Entity metadata
+     * @param query The query expression
+     */
+    public TranslatedQuery translateWithResidual(EntityMetadata md, QueryExpression query) {
+        QueryExpression[] split = splitQuery(query);
+        LOGGER.debug("Query split, server:{} residual:{}", split[0], split[1]);
+        DBObject mongoQuery = split[0] == null ? new BasicDBObject() : translate(md, split[0]);
+        return new TranslatedQuery(mongoQuery, split[1]);
+    }
+
+    /**
+     * Splits a query into a part that can be evaluated by MongoDB without
+     * JavaScript, and a residual part. The server part matches a superset of
+     * the documents matched by the query. Returns {server, residual}, either
+     * of which can be null.
+     */
+    static QueryExpression[] splitQuery(QueryExpression query) {
+        if (query instanceof FieldComparisonExpression) {
+            return new QueryExpression[]{null, query};
+        } else if (query instanceof NaryLogicalExpression) {
+            NaryLogicalExpression expr = (NaryLogicalExpression) query;
+            List<QueryExpression> servers = new ArrayList<>();
+            List<QueryExpression> residuals = new ArrayList<>();
+            boolean allServer = true;
+            for (QueryExpression q : expr.getQueries()) {
+                QueryExpression[] split = splitQuery(q);
+                if (split[0] == null) {
+                    allServer = false;
+                } else {
+                    servers.add(split[0]);
+                }
+                if (split[1] != null) {
+                    residuals.add(split[1]);
+                }
+            }
+            if (residuals.isEmpty()) {
+                return new QueryExpression[]{query, null};
+            } else if (expr.getOp() == NaryLogicalOperator._and) {
+                return new QueryExpression[]{combine(NaryLogicalOperator._and, servers),
+                    combine(NaryLogicalOperator._and, residuals)};
+            } else {
+                // A disjunction can only be prefiltered if all disjuncts have a server part
+                return new QueryExpression[]{allServer ? combine(NaryLogicalOperator._or, servers) : null, query};
+            }
+        } else if (query instanceof UnaryLogicalExpression) {
+            QueryExpression[] split = splitQuery(((UnaryLogicalExpression) query).getQuery());
+            return split[1] == null ? new QueryExpression[]{query, null} : new QueryExpression[]{null, query};
+        } else if (query instanceof ArrayMatchExpression) {
+            ArrayMatchExpression expr = (ArrayMatchExpression) query;
+            QueryExpression[] split = splitQuery(expr.getElemMatch());
+            if (split[1] == null) {
+                return new QueryExpression[]{query, null};
+            } else {
+                return new QueryExpression[]{split[0] == null ? null : new ArrayMatchExpression(expr.getArray(), split[0]), query};
+            }
+        } else {
+            return new QueryExpression[]{query, null};
+        }
+    }
+
+    private static QueryExpression combine(NaryLogicalOperator op, List<QueryExpression> list) {
+        if (list.isEmpty()) {
+            return null;
+        } else if (list.size() == 1) {
+            return list.get(0);
+        } else {
+            return new NaryLogicalExpression(op, list);
+        }
+    }
+
     /**
      * Tranlates an update expression to Mongo query
      *
@@ -347,6 +577,10 @@ public class Translator {
         try {
             BasicDBObject ret = new BasicDBObject();
             translateUpdate(md.getFieldTreeRoot(), expr, ret);
+            Set<String> fields = getCaseInsensitiveFields(md);
+            if (!fields.isEmpty()) {
+                foldCaseUpdate(ret, fields);
+            }
             LOGGER.debug("translated={}", ret);
             return ret;
         } catch (Error | CannotTranslateException e) {
@@ -367,7 +601,11 @@ public class Translator {
      */
     private void translateUpdate(FieldTreeNode root, UpdateExpression expr, BasicDBObject dest)
             throws CannotTranslateException {
-        if (expr instanceof ArrayUpdateExpression) {
+        if (expr instanceof ArrayAddExpression) {
+            translateArrayAdd(root, (ArrayAddExpression) expr, dest);
+        } else if (expr instanceof ForEachExpression) {
+            translateForEach(root, (ForEachExpression) expr, dest);
+        } else if (expr instanceof ArrayUpdateExpression) {
             throw new CannotTranslateException(expr);
         } else if (expr instanceof PrimitiveUpdateExpression) {
             translatePrimitiveUpdate(root, (PrimitiveUpdateExpression) expr, dest);
@@ -378,6 +616,253 @@ public class Translator {
         }
     }
 
+    /**
+     * Translates $append and $insert to $push with $each, and $position for
+     * $insert. The array size field is incremented by the number of
+     * elements added.
+     *
+     * <pre>
+     *   { $append : { array : [ v1, v2 ] } }   -> { $push : { array : { $each : [ v1, v2 ] } }, $inc : { array# : 2 } }
+     *   { $insert : { array.3 : [ v1, v2 ] } } -> { $push : { array : { $each : [ v1, v2 ], $position : 3 } }, $inc : { array# : 2 } }
+     * </pre>
+     *
+     * Values referring to other fields, negative insertion indexes, and
+     * arrays under other arrays cannot be translated.
+     */
+    private void translateArrayAdd(FieldTreeNode root,
+                                   ArrayAddExpression expr,
+                                   BasicDBObject dest)
+            throws CannotTranslateException {
+        Path field = expr.getField();
+        Path arrayPath = field;
+        Integer position = null;
+        if (expr.getOp() == UpdateOperator._insert) {
+            int n = field.numSegments();
+            if (n < 2 || !field.isIndex(n - 1) || field.getIndex(n - 1) < 0) {
+                throw new CannotTranslateException(expr);
+            }
+            position = field.getIndex(n - 1);
+            arrayPath = field.prefix(-1);
+        } else if (expr.getOp() != UpdateOperator._append) {
+            throw new CannotTranslateException(expr);
+        }
+        ArrayField array = getTopLevelArray(root, arrayPath, expr);
+        ArrayElement element = array.getElement();
+        BasicDBList values = new BasicDBList();
+        for (RValueExpression rvalue : expr.getValues()) {
+            switch (rvalue.getType()) {
+                case _value:
+                    if (!(element instanceof SimpleArrayElement)) {
+                        throw new CannotTranslateException(expr);
+                    }
+                    Object value = rvalue.getValue().getValue();
+                    values.add(value == null ? null : element.getType().cast(value));
+                    break;
+                case _null:
+                    values.add(null);
+                    break;
+                case _emptyObject:
+                    if (!(element instanceof ObjectArrayElement)) {
+                        throw new CannotTranslateException(expr);
+                    }
+                    values.add(new BasicDBObject());
+                    break;
+                default:
+                    throw new CannotTranslateException(expr);
+            }
+        }
+        String path = translatePath(arrayPath);
+        checkConflict(dest, path, expr);
+        BasicDBObject each = new BasicDBObject("$each", values);
+        if (position != null) {
+            each.append("$position", position);
+        }
+        getUpdateOperator(dest, "$push").put(path, each);
+        Path sizePath = getArraySizePath(root, arrayPath);
+        if (sizePath != null) {
+            getUpdateOperator(dest, "$inc").put(translatePath(sizePath), values.size());
+        }
+    }
+
+    /**
+     * Translates $foreach with $remove to $pull, or to setting the array to
+     * an empty array if all elements are removed. The number of elements
+     * removed by $pull is not known, so the array size field has to be
+     * corrected after the update (see {@link #getPulledArrays}).
+     *
+     * <pre>
+     *   { $foreach : { array : { field: x, op: =, rvalue: 1 }, $update : $remove } } -> { $pull : { array : { x : 1 } } }
+     *   { $foreach : { array : { field: $this, op: >, rvalue: 1 }, $update : $remove } } -> { $pull : { array : { $gt : 1 } } }
+     * </pre>
+     */
+    private void translateForEach(FieldTreeNode root,
+                                  ForEachExpression expr,
+                                  BasicDBObject dest)
+            throws CannotTranslateException {
+        if (!(expr.getUpdate() instanceof RemoveElementExpression)) {
+            throw new CannotTranslateException(expr);
+        }
+        ArrayField array = getTopLevelArray(root, expr.getField(), expr);
+        String path = translatePath(expr.getField());
+        checkConflict(dest, path, expr);
+        Path sizePath = getArraySizePath(root, expr.getField());
+        if (expr.getQuery() instanceof AllMatchExpression) {
+            getUpdateOperator(dest, "$set").put(path, new BasicDBList());
+            if (sizePath != null) {
+                getUpdateOperator(dest, "$set").put(translatePath(sizePath), 0);
+            }
+        } else {
+            Object condition;
+            if (array.getElement() instanceof SimpleArrayElement) {
+                condition = translateElementCondition(array.getElement().getType(), expr.getQuery(), expr);
+            } else {
+                DBObject query = translate(array.getElement(), expr.getQuery());
+                if (containsField(query, "$where")) {
+                    throw new CannotTranslateException(expr);
+                }
+                condition = query;
+            }
+            getUpdateOperator(dest, "$pull").put(path, condition);
+        }
+    }
+
+    /**
+     * Translates a comparison of the elements of a simple array, i.e. a
+     * comparison of $this, to a $pull condition
+     */
+    private Object translateElementCondition(Type t, QueryExpression query, UpdateExpression expr)
+            throws CannotTranslateException {
+        if (query instanceof ValueComparisonExpression) {
+            ValueComparisonExpression cmp = (ValueComparisonExpression) query;
+            if (Path.THIS.equals(cmp.getField().toString())) {
+                Object value = t.cast(cmp.getRvalue().getValue());
+                if (cmp.getOp() == BinaryComparisonOperator._eq) {
+                    return value;
+                }
+                return new BasicDBObject(BINARY_COMPARISON_OPERATOR_MAP.get(cmp.getOp()), value);
+            }
+        } else if (query instanceof NaryRelationalExpression) {
+            NaryRelationalExpression in = (NaryRelationalExpression) query;
+            if (Path.THIS.equals(in.getField().toString())) {
+                return new BasicDBObject(NARY_RELATIONAL_OPERATOR_MAP.get(in.getOp()), translateValueList(t, in.getValues()));
+            }
+        }
+        throw new CannotTranslateException(expr);
+    }
+
+    /**
+     * If the query is an _id equality or an _id $in query, returns the _id
+     * values. Otherwise, returns null.
+     *
+     * <pre>
+     *   { _id: x } -> [x]
+     *   { _id: { $in: [x, y] } } -> [x, y]
+     * </pre>
+     */
+    public static List<Object> getIdValues(DBObject query) {
+        if (query == null || query.keySet().size() != 1) {
+            return null;
+        }
+        Object value = query.get(MongoCRUDController.ID_STR);
+        List<Object> ret;
+        if (value instanceof DBObject) {
+            DBObject x = (DBObject) value;
+            if (x.keySet().size() != 1 || !(x.get("$in") instanceof List)) {
+                return null;
+            }
+            ret = new ArrayList<>((List<?>) x.get("$in"));
+        } else if (value != null) {
+            ret = new ArrayList<>();
+            ret.add(value);
+        } else {
+            return null;
+        }
+        for (Object x : ret) {
+            if (x == null || x instanceof DBObject || x instanceof Pattern) {
+                return null;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the array fields modified by $pull in a translated update
+     * expression. The size fields of these arrays are not maintained by the
+     * update.
+     */
+    public static Set<String> getPulledArrays(DBObject mongoUpdateExpr) {
+        DBObject pull = (DBObject) mongoUpdateExpr.get("$pull");
+        return pull == null ? Collections.<String>emptySet() : pull.keySet();
+    }
+
+    /**
+     * Returns the array field at the path, if it is not under another array
+     */
+    private ArrayField getTopLevelArray(FieldTreeNode root, Path arrayPath, UpdateExpression expr)
+            throws CannotTranslateException {
+        FieldTreeNode node = root.resolve(arrayPath);
+        if (!(node instanceof ArrayField)) {
+            throw new CannotTranslateException(expr);
+        }
+        for (FieldTreeNode parent = node.getParent(); parent != null; parent = parent.getParent()) {
+            if (parent instanceof ArrayField || parent instanceof ArrayElement) {
+                throw new CannotTranslateException(expr);
+            }
+        }
+        return (ArrayField) node;
+    }
+
+    /**
+     * Returns the path of the predefined size field of the array, or null if
+     * the entity does not have one
+     */
+    private static Path getArraySizePath(FieldTreeNode root, Path arrayPath) {
+        Path sizePath = new Path(arrayPath.toString() + "#");
+        try {
+            return root.resolve(sizePath) == null ? null : sizePath;
+        } catch (Error e) {
+            return null;
+        }
+    }
+
+    private static BasicDBObject getUpdateOperator(BasicDBObject dest, String op) {
+        BasicDBObject obj = (BasicDBObject) dest.get(op);
+        if (obj == null) {
+            obj = new BasicDBObject();
+            dest.put(op, obj);
+        }
+        return obj;
+    }
+
+    /**
+     * MongoDB does not allow a field to be modified by more than one update
+     * operator. Throws CannotTranslateException if the field, or a field
+     * containing it or contained in it is already modified.
+     */
+    private static void checkConflict(BasicDBObject dest, String path, UpdateExpression expr)
+            throws CannotTranslateException {
+        for (String op : dest.keySet()) {
+            for (String field : ((DBObject) dest.get(op)).keySet()) {
+                if (field.equals(path) || field.startsWith(path + ".") || path.startsWith(field + ".")) {
+                    throw new CannotTranslateException(expr);
+                }
+            }
+        }
+    }
+
+    private static boolean containsField(DBObject obj, String name) {
+        for (String key : obj.keySet()) {
+            if (key.equals(name)) {
+                return true;
+            }
+            Object value = obj.get(key);
+            if (value instanceof DBObject && containsField((DBObject) value, name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Attempt to translate a primitive update expression. If the epxression
      * touches any arrays or array elements, translation fails.
@@ -586,9 +1071,135 @@ public class Translator {
         if (opStr.length() > 0) {
             regex.append("$options", opStr);
         }
+        if (!expr.isCaseInsensitive() && !expr.isMultiline() && !expr.isExtended()) {
+            // An anchored regex with a literal prefix is bounded by a range
+            // predicate the server can use on an index
+            RegexPrefix prefix = RegexPrefix.parse(expr.getRegex());
+            if (prefix != null) {
+                appendPrefixRange(regex, prefix.getPrefix());
+            }
+        }
         return new BasicDBObject(translatePath(expr.getField()), regex);
     }
 
+    private static void appendPrefixRange(BasicDBObject dest, String prefix) {
+        dest.append("$gte", prefix);
+        String upper = RegexPrefix.upperBound(prefix);
+        if (upper != null) {
+            dest.append("$lt", upper);
+        }
+    }
+
+    /**
+     * Returns the path of the lower case copy of a case insensitive field
+     */
+    public static String getCaseFoldedPath(String field) {
+        return CASE_FOLDED_FIELDS + "." + field;
+    }
+
+    private static Set<String> getCaseInsensitiveFields(EntityMetadata md) {
+        if (md.getDataStore() instanceof MongoDataStore) {
+            return ((MongoDataStore) md.getDataStore()).getCaseInsensitiveFields();
+        }
+        return Collections.emptySet();
+    }
+
+    /**
+     * Rewrites the case insensitive anchored regex searches on the case
+     * insensitive fields to use the lower case copies of the fields. If the
+     * regex is a literal prefix, it is replaced by a range predicate on the
+     * lower case field. Otherwise, the range predicate on the lower case
+     * field is added to the regex. Only ASCII prefixes are rewritten, so
+     * lower casing the prefix gives the same result as the case insensitive
+     * match of the server. The regex is only dropped for fields whose copies
+     * are maintained on every write, that is, fields that are not under an
+     * array.
+     */
+    private static void foldCase(DBObject query, Set<String> fields) {
+        for (String key : new ArrayList<>(query.keySet())) {
+            Object value = query.get(key);
+            if (("$and".equals(key) || "$or".equals(key) || "$nor".equals(key)) && value instanceof List) {
+                for (Object x : (List) value) {
+                    if (x instanceof DBObject) {
+                        foldCase((DBObject) x, fields);
+                    }
+                }
+            } else if (fields.contains(key) && value instanceof DBObject && !(value instanceof List)) {
+                DBObject regex = (DBObject) value;
+                Object options = regex.get("$options");
+                if (regex.get("$regex") instanceof String && regex.keySet().size() == 2
+                        && "i".equals(options)) {
+                    RegexPrefix prefix = RegexPrefix.parse((String) regex.get("$regex"));
+                    String folded = getCaseFoldedPath(key);
+                    if (prefix != null && prefix.isAscii() && !query.containsField(folded)) {
+                        BasicDBObject range = new BasicDBObject();
+                        appendPrefixRange(range, prefix.getPrefix().toLowerCase(Locale.ROOT));
+                        if (prefix.isComplete() && isCaseFoldedField(key)) {
+                            query.removeField(key);
+                        }
+                        query.put(folded, range);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if the lower case copy of the case insensitive field is
+     * written by all updates. Fields under arrays are not copied.
+     */
+    private static boolean isCaseFoldedField(String field) {
+        return new Path(field).nAnys() == 0;
+    }
+
+    /**
+     * Keeps the lower case copies of the case insensitive fields consistent
+     * with the $set and $unset of the fields, or of their ancestors
+     */
+    private static void foldCaseUpdate(BasicDBObject update, Set<String> fields) {
+        DBObject set = (DBObject) update.get("$set");
+        DBObject unset = (DBObject) update.get("$unset");
+        BasicDBObject foldedSet = new BasicDBObject();
+        BasicDBObject foldedUnset = new BasicDBObject();
+        for (String field : fields) {
+            if (!isCaseFoldedField(field)) {
+                continue;
+            }
+            if (set != null && set.containsField(field)) {
+                Object value = set.get(field);
+                if (value instanceof String) {
+                    foldedSet.put(getCaseFoldedPath(field), ((String) value).toLowerCase(Locale.ROOT));
+                } else {
+                    foldedUnset.put(getCaseFoldedPath(field), "");
+                }
+            }
+            if (unset != null) {
+                // Only simple fields are $set, but objects can be $unset
+                Path path = new Path(field);
+                for (int n = path.numSegments(); n > 0; n--) {
+                    if (unset.containsField(path.prefix(n).toString())) {
+                        foldedUnset.put(getCaseFoldedPath(field), "");
+                        break;
+                    }
+                }
+            }
+        }
+        if (!foldedSet.isEmpty()) {
+            if (set == null) {
+                update.put("$set", foldedSet);
+            } else {
+                set.putAll((BSONObject) foldedSet);
+            }
+        }
+        if (!foldedUnset.isEmpty()) {
+            if (unset == null) {
+                update.put("$unset", foldedUnset);
+            } else {
+                unset.putAll((BSONObject) foldedUnset);
+            }
+        }
+    }
+
     private DBObject translateNaryRelationalExpression(FieldTreeNode context, NaryRelationalExpression expr) {
         Type t = resolve(context, expr.getField()).getType();
         if (t.supportsEq()) {
@@ -726,25 +1337,29 @@ public class Translator {
 
     /**
      * <pre>
-     *     { $or : [ {field:value1},{field:value2},...] }
+     *     { field : { $in : [ value1, value2, ... ] } }
      * </pre>
+     *
+     * This is equivalent to { $or : [ {field:value1},{field:value2},...] },
+     * an equality on an array field matches if any element is equal to the
+     * value, but the server plans it as a single scan over the multikey
+     * index instead of one plan per value.
      */
     private DBObject translateArrayContainsAny(Type t, Path array, List<Value> values) {
-        List<BasicDBObject> l = new ArrayList<>(values.size());
-        for (Value x : values) {
-            l.add(new BasicDBObject(translatePath(array), x == null ? null
-                    : x.getValue() == null ? null : t.cast(x.getValue())));
-        }
-        return new BasicDBObject("$or", l);
+        return new BasicDBObject(translatePath(array),
+                new BasicDBObject("$in",
+                        translateValueList(t, values)));
     }
 
     /**
      * <pre>
-     * { $not : { $or : [ {field:value1},{field:value2},...]}}
+     *     { field : { $nin : [ value1, value2, ... ] } }
      * </pre>
      */
     private DBObject translateArrayContainsNone(Type t, Path array, List<Value> values) {
-        return new BasicDBObject("$not", translateArrayContainsAny(t, array, values));
+        return new BasicDBObject(translatePath(array),
+                new BasicDBObject("$nin",
+                        translateValueList(t, values)));
     }
 
     private JsonDoc toJson(DBObject object, EntityMetadata md) {
@@ -855,10 +1470,44 @@ public class Translator {
         JsonNodeCursor cursor = doc.cursor();
         if (cursor.firstChild()) {
             ret = objectToBson(cursor, md);
+            Set<String> fields = getCaseInsensitiveFields(md);
+            if (!fields.isEmpty()) {
+                addCaseFoldedFields(ret, doc, fields);
+            }
         }
         return ret;
     }
 
+    /**
+     * Adds the lower case copies of the case insensitive string fields to
+     * the document. Fields under arrays are not copied.
+     */
+    private static void addCaseFoldedFields(BasicDBObject dest, JsonDoc doc, Set<String> fields) {
+        BasicDBObject folded = new BasicDBObject();
+        for (String field : fields) {
+            Path path = new Path(field);
+            if (path.nAnys() > 0) {
+                continue;
+            }
+            JsonNode node = doc.get(path);
+            if (node != null && node.isTextual()) {
+                BasicDBObject parent = folded;
+                for (int i = 0; i < path.numSegments() - 1; i++) {
+                    BasicDBObject child = (BasicDBObject) parent.get(path.head(i));
+                    if (child == null) {
+                        child = new BasicDBObject();
+                        parent.put(path.head(i), child);
+                    }
+                    parent = child;
+                }
+                parent.put(path.tail(0), node.asText().toLowerCase(Locale.ROOT));
+            }
+        }
+        if (!folded.isEmpty()) {
+            dest.put(CASE_FOLDED_FIELDS, folded);
+        }
+    }
+
     private Object toValue(Type t, JsonNode node) {
         if (node == null || node instanceof NullNode) {
             return null;
@@ -0,0 +1,314 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.DBObject;
+import com.netflix.servo.DefaultMonitorRegistry;
+import com.netflix.servo.monitor.BasicCounter;
+import com.netflix.servo.monitor.Counter;
+import com.netflix.servo.monitor.MonitorConfig;
+import com.redhat.lightblue.eval.FieldAccessRoleEvaluator;
+import com.redhat.lightblue.metadata.ArrayElement;
+import com.redhat.lightblue.metadata.ArrayField;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.metadata.Field;
+import com.redhat.lightblue.metadata.FieldConstraint;
+import com.redhat.lightblue.metadata.FieldTreeNode;
+import com.redhat.lightblue.query.ArrayAddExpression;
+import com.redhat.lightblue.query.FieldAndRValue;
+import com.redhat.lightblue.query.ForEachExpression;
+import com.redhat.lightblue.query.PartialUpdateExpression;
+import com.redhat.lightblue.query.SetExpression;
+import com.redhat.lightblue.query.UnsetExpression;
+import com.redhat.lightblue.query.UpdateExpression;
+import com.redhat.lightblue.query.UpdateExpressionList;
+import com.redhat.lightblue.query.UpdateOperator;
+import com.redhat.lightblue.util.Error;
+import com.redhat.lightblue.util.Path;
+
+/**
+ * Decides how an update is executed:
+ * <ul>
+ * <li>multiUpdate: a single server side multi-update. The documents are not
+ * read at all.</li>
+ * <li>findAndModify: the documents are read, and updated one by one using
+ * atomic updates.</li>
+ * <li>iterate: the documents are read, updated in memory, validated, and
+ * saved.</li>
+ * </ul>
+ *
+ * An update can be done atomically if it can be translated to a mongo update
+ * expression, none of the updated fields have constraints, the entity does not
+ * have constraints, and the caller can update all the updated fields. Updates
+ * that set or unset arrays, or fields under arrays are iterated, because the
+ * array size fields have to be recomputed. A multi-update is used only if the
+ * caller does not need the updated documents, and there are no hooks,
+ * per-document interceptors, or residual query filters that need the
+ * documents.
+ *
+ * The number of times each plan is chosen is counted in a servo counter named
+ * "mongo-crud.updatePlan", tagged with the entity and the plan.
+ */
+public class UpdatePlanner {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UpdatePlanner.class);
+
+    public enum Plan {
+        multiUpdate, findAndModify, iterate
+    }
+
+    public static final String METRIC_NAME = "mongo-crud.updatePlan";
+
+    private static final ConcurrentMap<String, Counter> COUNTERS = new ConcurrentHashMap<>();
+
+    private final EntityMetadata md;
+    private final Translator translator;
+    private final FieldAccessMask access;
+    private final Set<Path> updatedFields = new HashSet<>();
+
+    private Plan plan;
+    private DBObject mongoUpdate;
+
+    public UpdatePlanner(EntityMetadata md,
+                         Translator translator,
+                         FieldAccessMask access) {
+        this.md = md;
+        this.translator = translator;
+        this.access = access;
+    }
+
+    /**
+     * Decides how to execute the update, and records the decision in the
+     * update plan counters
+     *
+     * @param update The update expression
+     * @param needDocuments If true, the caller needs the updated documents
+     * @param docInterceptors If true, there are per-document update
+     * interceptors that have to be called
+     * @param residual If true, the query has a residual part that has to be
+     * evaluated on the documents
+     */
+    public Plan plan(UpdateExpression update,
+                     boolean needDocuments,
+                     boolean docInterceptors,
+                     boolean residual) {
+        plan = computePlan(update, needDocuments, docInterceptors, residual);
+        LOGGER.debug("Update plan for {}: {}", update, plan);
+        getCounter(md.getName(), plan).increment();
+        return plan;
+    }
+
+    /**
+     * Returns the chosen plan
+     */
+    public Plan getPlan() {
+        return plan;
+    }
+
+    /**
+     * Returns the translated mongo update expression. This is null if the
+     * plan is iterate.
+     */
+    public DBObject getMongoUpdate() {
+        return mongoUpdate;
+    }
+
+    /**
+     * Returns the fields modified by the update, including the array size
+     * fields of the updated arrays
+     */
+    public Set<Path> getUpdatedFields() {
+        return updatedFields;
+    }
+
+    /**
+     * Returns the number of times the plan is chosen for the entity
+     */
+    public static long getCount(String entity, Plan plan) {
+        return getCounter(entity, plan).getValue().longValue();
+    }
+
+    private Plan computePlan(UpdateExpression update,
+                             boolean needDocuments,
+                             boolean docInterceptors,
+                             boolean residual) {
+        mongoUpdate = null;
+        updatedFields.clear();
+        if (!md.getConstraints().isEmpty() || !getUpdatedFields(update)) {
+            return Plan.iterate;
+        }
+        Set<Path> inaccessibleFields = access.getInaccessibleFields(FieldAccessRoleEvaluator.Operation.update);
+        for (Path field : updatedFields) {
+            for (Path x : inaccessibleFields) {
+                if (field.matchingPrefix(x) || x.matchingPrefix(field)) {
+                    return Plan.iterate;
+                }
+            }
+        }
+        try {
+            mongoUpdate = translator.translate(md, update);
+        } catch (CannotTranslateException e) {
+            LOGGER.debug("Cannot translate {}", update);
+            return Plan.iterate;
+        }
+        if (needDocuments
+                || docInterceptors
+                || residual
+                || (md.getHooks() != null && !md.getHooks().isEmpty())
+                || !Translator.getPulledArrays(mongoUpdate).isEmpty()) {
+            return Plan.findAndModify;
+        } else {
+            return Plan.multiUpdate;
+        }
+    }
+
+    /**
+     * Collects the fields modified by the update into updatedFields. Returns
+     * false if the update cannot be done atomically because of the updated
+     * fields.
+     */
+    private boolean getUpdatedFields(UpdateExpression update) {
+        if (update instanceof UpdateExpressionList) {
+            for (PartialUpdateExpression x : ((UpdateExpressionList) update).getList()) {
+                if (!getUpdatedFields(x)) {
+                    return false;
+                }
+            }
+        } else if (update instanceof SetExpression) {
+            for (FieldAndRValue x : ((SetExpression) update).getFields()) {
+                if (!addField(x.getField(), false)) {
+                    return false;
+                }
+            }
+        } else if (update instanceof UnsetExpression) {
+            for (Path x : ((UnsetExpression) update).getFields()) {
+                if (!addField(x, false)) {
+                    return false;
+                }
+            }
+        } else if (update instanceof ArrayAddExpression) {
+            Path field = ((ArrayAddExpression) update).getField();
+            if (((ArrayAddExpression) update).getOp() == UpdateOperator._insert && field.numSegments() > 1) {
+                field = field.prefix(-1);
+            }
+            return addField(field, true);
+        } else if (update instanceof ForEachExpression) {
+            return addField(((ForEachExpression) update).getField(), true);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Adds the field to updatedFields. Returns false if the field, or any
+     * field under it has constraints, or if it is an array, or under an array
+     * and it is not updated using an array update expression.
+     */
+    private boolean addField(Path field, boolean arrayUpdate) {
+        FieldTreeNode node;
+        try {
+            node = md.resolve(field);
+        } catch (Error e) {
+            return false;
+        }
+        if (hasConstraints(node)) {
+            return false;
+        }
+        if (arrayUpdate) {
+            updatedFields.add(field);
+            updatedFields.add(new Path(field.toString() + "#"));
+        } else {
+            if (hasArray(node)) {
+                return false;
+            }
+            for (FieldTreeNode trc = node.getParent(); trc != null; trc = trc.getParent()) {
+                if (trc instanceof ArrayElement) {
+                    return false;
+                }
+            }
+            updatedFields.add(field);
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the field, or any field under it has constraints
+     */
+    private static boolean hasConstraints(FieldTreeNode node) {
+        if (node instanceof Field) {
+            List<FieldConstraint> constraints = ((Field) node).getConstraints();
+            if (constraints != null && !constraints.isEmpty()) {
+                return true;
+            }
+        }
+        if (node instanceof ArrayField) {
+            return hasConstraints(((ArrayField) node).getElement());
+        } else if (node != null && node.hasChildren()) {
+            for (Iterator<? extends FieldTreeNode> itr = node.getChildren(); itr.hasNext();) {
+                if (hasConstraints(itr.next())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the field is an array, or if there is an array under it
+     */
+    private static boolean hasArray(FieldTreeNode node) {
+        if (node instanceof ArrayField) {
+            return true;
+        } else if (node != null && node.hasChildren()) {
+            for (Iterator<? extends FieldTreeNode> itr = node.getChildren(); itr.hasNext();) {
+                if (hasArray(itr.next())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static Counter getCounter(String entity, Plan plan) {
+        String key = entity + ":" + plan;
+        Counter counter = COUNTERS.get(key);
+        if (counter == null) {
+            Counter c = new BasicCounter(MonitorConfig.builder(METRIC_NAME).
+                    withTag("entity", String.valueOf(entity)).
+                    withTag("plan", plan.name()).build());
+            counter = COUNTERS.putIfAbsent(key, c);
+            if (counter == null) {
+                counter = c;
+                DefaultMonitorRegistry.getInstance().register(counter);
+            }
+        }
+        return counter;
+    }
+}
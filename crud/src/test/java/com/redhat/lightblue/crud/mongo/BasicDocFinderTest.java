@@ -28,11 +28,13 @@ import org.junit.Test;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.github.fge.jsonschema.core.exceptions.ProcessingException;
 
+import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
 import com.mongodb.WriteResult;
 import com.redhat.lightblue.crud.Operation;
 import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.util.Error;
 import com.redhat.lightblue.util.Path;
 import com.redhat.lightblue.util.JsonUtils;
 
@@ -43,13 +45,14 @@ import com.redhat.lightblue.util.JsonUtils;
 public class BasicDocFinderTest extends AbstractMongoTest {
 
     private TestCRUDOperationContext ctx;
+    private EntityMetadata md;
     private Translator translator;
 
     @Before
     public void setup() throws IOException, ProcessingException {
         ctx = new TestCRUDOperationContext(Operation.FIND);
         // load metadata 
-        EntityMetadata md = getMd("./testMetadata.json");
+        md = getMd("./testMetadata.json");
         // and add it to metadata resolver (the context)
         ctx.add(md);
         // create translator with the context
@@ -344,4 +347,183 @@ public class BasicDocFinderTest extends AbstractMongoTest {
         Assert.assertEquals(id + "2", ctx.getDocuments().get(0).getOutputDocument().get(new Path("_id")).asText());
         Assert.assertEquals(id + "3", ctx.getDocuments().get(1).getOutputDocument().get(new Path("_id")).asText());
     }
+
+    @Test
+    public void findKeyset() throws IOException, ProcessingException {
+        String id = "findKeyset";
+        for (int i = 1; i <= 5; i++) {
+            insert("{\"_id\":\"%s\",\"objectType\":\"test\"}", id + i);
+        }
+
+        BasicDocFinder finder = new BasicDocFinder(translator);
+        DBObject sort = new BasicDBObject("objectType", 1);
+
+        ctx.setProperty(MongoCRUDController.PROP_CONTINUATION_TOKEN, "");
+        Assert.assertEquals(5, finder.find(ctx, coll, null, sort, 0l, 1l));
+        String token = (String) ctx.getProperty(MongoCRUDController.PROP_NEXT_CONTINUATION_TOKEN);
+        Assert.assertNotNull(token);
+        Assert.assertEquals(2, ctx.getDocumentsWithoutErrors().size());
+        Assert.assertEquals(id + "2", ctx.getDocumentsWithoutErrors().get(1).get(new Path("_id")).asText());
+
+        ctx = new TestCRUDOperationContext(Operation.FIND);
+        ctx.setProperty(MongoCRUDController.PROP_CONTINUATION_TOKEN, token);
+        finder.find(ctx, coll, null, sort, 2l, 3l);
+        Assert.assertEquals(2, ctx.getDocumentsWithoutErrors().size());
+        Assert.assertEquals(id + "3", ctx.getDocumentsWithoutErrors().get(0).get(new Path("_id")).asText());
+        token = (String) ctx.getProperty(MongoCRUDController.PROP_NEXT_CONTINUATION_TOKEN);
+
+        ctx = new TestCRUDOperationContext(Operation.FIND);
+        ctx.setProperty(MongoCRUDController.PROP_CONTINUATION_TOKEN, token);
+        finder.find(ctx, coll, null, sort, 4l, 5l);
+        Assert.assertEquals(1, ctx.getDocumentsWithoutErrors().size());
+        Assert.assertNull(ctx.getProperty(MongoCRUDController.PROP_NEXT_CONTINUATION_TOKEN));
+    }
+
+    @Test
+    public void findChunkedIn() throws IOException, ProcessingException {
+        String id = "findChunkedIn";
+        BasicDBList ids = new BasicDBList();
+        for (int i = 1; i <= 9; i++) {
+            insert("{\"_id\":\"%s\",\"objectType\":\"test\"}", id + i);
+            ids.add(id + i);
+        }
+        // Duplicate values end up in different chunks
+        ids.add(id + "1");
+
+        BasicDocFinder finder = new BasicDocFinder(translator);
+        finder.setMaxInListSize(3);
+        DBObject query = new BasicDBObject("_id", new BasicDBObject("$in", ids));
+        DBObject sort = new BasicDBObject("_id", -1);
+
+        Assert.assertEquals(9, finder.find(ctx, coll, query, sort, 1l, 3l));
+        Assert.assertEquals(3, ctx.getDocumentsWithoutErrors().size());
+        Assert.assertEquals(id + "8", ctx.getDocumentsWithoutErrors().get(0).get(new Path("_id")).asText());
+        Assert.assertEquals(id + "6", ctx.getDocumentsWithoutErrors().get(2).get(new Path("_id")).asText());
+
+        // Without duplicates, the limit is pushed down to the sub-queries
+        ids.remove(ids.size() - 1);
+        ctx = new TestCRUDOperationContext(Operation.FIND);
+        finder.setMaxParallelQueries(1);
+        Assert.assertEquals(9, finder.find(ctx, coll, query, sort, 1l, 3l));
+        Assert.assertEquals(3, ctx.getDocumentsWithoutErrors().size());
+        Assert.assertEquals(id + "8", ctx.getDocumentsWithoutErrors().get(0).get(new Path("_id")).asText());
+        Assert.assertEquals(id + "6", ctx.getDocumentsWithoutErrors().get(2).get(new Path("_id")).asText());
+    }
+
+    @Test
+    public void findCachedById() throws IOException, ProcessingException {
+        String id = "findCachedById";
+        for (int i = 1; i <= 3; i++) {
+            insert("{\"_id\":\"%s\",\"objectType\":\"test\"}", id + i);
+        }
+        DocumentCache cache = new DocumentCache();
+        DocumentCache.attach(ctx, cache);
+        BasicDocFinder finder = new BasicDocFinder(translator);
+        BasicDBList ids = new BasicDBList();
+        ids.add(id + "3");
+        ids.add(id + "1");
+        DBObject query = new BasicDBObject("_id", new BasicDBObject("$in", ids));
+
+        Assert.assertEquals(2, finder.find(ctx, coll, query, new BasicDBObject("_id", 1), null, null));
+        Assert.assertEquals(id + "1", ctx.getDocumentsWithoutErrors().get(0).get(new Path("_id")).asText());
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(2, cache.getMisses());
+
+        // Served from the cache, even if the database changes
+        coll.remove(new BasicDBObject("_id", id + "1"));
+        ctx = new TestCRUDOperationContext(Operation.FIND);
+        DocumentCache.attach(ctx, cache);
+        Assert.assertEquals(1, finder.find(ctx, coll, new BasicDBObject("_id", id + "1"), null, null, null));
+        Assert.assertEquals(1, cache.getHits());
+
+        cache.invalidate(id + "1");
+        ctx = new TestCRUDOperationContext(Operation.FIND);
+        DocumentCache.attach(ctx, cache);
+        Assert.assertEquals(0, finder.find(ctx, coll, new BasicDBObject("_id", id + "1"), null, null, null));
+    }
+
+    @Test
+    public void findWithCursor() throws IOException, ProcessingException {
+        String id = "findWithCursor";
+        for (int i = 1; i <= 5; i++) {
+            insert("{\"_id\":\"%s\",\"objectType\":\"test\"}", id + i);
+        }
+
+        CursorRegistry registry = new CursorRegistry();
+        BasicDocFinder finder = new BasicDocFinder(translator, registry);
+        DBObject sort = new BasicDBObject("_id", 1);
+
+        ctx.setProperty(MongoCRUDController.PROP_CURSOR, "");
+        Assert.assertEquals(5, finder.find(ctx, coll, null, sort, 0l, 1l));
+        Assert.assertEquals(2, ctx.getDocumentsWithoutErrors().size());
+        String cursorId = (String) ctx.getProperty(MongoCRUDController.PROP_NEXT_CURSOR);
+        Assert.assertNotNull(cursorId);
+        Assert.assertEquals(1, registry.size());
+
+        ctx = new TestCRUDOperationContext(Operation.FIND);
+        ctx.setProperty(MongoCRUDController.PROP_CURSOR, cursorId);
+        Assert.assertEquals(5, finder.find(ctx, coll, null, null, 0l, 1l));
+        Assert.assertEquals(id + "3", ctx.getDocumentsWithoutErrors().get(0).get(new Path("_id")).asText());
+        Assert.assertEquals(cursorId, ctx.getProperty(MongoCRUDController.PROP_NEXT_CURSOR));
+
+        // The cursor cannot be read from another collection, and stays open
+        ctx = new TestCRUDOperationContext(Operation.FIND);
+        ctx.setProperty(MongoCRUDController.PROP_CURSOR, cursorId);
+        try {
+            finder.find(ctx, db.getCollection("other"), null, null, 0l, 1l);
+            Assert.fail();
+        } catch (Error e) {
+            Assert.assertEquals(MongoCrudConstants.ERR_CURSOR_OWNER_MISMATCH, e.getErrorCode());
+        }
+        Assert.assertEquals(1, registry.size());
+
+        ctx = new TestCRUDOperationContext(Operation.FIND);
+        ctx.setProperty(MongoCRUDController.PROP_CURSOR, cursorId);
+        finder.find(ctx, coll, null, null, 0l, 1l);
+        Assert.assertEquals(1, ctx.getDocumentsWithoutErrors().size());
+        Assert.assertNull(ctx.getProperty(MongoCRUDController.PROP_NEXT_CURSOR));
+        Assert.assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void findWithCursorResidualCount() throws Exception {
+        String id = "findWithCursorResidual";
+        for (int i = 1; i <= 5; i++) {
+            insert("{\"_id\":\"%s\",\"objectType\":\"test\",\"field1\":\"a\",\"field2\":\"%s\"}",
+                    new String[]{id + i, i % 2 == 0 ? "a" : "b"});
+        }
+        ctx.setProperty(MongoCRUDController.PROP_RESIDUAL_FILTER,
+                new ResidualFilter(query("{'field':'field1','op':'=','rfield':'field2'}"), md, translator));
+        ctx.setProperty(MongoCRUDController.PROP_CURSOR, "");
+        BasicDocFinder finder = new BasicDocFinder(translator, new CursorRegistry());
+        // The matching documents are not counted when the cursor is opened
+        Assert.assertEquals(-1, finder.find(ctx, coll, null, new BasicDBObject("_id", 1), 0l, 0l));
+        Assert.assertEquals(1, ctx.getDocumentsWithoutErrors().size());
+        Assert.assertEquals(id + "2", ctx.getDocumentsWithoutErrors().get(0).get(new Path("_id")).asText());
+    }
+
+    @Test
+    public void cursorEviction() throws IOException, ProcessingException {
+        String id = "cursorEviction";
+        for (int i = 1; i <= 3; i++) {
+            insert("{\"_id\":\"%s\",\"objectType\":\"test\"}", id + i);
+        }
+        CursorRegistry registry = new CursorRegistry();
+        registry.setMaxCursors(1);
+        BasicDocFinder finder = new BasicDocFinder(translator, registry);
+
+        ctx.setProperty(MongoCRUDController.PROP_CURSOR, "");
+        finder.find(ctx, coll, null, null, 0l, 0l);
+        String first = (String) ctx.getProperty(MongoCRUDController.PROP_NEXT_CURSOR);
+        ctx = new TestCRUDOperationContext(Operation.FIND);
+        ctx.setProperty(MongoCRUDController.PROP_CURSOR, "");
+        finder.find(ctx, coll, null, null, 0l, 0l);
+        Assert.assertEquals(1, registry.size());
+        Assert.assertNull(registry.checkout(first));
+
+        registry.setIdleTimeoutMillis(-1);
+        registry.closeIdleCursors();
+        Assert.assertEquals(0, registry.size());
+        registry.closeAll();
+    }
 }
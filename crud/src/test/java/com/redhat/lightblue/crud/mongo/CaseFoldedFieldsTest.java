@@ -0,0 +1,52 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+public class CaseFoldedFieldsTest extends AbstractMongoTest {
+
+    @Test
+    public void backfill() {
+        coll.insert(new BasicDBObject("_id", "1").append("name", "MiXeD"));
+        coll.insert(new BasicDBObject("_id", "2").append("name", 1));
+        coll.insert(new BasicDBObject("_id", "3"));
+        Set<String> fields = new HashSet<>(Arrays.asList("name", "a.*.b"));
+        CaseFoldedFields folded = new CaseFoldedFields();
+        Assert.assertTrue(folded.getBackfilledFields(coll, fields).isEmpty());
+
+        Assert.assertEquals(1, CaseFoldedFields.backfill(coll, "name"));
+        DBObject doc = coll.findOne(new BasicDBObject("_id", "1"));
+        Assert.assertEquals("mixed", ((DBObject) doc.get(Translator.CASE_FOLDED_FIELDS)).get("name"));
+        Assert.assertTrue(CaseFoldedFields.isBackfilled(coll, "name"));
+
+        // Not backfilled results are checked again after the recheck interval
+        Assert.assertTrue(folded.getBackfilledFields(coll, fields).isEmpty());
+        folded.setRecheckMillis(0);
+        Assert.assertEquals(new HashSet<>(Arrays.asList("name")), folded.getBackfilledFields(coll, fields));
+    }
+}
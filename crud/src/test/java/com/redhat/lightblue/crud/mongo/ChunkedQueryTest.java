@@ -0,0 +1,105 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+public class ChunkedQueryTest {
+
+    private DBObject q(String s) {
+        return (DBObject) JSON.parse(s.replace('\'', '"'));
+    }
+
+    private List<DBObject> docs(String... s) {
+        List<DBObject> list = new ArrayList<>();
+        for (String x : s) {
+            list.add(q(x));
+        }
+        return list;
+    }
+
+    @Test
+    public void splitLongestList() {
+        Assert.assertNull(ChunkedQuery.split(q("{'a':{'$in':[1,2,3]}}"), 3));
+        Assert.assertNull(ChunkedQuery.split(q("{'a':{'$in':[1,2,3,4]}}"), 0));
+
+        ChunkedQuery c = ChunkedQuery.split(q("{'a':{'$in':[1,2,3,4]},'b':{'$all':[1,2,3,4,5],'$size':5},'c':1}"), 2);
+        Assert.assertTrue(c.isIntersection());
+        Assert.assertEquals(3, c.getQueries().size());
+        Assert.assertEquals(q("{'a':{'$in':[1,2,3,4]},'b':{'$all':[5],'$size':5},'c':1}"), c.getQueries().get(2));
+
+        c = ChunkedQuery.split(q("{'a':{'$in':[1,2,3,4,5]},'$or':[{'x':1},{'y':1}]}"), 2);
+        Assert.assertFalse(c.isIntersection());
+        Assert.assertFalse(c.isDisjoint());
+        Assert.assertEquals(q("{'a':{'$in':[1,2]},'$or':[{'x':1},{'y':1}]}"), c.getQueries().get(0));
+
+        Assert.assertTrue(ChunkedQuery.split(q("{'_id':{'$in':[1,2,3]}}"), 2).isDisjoint());
+        Assert.assertFalse(ChunkedQuery.split(q("{'_id':{'$all':[1,2,3]}}"), 2).isDisjoint());
+        Assert.assertFalse(ChunkedQuery.split(q("{'_id':{'$in':[1,2,1.0]}}"), 2).isDisjoint());
+    }
+
+    @Test
+    public void mergeUnion() {
+        ChunkedQuery c = ChunkedQuery.split(q("{'_id':{'$in':[1,2,3,4]}}"), 2);
+        List<DBObject> merged = c.merge(Arrays.asList(
+                docs("{'_id':1,'s':'b'}", "{'_id':2,'s':'d'}"),
+                docs("{'_id':3,'s':'a'}", "{'_id':2,'s':'d'}")), q("{'s':1}"));
+        Assert.assertEquals(docs("{'_id':3,'s':'a'}", "{'_id':1,'s':'b'}", "{'_id':2,'s':'d'}"), merged);
+    }
+
+    @Test
+    public void mergeIntersection() {
+        ChunkedQuery c = ChunkedQuery.split(q("{'a':{'$all':[1,2,3,4]}}"), 2);
+        List<DBObject> merged = c.merge(Arrays.asList(
+                docs("{'_id':1}", "{'_id':2}", "{'_id':3}"),
+                docs("{'_id':3}", "{'_id':1}")), null);
+        Assert.assertEquals(docs("{'_id':1}", "{'_id':3}"), merged);
+    }
+
+    @Test
+    public void sortLikeTheServer() {
+        ChunkedQuery c = ChunkedQuery.split(q("{'_id':{'$in':[1,2,3]}}"), 1);
+        List<DBObject> merged = c.merge(Arrays.asList(
+                docs("{'_id':1,'x':{'n':[5,1]}}"),
+                docs("{'_id':2,'x':{'n':3}}"),
+                docs("{'_id':3,'x':{'n':'s'}}", "{'_id':4}")), q("{'x.n':1,'_id':-1}"));
+        Assert.assertEquals(Arrays.asList(4, 1, 2, 3), ids(merged));
+
+        merged = c.merge(Arrays.asList(
+                docs("{'_id':1,'x':{'n':[5,1]}}"),
+                docs("{'_id':2,'x':{'n':3}}")), q("{'x.n':-1}"));
+        Assert.assertEquals(Arrays.asList(1, 2), ids(merged));
+    }
+
+    private List<Object> ids(List<DBObject> docs) {
+        List<Object> ret = new ArrayList<>();
+        for (DBObject d : docs) {
+            ret.add(d.get("_id"));
+        }
+        return ret;
+    }
+}
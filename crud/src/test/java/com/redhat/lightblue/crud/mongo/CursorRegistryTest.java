@@ -0,0 +1,57 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.redhat.lightblue.util.Error;
+
+public class CursorRegistryTest {
+
+    @Test
+    public void owner() {
+        Assert.assertEquals(CursorRegistry.owner("e", "1.0", "db.c", Arrays.asList("a", "b")),
+                CursorRegistry.owner("e", "1.0", "db.c", Arrays.asList("b", "a")));
+        Assert.assertNotEquals(CursorRegistry.owner("e", "1.0", "db.c", Arrays.asList("a")),
+                CursorRegistry.owner("e", "1.0", "db.c", Arrays.asList("a", "b")));
+        Assert.assertNotEquals(CursorRegistry.owner("e", "1.0", "db.c", null),
+                CursorRegistry.owner("e", "2.0", "db.c", null));
+    }
+
+    @Test
+    public void checkoutByOtherOwner() {
+        CursorRegistry registry = new CursorRegistry();
+        String owner = CursorRegistry.owner("e", "1.0", "db.c", Arrays.asList("a"));
+        CursorRegistry.Entry entry = new CursorRegistry.Entry(null, -1, owner);
+        String id = registry.register(entry);
+        try {
+            registry.checkout(id, CursorRegistry.owner("e", "1.0", "db.c", Arrays.asList("b")));
+            Assert.fail();
+        } catch (Error e) {
+            Assert.assertEquals(MongoCrudConstants.ERR_CURSOR_OWNER_MISMATCH, e.getErrorCode());
+        }
+        Assert.assertEquals(1, registry.size());
+        Assert.assertSame(entry, registry.checkout(id, owner));
+        Assert.assertNull(registry.checkout(id, owner));
+        registry.closeAll();
+    }
+}
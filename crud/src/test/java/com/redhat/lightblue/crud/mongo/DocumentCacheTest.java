@@ -0,0 +1,159 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.HashSet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.util.JSON;
+import com.redhat.lightblue.crud.CRUDOperationContext;
+import com.redhat.lightblue.crud.Factory;
+import com.redhat.lightblue.crud.Operation;
+import com.redhat.lightblue.metadata.EntityMetadata;
+
+public class DocumentCacheTest {
+
+    private CRUDOperationContext newContext() {
+        return new CRUDOperationContext(Operation.FIND, "test", new Factory(), new HashSet<String>(), null) {
+            @Override
+            public EntityMetadata getEntityMetadata(String entityName) {
+                return null;
+            }
+        };
+    }
+
+    private static DBObject doc(Object id) {
+        return new BasicDBObject("_id", id).append("objectType", "test");
+    }
+
+    @Test
+    public void lruEviction() {
+        DocumentCache cache = new DocumentCache(2, 60000);
+        cache.put(doc("a"), cache.getGeneration());
+        cache.put(doc("b"), cache.getGeneration());
+        Assert.assertNotNull(cache.get("a"));
+        cache.put(doc("c"), cache.getGeneration());
+        Assert.assertEquals(2, cache.size());
+        Assert.assertNotNull(cache.get("a"));
+        Assert.assertNull(cache.get("b"));
+        Assert.assertNotNull(cache.get("c"));
+        Assert.assertEquals(3, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void ttl() throws Exception {
+        DocumentCache cache = new DocumentCache(10, 10);
+        cache.put(doc("a"), cache.getGeneration());
+        Thread.sleep(50);
+        Assert.assertNull(cache.get("a"));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void invalidationDuringRead() {
+        DocumentCache cache = new DocumentCache();
+        long generation = cache.getGeneration();
+        cache.invalidate("a");
+        cache.put(doc("a"), generation);
+        Assert.assertNull(cache.get("a"));
+        cache.put(doc("a"), cache.getGeneration());
+        Assert.assertNotNull(cache.get("a"));
+    }
+
+    @Test
+    public void invalidateQuery() {
+        CRUDOperationContext ctx = newContext();
+        // No cache attached
+        DocumentCache.invalidate(ctx, new BasicDBObject("_id", "a"));
+
+        DocumentCache cache = new DocumentCache();
+        DocumentCache.attach(ctx, cache);
+        Assert.assertSame(cache, DocumentCache.get(ctx));
+        for (String id : new String[]{"a", "b", "c"}) {
+            cache.put(doc(id), cache.getGeneration());
+        }
+        DocumentCache.invalidate(ctx, (DBObject) JSON.parse("{'_id':'a'}"));
+        Assert.assertEquals(2, cache.size());
+        DocumentCache.invalidate(ctx, (DBObject) JSON.parse("{'_id':{'$in':['b']}}"));
+        Assert.assertEquals(1, cache.size());
+        DocumentCache.invalidate(ctx, (DBObject) JSON.parse("{'field1':'x'}"));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void suspension() {
+        DocumentCache cache = new DocumentCache();
+        cache.put(doc("a"), cache.getGeneration());
+        cache.setSuspended(true);
+        Assert.assertNull(cache.get("a"));
+        cache.put(doc("b"), cache.getGeneration());
+        cache.setSuspended(false);
+        Assert.assertEquals(0, cache.size());
+        cache.put(doc("a"), cache.getGeneration());
+        Assert.assertNotNull(cache.get("a"));
+    }
+
+    @Test
+    public void tailerInvalidation() throws Exception {
+        // The client does not connect until it is used
+        MongoClient client = new MongoClient("localhost");
+        try {
+            CacheInvalidationTailer tailer = new CacheInvalidationTailer(client.getDB("testdb"), CacheInvalidationTailer.OPLOG);
+            DocumentCache coll1 = new DocumentCache();
+            DocumentCache coll2 = new DocumentCache();
+            // Not calling register, because that starts tailing
+            tailer.getCaches().put("coll1", coll1);
+            tailer.getCaches().put("coll2", coll2);
+            for (String id : new String[]{"a", "b", "c", "d"}) {
+                coll1.put(doc(id), coll1.getGeneration());
+                coll2.put(doc(id), coll2.getGeneration());
+            }
+            tailer.process((DBObject) JSON.parse("{'ns':'testdb.coll1','op':'u','o2':{'_id':'a'},'o':{'$set':{'x':1}}}"));
+            Assert.assertNull(coll1.get("a"));
+            Assert.assertNotNull(coll2.get("a"));
+            tailer.process((DBObject) JSON.parse("{'ns':'testdb.coll1','op':'d','o':{'_id':'b'}}"));
+            Assert.assertNull(coll1.get("b"));
+            tailer.process((DBObject) JSON.parse("{'ns':'otherdb.coll1','op':'d','o':{'_id':'c'}}"));
+            Assert.assertNotNull(coll1.get("c"));
+            tailer.process((DBObject) JSON.parse("{'ns':'testdb.coll1','op':'n','o':{'msg':'x'}}"));
+            Assert.assertNotNull(coll1.get("c"));
+            tailer.process((DBObject) JSON.parse("{'ns':'testdb.$cmd','op':'c','o':{'drop':'coll2'}}"));
+            Assert.assertEquals(0, coll1.size());
+            Assert.assertEquals(0, coll2.size());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void idValues() {
+        Assert.assertEquals(1, Translator.getIdValues((DBObject) JSON.parse("{'_id':'a'}")).size());
+        Assert.assertEquals(2, Translator.getIdValues((DBObject) JSON.parse("{'_id':{'$in':['a','b']}}")).size());
+        Assert.assertNull(Translator.getIdValues((DBObject) JSON.parse("{'_id':{'$gt':'a'}}")));
+        Assert.assertNull(Translator.getIdValues((DBObject) JSON.parse("{'_id':'a','field1':'x'}")));
+        Assert.assertNull(Translator.getIdValues((DBObject) JSON.parse("{'_id':{'$in':['a',{'$regex':'b'}]}}")));
+        Assert.assertNull(Translator.getIdValues(null));
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.redhat.lightblue.eval.FieldAccessRoleEvaluator;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.metadata.Field;
+import com.redhat.lightblue.metadata.PredefinedFields;
+import com.redhat.lightblue.metadata.TypeResolver;
+import com.redhat.lightblue.metadata.mongo.MongoDataStoreParser;
+import com.redhat.lightblue.metadata.parser.Extensions;
+import com.redhat.lightblue.metadata.parser.JSONMetadataParser;
+import com.redhat.lightblue.metadata.types.DefaultTypes;
+import com.redhat.lightblue.util.JsonDoc;
+import com.redhat.lightblue.util.Path;
+import com.redhat.lightblue.util.test.AbstractJsonSchemaTest;
+
+public class FieldAccessMaskTest extends AbstractJsonSchemaTest {
+
+    private static final JsonNodeFactory nodeFactory = JsonNodeFactory.withExactBigDecimals(true);
+
+    private EntityMetadata md;
+
+    @Before
+    public void init() throws Exception {
+        JsonNode node = loadJsonNode("./testMetadata.json");
+        Extensions<JsonNode> extensions = new Extensions<>();
+        extensions.addDefaultExtensions();
+        extensions.registerDataStoreParser("mongo", new MongoDataStoreParser<JsonNode>());
+        TypeResolver resolver = new DefaultTypes();
+        JSONMetadataParser parser = new JSONMetadataParser(extensions, resolver, nodeFactory);
+        md = parser.parseEntityMetadata(node);
+        PredefinedFields.ensurePredefinedFields(md);
+        ((Field) md.resolve(new Path("field1"))).getAccess().getUpdate().setRoles("admin");
+        ((Field) md.resolve(new Path("field3"))).getAccess().getInsert().setRoles("admin");
+        FieldAccessMask.clearCache();
+    }
+
+    private static Set<String> roles(String... r) {
+        return new HashSet<>(Arrays.asList(r));
+    }
+
+    @Test
+    public void sameAsEvaluator() throws Exception {
+        JsonDoc doc = new JsonDoc(loadJsonNode("./testdata1.json"));
+        JsonDoc modified = doc.copy();
+        modified.modify(new Path("field1"), nodeFactory.textNode("changed"), false);
+        for (Set<String> r : Arrays.asList(roles(), roles("admin"))) {
+            FieldAccessRoleEvaluator eval = new FieldAccessRoleEvaluator(md, r);
+            FieldAccessMask mask = new FieldAccessMask(md, r);
+            for (FieldAccessRoleEvaluator.Operation op : FieldAccessRoleEvaluator.Operation.values()) {
+                Assert.assertEquals(eval.getInaccessibleFields(op), mask.getInaccessibleFields(op));
+            }
+            Assert.assertEquals(eval.getInaccessibleFields_Insert(doc), mask.getInaccessibleFields_Insert(doc));
+            Assert.assertEquals(eval.getInaccessibleFields_Update(modified, doc), mask.getInaccessibleFields_Update(modified, doc));
+            Assert.assertEquals(eval.getInaccessibleFields_Update(doc, doc), mask.getInaccessibleFields_Update(doc, doc));
+        }
+        List<Path> paths = new FieldAccessMask(md, roles()).getInaccessibleFields_Update(modified, doc);
+        Assert.assertEquals(1, paths.size());
+        Assert.assertEquals(new Path("field1"), paths.get(0));
+        Assert.assertTrue(new FieldAccessMask(md, roles("admin")).getInaccessibleFields_Update(modified, doc).isEmpty());
+    }
+
+    @Test
+    public void cachedPerRoleSet() {
+        FieldAccessMask mask = FieldAccessMask.get(md, roles("a", "b"));
+        Assert.assertSame(mask, FieldAccessMask.get(md, roles("b", "a")));
+        Assert.assertNotSame(mask, FieldAccessMask.get(md, roles("admin")));
+        Assert.assertNotNull(mask.getExcludedFields(FieldAccessRoleEvaluator.Operation.update));
+        Assert.assertNull(mask.getExcludedFields(FieldAccessRoleEvaluator.Operation.find));
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import com.redhat.lightblue.query.SortKey;
+
+public class IndexAdvisorTest {
+
+    private DBObject q(String s) {
+        return (DBObject) JSON.parse(s);
+    }
+
+    @Test
+    public void equalitySortRange() {
+        List<SortKey> index = IndexAdvisor.proposeIndex(q("{'age':{'$gt':'?'},'status':'?','$and':[{'type':{'$in':'?'}}]}"),
+                q("{'created':-1}"));
+        Assert.assertEquals(4, index.size());
+        Assert.assertEquals("status", index.get(0).getField().toString());
+        Assert.assertEquals("type", index.get(1).getField().toString());
+        Assert.assertEquals("created", index.get(2).getField().toString());
+        Assert.assertTrue(index.get(2).isDesc());
+        Assert.assertEquals("age", index.get(3).getField().toString());
+    }
+
+    @Test
+    public void idOnly() {
+        Assert.assertNull(IndexAdvisor.proposeIndex(new BasicDBObject("_id", "?"), null));
+    }
+
+    @Test
+    public void parseLegacyPlan() {
+        QueryPlan plan = QueryPlan.parse(q("{'cursor':'BasicCursor','n':5,'nscannedObjects':1000,'scanAndOrder':true}"));
+        Assert.assertTrue(plan.isCollectionScan());
+        Assert.assertTrue(plan.isInMemorySort());
+        Assert.assertEquals(1000, plan.getDocsExamined());
+        Assert.assertEquals(5, plan.getNReturned());
+
+        plan = QueryPlan.parse(q("{'cursor':'BtreeCursor a_1','n':5,'nscannedObjects':5}"));
+        Assert.assertFalse(plan.isCollectionScan());
+        Assert.assertEquals("a_1", plan.getIndexName());
+    }
+
+    @Test
+    public void parsePlannerPlan() {
+        QueryPlan plan = QueryPlan.parse(q("{'queryPlanner':{'winningPlan':{'stage':'SORT','inputStage':{'stage':'FETCH','inputStage':{'stage':'IXSCAN','indexName':'a_1'}}}},"
+                + "'executionStats':{'nReturned':3,'totalDocsExamined':40}}"));
+        Assert.assertFalse(plan.isCollectionScan());
+        Assert.assertTrue(plan.isInMemorySort());
+        Assert.assertEquals("a_1", plan.getIndexName());
+        Assert.assertEquals(40, plan.getDocsExamined());
+    }
+
+    @Test
+    public void rankedBySavings() {
+        IndexAdvisor advisor = new IndexAdvisor();
+        advisor.analyze(new QueryShape("e", q("{'a':1}"), null), new QueryPlan(true, false, null, 100, 1));
+        advisor.analyze(new QueryShape("e", q("{'b':1}"), null), new QueryPlan(true, false, null, 10000, 1));
+        advisor.analyze(new QueryShape("e", q("{'c':1}"), null), new QueryPlan(false, false, "c_1", 1, 1));
+        advisor.analyze(new QueryShape("f", q("{'a':1}"), null), new QueryPlan(true, false, null, 100, 1));
+
+        List<IndexRecommendation> list = advisor.getRecommendations("e");
+        Assert.assertEquals(2, list.size());
+        Assert.assertEquals("b_1", list.get(0).getIndex().getName());
+        Assert.assertEquals("a_1", list.get(1).getIndex().getName());
+        Assert.assertEquals(3, advisor.getRecommendations(null).size());
+    }
+}
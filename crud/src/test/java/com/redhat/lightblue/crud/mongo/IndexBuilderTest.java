@@ -0,0 +1,117 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import com.redhat.lightblue.common.mongo.MongoDataStore;
+import com.redhat.lightblue.common.mongo.MongoIndexOptions;
+import com.redhat.lightblue.metadata.Index;
+import com.redhat.lightblue.metadata.Indexes;
+import com.redhat.lightblue.query.SortKey;
+import com.redhat.lightblue.util.Path;
+
+public class IndexBuilderTest {
+
+    private DBObject q(String s) {
+        return (DBObject) JSON.parse(s);
+    }
+
+    private DBObject spec() {
+        Index index = new Index();
+        index.setName("ix");
+        List<SortKey> fields = new ArrayList<>();
+        fields.add(new SortKey(new Path("a"), false));
+        fields.add(new SortKey(new Path("b.c"), true));
+        index.setFields(fields);
+        List<Index> list = new ArrayList<>();
+        list.add(index);
+        Indexes indexes = new Indexes();
+        indexes.setIndexes(list);
+
+        MongoDataStore ds = new MongoDataStore(null, null, "coll");
+        MongoIndexOptions options = new MongoIndexOptions();
+        options.setSparse(true);
+        options.setExpireAfterSeconds(10);
+        Map<String, Object> collation = new HashMap<>();
+        collation.put("locale", "en");
+        options.setCollation(collation);
+        ds.setIndexOptions("ix", options);
+
+        List<DBObject> specs = IndexBuilder.getIndexSpecs(indexes, ds);
+        Assert.assertEquals(1, specs.size());
+        return specs.get(0);
+    }
+
+    @Test
+    public void caseInsensitiveFieldIndex() {
+        MongoDataStore ds = new MongoDataStore(null, null, "coll");
+        ds.getCaseInsensitiveFields().add("name");
+        List<DBObject> specs = IndexBuilder.getIndexSpecs(null, ds);
+        Assert.assertEquals(1, specs.size());
+        Assert.assertEquals(q("{'@ci.name':1}"), specs.get(0).get(IndexBuilder.KEY));
+        Assert.assertEquals("name_ci", ((DBObject) specs.get(0).get(IndexBuilder.OPTIONS)).get("name"));
+    }
+
+    @Test
+    public void indexSpecs() {
+        DBObject spec = spec();
+        Assert.assertEquals(q("{'a':1,'b.c':-1}"), spec.get(IndexBuilder.KEY));
+        DBObject options = (DBObject) spec.get(IndexBuilder.OPTIONS);
+        Assert.assertEquals("ix", options.get("name"));
+        Assert.assertEquals(Boolean.TRUE, options.get("sparse"));
+        Assert.assertEquals(10, options.get("expireAfterSeconds"));
+    }
+
+    @Test
+    public void keysMatch() {
+        DBObject keys = (DBObject) spec().get(IndexBuilder.KEY);
+        Assert.assertTrue(IndexBuilder.keysMatch(keys, q("{'key':{'a':1,'b.c':-1.0}}")));
+        Assert.assertFalse(IndexBuilder.keysMatch(keys, q("{'key':{'a':1,'b.c':1}}")));
+        Assert.assertFalse(IndexBuilder.keysMatch(keys, q("{'key':{'b.c':-1,'a':1}}")));
+        // Different number of keys
+        Assert.assertFalse(IndexBuilder.keysMatch(keys, q("{'name':'_id_','key':{'_id':1}}")));
+        Assert.assertFalse(IndexBuilder.keysMatch(keys, q("{'key':{'a':1}}")));
+        Assert.assertFalse(IndexBuilder.keysMatch(keys, q("{'key':{'a':1,'b.c':-1,'d':1}}")));
+        Assert.assertFalse(IndexBuilder.keysMatch(keys, q("{'name':'x'}")));
+    }
+
+    @Test
+    public void optionsMatch() {
+        DBObject options = (DBObject) spec().get(IndexBuilder.OPTIONS);
+        Assert.assertTrue(IndexBuilder.indexOptionsMatch(options,
+                q("{'name':'ix','sparse':true,'expireAfterSeconds':10.0,'collation':{'locale':'en','strength':3}}")));
+        Assert.assertFalse(IndexBuilder.indexOptionsMatch(options,
+                q("{'name':'ix','sparse':true,'expireAfterSeconds':20,'collation':{'locale':'en'}}")));
+        Assert.assertFalse(IndexBuilder.indexOptionsMatch(options,
+                q("{'name':'ix','expireAfterSeconds':10,'collation':{'locale':'en'}}")));
+        Assert.assertFalse(IndexBuilder.indexOptionsMatch(options,
+                q("{'name':'ix','sparse':true,'expireAfterSeconds':10}")));
+        Assert.assertTrue(IndexBuilder.indexOptionsMatch(q("{'unique':false}"), q("{'name':'x'}")));
+        Assert.assertFalse(IndexBuilder.indexOptionsMatch(q("{'unique':true}"), q("{'name':'x'}")));
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import com.redhat.lightblue.common.mongo.MongoDataStore;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.metadata.Index;
+import com.redhat.lightblue.query.SortKey;
+import com.redhat.lightblue.util.Error;
+import com.redhat.lightblue.util.Path;
+
+public class IndexEnforcerTest {
+
+    private DBObject q(String s) {
+        return (DBObject) JSON.parse(s);
+    }
+
+    private List<Index> indexes() {
+        List<Index> list = new ArrayList<>();
+        Index index = new Index();
+        List<SortKey> fields = new ArrayList<>();
+        fields.add(new SortKey(new Path("status"), false));
+        fields.add(new SortKey(new Path("created"), true));
+        index.setFields(fields);
+        list.add(index);
+        return list;
+    }
+
+    @Test
+    public void leadingField() {
+        Assert.assertTrue(IndexEnforcer.canUseIndex(indexes(), q("{'status':'x','name':'y'}"), null));
+        Assert.assertTrue(IndexEnforcer.canUseIndex(indexes(), q("{'$and':[{'name':'y'},{'status':'x'}]}"), null));
+        Assert.assertTrue(IndexEnforcer.canUseIndex(null, q("{'_id':1}"), null));
+        Assert.assertFalse(IndexEnforcer.canUseIndex(indexes(), q("{'created':1}"), null));
+        Assert.assertFalse(IndexEnforcer.canUseIndex(indexes(), q("{'name':'y'}"), null));
+    }
+
+    @Test
+    public void negation() {
+        Assert.assertFalse(IndexEnforcer.canUseIndex(indexes(), q("{'status':{'$ne':'x'}}"), null));
+        Assert.assertFalse(IndexEnforcer.canUseIndex(indexes(), q("{'status':{'$nin':['x']}}"), null));
+        Assert.assertFalse(IndexEnforcer.canUseIndex(indexes(), q("{'status':{'$exists':false}}"), null));
+        Assert.assertFalse(IndexEnforcer.canUseIndex(indexes(), q("{'status':{'$not':{'$gt':'x'}}}"), null));
+        Assert.assertFalse(IndexEnforcer.canUseIndex(indexes(), q("{'$or':[{'status':{'$ne':'x'}},{'_id':1}]}"), null));
+        // A selective operator next to a negation uses the index
+        Assert.assertTrue(IndexEnforcer.canUseIndex(indexes(), q("{'status':{'$gt':'a','$ne':'x'}}"), null));
+        Assert.assertTrue(IndexEnforcer.canUseIndex(indexes(), q("{'status':{'$in':['x']}}"), null));
+    }
+
+    @Test
+    public void caseFoldedField() {
+        Set<String> fields = new HashSet<>(Arrays.asList("name"));
+        DBObject query = q("{'@ci.name':{'$gte':'ab','$lt':'ac'}}");
+        Assert.assertTrue(IndexEnforcer.canUseIndex(indexes(), fields, query, null));
+        Assert.assertFalse(IndexEnforcer.canUseIndex(indexes(), query, null));
+        Assert.assertFalse(IndexEnforcer.canUseIndex(indexes(), fields, q("{'@ci.other':'ab'}"), null));
+    }
+
+    @Test
+    public void or() {
+        Assert.assertTrue(IndexEnforcer.canUseIndex(indexes(), q("{'$or':[{'status':'x'},{'_id':1}]}"), null));
+        Assert.assertFalse(IndexEnforcer.canUseIndex(indexes(), q("{'$or':[{'status':'x'},{'name':'y'}]}"), null));
+    }
+
+    @Test
+    public void sort() {
+        Assert.assertTrue(IndexEnforcer.canUseIndex(indexes(), q("{'name':'y'}"), q("{'status':1,'created':-1}")));
+        Assert.assertTrue(IndexEnforcer.canUseIndex(indexes(), q("{'name':'y'}"), q("{'status':-1,'created':1}")));
+        Assert.assertFalse(IndexEnforcer.canUseIndex(indexes(), q("{'name':'y'}"), q("{'status':1,'created':1}")));
+        Assert.assertFalse(IndexEnforcer.canUseIndex(indexes(), q("{'name':'y'}"), q("{'created':-1}")));
+    }
+
+    @Test
+    public void rejectWithoutExplain() {
+        EntityMetadata md = new EntityMetadata("e");
+        MongoDataStore store = new MongoDataStore(null, null, "coll");
+        store.setIndexEnforcement(MongoDataStore.IndexEnforcement.reject);
+        md.setDataStore(store);
+        md.getEntityInfo().getIndexes().setIndexes(indexes());
+        IndexEnforcer enforcer = new IndexEnforcer();
+        // No collection: the decision must not need the server
+        enforcer.check(md, null, q("{'status':'x'}"), null);
+        try {
+            enforcer.check(md, null, q("{'name':'y'}"), null);
+            Assert.fail();
+        } catch (Error e) {
+            Assert.assertEquals(MongoCrudConstants.ERR_INDEX_REQUIRED, e.getErrorCode());
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IndexJobManagerTest {
+
+    @Test
+    public void maintenanceWindow() {
+        Assert.assertTrue(IndexJobManager.isInWindow(12, -1, -1));
+        Assert.assertTrue(IndexJobManager.isInWindow(2, 1, 5));
+        Assert.assertFalse(IndexJobManager.isInWindow(5, 1, 5));
+        Assert.assertFalse(IndexJobManager.isInWindow(0, 1, 5));
+        // Wraps around midnight
+        Assert.assertTrue(IndexJobManager.isInWindow(23, 22, 4));
+        Assert.assertTrue(IndexJobManager.isInWindow(3, 22, 4));
+        Assert.assertFalse(IndexJobManager.isInWindow(12, 22, 4));
+    }
+}
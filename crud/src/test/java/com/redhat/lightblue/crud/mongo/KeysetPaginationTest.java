@@ -0,0 +1,84 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import org.bson.types.ObjectId;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import com.redhat.lightblue.util.Error;
+
+public class KeysetPaginationTest {
+
+    private DBObject q(String s) {
+        return (DBObject) JSON.parse(s);
+    }
+
+    @Test
+    public void sortIncludesId() {
+        Assert.assertEquals(q("{'_id':1}"), KeysetPagination.getSort(null));
+        Assert.assertEquals(q("{'a':-1,'_id':1}"), KeysetPagination.getSort(q("{'a':-1}")));
+        Assert.assertEquals(q("{'_id':-1}"), KeysetPagination.getSort(q("{'_id':-1}")));
+    }
+
+    @Test
+    public void rangeQuery() {
+        DBObject sort = KeysetPagination.getSort(q("{'a':1,'b.c':-1}"));
+        ObjectId id = new ObjectId();
+        DBObject doc = new BasicDBObject("_id", id).append("a", 5).append("b", new BasicDBObject("c", "x"));
+        String token = KeysetPagination.encode(sort, doc);
+
+        DBObject range = KeysetPagination.getRangeQuery(sort, token);
+        DBObject expected = q("{'$or':[{'a':{'$gt':5}},"
+                + "{'a':5,'$or':[{'b.c':{'$lt':'x'}},{'b.c':null}]},"
+                + "{'a':5,'b.c':'x','_id':{'$gt':{'$oid':'" + id + "'}}}]}");
+        Assert.assertEquals(expected.toString(), range.toString());
+    }
+
+    @Test
+    public void nullSortKeys() {
+        DBObject sort = KeysetPagination.getSort(q("{'a':1,'b':-1}"));
+        // a missing, b null
+        String token = KeysetPagination.encode(sort, new BasicDBObject("_id", "x").append("b", null));
+        DBObject expected = q("{'$or':[{'a':{'$ne':null}},"
+                + "{'a':null,'b':null,'_id':{'$gt':'x'}}]}");
+        Assert.assertEquals(expected.toString(), KeysetPagination.getRangeQuery(sort, token).toString());
+    }
+
+    @Test
+    public void idOnly() {
+        DBObject sort = KeysetPagination.getSort(null);
+        String token = KeysetPagination.encode(sort, new BasicDBObject("_id", "x"));
+        Assert.assertEquals(q("{'_id':{'$gt':'x'}}"), KeysetPagination.getRangeQuery(sort, token));
+    }
+
+    @Test(expected = Error.class)
+    public void differentSort() {
+        String token = KeysetPagination.encode(KeysetPagination.getSort(q("{'a':1}")), new BasicDBObject("_id", "x").append("a", 1));
+        KeysetPagination.getRangeQuery(KeysetPagination.getSort(q("{'a':-1}")), token);
+    }
+
+    @Test(expected = Error.class)
+    public void invalidToken() {
+        KeysetPagination.getRangeQuery(KeysetPagination.getSort(null), "not a token");
+    }
+}
@@ -30,12 +30,16 @@ import com.mongodb.DBCollection;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBObject;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.redhat.lightblue.crud.CRUDDeleteResponse;
 import com.redhat.lightblue.crud.CRUDInsertionResponse;
+import com.redhat.lightblue.crud.CRUDOperationContext;
 import com.redhat.lightblue.crud.CRUDSaveResponse;
 import com.redhat.lightblue.crud.CRUDUpdateResponse;
 import com.redhat.lightblue.crud.DocCtx;
 import com.redhat.lightblue.crud.Operation;
+import com.redhat.lightblue.interceptor.CRUDDocInterceptor;
+import com.redhat.lightblue.interceptor.InterceptPoint;
 import com.redhat.lightblue.metadata.EntityMetadata;
 import com.redhat.lightblue.metadata.Version;
 import com.redhat.lightblue.metadata.SimpleField;
@@ -45,7 +49,9 @@ import com.redhat.lightblue.metadata.Index;
 import com.redhat.lightblue.metadata.types.StringType;
 import com.redhat.lightblue.metadata.types.IntegerType;
 
+import com.redhat.lightblue.common.mongo.MongoCacheOptions;
 import com.redhat.lightblue.common.mongo.MongoDataStore;
+import com.redhat.lightblue.common.mongo.MongoIndexOptions;
 import com.redhat.lightblue.common.mongo.DBResolver;
 import com.redhat.lightblue.query.Projection;
 import com.redhat.lightblue.query.SortKey;
@@ -254,8 +260,7 @@ public class MongoCRUDControllerTest extends AbstractMongoTest {
                 projection("{'field':'_id'}"));
         Assert.assertEquals(1, upd.getNumUpdated());
         Assert.assertEquals(0, upd.getNumFailed());
-        //Assert.assertEquals(AtomicIterateUpdate.class, ctx.getProperty(MongoCRUDController.PROP_UPDATER).getClass());
-        Assert.assertEquals(IterateAndUpdate.class, ctx.getProperty(MongoCRUDController.PROP_UPDATER).getClass());
+        Assert.assertEquals(AtomicIterateUpdate.class, ctx.getProperty(MongoCRUDController.PROP_UPDATER).getClass());
         DBObject obj = coll.find(new BasicDBObject("field3", 1000), new BasicDBObject("_id", 1)).next();
         Assert.assertNotNull(obj);
         System.out.println("DBObject:" + obj);
@@ -270,8 +275,7 @@ public class MongoCRUDControllerTest extends AbstractMongoTest {
         upd = controller.update(ctx, query("{'field':'field3','op':'>','rvalue':10}"),
                 update("{ '$set': { 'field3' : 1000 } }"),
                 projection("{'field':'_id'}"));
-        //Assert.assertEquals(AtomicIterateUpdate.class, ctx.getProperty(MongoCRUDController.PROP_UPDATER).getClass());
-        Assert.assertEquals(IterateAndUpdate.class, ctx.getProperty(MongoCRUDController.PROP_UPDATER).getClass());
+        Assert.assertEquals(AtomicIterateUpdate.class, ctx.getProperty(MongoCRUDController.PROP_UPDATER).getClass());
         Assert.assertEquals(10, upd.getNumUpdated());
         Assert.assertEquals(0, upd.getNumFailed());
         Assert.assertEquals(10, coll.find(new BasicDBObject("field3", new BasicDBObject("$gt", 10))).count());
@@ -281,12 +285,23 @@ public class MongoCRUDControllerTest extends AbstractMongoTest {
         ctx.add(md);
         upd = controller.update(ctx, query("{'field':'field3','op':'>','rvalue':10}"),
                 update("{ '$set': { 'field3' : 1000 } }"), null);
-        //Assert.assertEquals(AtomicIterateUpdate.class, ctx.getProperty(MongoCRUDController.PROP_UPDATER).getClass());
-        Assert.assertEquals(IterateAndUpdate.class, ctx.getProperty(MongoCRUDController.PROP_UPDATER).getClass());
+        Assert.assertEquals(AtomicIterateUpdate.class, ctx.getProperty(MongoCRUDController.PROP_UPDATER).getClass());
         Assert.assertEquals(10, upd.getNumUpdated());
         Assert.assertEquals(0, upd.getNumFailed());
         Assert.assertEquals(10, coll.find(new BasicDBObject("field3", new BasicDBObject("$gt", 10))).count());
 
+        // Server side multi-update
+        controller.setDocInterceptors(false);
+        ctx = new TestCRUDOperationContext(Operation.UPDATE);
+        ctx.add(md);
+        upd = controller.update(ctx, query("{'field':'field3','op':'>','rvalue':10}"),
+                update("{ '$set': { 'field3' : 2000 } }"), null);
+        controller.setDocInterceptors(true);
+        Assert.assertEquals(MultiUpdate.class, ctx.getProperty(MongoCRUDController.PROP_UPDATER).getClass());
+        Assert.assertEquals(UpdatePlanner.Plan.multiUpdate, ctx.getProperty(MongoCRUDController.PROP_UPDATE_PLAN));
+        Assert.assertEquals(10, upd.getNumUpdated());
+        Assert.assertEquals(10, coll.find(new BasicDBObject("field3", 2000)).count());
+
         // Iterate update
         ctx = new TestCRUDOperationContext(Operation.UPDATE);
         ctx.add(md);
@@ -297,6 +312,49 @@ public class MongoCRUDControllerTest extends AbstractMongoTest {
         Assert.assertEquals(10, upd.getNumUpdated());
         Assert.assertEquals(0, upd.getNumFailed());
         Assert.assertEquals(10, coll.find(new BasicDBObject("field7.0.elemf1", "blah")).count());
+
+        // Atomic array update
+        ctx = new TestCRUDOperationContext(Operation.UPDATE);
+        ctx.add(md);
+        upd = controller.update(ctx, query("{'field':'field3','op':'>','rvalue':10}"),
+                update("[ { '$append' : { 'field6.nf6' : 'three' } }, "
+                        + "{ '$foreach' : { 'field7' : { 'field' : 'elemf3', 'op' : '=', 'rvalue' : 1 }, '$update' : '$remove' } } ]"),
+                projection("{'field':'_id'}"));
+        Assert.assertEquals(AtomicIterateUpdate.class, ctx.getProperty(MongoCRUDController.PROP_UPDATER).getClass());
+        Assert.assertEquals(10, upd.getNumUpdated());
+        Assert.assertEquals(0, upd.getNumFailed());
+        Assert.assertEquals(10, coll.find(new BasicDBObject("field6.nf6", new BasicDBObject("$size", 3))).count());
+        Assert.assertEquals(10, coll.find(new BasicDBObject("field7", new BasicDBObject("$size", 1))).count());
+        Assert.assertEquals(10, coll.find(new BasicDBObject("field7#", 1)).count());
+    }
+
+    @Test
+    public void updateInterceptorSeesFullDocument() throws Exception {
+        final String prop = "test:field2";
+        factory.getInterceptors().registerInterceptor(1000, new CRUDDocInterceptor() {
+            @Override
+            public void run(CRUDOperationContext ctx, DocCtx doc) {
+                if (ctx.getProperty(prop) != null) {
+                    JsonNode node = doc.get(new Path("field2"));
+                    ctx.setProperty(prop, node == null ? "missing" : node.asText());
+                }
+            }
+        }, InterceptPoint.PRE_CRUD_UPDATE_DOC);
+        EntityMetadata md = getMd("./testMetadata.json");
+        TestCRUDOperationContext ctx = new TestCRUDOperationContext(Operation.INSERT);
+        ctx.add(md);
+        ctx.addDocument(new JsonDoc(loadJsonNode("./testdata1.json")));
+        controller.insert(ctx, projection("{'field':'_id'}"));
+
+        ctx = new TestCRUDOperationContext(Operation.UPDATE);
+        ctx.add(md);
+        ctx.setProperty(prop, "");
+        CRUDUpdateResponse upd = controller.update(ctx, query("{'field':'field3','op':'$eq','rvalue':1}"),
+                update("{ '$set': { 'field3' : 5 } }"),
+                projection("{'field':'_id'}"));
+        Assert.assertEquals(AtomicIterateUpdate.class, ctx.getProperty(MongoCRUDController.PROP_UPDATER).getClass());
+        Assert.assertEquals(1, upd.getNumUpdated());
+        Assert.assertEquals("f2", ctx.getProperty(prop));
     }
 
     @Test
@@ -347,6 +405,118 @@ public class MongoCRUDControllerTest extends AbstractMongoTest {
         }
     }
 
+    @Test
+    public void queryCacheTest() throws Exception {
+        EntityMetadata md = getMd("./testMetadata.json");
+        ((MongoDataStore) md.getDataStore()).setQueryCache(new MongoCacheOptions());
+        TestCRUDOperationContext ctx = new TestCRUDOperationContext(Operation.INSERT);
+        ctx.add(md);
+        List<JsonDoc> docs = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            JsonDoc doc = new JsonDoc(loadJsonNode("./testdata1.json"));
+            doc.modify(new Path("field1"), nodeFactory.textNode("doc" + i), false);
+            doc.modify(new Path("field3"), nodeFactory.numberNode(i), false);
+            docs.add(doc);
+        }
+        ctx.addDocuments(docs);
+        controller.insert(ctx, projection("{'field':'_id'}"));
+        QueryCache cache = controller.getQueryCache((MongoDataStore) md.getDataStore());
+        long hits = cache.getHits();
+
+        for (int k = 0; k < 2; k++) {
+            ctx = new TestCRUDOperationContext(Operation.FIND);
+            ctx.add(md);
+            controller.find(ctx, query("{'field':'field3','op':'>=','rvalue':0}"),
+                    projection("{'field':'*','recursive':1}"),
+                    sort("{'field3':'$asc'}"), null, null);
+            Assert.assertEquals(5, ctx.getDocuments().size());
+            Assert.assertEquals(0, ctx.getDocuments().get(0).getOutputDocument().get(new Path("field3")).asInt());
+        }
+        Assert.assertEquals(hits + 1, cache.getHits());
+
+        // Writes invalidate the cache
+        ctx = new TestCRUDOperationContext(Operation.DELETE);
+        ctx.add(md);
+        controller.delete(ctx, query("{'field':'field3','op':'=','rvalue':0}"));
+        Assert.assertEquals(0, cache.size());
+
+        ctx = new TestCRUDOperationContext(Operation.FIND);
+        ctx.add(md);
+        controller.find(ctx, query("{'field':'field3','op':'>=','rvalue':0}"),
+                projection("{'field':'*','recursive':1}"),
+                sort("{'field3':'$asc'}"), null, null);
+        Assert.assertEquals(4, ctx.getDocuments().size());
+        Assert.assertEquals(hits + 1, cache.getHits());
+    }
+
+    @Test
+    public void queryCacheHitInterceptors() throws Exception {
+        final String prop = "test:findField2";
+        factory.getInterceptors().registerInterceptor(1000, new CRUDDocInterceptor() {
+            @Override
+            public void run(CRUDOperationContext ctx, DocCtx doc) {
+                if (ctx.getProperty(prop) != null) {
+                    JsonNode node = doc.get(new Path("field2"));
+                    ctx.setProperty(prop, node == null ? "missing" : node.asText());
+                }
+            }
+        }, InterceptPoint.POST_CRUD_FIND_DOC);
+        EntityMetadata md = getMd("./testMetadata.json");
+        ((MongoDataStore) md.getDataStore()).setQueryCache(new MongoCacheOptions());
+        TestCRUDOperationContext ctx = new TestCRUDOperationContext(Operation.INSERT);
+        ctx.add(md);
+        ctx.addDocument(new JsonDoc(loadJsonNode("./testdata1.json")));
+        controller.insert(ctx, projection("{'field':'_id'}"));
+        QueryCache cache = controller.getQueryCache((MongoDataStore) md.getDataStore());
+        long hits = cache.getHits();
+
+        // The interceptors see the full document, and the output is
+        // projected, on a miss and on a hit
+        for (int k = 0; k < 2; k++) {
+            ctx = new TestCRUDOperationContext(Operation.FIND);
+            ctx.add(md);
+            ctx.setProperty(prop, "");
+            controller.find(ctx, query("{'field':'field3','op':'=','rvalue':1}"),
+                    projection("{'field':'field3'}"), null, null, null);
+            Assert.assertEquals("f2", ctx.getProperty(prop));
+            Assert.assertEquals(1, ctx.getDocuments().size());
+            Assert.assertNull(ctx.getDocuments().get(0).getOutputDocument().get(new Path("field2")));
+            Assert.assertEquals(1, ctx.getDocuments().get(0).getOutputDocument().get(new Path("field3")).asInt());
+        }
+        Assert.assertEquals(hits + 1, cache.getHits());
+    }
+
+    @Test
+    public void documentCacheInvalidatedByUncachedVersion() throws Exception {
+        EntityMetadata cached = getMd("./testMetadata.json");
+        ((MongoDataStore) cached.getDataStore()).setDocumentCache(new MongoCacheOptions());
+        EntityMetadata uncached = getMd("./testMetadata.json");
+        TestCRUDOperationContext ctx = new TestCRUDOperationContext(Operation.INSERT);
+        ctx.add(cached);
+        ctx.addDocument(new JsonDoc(loadJsonNode("./testdata1.json")));
+        controller.insert(ctx, projection("{'field':'_id'}"));
+        String id = ctx.getDocuments().get(0).getOutputDocument().get(new Path("_id")).asText();
+
+        ctx = new TestCRUDOperationContext(Operation.FIND);
+        ctx.add(cached);
+        controller.find(ctx, query("{'field':'_id','op':'=','rvalue':'" + id + "'}"),
+                projection("{'field':'*','recursive':1}"), null, null, null);
+        Assert.assertEquals(1, controller.getDocumentCache((MongoDataStore) cached.getDataStore()).size());
+
+        // A write through a version without a document cache invalidates it
+        ctx = new TestCRUDOperationContext(Operation.UPDATE);
+        ctx.add(uncached);
+        controller.update(ctx, query("{'field':'_id','op':'=','rvalue':'" + id + "'}"),
+                update("{ '$set': { 'field3' : 42 } }"), null);
+        Assert.assertEquals(0, controller.getDocumentCache((MongoDataStore) cached.getDataStore()).size());
+
+        ctx = new TestCRUDOperationContext(Operation.FIND);
+        ctx.add(cached);
+        controller.find(ctx, query("{'field':'_id','op':'=','rvalue':'" + id + "'}"),
+                projection("{'field':'*','recursive':1}"), null, null, null);
+        Assert.assertEquals(42, ctx.getDocuments().get(0).getOutputDocument().get(new Path("field3")).asInt());
+    }
+
     @Test
     public void deleteTest() throws Exception {
         EntityMetadata md = getMd("./testMetadata.json");
@@ -477,4 +647,89 @@ public class MongoCRUDControllerTest extends AbstractMongoTest {
         }
         Assert.assertTrue(!foundIndex);
     }
+
+    @Test
+    public void entityIndexOptionsUpdateTest() throws Exception {
+        EntityMetadata e = new EntityMetadata("testEntity");
+        e.setVersion(new Version("1.0.0", null, "some text blah blah"));
+        e.setStatus(MetadataStatus.ACTIVE);
+        MongoDataStore ds = new MongoDataStore(null, null, "testCollectionIndex3");
+        e.setDataStore(ds);
+        e.getFields().put(new SimpleField("field1", StringType.TYPE));
+        e.getEntityInfo().setDefaultVersion("1.0.0");
+        Index index = new Index();
+        index.setName("testIndex");
+        List<SortKey> indexFields = new ArrayList<>();
+        indexFields.add(new SortKey(new Path("field1"), false));
+        index.setFields(indexFields);
+        List<Index> indexes = new ArrayList<>();
+        indexes.add(index);
+        e.getEntityInfo().getIndexes().setIndexes(indexes);
+        MongoIndexOptions options = new MongoIndexOptions();
+        options.setExpireAfterSeconds(100);
+        ds.setIndexOptions("testIndex", options);
+        controller.updateEntityInfo(null, e.getEntityInfo());
+
+        DBCollection entityCollection = db.getCollection("testCollectionIndex3");
+        Assert.assertEquals(100, ((Number) findIndex(entityCollection, "testIndex").get("expireAfterSeconds")).intValue());
+
+        // TTL change is applied in place
+        options.setExpireAfterSeconds(200);
+        controller.updateEntityInfo(null, e.getEntityInfo());
+        Assert.assertEquals(200, ((Number) findIndex(entityCollection, "testIndex").get("expireAfterSeconds")).intValue());
+
+        // Other option changes rebuild the index
+        options = new MongoIndexOptions();
+        options.setSparse(true);
+        ds.setIndexOptions("testIndex", options);
+        controller.updateEntityInfo(null, e.getEntityInfo());
+        DBObject ix = findIndex(entityCollection, "testIndex");
+        Assert.assertEquals(Boolean.TRUE, ix.get("sparse"));
+        Assert.assertNull(ix.get("expireAfterSeconds"));
+        Assert.assertNull(findIndex(entityCollection, "testIndex_rolling"));
+    }
+
+    @Test
+    public void entityIndexJobTest() throws Exception {
+        EntityMetadata e = new EntityMetadata("testEntity");
+        e.setVersion(new Version("1.0.0", null, "some text blah blah"));
+        e.setStatus(MetadataStatus.ACTIVE);
+        e.setDataStore(new MongoDataStore(null, null, "testCollectionIndex4"));
+        e.getFields().put(new SimpleField("field1", StringType.TYPE));
+        e.getEntityInfo().setDefaultVersion("1.0.0");
+        Index index = new Index();
+        index.setName("testIndex");
+        List<SortKey> indexFields = new ArrayList<>();
+        indexFields.add(new SortKey(new Path("field1"), false));
+        index.setFields(indexFields);
+        List<Index> indexes = new ArrayList<>();
+        indexes.add(index);
+        e.getEntityInfo().getIndexes().setIndexes(indexes);
+
+        IndexJobManager jobManager = new IndexJobManager();
+        jobManager.setPollMillis(50);
+        controller.setIndexJobManager(jobManager);
+        try {
+            controller.newSchema(null, e);
+            DBCollection entityCollection = db.getCollection("testCollectionIndex4");
+            for (int i = 0; i < 100 && findIndex(entityCollection, "testIndex") == null; i++) {
+                Thread.sleep(50);
+            }
+            Assert.assertNotNull(findIndex(entityCollection, "testIndex"));
+            List<DBObject> jobs = jobManager.getJobs(db, "testEntity");
+            Assert.assertEquals(1, jobs.size());
+        } finally {
+            jobManager.stop();
+            controller.setIndexJobManager(null);
+        }
+    }
+
+    private DBObject findIndex(DBCollection coll, String name) {
+        for (DBObject mongoIndex : coll.getIndexInfo()) {
+            if (name.equals(mongoIndex.get("name"))) {
+                return mongoIndex;
+            }
+        }
+        return null;
+    }
 }
@@ -0,0 +1,61 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.redhat.lightblue.crud.CRUDOperationContext;
+import com.redhat.lightblue.crud.Factory;
+import com.redhat.lightblue.crud.Operation;
+import com.redhat.lightblue.metadata.EntityMetadata;
+
+public class PhaseTimerTest {
+
+    private CRUDOperationContext newContext() {
+        return new CRUDOperationContext(Operation.FIND, "test", new Factory(), new HashSet<String>(), null) {
+            @Override
+            public EntityMetadata getEntityMetadata(String entityName) {
+                return null;
+            }
+        };
+    }
+
+    @Test
+    public void timerIsAttachedToContext() {
+        CRUDOperationContext ctx = newContext();
+        PhaseTimer timer = PhaseTimer.start(ctx, MongoCRUDController.OP_FIND);
+        Assert.assertSame(timer, PhaseTimer.get(ctx));
+    }
+
+    @Test
+    public void summary() {
+        PhaseTimer timer = PhaseTimer.get(newContext());
+        timer.record(PhaseTimer.Phase.server, 5000000l);
+        timer.record(PhaseTimer.Phase.server, 3000000l);
+        timer.record(PhaseTimer.Phase.decode, 2000000l);
+        Map<String, Long> summary = timer.getSummary();
+        Assert.assertEquals(2, summary.size());
+        Assert.assertEquals(Long.valueOf(8), summary.get("server"));
+        Assert.assertEquals(Long.valueOf(2), summary.get("decode"));
+    }
+}
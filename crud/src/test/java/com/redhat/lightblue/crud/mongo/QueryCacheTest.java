@@ -0,0 +1,89 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.redhat.lightblue.util.JsonDoc;
+import com.redhat.lightblue.util.Path;
+
+public class QueryCacheTest {
+
+    private static List<JsonDoc> docs(int n) {
+        List<JsonDoc> ret = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            ObjectNode node = JsonNodeFactory.instance.objectNode();
+            node.put("_id", "id" + i);
+            ret.add(new JsonDoc(node));
+        }
+        return ret;
+    }
+
+    @Test
+    public void hitAndCopy() {
+        QueryCache cache = new QueryCache("hitAndCopy");
+        Assert.assertNull(cache.get("q"));
+        cache.put("q", docs(3), 10, cache.getGeneration());
+        QueryCache.Result result = cache.get("q");
+        Assert.assertNotNull(result);
+        Assert.assertEquals(10, result.getSize());
+        List<JsonDoc> out = result.getDocuments();
+        Assert.assertEquals(3, out.size());
+        out.get(0).modify(new Path("_id"), JsonNodeFactory.instance.textNode("x"), false);
+        Assert.assertEquals("id0", cache.get("q").getDocuments().get(0).get(new Path("_id")).asText());
+        Assert.assertEquals(2, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void documentBound() {
+        QueryCache cache = new QueryCache("documentBound", 5, 60000);
+        cache.put("a", docs(2), 2, cache.getGeneration());
+        cache.put("b", docs(2), 2, cache.getGeneration());
+        Assert.assertNotNull(cache.get("a"));
+        cache.put("c", docs(2), 2, cache.getGeneration());
+        Assert.assertEquals(4, cache.getNumDocuments());
+        Assert.assertNotNull(cache.get("a"));
+        Assert.assertNull(cache.get("b"));
+        Assert.assertNotNull(cache.get("c"));
+        // Larger than the cache
+        cache.put("d", docs(6), 6, cache.getGeneration());
+        Assert.assertNull(cache.get("d"));
+        Assert.assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void invalidation() throws Exception {
+        QueryCache cache = new QueryCache("invalidation", 100, 10);
+        long generation = cache.getGeneration();
+        cache.invalidateAll();
+        cache.put("a", docs(1), 1, generation);
+        Assert.assertNull(cache.get("a"));
+        cache.put("a", docs(1), 1, cache.getGeneration());
+        Thread.sleep(50);
+        Assert.assertNull(cache.get("a"));
+        Assert.assertEquals(0, cache.getNumDocuments());
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+public class QueryRewriterTest {
+
+    private DBObject q(String s) {
+        return (DBObject) JSON.parse(s.replace('\'', '"'));
+    }
+
+    private void assertRewrite(String expected, String query) {
+        DBObject rewritten = QueryRewriter.rewrite(q(query));
+        Assert.assertEquals(q(expected), rewritten);
+        // The rewrite is idempotent
+        Assert.assertEquals(rewritten, QueryRewriter.rewrite(rewritten));
+    }
+
+    @Test
+    public void flattenNestedLogicalOperators() {
+        assertRewrite("{'a':1,'b':2,'c':3}", "{'$and':[{'a':1},{'$and':[{'b':2},{'c':3}]}]}");
+        assertRewrite("{'$or':[{'a':1},{'b':2},{'c':3}]}", "{'$or':[{'a':1},{'$or':[{'b':2},{'c':3}]}]}");
+        assertRewrite("{'a':1}", "{'$or':[{'$and':[{'a':1}]}]}");
+    }
+
+    @Test
+    public void conflictingFieldsStayInAnd() {
+        assertRewrite("{'a':1,'$and':[{'a':{'$gt':0}}]}", "{'$and':[{'a':1},{'a':{'$gt':0}}]}");
+        assertRewrite("{'a':1}", "{'$and':[{'a':1},{'a':1}]}");
+    }
+
+    @Test
+    public void foldEqualitiesIntoIn() {
+        assertRewrite("{'a':{'$in':[1,2,3]}}", "{'$or':[{'a':1},{'a':2},{'a':{'$in':[2,3]}}]}");
+        assertRewrite("{'$or':[{'a':{'$in':[1,2]}},{'b':3}]}", "{'$or':[{'a':1},{'b':3},{'a':2}]}");
+        assertRewrite("{'$or':[{'a':1,'b':1},{'a':2}]}", "{'$or':[{'a':1,'b':1},{'a':2}]}");
+        assertRewrite("{'a':1}", "{'a':{'$in':[1]}}");
+    }
+
+    @Test
+    public void mergeRanges() {
+        assertRewrite("{'a':{'$gt':5,'$lte':10}}", "{'$and':[{'a':{'$gt':1}},{'a':{'$gt':5,'$lt':20}},{'a':{'$lte':10}}]}");
+        assertRewrite("{'a':{'$gt':5}}", "{'$and':[{'a':{'$gte':5}},{'a':{'$gt':5}}]}");
+        assertRewrite("{'a':{'$gte':6}}", "{'$and':[{'a':{'$gte':6}},{'a':{'$gt':5.5}}]}");
+        // Strings are not merged, the server collation may differ
+        assertRewrite("{'a':{'$gt':'a'},'$and':[{'a':{'$gt':'b'}}]}", "{'$and':[{'a':{'$gt':'a'}},{'a':{'$gt':'b'}}]}");
+    }
+
+    @Test
+    public void removeTautologies() {
+        assertRewrite("{'a':1}", "{'$and':[{'a':1},{}]}");
+        assertRewrite("{'a':1}", "{'a':1,'$or':[{'b':1},{}]}");
+        assertRewrite("{}", "{'$or':[{'b':1},{'$and':[{}]}]}");
+    }
+
+    @Test
+    public void elemMatchAndNor() {
+        assertRewrite("{'arr':{'$elemMatch':{'x':{'$in':[1,2]}}},'$nor':[{'y':1,'z':2}]}",
+                "{'arr':{'$elemMatch':{'$or':[{'x':1},{'x':2}]}},'$nor':[{'$and':[{'y':1},{'z':2}]}]}");
+    }
+
+    @Test
+    public void normalizedShapesAreCached() {
+        QueryRewriter rewriter = new QueryRewriter();
+        DBObject query = q("{'a':1,'b':{'$gt':2}}");
+        Assert.assertSame(query, rewriter.rewrite("e", query));
+        DBObject query2 = q("{'a':5,'b':{'$gt':7}}");
+        Assert.assertSame(query2, rewriter.rewrite("e", query2));
+        Assert.assertEquals(q("{'a':{'$in':[1,2]}}"), rewriter.rewrite("e", q("{'$or':[{'a':1},{'a':2}]}")));
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+public class QueryShapeTest {
+
+    private DBObject q(String s) {
+        return (DBObject) JSON.parse(s);
+    }
+
+    @Test
+    public void literalsAreStripped() {
+        DBObject shape = QueryShape.normalize(q("{'a':1,'b':{'$in':[1,2,3]},'$or':[{'c':'x'},{'d':{'$gt':5}}]}"));
+        Assert.assertEquals(q("{'a':'?','b':{'$in':'?'},'$or':[{'c':'?'},{'d':{'$gt':'?'}}]}"), shape);
+    }
+
+    @Test
+    public void structuralOperatorsAreKept() {
+        DBObject query = q("{'a':{'$exists':true},'$where':'this.a==this.b'}");
+        query.put("b", new BasicDBObject("$regex", "^x").append("$options", "i"));
+        DBObject shape = QueryShape.normalize(query);
+        DBObject expected = q("{'a':{'$exists':true},'$where':'this.a==this.b'}");
+        expected.put("b", new BasicDBObject("$regex", "?").append("$options", "i"));
+        Assert.assertEquals(expected, shape);
+    }
+
+    @Test
+    public void elemMatch() {
+        DBObject shape = QueryShape.normalize(q("{'arr':{'$elemMatch':{'x':1,'y':{'$lt':3}}}}"));
+        Assert.assertEquals(q("{'arr':{'$elemMatch':{'x':'?','y':{'$lt':'?'}}}}"), shape);
+    }
+
+    @Test
+    public void sameShapeSameFingerprint() {
+        QueryShape s1 = new QueryShape("e", q("{'a':1,'b':{'$in':[1,2]}}"), new BasicDBObject("a", 1));
+        QueryShape s2 = new QueryShape("e", q("{'a':2,'b':{'$in':[3,4,5]}}"), new BasicDBObject("a", 1));
+        QueryShape s3 = new QueryShape("e", q("{'a':2,'b':{'$in':[3,4,5]}}"), new BasicDBObject("a", -1));
+        Assert.assertEquals(s1, s2);
+        Assert.assertEquals(s1.getFingerprint(), s2.getFingerprint());
+        Assert.assertNotEquals(s1.getFingerprint(), s3.getFingerprint());
+        Assert.assertNotEquals(s1, new QueryShape("f", q("{'a':1,'b':{'$in':[1,2]}}"), new BasicDBObject("a", 1)));
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RegexPrefixTest {
+
+    @Test
+    public void literalPrefix() {
+        Assert.assertNull(RegexPrefix.parse("abc"));
+        Assert.assertNull(RegexPrefix.parse("^.*abc"));
+        Assert.assertNull(RegexPrefix.parse("^ab|cd"));
+        Assert.assertNull(RegexPrefix.parse("^a?b"));
+
+        RegexPrefix p = RegexPrefix.parse("^abc");
+        Assert.assertEquals("abc", p.getPrefix());
+        Assert.assertTrue(p.isComplete());
+
+        p = RegexPrefix.parse("^a\\.b.*");
+        Assert.assertEquals("a.b", p.getPrefix());
+        Assert.assertTrue(p.isComplete());
+
+        p = RegexPrefix.parse("^abc*d");
+        Assert.assertEquals("ab", p.getPrefix());
+        Assert.assertFalse(p.isComplete());
+
+        p = RegexPrefix.parse("^ab+");
+        Assert.assertEquals("ab", p.getPrefix());
+        Assert.assertFalse(p.isComplete());
+
+        p = RegexPrefix.parse("^ab\\d");
+        Assert.assertEquals("ab", p.getPrefix());
+        Assert.assertFalse(p.isComplete());
+    }
+
+    @Test
+    public void upperBound() {
+        Assert.assertEquals("abd", RegexPrefix.upperBound("abc"));
+        Assert.assertNull(RegexPrefix.upperBound("ab￿"));
+        Assert.assertFalse(RegexPrefix.parse("^été").isAscii());
+    }
+}
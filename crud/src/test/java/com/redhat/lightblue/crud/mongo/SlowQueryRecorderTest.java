@@ -0,0 +1,68 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+
+public class SlowQueryRecorderTest {
+
+    @Test
+    public void recordByShape() {
+        SlowQueryRecorder r = new SlowQueryRecorder();
+        r.setSlowThreshold(100);
+        r.record("find", "e", null, new BasicDBObject("a", 1), null, 3);
+        r.record("find", "e", null, new BasicDBObject("a", 2), null, 200);
+        r.record("find", "e", null, new BasicDBObject("b", 2), null, 7);
+        r.record("delete", "e", null, new BasicDBObject("a", 2), null, 7);
+        Assert.assertEquals(3, r.getShapes().size());
+
+        String fp = new QueryShape("e", new BasicDBObject("a", 5), null).getFingerprint();
+        QueryShapeStatistics stats = r.getShape("find", fp);
+        Assert.assertEquals(2, stats.getCount());
+        Assert.assertEquals(1, stats.getSlowCount());
+        Assert.assertEquals(203, stats.getTotalTime());
+        Assert.assertEquals(200, stats.getMaxTime());
+        long[] h = stats.getHistogram();
+        // 3 ms is in the [1,5) bucket, 200 ms in [100,500)
+        Assert.assertEquals(1, h[1]);
+        Assert.assertEquals(1, h[5]);
+    }
+
+    @Test
+    public void boundedShapes() {
+        SlowQueryRecorder r = new SlowQueryRecorder();
+        r.setMaxShapes(1);
+        r.record("find", "e", null, new BasicDBObject("a", 1), null, 1);
+        r.record("find", "e", null, new BasicDBObject("b", 1), null, 1);
+        r.record("find", "e", null, new BasicDBObject("a", 3), null, 1);
+        Assert.assertEquals(1, r.getShapes().size());
+        Assert.assertEquals(2, r.getShapes().get(0).getCount());
+        Assert.assertEquals(1, r.getUntrackedCount());
+        r.reset();
+        Assert.assertTrue(r.getShapes().isEmpty());
+    }
+
+    @Test
+    public void jmx() {
+        Assert.assertSame(SlowQueryRecorder.getInstance(), SlowQueryRecorder.getInstance());
+    }
+}
@@ -19,15 +19,31 @@
 package com.redhat.lightblue.crud.mongo;
 
 import com.github.fge.jsonschema.core.exceptions.ProcessingException;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import com.redhat.lightblue.common.mongo.MongoDataStore;
 import com.redhat.lightblue.crud.Operation;
 import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.query.FieldComparisonExpression;
+import com.redhat.lightblue.query.NaryLogicalExpression;
+import com.redhat.lightblue.query.QueryExpression;
 import com.redhat.lightblue.query.UpdateExpression;
+import com.redhat.lightblue.util.JsonDoc;
+import com.redhat.lightblue.util.Path;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import org.bson.types.ObjectId;
 
 /**
@@ -35,6 +51,8 @@ import org.bson.types.ObjectId;
  * @author nmalik
  */
 public class TranslatorTest extends AbstractMongoTest {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TranslatorTest.class);
+
     private TestCRUDOperationContext ctx;
     private Translator translator;
     private EntityMetadata md;
@@ -101,32 +119,40 @@ public class TranslatorTest extends AbstractMongoTest {
      $update : foreach_update_expression } }
      */
 
-    @Test(expected = CannotTranslateException.class)
+    @Test
     public void translateUpdateAppendValue() throws Exception {
         String updateQueryJson = loadResource(getClass().getSimpleName() + "-update-append-value.json");
         UpdateExpression ue = update(updateQueryJson);
-        translator.translate(md, ue);
+        DBObject mongoUpdateExpr = translator.translate(md, ue);
+
+        Assert.assertEquals(JSON.parse("{'$push':{'field6.nf6':{'$each':['new value']}},'$inc':{'field6.nf6#':1}}"), mongoUpdateExpr);
     }
 
-    @Test(expected = CannotTranslateException.class)
+    @Test
     public void translateUpdateAppendValues() throws Exception {
         String updateQueryJson = loadResource(getClass().getSimpleName() + "-update-append-values.json");
         UpdateExpression ue = update(updateQueryJson);
-        translator.translate(md, ue);
+        DBObject mongoUpdateExpr = translator.translate(md, ue);
+
+        Assert.assertEquals(JSON.parse("{'$push':{'field6.nf6':{'$each':['1','2']}},'$inc':{'field6.nf6#':2}}"), mongoUpdateExpr);
     }
 
-    @Test(expected = CannotTranslateException.class)
+    @Test
     public void translateUpdateInsertValue() throws Exception {
         String updateQueryJson = loadResource(getClass().getSimpleName() + "-update-insert-value.json");
         UpdateExpression ue = update(updateQueryJson);
-        translator.translate(md, ue);
+        DBObject mongoUpdateExpr = translator.translate(md, ue);
+
+        Assert.assertEquals(JSON.parse("{'$push':{'field6.nf6':{'$each':['new value'],'$position':1}},'$inc':{'field6.nf6#':1}}"), mongoUpdateExpr);
     }
 
-    @Test(expected = CannotTranslateException.class)
+    @Test
     public void translateUpdateInsertValues() throws Exception {
         String updateQueryJson = loadResource(getClass().getSimpleName() + "-update-insert-values.json");
         UpdateExpression ue = update(updateQueryJson);
-        translator.translate(md, ue);
+        DBObject mongoUpdateExpr = translator.translate(md, ue);
+
+        Assert.assertEquals(JSON.parse("{'$push':{'field6.nf6':{'$each':['1','2'],'$position':1}},'$inc':{'field6.nf6#':2}}"), mongoUpdateExpr);
     }
 
     @Test(expected = CannotTranslateException.class)
@@ -136,6 +162,38 @@ public class TranslatorTest extends AbstractMongoTest {
         translator.translate(md, ue);
     }
 
+    @Test
+    public void translateUpdateForeachRemove() throws Exception {
+        Assert.assertEquals(JSON.parse("{'$pull':{'field7':{'elemf1':'x'}}}"),
+                translator.translate(md, update("{'$foreach':{'field7':{'field':'elemf1','op':'=','rvalue':'x'},'$update':'$remove'}}")));
+        Assert.assertEquals(JSON.parse("{'$pull':{'field6.nf5':{'$gt':3}}}"),
+                translator.translate(md, update("{'$foreach':{'field6.nf5':{'field':'$this','op':'>','rvalue':3},'$update':'$remove'}}")));
+        Assert.assertEquals(JSON.parse("{'$set':{'field6.nf5':[],'field6.nf5#':0}}"),
+                translator.translate(md, update("{'$foreach':{'field6.nf5':'$all','$update':'$remove'}}")));
+    }
+
+    @Test(expected = CannotTranslateException.class)
+    public void translateUpdateAppendInsertSameArray() throws Exception {
+        translator.translate(md, update("[{'$append':{'field6.nf6':'a'}},{'$insert':{'field6.nf6.0':'b'}}]"));
+    }
+
+    @Test(expected = CannotTranslateException.class)
+    public void translateUpdateForeachRemoveFieldComparison() throws Exception {
+        translator.translate(md, update("{'$foreach':{'field7':{'field':'elemf1','op':'=','rfield':'elemf2'},'$update':'$remove'}}"));
+    }
+
+    @Test
+    public void projectedFields() throws Exception {
+        Assert.assertNull(Translator.getProjectedFields(null));
+        Assert.assertNull(Translator.getProjectedFields(projection("{'field':'*','recursive':1}")));
+        Assert.assertNull(Translator.getProjectedFields(projection("{'field':'field1','include':false}")));
+        Assert.assertEquals(JSON.parse("{'_id':1,'field1':1,'field7':1,'objectType':1}"),
+                Translator.getFieldSelector(Translator.getProjectedFields(projection("[{'field':'field1'},"
+                        + "{'field':'field7.*.elemf1'},{'field':'field7.1.elemf2'},{'field':'field2','include':false}]"))));
+        Assert.assertEquals(JSON.parse("{'_id':1,'field6':1,'field7':1,'field7#':1,'objectType':1}"),
+                Translator.getFieldSelector(Arrays.asList("_id", "objectType", "field6.nf1", "field6", "field7#", "field7.elemf1", "field7")));
+    }
+
     @Test
     public void translateUpdateListSetField() throws Exception {
         String updateQueryJson = loadResource(getClass().getSimpleName() + "-update-list-set-field.json");
@@ -158,6 +216,166 @@ public class TranslatorTest extends AbstractMongoTest {
                 obj.get("$where").toString());
     }
 
+    @Test
+    public void translateWithResidual() throws Exception {
+        Translator.TranslatedQuery q = translator.translateWithResidual(md,
+                query("{'$and':[{'field':'field1','op':'=','rvalue':'x'},{'field':'field7.0.elemf1','op':'=','rfield':'field7.*.elemf2'}]}"));
+        Assert.assertEquals("x", q.getQuery().get("field1"));
+        Assert.assertNull(q.getQuery().get("$where"));
+        Assert.assertTrue(q.getResidual() instanceof FieldComparisonExpression);
+
+        q = translator.translateWithResidual(md, query("{'field':'field1','op':'=','rfield':'field2'}"));
+        Assert.assertTrue(q.getQuery().keySet().isEmpty());
+        Assert.assertNotNull(q.getResidual());
+
+        q = translator.translateWithResidual(md, query("{'field':'field1','op':'=','rvalue':'x'}"));
+        Assert.assertNull(q.getResidual());
+    }
+
+    @Test
+    public void rewriteEquivalentTranslations() throws Exception {
+        DBObject nested = translator.translate(md, query("{'$and':[{'$or':[{'field':'field1','op':'=','rvalue':'x'},"
+                + "{'field':'field1','op':'=','rvalue':'y'}]},{'$and':[{'field':'field3','op':'>','rvalue':1},"
+                + "{'field':'field3','op':'<=','rvalue':10},{'field':'field3','op':'>','rvalue':5}]}]}"));
+        DBObject flat = translator.translate(md, query("{'$and':[{'field':'field1','op':'$in','values':['x','y']},"
+                + "{'field':'field3','op':'>','rvalue':5},{'field':'field3','op':'<=','rvalue':10}]}"));
+        Assert.assertEquals(QueryRewriter.rewrite(flat), QueryRewriter.rewrite(nested));
+        Assert.assertEquals(2, QueryRewriter.rewrite(nested).keySet().size());
+    }
+
+    @Test
+    public void translateArrayContainsAnyNone() throws Exception {
+        DBObject any = translator.translate(md, query("{'array':'field6.nf5','contains':'$any','values':[1,2,3]}"));
+        Assert.assertEquals(JSON.parse("{'field6.nf5':{'$in':[1,2,3]}}"), any);
+        DBObject none = translator.translate(md, query("{'array':'field6.nf5','contains':'$none','values':[1,2]}"));
+        Assert.assertEquals(JSON.parse("{'field6.nf5':{'$nin':[1,2]}}"), none);
+    }
+
+    @Test
+    public void translateArrayContainsAnyNoneInConjunction() throws Exception {
+        DBObject q = translator.translate(md, query("{'$and':[{'array':'field6.nf5','contains':'$any','values':[1,2]},"
+                + "{'array':'field6.nf5','contains':'$none','values':[3]}]}"));
+        Assert.assertEquals(JSON.parse("{'$and':[{'field6.nf5':{'$in':[1,2]}},{'field6.nf5':{'$nin':[3]}}]}"), q);
+    }
+
+    /**
+     * Compares the $in translation of $any with the previous $or translation
+     * on a multikey index. Runs only with -Dlightblue.benchmark=true.
+     */
+    @Test
+    public void arrayContainsAnyBenchmark() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("lightblue.benchmark"));
+        for (int i = 0; i < 2000; i++) {
+            coll.insert(new BasicDBObject("field6", new BasicDBObject("nf5", Arrays.asList(i, i + 1, i + 2))));
+        }
+        coll.createIndex(new BasicDBObject("field6.nf5", 1));
+        BasicDBList values = new BasicDBList();
+        List<DBObject> or = new ArrayList<>();
+        for (int i = 0; i < 2000; i += 7) {
+            values.add(i);
+            or.add(new BasicDBObject("field6.nf5", i));
+        }
+        DBObject inQuery = translator.translate(md, query("{'array':'field6.nf5','contains':'$any','values':" + values + "}"));
+        DBObject orQuery = new BasicDBObject("$or", or);
+
+        int nIn = 0;
+        int nOr = 0;
+        long inTime = 0;
+        long orTime = 0;
+        for (int i = 0; i < 10; i++) {
+            long t = System.nanoTime();
+            nIn = coll.find(inQuery).itcount();
+            inTime += System.nanoTime() - t;
+            t = System.nanoTime();
+            nOr = coll.find(orQuery).itcount();
+            orTime += System.nanoTime() - t;
+        }
+
+        QueryPlan inPlan = QueryPlan.parse(coll.find(inQuery).explain());
+        QueryPlan orPlan = QueryPlan.parse(coll.find(orQuery).explain());
+        LOGGER.info("$in: {}us/query {}", inTime / 10000, inPlan);
+        LOGGER.info("$or: {}us/query {}", orTime / 10000, orPlan);
+
+        Assert.assertEquals(nOr, nIn);
+        Assert.assertFalse(inPlan.isCollectionScan());
+    }
+
+    @Test
+    public void regexPrefixRange() throws Exception {
+        DBObject q = translator.translate(md, query("{'field':'field1','regex':'^ab\\\\.c.*'}"));
+        Assert.assertEquals(new BasicDBObject("field1", new BasicDBObject("$regex", "^ab\\.c.*").append("$gte", "ab.c").append("$lt", "ab.d")), q);
+        q = translator.translate(md, query("{'field':'field1','regex':'ab'}"));
+        Assert.assertEquals(new BasicDBObject("field1", new BasicDBObject("$regex", "ab")), q);
+        q = translator.translate(md, query("{'field':'field1','regex':'^ab','caseInsensitive':true}"));
+        Assert.assertNull(((DBObject) q.get("field1")).get("$gte"));
+    }
+
+    @Test
+    public void caseInsensitiveShadowField() throws Exception {
+        ((MongoDataStore) md.getDataStore()).getCaseInsensitiveFields().add("field1");
+        try {
+            DBObject q = translator.translate(md, query("{'field':'field1','regex':'^AbC','caseInsensitive':true}"));
+            Assert.assertEquals(JSON.parse("{'@ci.field1':{'$gte':'abc','$lt':'abd'}}"), q);
+            q = translator.translate(md, query("{'field':'field1','regex':'^AbC[0-9]','caseInsensitive':true}"));
+            Assert.assertEquals("^AbC[0-9]", ((DBObject) q.get("field1")).get("$regex"));
+            Assert.assertEquals(JSON.parse("{'$gte':'abc','$lt':'abd'}"), q.get("@ci.field1"));
+
+            JsonDoc doc = new JsonDoc(json("{'objectType':'test','field1':'MiXeD'}"));
+            DBObject bson = translator.toBson(doc);
+            Assert.assertEquals("mixed", ((DBObject) bson.get(Translator.CASE_FOLDED_FIELDS)).get("field1"));
+            Assert.assertNull(translator.toJson(bson).get(new Path(Translator.CASE_FOLDED_FIELDS)));
+
+            DBObject u = translator.translate(md, update("{'$set':{'field1':'NeW'}}"));
+            Assert.assertEquals("new", ((DBObject) u.get("$set")).get("@ci.field1"));
+        } finally {
+            ((MongoDataStore) md.getDataStore()).getCaseInsensitiveFields().clear();
+        }
+    }
+
+    @Test
+    public void caseInsensitiveNotBackfilled() throws Exception {
+        ((MongoDataStore) md.getDataStore()).getCaseInsensitiveFields().add("field1");
+        try {
+            translator.setCaseFoldedFields(new HashSet<String>());
+            DBObject q = translator.translate(md, query("{'field':'field1','regex':'^AbC','caseInsensitive':true}"));
+            Assert.assertEquals(JSON.parse("{'field1':{'$regex':'^AbC','$options':'i'}}"), q);
+        } finally {
+            ((MongoDataStore) md.getDataStore()).getCaseInsensitiveFields().clear();
+        }
+    }
+
+    @Test
+    public void caseInsensitiveAncestorUnset() throws Exception {
+        ((MongoDataStore) md.getDataStore()).getCaseInsensitiveFields().add("field6.nf7.nnf1");
+        try {
+            DBObject u = translator.translate(md, update("{'$unset':['field6.nf7']}"));
+            Assert.assertTrue(((DBObject) u.get("$unset")).containsField("@ci.field6.nf7.nnf1"));
+            Assert.assertNull(u.get("$set"));
+            u = translator.translate(md, update("{'$unset':['field6.nf7.nnf2']}"));
+            Assert.assertFalse(((DBObject) u.get("$unset")).containsField("@ci.field6.nf7.nnf1"));
+        } finally {
+            ((MongoDataStore) md.getDataStore()).getCaseInsensitiveFields().clear();
+        }
+    }
+
+    @Test
+    public void splitDisjunction() throws Exception {
+        QueryExpression or = query("{'$or':[{'field':'field1','op':'=','rvalue':'x'},"
+                + "{'$and':[{'field':'field2','op':'=','rvalue':'y'},{'field':'field1','op':'=','rfield':'field2'}]}]}");
+        QueryExpression[] split = Translator.splitQuery(or);
+        // Prefilter with the server parts of the disjuncts, evaluate the whole disjunction
+        Assert.assertTrue(split[0] instanceof NaryLogicalExpression);
+        Assert.assertEquals(2, ((NaryLogicalExpression) split[0]).getQueries().size());
+        Assert.assertSame(or, split[1]);
+
+        split = Translator.splitQuery(query("{'$or':[{'field':'field1','op':'=','rvalue':'x'},{'field':'field1','op':'=','rfield':'field2'}]}"));
+        Assert.assertNull(split[0]);
+
+        split = Translator.splitQuery(query("{'$not':{'field':'field1','op':'=','rfield':'field2'}}"));
+        Assert.assertNull(split[0]);
+        Assert.assertNotNull(split[1]);
+    }
+
     @Test
     public void createIdFrom_null() {
         Object idObj = translator.createIdFrom(null);
@@ -0,0 +1,116 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.redhat.lightblue.crud.MetadataResolver;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.metadata.Field;
+import com.redhat.lightblue.metadata.FieldConstraint;
+import com.redhat.lightblue.metadata.PredefinedFields;
+import com.redhat.lightblue.metadata.TypeResolver;
+import com.redhat.lightblue.metadata.constraints.RequiredConstraint;
+import com.redhat.lightblue.metadata.mongo.MongoDataStoreParser;
+import com.redhat.lightblue.metadata.parser.Extensions;
+import com.redhat.lightblue.metadata.parser.JSONMetadataParser;
+import com.redhat.lightblue.metadata.types.DefaultTypes;
+import com.redhat.lightblue.query.UpdateExpression;
+import com.redhat.lightblue.util.JsonUtils;
+import com.redhat.lightblue.util.Path;
+import com.redhat.lightblue.util.test.AbstractJsonSchemaTest;
+
+public class UpdatePlannerTest extends AbstractJsonSchemaTest {
+
+    private static final JsonNodeFactory nodeFactory = JsonNodeFactory.withExactBigDecimals(true);
+
+    private EntityMetadata md;
+    private UpdatePlanner planner;
+
+    @Before
+    public void init() throws Exception {
+        JsonNode node = loadJsonNode("./testMetadata.json");
+        Extensions<JsonNode> extensions = new Extensions<>();
+        extensions.addDefaultExtensions();
+        extensions.registerDataStoreParser("mongo", new MongoDataStoreParser<JsonNode>());
+        TypeResolver resolver = new DefaultTypes();
+        JSONMetadataParser parser = new JSONMetadataParser(extensions, resolver, nodeFactory);
+        md = parser.parseEntityMetadata(node);
+        PredefinedFields.ensurePredefinedFields(md);
+        Translator translator = new Translator(new MetadataResolver() {
+            @Override
+            public EntityMetadata getEntityMetadata(String entityName) {
+                return md;
+            }
+        }, nodeFactory);
+        planner = new UpdatePlanner(md, translator, new FieldAccessMask(md, new HashSet<String>()));
+    }
+
+    private UpdatePlanner.Plan plan(String update, boolean needDocuments) throws Exception {
+        UpdateExpression u = UpdateExpression.fromJson(JsonUtils.json(update.replace('\'', '\"')));
+        return planner.plan(u, needDocuments, false, false);
+    }
+
+    @Test
+    public void multiUpdate() throws Exception {
+        Assert.assertEquals(UpdatePlanner.Plan.multiUpdate, plan("{'$set':{'field3':1}}", false));
+        Assert.assertEquals("{ \"$set\" : { \"field3\" : 1}}", planner.getMongoUpdate().toString());
+        Assert.assertTrue(planner.getUpdatedFields().contains(new Path("field3")));
+        Assert.assertEquals(UpdatePlanner.Plan.multiUpdate, plan("{'$append':{'field6.nf6':'x'}}", false));
+    }
+
+    @Test
+    public void findAndModify() throws Exception {
+        long n = UpdatePlanner.getCount(md.getName(), UpdatePlanner.Plan.findAndModify);
+        Assert.assertEquals(UpdatePlanner.Plan.findAndModify, plan("{'$set':{'field3':1}}", true));
+        // Pulls need the documents to correct the array sizes
+        Assert.assertEquals(UpdatePlanner.Plan.findAndModify,
+                plan("{'$foreach':{'field7':{'field':'elemf1','op':'=','rvalue':'x'},'$update':'$remove'}}", false));
+        Assert.assertTrue(planner.getUpdatedFields().contains(new Path("field7#")));
+        Assert.assertEquals(n + 2, UpdatePlanner.getCount(md.getName(), UpdatePlanner.Plan.findAndModify));
+    }
+
+    @Test
+    public void iterate() throws Exception {
+        // Arrays set directly, and fields under arrays
+        Assert.assertEquals(UpdatePlanner.Plan.iterate, plan("{'$set':{'field7.0.elemf1':'x'}}", false));
+        Assert.assertEquals(UpdatePlanner.Plan.iterate, plan("{'$unset':'field6'}", false));
+        // Cannot translate
+        Assert.assertEquals(UpdatePlanner.Plan.iterate, plan("{'$set':{'field1':{'$valueof':'field2'}}}", false));
+        Assert.assertNull(planner.getMongoUpdate());
+    }
+
+    @Test
+    public void iterateConstrained() throws Exception {
+        List<FieldConstraint> constraints = new ArrayList<>();
+        constraints.add(new RequiredConstraint());
+        ((Field) md.resolve(new Path("field6.nf7.nnf1"))).setConstraints(constraints);
+        Assert.assertEquals(UpdatePlanner.Plan.multiUpdate, plan("{'$set':{'field3':1}}", false));
+        Assert.assertEquals(UpdatePlanner.Plan.iterate, plan("{'$set':{'field6.nf7.nnf1':'x'}}", false));
+        Assert.assertEquals(UpdatePlanner.Plan.iterate, plan("{'$unset':'field6.nf7'}", false));
+    }
+}
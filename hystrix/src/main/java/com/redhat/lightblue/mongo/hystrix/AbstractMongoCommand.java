@@ -18,13 +18,20 @@
  */
 package com.redhat.lightblue.mongo.hystrix;
 
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import rx.Observable;
+import rx.functions.Func1;
+
 import com.mongodb.DBCollection;
 import com.mongodb.MongoSocketException;
 import com.netflix.hystrix.HystrixCommand;
 import com.netflix.hystrix.HystrixCommandGroupKey;
 import com.netflix.hystrix.HystrixCommandKey;
 import com.netflix.hystrix.HystrixThreadPoolKey;
-import com.netflix.hystrix.HystrixCommandProperties;
 import com.netflix.hystrix.exception.HystrixBadRequestException;
 
 /**
@@ -48,11 +55,52 @@ public abstract class AbstractMongoCommand<T> extends HystrixCommand<T> {
      * @param collection REQUIRED
      */
     public AbstractMongoCommand(String commandKey, DBCollection collection) {
-        super(HystrixCommand.Setter.withGroupKey(HystrixCommandGroupKey.Factory.asKey(GROUPKEY)).
-                andCommandKey(HystrixCommandKey.Factory.asKey(GROUPKEY + ":" + commandKey)));
+        super(getSetter(commandKey, collection));
         this.collection = collection;
     }
 
+    /**
+     * Builds the hystrix setter for a command running on the given
+     * collection. If there is a hystrix configuration registered for the DB of
+     * the collection, the command and thread pool keys are qualified with the
+     * datasource name, and the configured settings are used as defaults.
+     * Otherwise, the command key is "mongodb:&lt;commandKey&gt;".
+     *
+     * If the collection has a bulkhead, the keys are further qualified with
+     * the collection name, so the collection gets its own thread pool,
+     * circuit breaker and metrics:
+     * "mongodb:&lt;datasource&gt;:&lt;collection&gt;:&lt;commandKey&gt;" for
+     * the command key, and "mongodb:&lt;datasource&gt;:&lt;collection&gt;" for
+     * the thread pool key.
+     *
+     * @param commandKey The command type
+     * @param collection The collection the command runs on
+     */
+    protected static HystrixCommand.Setter getSetter(String commandKey, DBCollection collection) {
+        HystrixCommand.Setter setter = HystrixCommand.Setter.withGroupKey(HystrixCommandGroupKey.Factory.asKey(GROUPKEY));
+        MongoHystrixConfiguration cfg = collection == null ? null : MongoHystrixConfiguration.get(collection.getDB());
+        if (cfg == null) {
+            setter.andCommandKey(HystrixCommandKey.Factory.asKey(GROUPKEY + ":" + commandKey));
+        } else {
+            String prefix = GROUPKEY + ":" + (cfg.getDatasourceName() == null ? collection.getDB().getName() : cfg.getDatasourceName());
+            MongoCommandSettings settings;
+            MongoCommandSettings poolSettings;
+            if (cfg.hasBulkhead(collection.getName())) {
+                prefix = prefix + ":" + collection.getName();
+                settings = cfg.getSettings(commandKey, collection.getName());
+                poolSettings = cfg.getThreadPoolSettings(collection.getName());
+            } else {
+                settings = cfg.getSettings(commandKey);
+                poolSettings = cfg.getDefaults();
+            }
+            setter.andCommandKey(HystrixCommandKey.Factory.asKey(prefix + ":" + commandKey)).
+                    andThreadPoolKey(HystrixThreadPoolKey.Factory.asKey(prefix)).
+                    andCommandPropertiesDefaults(settings.getCommandProperties()).
+                    andThreadPoolPropertiesDefaults(poolSettings.getThreadPoolProperties());
+        }
+        return setter;
+    }
+
     protected DBCollection getDBCollection() {
         return collection;
     }
@@ -69,6 +117,85 @@ public abstract class AbstractMongoCommand<T> extends HystrixCommand<T> {
         }
     }
 
+    /**
+     * Queues the command for asynchronous execution. The returned future
+     * unwraps hystrix exceptions the same way execute() does: runtime
+     * exceptions thrown by the command are rethrown from get() as is.
+     */
+    @Override
+    public Future<T> queue() {
+        final Future<T> future = super.queue();
+        return new Future<T>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                return future.cancel(mayInterruptIfRunning);
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return future.isCancelled();
+            }
+
+            @Override
+            public boolean isDone() {
+                return future.isDone();
+            }
+
+            @Override
+            public T get() throws InterruptedException, ExecutionException {
+                try {
+                    return future.get();
+                } catch (ExecutionException e) {
+                    throw unwrap(e);
+                }
+            }
+
+            @Override
+            public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+                try {
+                    return future.get(timeout, unit);
+                } catch (ExecutionException e) {
+                    throw unwrap(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Starts the command, and returns an observable for the result. Hystrix
+     * exceptions are unwrapped the same way execute() does.
+     */
+    @Override
+    public Observable<T> observe() {
+        return super.observe().onErrorResumeNext(new Func1<Throwable, Observable<T>>() {
+            @Override
+            public Observable<T> call(Throwable t) {
+                if (t instanceof HystrixBadRequestException && t.getCause() != null) {
+                    return Observable.error(t.getCause());
+                } else {
+                    return Observable.error(t);
+                }
+            }
+        });
+    }
+
+    /**
+     * Rethrows the runtime exception wrapped in the execution exception, or
+     * returns the execution exception if the cause is a checked exception
+     */
+    private static ExecutionException unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof HystrixBadRequestException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return e;
+    }
+
     @Override
     protected T run() {
         try {
@@ -0,0 +1,131 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.hystrix;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * Iterates a cursor one batch at a time, reading each batch using a
+ * {@link CursorBatchCommand}. The batch size of the underlying cursor is set
+ * to the same value, so every batch is at most one round trip to the server.
+ * The batch size is read from the hystrix configuration of the datasource,
+ * and defaults to {@link #DEFAULT_BATCH_SIZE}.
+ *
+ * Closing the underlying cursor is the responsibility of the caller.
+ */
+public class BatchedCursor implements Iterator<DBObject> {
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    private final DBCursor cursor;
+    private final int batchSize;
+    private List<DBObject> batch;
+    private int index;
+    private boolean exhausted = false;
+    private long fetchTime = 0;
+
+    public BatchedCursor(DBCursor cursor) {
+        this(cursor, getBatchSize(cursor));
+    }
+
+    public BatchedCursor(DBCursor cursor, int batchSize) {
+        this.cursor = cursor;
+        this.batchSize = batchSize;
+        cursor.batchSize(batchSize);
+    }
+
+    private static int getBatchSize(DBCursor cursor) {
+        MongoHystrixConfiguration cfg = MongoHystrixConfiguration.get(cursor.getCollection().getDB());
+        return cfg == null || cfg.getCursorBatchSize() == null ? DEFAULT_BATCH_SIZE : cfg.getCursorBatchSize();
+    }
+
+    public DBCursor getCursor() {
+        return cursor;
+    }
+
+    /**
+     * Returns the total time spent reading batches, in nanoseconds
+     */
+    public long getFetchTime() {
+        return fetchTime;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (batch == null || index >= batch.size()) {
+            if (exhausted) {
+                return false;
+            }
+            long t = System.nanoTime();
+            try {
+                batch = new CursorBatchCommand(cursor, batchSize).execute();
+            } catch (RuntimeException e) {
+                // The batch command abandoned the cursor
+                exhausted = true;
+                batch = null;
+                throw e;
+            }
+            fetchTime += System.nanoTime() - t;
+            index = 0;
+            exhausted = batch.size() < batchSize;
+        }
+        return index < batch.size();
+    }
+
+    @Override
+    public DBObject next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return batch.get(index++);
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Reads at most n of the remaining documents
+     */
+    public List<DBObject> next(int n) {
+        List<DBObject> ret = new ArrayList<>(Math.min(n, batchSize));
+        while (ret.size() < n && hasNext()) {
+            ret.add(next());
+        }
+        return ret;
+    }
+
+    /**
+     * Reads all the remaining documents
+     */
+    public List<DBObject> toList() {
+        List<DBObject> ret = new ArrayList<>();
+        while (hasNext()) {
+            ret.add(next());
+        }
+        return ret;
+    }
+}
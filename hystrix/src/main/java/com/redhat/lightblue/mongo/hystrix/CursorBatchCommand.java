@@ -0,0 +1,83 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.hystrix;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * Hystrix command reading the next batch of documents from a cursor. A
+ * cursor is lazy, the query and the getMore calls to the server are executed
+ * while iterating it. This command runs that iteration under hystrix, so the
+ * timeout, circuit breaker and the latency metrics apply to the actual
+ * retrieval of the documents.
+ *
+ * If the command does not complete, e.g. it times out with THREAD
+ * isolation, the cursor is abandoned: the hystrix thread stops iterating it
+ * after the document it is reading, so it does not use the cursor
+ * concurrently with the caller closing it.
+ */
+public class CursorBatchCommand extends AbstractMongoCommand<List<DBObject>> {
+    private final DBCursor cursor;
+    private final int batchSize;
+    private volatile boolean abandoned = false;
+
+    /**
+     * @param cursor The cursor to read from
+     * @param batchSize Maximum number of documents to read
+     */
+    public CursorBatchCommand(DBCursor cursor, int batchSize) {
+        super(CursorBatchCommand.class.getSimpleName(), cursor.getCollection());
+        this.cursor = cursor;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Returns at most batchSize documents. An empty list means the cursor is
+     * exhausted.
+     */
+    @Override
+    protected List<DBObject> runMongoCommand() {
+        List<DBObject> ret = new ArrayList<>(batchSize);
+        while (!abandoned && ret.size() < batchSize && cursor.hasNext()) {
+            ret.add(cursor.next());
+        }
+        return ret;
+    }
+
+    /**
+     * Called when the command fails, is rejected, or times out. Abandons the
+     * cursor, there is no fallback.
+     */
+    @Override
+    protected List<DBObject> getFallback() {
+        abandoned = true;
+        return super.getFallback();
+    }
+
+    /**
+     * Returns if the cursor is abandoned by this command
+     */
+    public boolean isAbandoned() {
+        return abandoned;
+    }
+}
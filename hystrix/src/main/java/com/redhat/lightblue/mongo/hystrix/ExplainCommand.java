@@ -0,0 +1,56 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.hystrix;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * Hystrix command returning the query plan of a query on a MongoDB
+ * collection.
+ */
+public class ExplainCommand extends AbstractMongoCommand<DBObject> {
+    private final DBObject query;
+    private final DBObject sort;
+
+    /**
+     * @param collection The collection
+     * @param query The query
+     * @param sort The sort, can be null
+     */
+    public ExplainCommand(DBCollection collection, DBObject query, DBObject sort) {
+        super(ExplainCommand.class.getSimpleName(), collection);
+        this.query = query;
+        this.sort = sort;
+    }
+
+    @Override
+    protected DBObject runMongoCommand() {
+        DBCursor cursor = getDBCollection().find(query);
+        if (sort != null) {
+            cursor = cursor.sort(sort);
+        }
+        try {
+            return cursor.explain();
+        } finally {
+            cursor.close();
+        }
+    }
+}
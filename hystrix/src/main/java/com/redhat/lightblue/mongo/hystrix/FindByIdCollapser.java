@@ -0,0 +1,146 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.hystrix;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.netflix.hystrix.HystrixCollapser;
+import com.netflix.hystrix.HystrixCollapserKey;
+import com.netflix.hystrix.HystrixCollapserProperties;
+import com.netflix.hystrix.HystrixCommand;
+import com.netflix.hystrix.exception.HystrixBadRequestException;
+
+/**
+ * Collapses concurrent _id lookups on a collection into a single _id $in
+ * query. Lookups from all requests arriving within the collapser window are
+ * collected into a batch, the batch is retrieved using
+ * {@link FindByIdsCommand}, and the results are distributed back to the
+ * individual lookups. A lookup for a missing document returns null.
+ *
+ * The collapser key is "mongodb:&lt;datasource&gt;:&lt;collection&gt;:FindById",
+ * so only lookups on the same collection are batched together. Window and
+ * batch size are read from the {@link MongoHystrixConfiguration} of the
+ * datasource.
+ */
+public class FindByIdCollapser extends HystrixCollapser<List<DBObject>, DBObject, Object> {
+
+    private final DBCollection collection;
+    private final Object id;
+
+    /**
+     * @param collection The collection
+     * @param id The _id value of the document
+     */
+    public FindByIdCollapser(DBCollection collection, Object id) {
+        super(getSetter(collection));
+        this.collection = collection;
+        this.id = id;
+    }
+
+    /**
+     * Returns if _id lookups on the collection should be collapsed
+     */
+    public static boolean isEnabled(DBCollection collection) {
+        MongoHystrixConfiguration cfg = MongoHystrixConfiguration.get(collection.getDB());
+        return cfg != null && cfg.isCollapserEnabled();
+    }
+
+    /**
+     * Looks up the document with the given _id, collapsing the lookup with
+     * others if collapsing is enabled for the collection, or running a
+     * FindOneCommand otherwise.
+     */
+    public static DBObject findById(DBCollection collection, Object id) {
+        if (isEnabled(collection)) {
+            return new FindByIdCollapser(collection, id).execute();
+        } else {
+            return new FindOneCommand(collection, new BasicDBObject("_id", id)).execute();
+        }
+    }
+
+    private static HystrixCollapser.Setter getSetter(DBCollection collection) {
+        MongoHystrixConfiguration cfg = MongoHystrixConfiguration.get(collection.getDB());
+        String ds = cfg == null || cfg.getDatasourceName() == null ? collection.getDB().getName() : cfg.getDatasourceName();
+        HystrixCollapserProperties.Setter props = HystrixCollapserProperties.Setter();
+        if (cfg != null) {
+            if (cfg.getCollapserWindow() != null) {
+                props.withTimerDelayInMilliseconds(cfg.getCollapserWindow());
+            }
+            if (cfg.getCollapserMaxBatchSize() != null) {
+                props.withMaxRequestsInBatch(cfg.getCollapserMaxBatchSize());
+            }
+        }
+        return HystrixCollapser.Setter.
+                withCollapserKey(HystrixCollapserKey.Factory.asKey(AbstractMongoCommand.GROUPKEY + ":" + ds + ":" + collection.getName() + ":FindById")).
+                andScope(Scope.GLOBAL).
+                andCollapserPropertiesDefaults(props);
+    }
+
+    @Override
+    public Object getRequestArgument() {
+        return id;
+    }
+
+    @Override
+    protected HystrixCommand<List<DBObject>> createCommand(Collection<CollapsedRequest<DBObject, Object>> requests) {
+        List<Object> ids = new ArrayList<>(requests.size());
+        for (CollapsedRequest<DBObject, Object> request : requests) {
+            ids.add(request.getArgument());
+        }
+        return new FindByIdsCommand(collection, ids);
+    }
+
+    @Override
+    protected void mapResponseToRequests(List<DBObject> batchResponse, Collection<CollapsedRequest<DBObject, Object>> requests) {
+        Map<Object, DBObject> docs = new HashMap<>();
+        for (DBObject doc : batchResponse) {
+            docs.put(doc.get("_id"), doc);
+        }
+        Set<Object> returned = new HashSet<>();
+        for (CollapsedRequest<DBObject, Object> request : requests) {
+            DBObject doc = docs.get(request.getArgument());
+            // The same document may be requested more than once, each requester gets its own copy
+            if (doc instanceof BasicDBObject && !returned.add(request.getArgument())) {
+                doc = (DBObject) ((BasicDBObject) doc).copy();
+            }
+            request.setResponse(doc);
+        }
+    }
+
+    /**
+     * Unwrap hystrix exception
+     */
+    @Override
+    public DBObject execute() {
+        try {
+            return super.execute();
+        } catch (HystrixBadRequestException br) {
+            throw (RuntimeException) br.getCause();
+        }
+    }
+}
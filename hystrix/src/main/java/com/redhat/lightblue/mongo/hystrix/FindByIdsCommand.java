@@ -0,0 +1,49 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.hystrix;
+
+import java.util.Collection;
+import java.util.List;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+/**
+ * Hystrix command for retrieving the documents with the given _id values
+ * using a single _id $in query.
+ */
+public class FindByIdsCommand extends AbstractMongoCommand<List<DBObject>> {
+    private final Collection<Object> ids;
+
+    /**
+     * @param collection The collection
+     * @param ids The _id values to lookup
+     */
+    public FindByIdsCommand(DBCollection collection, Collection<Object> ids) {
+        super(FindByIdsCommand.class.getSimpleName(), collection);
+        this.ids = ids;
+    }
+
+    @Override
+    protected List<DBObject> runMongoCommand() {
+        DBObject query = new BasicDBObject("_id", new BasicDBObject("$in", ids));
+        return getDBCollection().find(query).toArray();
+    }
+}
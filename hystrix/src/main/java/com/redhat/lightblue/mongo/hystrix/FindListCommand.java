@@ -0,0 +1,68 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.hystrix;
+
+import java.util.List;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * Hystrix command running a find and reading all the results. Used to run
+ * several queries in parallel when the results are merged by the caller.
+ */
+public class FindListCommand extends AbstractMongoCommand<List<DBObject>> {
+    private final DBObject query;
+    private final DBObject projection;
+    private final DBObject sort;
+    private final int limit;
+
+    public FindListCommand(DBCollection collection, DBObject query, DBObject projection) {
+        this(collection, query, projection, null, 0);
+    }
+
+    /**
+     * @param sort The sort, can be null
+     * @param limit Maximum number of results, 0 for no limit
+     */
+    public FindListCommand(DBCollection collection, DBObject query, DBObject projection, DBObject sort, int limit) {
+        super(FindListCommand.class.getSimpleName(), collection);
+        this.query = query;
+        this.projection = projection;
+        this.sort = sort;
+        this.limit = limit;
+    }
+
+    @Override
+    protected List<DBObject> runMongoCommand() {
+        DBCursor cursor = getDBCollection().find(query, projection);
+        if (sort != null) {
+            cursor.sort(sort);
+        }
+        if (limit > 0) {
+            cursor.limit(limit);
+        }
+        try {
+            return cursor.toArray();
+        } finally {
+            cursor.close();
+        }
+    }
+}
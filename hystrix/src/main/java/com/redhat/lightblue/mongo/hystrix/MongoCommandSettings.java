@@ -0,0 +1,248 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.hystrix;
+
+import java.io.Serializable;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.netflix.hystrix.HystrixCommandProperties;
+import com.netflix.hystrix.HystrixThreadPoolProperties;
+
+/**
+ * Hystrix execution settings for mongo commands. Any setting that is left
+ * null is not passed to hystrix, so the hystrix default (or the archaius
+ * property, if one is given) is used.
+ *
+ * <pre>
+ *   {
+ *     "isolation": "THREAD" | "SEMAPHORE",
+ *     "timeout": milliseconds,
+ *     "maxConcurrentRequests": n,
+ *     "threadPoolSize": n,
+ *     "maxQueueSize": n
+ *   }
+ * </pre>
+ *
+ * maxConcurrentRequests is the semaphore limit, and only applies to SEMAPHORE
+ * isolation. threadPoolSize and maxQueueSize only apply to THREAD isolation.
+ *
+ * The timeout is only enforced with THREAD isolation. Hystrix does not
+ * interrupt or time out SEMAPHORE isolated commands, so with SEMAPHORE
+ * isolation the timeout is passed to hystrix, but a slow command runs until
+ * the driver returns, and the socket timeout of the mongo client is the only
+ * bound (see {@link #isTimeoutEnforced()}).
+ */
+public class MongoCommandSettings implements Serializable {
+
+    private static final long serialVersionUID = 1l;
+
+    private HystrixCommandProperties.ExecutionIsolationStrategy isolationStrategy;
+    private Integer timeout;
+    private Integer maxConcurrentRequests;
+    private Integer threadPoolSize;
+    private Integer maxQueueSize;
+
+    public MongoCommandSettings() {
+    }
+
+    public MongoCommandSettings(MongoCommandSettings s) {
+        this.isolationStrategy = s.isolationStrategy;
+        this.timeout = s.timeout;
+        this.maxConcurrentRequests = s.maxConcurrentRequests;
+        this.threadPoolSize = s.threadPoolSize;
+        this.maxQueueSize = s.maxQueueSize;
+    }
+
+    /**
+     * Execution isolation strategy, THREAD or SEMAPHORE
+     */
+    public HystrixCommandProperties.ExecutionIsolationStrategy getIsolationStrategy() {
+        return isolationStrategy;
+    }
+
+    /**
+     * Execution isolation strategy, THREAD or SEMAPHORE
+     */
+    public void setIsolationStrategy(HystrixCommandProperties.ExecutionIsolationStrategy s) {
+        isolationStrategy = s;
+    }
+
+    /**
+     * Execution timeout in milliseconds. Not enforced with SEMAPHORE
+     * isolation.
+     */
+    public Integer getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Execution timeout in milliseconds. Not enforced with SEMAPHORE
+     * isolation.
+     */
+    public void setTimeout(Integer timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Returns false if a timeout is set, but hystrix will not enforce it
+     * because the commands are SEMAPHORE isolated
+     */
+    public boolean isTimeoutEnforced() {
+        return timeout == null || isolationStrategy != HystrixCommandProperties.ExecutionIsolationStrategy.SEMAPHORE;
+    }
+
+    /**
+     * Maximum number of concurrent requests with SEMAPHORE isolation
+     */
+    public Integer getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    /**
+     * Maximum number of concurrent requests with SEMAPHORE isolation
+     */
+    public void setMaxConcurrentRequests(Integer n) {
+        maxConcurrentRequests = n;
+    }
+
+    /**
+     * Thread pool core size with THREAD isolation
+     */
+    public Integer getThreadPoolSize() {
+        return threadPoolSize;
+    }
+
+    /**
+     * Thread pool core size with THREAD isolation
+     */
+    public void setThreadPoolSize(Integer n) {
+        threadPoolSize = n;
+    }
+
+    /**
+     * Thread pool queue size with THREAD isolation
+     */
+    public Integer getMaxQueueSize() {
+        return maxQueueSize;
+    }
+
+    /**
+     * Thread pool queue size with THREAD isolation
+     */
+    public void setMaxQueueSize(Integer n) {
+        maxQueueSize = n;
+    }
+
+    /**
+     * Returns a new settings object containing the values of this object,
+     * overridden by the non-null values of <code>override</code>
+     */
+    public MongoCommandSettings merge(MongoCommandSettings override) {
+        MongoCommandSettings ret = new MongoCommandSettings(this);
+        if (override != null) {
+            if (override.isolationStrategy != null) {
+                ret.isolationStrategy = override.isolationStrategy;
+            }
+            if (override.timeout != null) {
+                ret.timeout = override.timeout;
+            }
+            if (override.maxConcurrentRequests != null) {
+                ret.maxConcurrentRequests = override.maxConcurrentRequests;
+            }
+            if (override.threadPoolSize != null) {
+                ret.threadPoolSize = override.threadPoolSize;
+            }
+            if (override.maxQueueSize != null) {
+                ret.maxQueueSize = override.maxQueueSize;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the hystrix command property defaults for these settings
+     */
+    public HystrixCommandProperties.Setter getCommandProperties() {
+        HystrixCommandProperties.Setter setter = HystrixCommandProperties.Setter();
+        if (isolationStrategy != null) {
+            setter.withExecutionIsolationStrategy(isolationStrategy);
+        }
+        if (timeout != null) {
+            setter.withExecutionIsolationThreadTimeoutInMilliseconds(timeout);
+        }
+        if (maxConcurrentRequests != null) {
+            setter.withExecutionIsolationSemaphoreMaxConcurrentRequests(maxConcurrentRequests);
+        }
+        return setter;
+    }
+
+    /**
+     * Returns the hystrix thread pool property defaults for these settings
+     */
+    public HystrixThreadPoolProperties.Setter getThreadPoolProperties() {
+        HystrixThreadPoolProperties.Setter setter = HystrixThreadPoolProperties.Setter();
+        if (threadPoolSize != null) {
+            setter.withCoreSize(threadPoolSize);
+        }
+        if (maxQueueSize != null) {
+            setter.withMaxQueueSize(maxQueueSize);
+        }
+        return setter;
+    }
+
+    public void initializeFromJson(JsonNode node) {
+        if (node != null) {
+            JsonNode x = node.get("isolation");
+            if (x != null) {
+                try {
+                    isolationStrategy = HystrixCommandProperties.ExecutionIsolationStrategy.valueOf(x.asText().toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("invalid isolation:" + x.asText() + ", must be one of THREAD, SEMAPHORE");
+                }
+            }
+            x = node.get("timeout");
+            if (x != null) {
+                timeout = x.asInt();
+            }
+            x = node.get("maxConcurrentRequests");
+            if (x != null) {
+                maxConcurrentRequests = x.asInt();
+            }
+            x = node.get("threadPoolSize");
+            if (x != null) {
+                threadPoolSize = x.asInt();
+            }
+            x = node.get("maxQueueSize");
+            if (x != null) {
+                maxQueueSize = x.asInt();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder bld = new StringBuilder();
+        bld.append("isolation:").append(isolationStrategy).
+                append(" timeout:").append(timeout).
+                append(" maxConcurrentRequests:").append(maxConcurrentRequests).
+                append(" threadPoolSize:").append(threadPoolSize).
+                append(" maxQueueSize:").append(maxQueueSize);
+        return bld.toString();
+    }
+}
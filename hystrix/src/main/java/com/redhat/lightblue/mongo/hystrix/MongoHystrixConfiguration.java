@@ -0,0 +1,350 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.hystrix;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.mongodb.DB;
+
+/**
+ * Hystrix settings for the mongo commands of a datasource. There is a set of
+ * default settings for the datasource, and command specific settings keyed by
+ * the command type (the simple class name of the command, e.g.
+ * "FindCommand"), overriding the defaults.
+ *
+ * <pre>
+ *   "hystrix": {
+ *      "isolation": "SEMAPHORE",
+ *      "timeout": 5000,
+ *      "maxConcurrentRequests": 100,
+ *      "commands": {
+ *         "FindCommand": { "timeout": 30000 }
+ *      },
+ *      "bulkheads": {
+ *         "audit": { "threadPoolSize": 5, "timeout": 60000 },
+ *         "*": { }
+ *      },
+ *      "collapser": { "enabled": true, "window": 10, "maxBatchSize": 100 },
+ *      "cursorBatchSize": 100
+ *   }
+ * </pre>
+ *
+ * The timeout is not enforced for SEMAPHORE isolated commands (see
+ * {@link MongoCommandSettings}).
+ *
+ * Hystrix caches command properties by command key, so commands running on a
+ * DB with a registered configuration use datasource qualified keys:
+ * "mongodb:&lt;datasource&gt;:&lt;command&gt;" for the command key, and
+ * "mongodb:&lt;datasource&gt;" for the thread pool key. Commands running on
+ * DBs without a configuration keep using "mongodb:&lt;command&gt;". The group
+ * key is always "mongodb". Thread pool settings are read from the datasource
+ * defaults, overridden by the bulkhead settings for collections with a
+ * bulkhead. Command specific thread pool settings are ignored, because all
+ * commands of a datasource, or of a bulkhead, share the same thread pool.
+ *
+ * Collections listed under "bulkheads" get their own command keys and
+ * thread pool, "mongodb:&lt;datasource&gt;:&lt;collection&gt;:&lt;command&gt;"
+ * and "mongodb:&lt;datasource&gt;:&lt;collection&gt;", so a slow collection
+ * cannot exhaust the resources of the others. The bulkhead settings override
+ * both the datasource defaults and the command settings. A bulkhead named "*"
+ * applies to all collections that are not explicitly listed.
+ *
+ * If "collapser" is enabled, concurrent _id lookups on the same collection
+ * arriving within "window" milliseconds are merged into a single _id $in
+ * query (see {@link FindByIdCollapser}).
+ *
+ * Cursors are read in batches of "cursorBatchSize" documents, each batch
+ * running as a separate command (see {@link BatchedCursor}).
+ */
+public class MongoHystrixConfiguration implements Serializable {
+
+    private static final long serialVersionUID = 1l;
+
+    private static final Map<DB, MongoHystrixConfiguration> CONFIGURATIONS
+            = Collections.synchronizedMap(new WeakHashMap<DB, MongoHystrixConfiguration>());
+
+    private String datasourceName;
+    private MongoCommandSettings defaults = new MongoCommandSettings();
+    private final Map<String, MongoCommandSettings> commandSettings = new HashMap<>();
+    private final Map<String, MongoCommandSettings> bulkheads = new HashMap<>();
+
+    private boolean collapserEnabled = false;
+    private Integer collapserWindow;
+    private Integer collapserMaxBatchSize;
+    private Integer cursorBatchSize;
+
+    /**
+     * Name of the bulkhead applying to all collections
+     */
+    public static final String ALL_COLLECTIONS = "*";
+
+    /**
+     * Registers the hystrix configuration for the commands running on the
+     * given DB
+     */
+    public static void register(DB db, MongoHystrixConfiguration cfg) {
+        if (cfg == null) {
+            CONFIGURATIONS.remove(db);
+        } else {
+            CONFIGURATIONS.put(db, cfg);
+        }
+    }
+
+    /**
+     * Returns the hystrix configuration registered for the DB, or null if
+     * there is none
+     */
+    public static MongoHystrixConfiguration get(DB db) {
+        return db == null ? null : CONFIGURATIONS.get(db);
+    }
+
+    /**
+     * The name of the datasource, used to build the hystrix keys
+     */
+    public String getDatasourceName() {
+        return datasourceName;
+    }
+
+    /**
+     * The name of the datasource, used to build the hystrix keys
+     */
+    public void setDatasourceName(String s) {
+        datasourceName = s;
+    }
+
+    /**
+     * The default settings for all commands of this datasource
+     */
+    public MongoCommandSettings getDefaults() {
+        return defaults;
+    }
+
+    /**
+     * The default settings for all commands of this datasource
+     */
+    public void setDefaults(MongoCommandSettings s) {
+        defaults = s == null ? new MongoCommandSettings() : s;
+    }
+
+    /**
+     * Sets the settings for a command type
+     *
+     * @param commandKey The command type, e.g. "FindCommand"
+     * @param s The settings overriding the defaults
+     */
+    public void setCommandSettings(String commandKey, MongoCommandSettings s) {
+        if (s == null) {
+            commandSettings.remove(commandKey);
+        } else {
+            commandSettings.put(commandKey, s);
+        }
+    }
+
+    /**
+     * Returns the effective settings for a command type, i.e. datasource
+     * defaults overridden by the command settings
+     */
+    public MongoCommandSettings getSettings(String commandKey) {
+        return defaults.merge(commandSettings.get(commandKey));
+    }
+
+    /**
+     * Declares a bulkhead for a collection
+     *
+     * @param collectionName The collection name, or "*" for all collections
+     * @param s The settings for the bulkhead, overriding the defaults and the
+     * command settings. If null, the bulkhead is removed.
+     */
+    public void setBulkhead(String collectionName, MongoCommandSettings s) {
+        if (s == null) {
+            bulkheads.remove(collectionName);
+        } else {
+            bulkheads.put(collectionName, s);
+        }
+    }
+
+    /**
+     * Returns the bulkhead settings for the collection, or null if the
+     * collection does not have a bulkhead
+     */
+    public MongoCommandSettings getBulkhead(String collectionName) {
+        MongoCommandSettings s = bulkheads.get(collectionName);
+        return s == null ? bulkheads.get(ALL_COLLECTIONS) : s;
+    }
+
+    /**
+     * Returns if the collection runs in its own bulkhead
+     */
+    public boolean hasBulkhead(String collectionName) {
+        return getBulkhead(collectionName) != null;
+    }
+
+    /**
+     * Returns the effective settings for a command type running on the
+     * collection, i.e. datasource defaults overridden by the command
+     * settings, and then by the bulkhead settings of the collection
+     */
+    public MongoCommandSettings getSettings(String commandKey, String collectionName) {
+        return getSettings(commandKey).merge(getBulkhead(collectionName));
+    }
+
+    /**
+     * Returns the names of the settings that set a timeout hystrix does not
+     * enforce, because the commands are SEMAPHORE isolated: "defaults", the
+     * command types, and "bulkhead:&lt;collection&gt;" for the bulkheads
+     */
+    public Set<String> getUnenforcedTimeouts() {
+        Set<String> ret = new TreeSet<>();
+        if (!defaults.isTimeoutEnforced()) {
+            ret.add("defaults");
+        }
+        for (String commandKey : commandSettings.keySet()) {
+            if (!getSettings(commandKey).isTimeoutEnforced()) {
+                ret.add(commandKey);
+            }
+        }
+        for (Map.Entry<String, MongoCommandSettings> entry : bulkheads.entrySet()) {
+            if (!defaults.merge(entry.getValue()).isTimeoutEnforced()) {
+                ret.add("bulkhead:" + entry.getKey());
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the thread pool settings for the bulkhead of the collection,
+     * i.e. the datasource defaults overridden by the bulkhead settings
+     */
+    public MongoCommandSettings getThreadPoolSettings(String collectionName) {
+        return defaults.merge(getBulkhead(collectionName));
+    }
+
+    /**
+     * If true, _id lookups are collapsed into _id $in queries
+     */
+    public boolean isCollapserEnabled() {
+        return collapserEnabled;
+    }
+
+    /**
+     * If true, _id lookups are collapsed into _id $in queries
+     */
+    public void setCollapserEnabled(boolean b) {
+        collapserEnabled = b;
+    }
+
+    /**
+     * The window in milliseconds during which _id lookups are collected into
+     * a batch. This is the maximum latency added to a lookup.
+     */
+    public Integer getCollapserWindow() {
+        return collapserWindow;
+    }
+
+    /**
+     * The window in milliseconds during which _id lookups are collected into
+     * a batch. This is the maximum latency added to a lookup.
+     */
+    public void setCollapserWindow(Integer ms) {
+        collapserWindow = ms;
+    }
+
+    /**
+     * Maximum number of _id lookups in a batch
+     */
+    public Integer getCollapserMaxBatchSize() {
+        return collapserMaxBatchSize;
+    }
+
+    /**
+     * Maximum number of _id lookups in a batch
+     */
+    public void setCollapserMaxBatchSize(Integer n) {
+        collapserMaxBatchSize = n;
+    }
+
+    /**
+     * Number of documents read from a cursor by a single command
+     */
+    public Integer getCursorBatchSize() {
+        return cursorBatchSize;
+    }
+
+    /**
+     * Number of documents read from a cursor by a single command
+     */
+    public void setCursorBatchSize(Integer n) {
+        cursorBatchSize = n;
+    }
+
+    public void initializeFromJson(JsonNode node) {
+        if (node != null) {
+            defaults = new MongoCommandSettings();
+            defaults.initializeFromJson(node);
+            JsonNode x = node.get("commands");
+            if (x != null) {
+                for (Iterator<Map.Entry<String, JsonNode>> itr = x.fields(); itr.hasNext();) {
+                    Map.Entry<String, JsonNode> entry = itr.next();
+                    MongoCommandSettings s = new MongoCommandSettings();
+                    s.initializeFromJson(entry.getValue());
+                    commandSettings.put(entry.getKey(), s);
+                }
+            }
+            x = node.get("bulkheads");
+            if (x != null) {
+                for (Iterator<Map.Entry<String, JsonNode>> itr = x.fields(); itr.hasNext();) {
+                    Map.Entry<String, JsonNode> entry = itr.next();
+                    MongoCommandSettings s = new MongoCommandSettings();
+                    s.initializeFromJson(entry.getValue());
+                    bulkheads.put(entry.getKey(), s);
+                }
+            }
+            x = node.get("cursorBatchSize");
+            if (x != null) {
+                cursorBatchSize = x.asInt();
+            }
+            x = node.get("collapser");
+            if (x != null) {
+                JsonNode y = x.get("enabled");
+                collapserEnabled = y == null || y.asBoolean();
+                y = x.get("window");
+                if (y != null) {
+                    collapserWindow = y.asInt();
+                }
+                y = x.get("maxBatchSize");
+                if (y != null) {
+                    collapserMaxBatchSize = y.asInt();
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "datasource:" + datasourceName + " defaults:{" + defaults + "} commands:" + commandSettings;
+    }
+}
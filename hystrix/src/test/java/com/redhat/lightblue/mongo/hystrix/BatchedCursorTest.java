@@ -0,0 +1,91 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.hystrix;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+public class BatchedCursorTest extends AbstractMongoTest {
+
+    @Test
+    public void readInBatches() {
+        DBCursor cursor = new FindCommand(coll, null, null).execute();
+        try {
+            List<DBObject> list = new BatchedCursor(cursor, 3).toList();
+            Assert.assertEquals(10, list.size());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void batchSizeMultipleOfResultSize() {
+        DBCursor cursor = new FindCommand(coll, new BasicDBObject(key1, "obj4"), null).execute();
+        try {
+            BatchedCursor docs = new BatchedCursor(cursor, 2);
+            int n = 0;
+            while (docs.hasNext()) {
+                Assert.assertEquals("obj4", docs.next().get(key1));
+                n++;
+            }
+            Assert.assertEquals(4, n);
+            Assert.assertFalse(docs.hasNext());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void readPages() {
+        DBCursor cursor = new FindCommand(coll, null, null).execute();
+        try {
+            BatchedCursor docs = new BatchedCursor(cursor, 3);
+            Assert.assertEquals(4, docs.next(4).size());
+            Assert.assertEquals(4, docs.next(4).size());
+            Assert.assertEquals(2, docs.next(4).size());
+            Assert.assertTrue(docs.next(4).isEmpty());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void abandonedCursor() {
+        DBCursor cursor = new FindCommand(coll, null, null).execute();
+        try {
+            CursorBatchCommand cmd = new CursorBatchCommand(cursor, 3);
+            try {
+                cmd.getFallback();
+                Assert.fail();
+            } catch (UnsupportedOperationException e) {
+            }
+            Assert.assertTrue(cmd.isAbandoned());
+            // An abandoned command does not read the cursor any more
+            Assert.assertTrue(cmd.execute().isEmpty());
+        } finally {
+            cursor.close();
+        }
+    }
+}
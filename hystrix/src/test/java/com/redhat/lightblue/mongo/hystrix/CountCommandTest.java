@@ -0,0 +1,42 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.hystrix;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+
+public class CountCommandTest extends AbstractMongoTest {
+
+    @Test
+    public void execute() {
+        Assert.assertEquals(Long.valueOf(4), new CountCommand(coll, new BasicDBObject(key1, "obj4")).execute());
+    }
+
+    @Test
+    public void queue() throws Exception {
+        Assert.assertEquals(Long.valueOf(10), new CountCommand(coll, null).queue().get());
+    }
+
+    @Test
+    public void observe() {
+        Assert.assertEquals(Long.valueOf(3), new CountCommand(coll, new BasicDBObject(key1, "obj3")).observe().toBlockingObservable().single());
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.hystrix;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.bson.types.ObjectId;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+public class FindByIdCollapserTest extends AbstractMongoTest {
+
+    @Test
+    public void collapseLookups() throws Exception {
+        MongoHystrixConfiguration cfg = new MongoHystrixConfiguration();
+        cfg.setCollapserEnabled(true);
+        cfg.setCollapserWindow(50);
+        MongoHystrixConfiguration.register(db, cfg);
+        try {
+            List<Object> ids = new ArrayList<>();
+            for (DBObject obj : coll.find().toArray()) {
+                ids.add(obj.get("_id"));
+            }
+            ids.add(new ObjectId());
+
+            List<Future<DBObject>> results = new ArrayList<>();
+            for (Object id : ids) {
+                results.add(new FindByIdCollapser(coll, id).queue());
+            }
+            for (int i = 0; i < ids.size() - 1; i++) {
+                DBObject obj = results.get(i).get();
+                Assert.assertNotNull(obj);
+                Assert.assertEquals(ids.get(i), obj.get("_id"));
+            }
+            Assert.assertNull(results.get(ids.size() - 1).get());
+        } finally {
+            MongoHystrixConfiguration.register(db, null);
+        }
+    }
+
+    @Test
+    public void findByIdWithoutCollapsing() {
+        Object id = coll.findOne(new BasicDBObject(key1, "obj1")).get("_id");
+        DBObject obj = FindByIdCollapser.findById(coll, id);
+        Assert.assertEquals("obj1", obj.get(key1));
+    }
+}
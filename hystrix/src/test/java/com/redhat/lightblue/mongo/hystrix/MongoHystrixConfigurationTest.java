@@ -0,0 +1,114 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.hystrix;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.netflix.hystrix.HystrixCommandProperties;
+
+public class MongoHystrixConfigurationTest {
+
+    private MongoHystrixConfiguration parse(String json) throws Exception {
+        MongoHystrixConfiguration cfg = new MongoHystrixConfiguration();
+        cfg.initializeFromJson(new ObjectMapper().readTree(json));
+        return cfg;
+    }
+
+    @Test
+    public void commandSettingsOverrideDefaults() throws Exception {
+        MongoHystrixConfiguration cfg = parse("{\"isolation\":\"SEMAPHORE\",\"timeout\":1000,\"maxConcurrentRequests\":50,"
+                + "\"commands\":{\"FindCommand\":{\"timeout\":30000,\"maxConcurrentRequests\":10}}}");
+
+        MongoCommandSettings find = cfg.getSettings("FindCommand");
+        Assert.assertEquals(HystrixCommandProperties.ExecutionIsolationStrategy.SEMAPHORE, find.getIsolationStrategy());
+        Assert.assertEquals(new Integer(30000), find.getTimeout());
+        Assert.assertEquals(new Integer(10), find.getMaxConcurrentRequests());
+
+        MongoCommandSettings insert = cfg.getSettings("InsertCommand");
+        Assert.assertEquals(HystrixCommandProperties.ExecutionIsolationStrategy.SEMAPHORE, insert.getIsolationStrategy());
+        Assert.assertEquals(new Integer(1000), insert.getTimeout());
+        Assert.assertEquals(new Integer(50), insert.getMaxConcurrentRequests());
+    }
+
+    @Test
+    public void unsetValuesAreNull() throws Exception {
+        MongoCommandSettings s = parse("{\"threadPoolSize\":20}").getSettings("FindCommand");
+        Assert.assertNull(s.getIsolationStrategy());
+        Assert.assertNull(s.getTimeout());
+        Assert.assertEquals(new Integer(20), s.getThreadPoolSize());
+    }
+
+    @Test
+    public void semaphoreTimeoutNotEnforced() throws Exception {
+        Assert.assertFalse(parse("{\"isolation\":\"SEMAPHORE\",\"timeout\":1000}").getSettings("FindCommand").isTimeoutEnforced());
+        Assert.assertTrue(parse("{\"isolation\":\"SEMAPHORE\"}").getSettings("FindCommand").isTimeoutEnforced());
+        Assert.assertTrue(parse("{\"isolation\":\"THREAD\",\"timeout\":1000}").getSettings("FindCommand").isTimeoutEnforced());
+        Assert.assertTrue(parse("{\"timeout\":1000}").getSettings("FindCommand").isTimeoutEnforced());
+    }
+
+    @Test
+    public void unenforcedTimeouts() throws Exception {
+        MongoHystrixConfiguration cfg = parse("{\"isolation\":\"SEMAPHORE\","
+                + "\"commands\":{\"FindCommand\":{\"timeout\":30000},\"CountCommand\":{\"isolation\":\"THREAD\",\"timeout\":1000}},"
+                + "\"bulkheads\":{\"audit\":{\"timeout\":60000}}}");
+        Assert.assertEquals("[FindCommand, bulkhead:audit]", cfg.getUnenforcedTimeouts().toString());
+        Assert.assertTrue(parse("{\"timeout\":1000}").getUnenforcedTimeouts().isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidIsolation() throws Exception {
+        parse("{\"isolation\":\"PROCESS\"}");
+    }
+
+    @Test
+    public void bulkheads() throws Exception {
+        MongoHystrixConfiguration cfg = parse("{\"timeout\":1000,\"threadPoolSize\":10,"
+                + "\"commands\":{\"FindCommand\":{\"timeout\":30000}},"
+                + "\"bulkheads\":{\"audit\":{\"timeout\":60000,\"threadPoolSize\":2}}}");
+
+        Assert.assertTrue(cfg.hasBulkhead("audit"));
+        Assert.assertFalse(cfg.hasBulkhead("user"));
+        Assert.assertEquals(new Integer(60000), cfg.getSettings("FindCommand", "audit").getTimeout());
+        Assert.assertEquals(new Integer(2), cfg.getThreadPoolSettings("audit").getThreadPoolSize());
+        Assert.assertEquals(new Integer(30000), cfg.getSettings("FindCommand").getTimeout());
+
+        cfg.setBulkhead(MongoHystrixConfiguration.ALL_COLLECTIONS, new MongoCommandSettings());
+        Assert.assertTrue(cfg.hasBulkhead("user"));
+        Assert.assertEquals(new Integer(30000), cfg.getSettings("FindCommand", "user").getTimeout());
+        Assert.assertEquals(new Integer(10), cfg.getThreadPoolSettings("user").getThreadPoolSize());
+    }
+
+    @Test
+    public void collapser() throws Exception {
+        Assert.assertFalse(parse("{}").isCollapserEnabled());
+        MongoHystrixConfiguration cfg = parse("{\"collapser\":{\"window\":5,\"maxBatchSize\":200}}");
+        Assert.assertTrue(cfg.isCollapserEnabled());
+        Assert.assertEquals(new Integer(5), cfg.getCollapserWindow());
+        Assert.assertEquals(new Integer(200), cfg.getCollapserMaxBatchSize());
+        Assert.assertFalse(parse("{\"collapser\":{\"enabled\":false}}").isCollapserEnabled());
+    }
+
+    @Test
+    public void cursorBatchSize() throws Exception {
+        Assert.assertNull(parse("{}").getCursorBatchSize());
+        Assert.assertEquals(new Integer(500), parse("{\"cursorBatchSize\":500}").getCursorBatchSize());
+    }
+}
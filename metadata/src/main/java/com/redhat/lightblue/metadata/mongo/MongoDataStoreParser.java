@@ -18,12 +18,18 @@
  */
 package com.redhat.lightblue.metadata.mongo;
 
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import com.redhat.lightblue.metadata.MetadataConstants;
 import com.redhat.lightblue.metadata.DataStore;
 import com.redhat.lightblue.metadata.parser.DataStoreParser;
 import com.redhat.lightblue.metadata.parser.MetadataParser;
 
+import com.redhat.lightblue.common.mongo.MongoCacheOptions;
 import com.redhat.lightblue.common.mongo.MongoDataStore;
+import com.redhat.lightblue.common.mongo.MongoIndexOptions;
 
 import com.redhat.lightblue.util.Error;
 
@@ -33,6 +39,22 @@ public class MongoDataStoreParser<T> implements DataStoreParser<T> {
 
     public static final String NAME = "mongo";
 
+    public static final String INDEX_ENFORCEMENT = "indexEnforcement";
+
+    public static final String INDEX_OPTIONS = "indexOptions";
+    public static final String SPARSE = "sparse";
+    public static final String EXPIRE_AFTER_SECONDS = "expireAfterSeconds";
+    public static final String PARTIAL_FILTER_EXPRESSION = "partialFilterExpression";
+    public static final String COLLATION = "collation";
+
+    public static final String CASE_INSENSITIVE_FIELDS = "caseInsensitiveFields";
+
+    public static final String DOCUMENT_CACHE = "documentCache";
+    public static final String QUERY_CACHE = "queryCache";
+    public static final String MAX_SIZE = "maxSize";
+    public static final String TTL = "ttl";
+    public static final String INVALIDATION = "invalidation";
+
     @Override
     public DataStore parse(String name, MetadataParser<T> p, T node) {
         if (!NAME.equals(name)) {
@@ -47,9 +69,125 @@ public class MongoDataStoreParser<T> implements DataStoreParser<T> {
                 || ds.getCollectionName().length() == 0) {
             throw Error.get(COLLECTION_REQUIRED, "datastore");
         }
+        String enforcement = p.getStringProperty(node, INDEX_ENFORCEMENT);
+        if (enforcement != null) {
+            try {
+                ds.setIndexEnforcement(MongoDataStore.IndexEnforcement.valueOf(enforcement));
+            } catch (IllegalArgumentException e) {
+                throw Error.get(MetadataConstants.ERR_ILL_FORMED_METADATA, INDEX_ENFORCEMENT + ":" + enforcement);
+            }
+        }
+        T options = p.getObjectProperty(node, INDEX_OPTIONS);
+        if (options != null) {
+            for (String indexName : p.getChildNames(options)) {
+                ds.setIndexOptions(indexName, parseIndexOptions(p, p.getObjectProperty(options, indexName)));
+            }
+        }
+        List<String> fields = p.getStringList(node, CASE_INSENSITIVE_FIELDS);
+        if (fields != null) {
+            ds.getCaseInsensitiveFields().addAll(fields);
+        }
+        T cache = p.getObjectProperty(node, DOCUMENT_CACHE);
+        if (cache != null) {
+            ds.setDocumentCache(parseCacheOptions(p, cache));
+        }
+        cache = p.getObjectProperty(node, QUERY_CACHE);
+        if (cache != null) {
+            ds.setQueryCache(parseCacheOptions(p, cache));
+        }
         return ds;
     }
 
+    private MongoCacheOptions parseCacheOptions(MetadataParser<T> p, T node) {
+        MongoCacheOptions options = new MongoCacheOptions();
+        Object x = p.getValueProperty(node, MAX_SIZE);
+        if (x != null) {
+            if (!(x instanceof Number)) {
+                throw Error.get(MetadataConstants.ERR_ILL_FORMED_METADATA, MAX_SIZE + ":" + x);
+            }
+            options.setMaxSize(((Number) x).intValue());
+        }
+        x = p.getValueProperty(node, TTL);
+        if (x != null) {
+            if (!(x instanceof Number)) {
+                throw Error.get(MetadataConstants.ERR_ILL_FORMED_METADATA, TTL + ":" + x);
+            }
+            options.setTtl(((Number) x).longValue());
+        }
+        x = p.getValueProperty(node, INVALIDATION);
+        if (x != null) {
+            options.setInvalidation(x.toString());
+        }
+        return options;
+    }
+
+    private T convertCacheOptions(MetadataParser<T> p, MongoCacheOptions options) {
+        T node = p.newNode();
+        if (options.getMaxSize() != null) {
+            p.putValue(node, MAX_SIZE, options.getMaxSize());
+        }
+        if (options.getTtl() != null) {
+            p.putValue(node, TTL, options.getTtl());
+        }
+        if (options.getInvalidation() != null) {
+            p.putValue(node, INVALIDATION, options.getInvalidation());
+        }
+        return node;
+    }
+
+    private MongoIndexOptions parseIndexOptions(MetadataParser<T> p, T node) {
+        MongoIndexOptions options = new MongoIndexOptions();
+        Object x = p.getValueProperty(node, SPARSE);
+        if (x != null) {
+            options.setSparse(x instanceof Boolean ? (Boolean) x : Boolean.valueOf(x.toString()));
+        }
+        x = p.getValueProperty(node, EXPIRE_AFTER_SECONDS);
+        if (x != null) {
+            if (!(x instanceof Number)) {
+                throw Error.get(MetadataConstants.ERR_ILL_FORMED_METADATA, EXPIRE_AFTER_SECONDS + ":" + x);
+            }
+            options.setExpireAfterSeconds(((Number) x).intValue());
+        }
+        T obj = p.getObjectProperty(node, PARTIAL_FILTER_EXPRESSION);
+        if (obj != null) {
+            options.setPartialFilterExpression(toMap(p, obj));
+        }
+        obj = p.getObjectProperty(node, COLLATION);
+        if (obj != null) {
+            options.setCollation(toMap(p, obj));
+        }
+        return options;
+    }
+
+    /**
+     * Converts an object node with scalar or object values to a map
+     */
+    private Map<String, Object> toMap(MetadataParser<T> p, T node) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (String name : p.getChildNames(node)) {
+            T child = p.getObjectProperty(node, name);
+            if (p.getChildNames(child).isEmpty()) {
+                map.put(name, p.getValueProperty(node, name));
+            } else {
+                map.put(name, toMap(p, child));
+            }
+        }
+        return map;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T fromMap(MetadataParser<T> p, Map<String, Object> map) {
+        T node = p.newNode();
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            if (entry.getValue() instanceof Map) {
+                p.putObject(node, entry.getKey(), fromMap(p, (Map<String, Object>) entry.getValue()));
+            } else {
+                p.putValue(node, entry.getKey(), entry.getValue());
+            }
+        }
+        return node;
+    }
+
     @Override
     public void convert(MetadataParser<T> p, T emptyNode, DataStore object) {
         MongoDataStore ds = (MongoDataStore) object;
@@ -62,6 +200,42 @@ public class MongoDataStoreParser<T> implements DataStoreParser<T> {
         if (ds.getCollectionName() != null) {
             p.putString(emptyNode, "collection", ds.getCollectionName());
         }
+        if (ds.getIndexEnforcement() != null) {
+            p.putString(emptyNode, INDEX_ENFORCEMENT, ds.getIndexEnforcement().name());
+        }
+        if (!ds.getIndexOptions().isEmpty()) {
+            T options = p.newNode();
+            for (Map.Entry<String, MongoIndexOptions> entry : ds.getIndexOptions().entrySet()) {
+                MongoIndexOptions o = entry.getValue();
+                T node = p.newNode();
+                if (o.getSparse() != null) {
+                    p.putValue(node, SPARSE, o.getSparse());
+                }
+                if (o.getExpireAfterSeconds() != null) {
+                    p.putValue(node, EXPIRE_AFTER_SECONDS, o.getExpireAfterSeconds());
+                }
+                if (o.getPartialFilterExpression() != null) {
+                    p.putObject(node, PARTIAL_FILTER_EXPRESSION, fromMap(p, o.getPartialFilterExpression()));
+                }
+                if (o.getCollation() != null) {
+                    p.putObject(node, COLLATION, fromMap(p, o.getCollation()));
+                }
+                p.putObject(options, entry.getKey(), node);
+            }
+            p.putObject(emptyNode, INDEX_OPTIONS, options);
+        }
+        if (!ds.getCaseInsensitiveFields().isEmpty()) {
+            Object arr = p.newArrayField(emptyNode, CASE_INSENSITIVE_FIELDS);
+            for (String field : ds.getCaseInsensitiveFields()) {
+                p.addStringToArray(arr, field);
+            }
+        }
+        if (ds.getDocumentCache() != null) {
+            p.putObject(emptyNode, DOCUMENT_CACHE, convertCacheOptions(p, ds.getDocumentCache()));
+        }
+        if (ds.getQueryCache() != null) {
+            p.putObject(emptyNode, QUERY_CACHE, convertCacheOptions(p, ds.getQueryCache()));
+        }
     }
 
     @Override
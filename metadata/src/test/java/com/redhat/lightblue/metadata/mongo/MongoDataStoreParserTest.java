@@ -0,0 +1,156 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.metadata.mongo;
+
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.redhat.lightblue.common.mongo.MongoDataStore;
+import com.redhat.lightblue.common.mongo.MongoIndexOptions;
+import com.redhat.lightblue.metadata.parser.Extensions;
+import com.redhat.lightblue.metadata.parser.JSONMetadataParser;
+import com.redhat.lightblue.metadata.types.DefaultTypes;
+import com.redhat.lightblue.util.Error;
+
+public class MongoDataStoreParserTest {
+
+    private final JsonNodeFactory factory = JsonNodeFactory.instance;
+    private JSONMetadataParser parser;
+    private final MongoDataStoreParser<JsonNode> dsParser = new MongoDataStoreParser<>();
+
+    @Before
+    public void setup() {
+        Extensions<JsonNode> extensions = new Extensions<>();
+        extensions.addDefaultExtensions();
+        extensions.registerDataStoreParser("mongo", dsParser);
+        parser = new JSONMetadataParser(extensions, new DefaultTypes(), factory);
+    }
+
+    private ObjectNode datastore() {
+        ObjectNode node = factory.objectNode();
+        node.put("datasource", "ds");
+        node.put("collection", "coll");
+        return node;
+    }
+
+    @Test
+    public void indexEnforcement() {
+        ObjectNode node = datastore();
+        Assert.assertNull(((MongoDataStore) dsParser.parse("mongo", parser, node)).getIndexEnforcement());
+
+        node.put("indexEnforcement", "reject");
+        MongoDataStore ds = (MongoDataStore) dsParser.parse("mongo", parser, node);
+        Assert.assertEquals(MongoDataStore.IndexEnforcement.reject, ds.getIndexEnforcement());
+
+        ObjectNode out = factory.objectNode();
+        dsParser.convert(parser, out, ds);
+        Assert.assertEquals("reject", out.get("indexEnforcement").asText());
+    }
+
+    @Test(expected = Error.class)
+    public void invalidIndexEnforcement() {
+        ObjectNode node = datastore();
+        node.put("indexEnforcement", "maybe");
+        dsParser.parse("mongo", parser, node);
+    }
+
+    @Test
+    public void indexOptions() {
+        ObjectNode node = datastore();
+        ObjectNode ix = factory.objectNode();
+        ix.put("sparse", true);
+        ix.put("expireAfterSeconds", 3600);
+        ObjectNode filter = factory.objectNode();
+        filter.put("status", "active");
+        filter.set("age", factory.objectNode().put("$gt", 5));
+        ix.set("partialFilterExpression", filter);
+        ix.set("collation", factory.objectNode().put("locale", "en").put("strength", 2));
+        node.set("indexOptions", factory.objectNode().set("byEmail", ix));
+
+        MongoDataStore ds = (MongoDataStore) dsParser.parse("mongo", parser, node);
+        MongoIndexOptions options = ds.getIndexOptions("byEmail");
+        Assert.assertTrue(options.getSparse());
+        Assert.assertEquals(3600, options.getExpireAfterSeconds().intValue());
+        Assert.assertEquals("active", options.getPartialFilterExpression().get("status"));
+        Assert.assertEquals(5, ((Number) ((Map) options.getPartialFilterExpression().get("age")).get("$gt")).intValue());
+        Assert.assertEquals("en", options.getCollation().get("locale"));
+        Assert.assertNull(ds.getIndexOptions("other"));
+
+        ObjectNode out = factory.objectNode();
+        dsParser.convert(parser, out, ds);
+        JsonNode converted = out.get("indexOptions").get("byEmail");
+        Assert.assertTrue(converted.get("sparse").asBoolean());
+        Assert.assertEquals(3600, converted.get("expireAfterSeconds").asInt());
+        Assert.assertEquals(5, converted.get("partialFilterExpression").get("age").get("$gt").asInt());
+        Assert.assertEquals(2, converted.get("collation").get("strength").asInt());
+    }
+
+    @Test
+    public void caseInsensitiveFields() {
+        ObjectNode node = datastore();
+        node.putArray("caseInsensitiveFields").add("name").add("address.city");
+        MongoDataStore ds = (MongoDataStore) dsParser.parse("mongo", parser, node);
+        Assert.assertEquals(2, ds.getCaseInsensitiveFields().size());
+        Assert.assertTrue(ds.getCaseInsensitiveFields().contains("address.city"));
+
+        ObjectNode out = factory.objectNode();
+        dsParser.convert(parser, out, ds);
+        Assert.assertEquals(2, out.get("caseInsensitiveFields").size());
+        Assert.assertEquals("name", out.get("caseInsensitiveFields").get(0).asText());
+    }
+
+    @Test
+    public void documentCache() {
+        ObjectNode node = datastore();
+        node.putObject("documentCache").put("maxSize", 500).put("ttl", 30000).put("invalidation", "oplog");
+        MongoDataStore ds = (MongoDataStore) dsParser.parse("mongo", parser, node);
+        Assert.assertEquals(Integer.valueOf(500), ds.getDocumentCache().getMaxSize());
+        Assert.assertEquals(Long.valueOf(30000), ds.getDocumentCache().getTtl());
+        Assert.assertEquals("oplog", ds.getDocumentCache().getInvalidation());
+
+        ObjectNode out = factory.objectNode();
+        dsParser.convert(parser, out, ds);
+        Assert.assertEquals(500, out.get("documentCache").get("maxSize").asInt());
+        Assert.assertEquals(30000, out.get("documentCache").get("ttl").asLong());
+        Assert.assertEquals("oplog", out.get("documentCache").get("invalidation").asText());
+
+        Assert.assertNull(((MongoDataStore) dsParser.parse("mongo", parser, datastore())).getDocumentCache());
+    }
+
+    @Test
+    public void queryCache() {
+        ObjectNode node = datastore();
+        node.putObject("queryCache").put("maxSize", 2000);
+        MongoDataStore ds = (MongoDataStore) dsParser.parse("mongo", parser, node);
+        Assert.assertEquals(Integer.valueOf(2000), ds.getQueryCache().getMaxSize());
+        Assert.assertNull(ds.getQueryCache().getTtl());
+        Assert.assertNull(ds.getDocumentCache());
+
+        ObjectNode out = factory.objectNode();
+        dsParser.convert(parser, out, ds);
+        Assert.assertEquals(2000, out.get("queryCache").get("maxSize").asInt());
+        Assert.assertNull(out.get("documentCache"));
+    }
+}